@@ -0,0 +1,346 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enregistrement asynchrone des hits (paramètre async-hits) :
+ * le thread de la requête écrit le hit dans un buffer circulaire de taille fixe propre à ce thread,
+ * sans aucun lock, et un thread unique reporte ensuite les hits de tous les buffers
+ * dans les CounterRequest des counters.
+ *
+ * Chaque buffer n'a qu'un seul producteur (son thread) et un seul consommateur à la fois
+ * (la méthode drain est synchronisée) : il suffit donc de publier les positions de lecture
+ * et d'écriture, sans compare-and-set. Les enregistrements du buffer sont alloués une seule fois
+ * et réutilisés, y compris la map des requêtes filles pour le drill-down.
+ * Si un buffer est plein, le hit est compté puis perdu plutôt que de bloquer la requête.
+ *
+ * Les hits en attente sont reportés avant chaque lecture des requêtes d'un counter (Counter.getRequests),
+ * donc avant chaque collecte et chaque rapport.
+ * Attention, comme pour tout ThreadLocal non supprimé, les buffers restent référencés par les threads
+ * du serveur après l'arrêt de la webapp jusqu'à la fin de ces threads.
+ * @author Emeric Vernat
+ */
+class AsyncHitsRecorder {
+	/**
+	 * Nombre de hits par buffer (puissance de 2).
+	 */
+	static final int BUFFER_SIZE = 1024;
+	// attente du thread de report quand il n'y a aucun hit en attente
+	private static final long DRAIN_PERIOD_MILLIS = 10;
+
+	private final List<HitsBuffer> buffers = new CopyOnWriteArrayList<HitsBuffer>();
+	private final ThreadLocal<HitsBuffer> bufferThreadLocal = new ThreadLocal<HitsBuffer>() {
+		@Override
+		protected HitsBuffer initialValue() {
+			final HitsBuffer buffer = new HitsBuffer(Thread.currentThread());
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+	// hits perdus par les buffers déjà supprimés
+	private final AtomicLong removedBuffersDroppedHits = new AtomicLong();
+	private long drainedHitsCount;
+	private Thread drainerThread;
+	private volatile boolean stopped;
+
+	/**
+	 * Enregistrement d'un hit, réutilisé d'un tour de buffer à l'autre.
+	 */
+	private static final class Hit {
+		Counter counter;
+		CounterRequest request;
+		long durationMicros;
+		long cpuTime;
+		boolean systemError;
+		int responseSize;
+		int hitsWeight;
+		int childHits;
+		int childDurationsSum;
+		final IntLongHashMap childRequestsExecutions = new IntLongHashMap();
+		// requêtes filles sans index (RequestIdDictionary plein), en général null
+		Map<String, Long> childRequestsExecutionsWithoutIndex;
+
+		Hit() {
+			super();
+		}
+
+		void apply() {
+			CounterRequest myRequest = request;
+			if (!counter.containsRequest(myRequest)) {
+				// requête remplacée entre-temps (paramètre top-requests-count) ou counter vidé
+				myRequest = counter.getCounterRequestForHit(myRequest.getName());
+			}
+			synchronized (myRequest) {
+				myRequest.addHitMicros(durationMicros, cpuTime, systemError, null, responseSize,
+						hitsWeight);
+				myRequest.addChildHits(childHits, childDurationsSum, hitsWeight);
+				myRequest.addChildRequests(childRequestsExecutions, hitsWeight);
+				myRequest.addChildRequestsWithoutIndex(childRequestsExecutionsWithoutIndex,
+						hitsWeight);
+			}
+		}
+
+		void clear() {
+			// pour ne pas retenir en mémoire les counters et requêtes
+			counter = null;
+			request = null;
+			childRequestsExecutions.clear();
+			childRequestsExecutionsWithoutIndex = null;
+		}
+	}
+
+	/**
+	 * Buffer circulaire des hits d'un thread.
+	 */
+	private static final class HitsBuffer {
+		private final Hit[] hits = new Hit[BUFFER_SIZE];
+		private final Thread thread;
+		// position de la prochaine écriture, modifiée seulement par le thread du buffer
+		private final AtomicLong tail = new AtomicLong();
+		// position de la prochaine lecture, modifiée seulement par drain
+		private final AtomicLong head = new AtomicLong();
+		private volatile long droppedHits;
+
+		HitsBuffer(Thread thread) {
+			super();
+			this.thread = thread;
+			for (int i = 0; i < hits.length; i++) {
+				hits[i] = new Hit();
+			}
+		}
+
+		// CHECKSTYLE:OFF
+		boolean offer(Counter counter, CounterRequest request, long durationMicros, long cpuTime,
+				boolean systemError, int responseSize, int hitsWeight,
+				CounterRequestContext context) {
+			// CHECKSTYLE:ON
+			final long currentTail = tail.get();
+			if (currentTail - head.get() >= BUFFER_SIZE) {
+				// un seul écrivain, donc pas besoin d'incrément atomique
+				droppedHits++; // NOPMD
+				return false;
+			}
+			final Hit hit = hits[(int) currentTail & (BUFFER_SIZE - 1)];
+			hit.counter = counter;
+			hit.request = request;
+			hit.durationMicros = durationMicros;
+			hit.cpuTime = cpuTime;
+			hit.systemError = systemError;
+			hit.responseSize = responseSize;
+			hit.hitsWeight = hitsWeight;
+			hit.childHits = 0;
+			hit.childDurationsSum = 0;
+			if (context != null) {
+				if (context.getParentCounter() == counter) {
+					hit.childHits = context.getChildHits();
+					hit.childDurationsSum = context.getChildDurationsSum();
+				}
+				// copie car la map du contexte continue d'évoluer ou est recyclée
+				final IntLongHashMap childRequests = context.getChildRequestsExecutions();
+				if (childRequests != null && !childRequests.isEmpty()) {
+					hit.childRequestsExecutions.addAll(childRequests);
+				}
+				final Map<String, Long> childRequestsWithoutIndex = context
+						.getChildRequestsExecutionsWithoutIndex();
+				if (childRequestsWithoutIndex != null) {
+					hit.childRequestsExecutionsWithoutIndex = new LinkedHashMap<String, Long>(
+							childRequestsWithoutIndex);
+				}
+			}
+			// publication du hit pour drain (lazySet suffit : un seul écrivain et lecture volatile)
+			tail.lazySet(currentTail + 1);
+			return true;
+		}
+
+		int drain() {
+			final long currentHead = head.get();
+			final long currentTail = tail.get();
+			for (long i = currentHead; i < currentTail; i++) {
+				final Hit hit = hits[(int) i & (BUFFER_SIZE - 1)];
+				try {
+					hit.apply();
+				} catch (final Throwable t) { // NOPMD
+					// ce hit est perdu, mais les suivants doivent être reportés
+					// et la position de lecture doit avancer, sinon le buffer serait bloqué
+					LOG.warn("exception while recording hits", t);
+				} finally {
+					hit.clear();
+				}
+			}
+			head.lazySet(currentTail);
+			return (int) (currentTail - currentHead);
+		}
+
+		int getPendingHitsCount() {
+			return (int) Math.max(tail.get() - head.get(), 0);
+		}
+
+		long getDroppedHits() {
+			return droppedHits;
+		}
+
+		boolean isThreadAlive() {
+			return thread.isAlive();
+		}
+	}
+
+	AsyncHitsRecorder() {
+		super();
+	}
+
+	/**
+	 * Démarre le thread qui reporte les hits dans les counters.
+	 * @param name Nom du thread
+	 */
+	synchronized void start(String name) {
+		assert drainerThread == null;
+		stopped = false;
+		final Thread thread = new Thread(name) {
+			@Override
+			public void run() {
+				drainUntilStopped();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		drainerThread = thread;
+	}
+
+	/**
+	 * Arrête le thread de report, après avoir reporté les hits en attente.
+	 */
+	void stop() {
+		final Thread thread;
+		synchronized (this) {
+			stopped = true;
+			thread = drainerThread;
+			drainerThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join(1000);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		drain();
+	}
+
+	boolean isStarted() {
+		return !stopped && drainerThread != null;
+	}
+
+	void drainUntilStopped() {
+		while (!stopped) {
+			try {
+				if (drain() == 0) {
+					Thread.sleep(DRAIN_PERIOD_MILLIS);
+				}
+			} catch (final InterruptedException e) {
+				// arrêt demandé par stop()
+				return;
+			} catch (final Throwable t) { // NOPMD
+				// il ne doit pas y avoir d'erreur dans ce thread, sinon il ne reporterait plus les hits
+				LOG.warn("exception while recording hits", t);
+			}
+		}
+	}
+
+	/**
+	 * Enregistre un hit pour qu'il soit reporté par le thread de report dans la requête.
+	 * @param counter Counter de la requête
+	 * @param request CounterRequest
+	 * @param durationMicros Durée en microsecondes
+	 * @param cpuTime Temps cpu ou -1
+	 * @param systemError true si erreur système
+	 * @param responseSize Taille de la réponse ou -1
+	 * @param hitsWeight Poids des hits, au moins 1
+	 * @param context Contexte courant dont les requêtes filles sont à reporter, ou null
+	 * @return false si le hit a été perdu car le buffer de ce thread est plein
+	 */
+	// CHECKSTYLE:OFF
+	boolean record(Counter counter, CounterRequest request, long durationMicros, long cpuTime,
+			boolean systemError, int responseSize, int hitsWeight, CounterRequestContext context) {
+		// CHECKSTYLE:ON
+		return bufferThreadLocal.get().offer(counter, request, durationMicros, cpuTime,
+				systemError, responseSize, hitsWeight, context);
+	}
+
+	/**
+	 * Reporte dans les counters les hits en attente dans tous les buffers.
+	 * @return Nombre de hits reportés
+	 */
+	synchronized int drain() {
+		int result = 0;
+		for (final HitsBuffer buffer : buffers) {
+			result += buffer.drain();
+			if (!buffer.isThreadAlive() && buffer.getPendingHitsCount() == 0) {
+				// le thread est terminé, son buffer ne sera plus utilisé
+				removedBuffersDroppedHits.addAndGet(buffer.getDroppedHits());
+				buffers.remove(buffer);
+			}
+		}
+		drainedHitsCount += result;
+		return result;
+	}
+
+	/**
+	 * @return Nombre de hits en attente d'être reportés dans les counters
+	 */
+	int getPendingHitsCount() {
+		int result = 0;
+		for (final HitsBuffer buffer : buffers) {
+			result += buffer.getPendingHitsCount();
+		}
+		return result;
+	}
+
+	/**
+	 * @return Nombre de hits perdus car un buffer était plein
+	 */
+	long getDroppedHitsCount() {
+		long result = removedBuffersDroppedHits.get();
+		for (final HitsBuffer buffer : buffers) {
+			result += buffer.getDroppedHits();
+		}
+		return result;
+	}
+
+	synchronized long getDrainedHitsCount() {
+		return drainedHitsCount;
+	}
+
+	int getBuffersCount() {
+		return buffers.size();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[buffersCount=" + getBuffersCount()
+				+ ", pendingHitsCount=" + getPendingHitsCount() + ", droppedHitsCount="
+				+ getDroppedHitsCount() + ']';
+	}
+}
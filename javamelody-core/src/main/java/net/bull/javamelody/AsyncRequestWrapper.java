@@ -0,0 +1,381 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Wrapper de la requête http pour les requêtes asynchrones de Servlet 3 (request.startAsync()),
+ * utilisé par {@link MonitoringFilter} seulement si le conteneur est compatible Servlet 3.
+ *
+ * Pour une requête asynchrone, le thread du filtre se termine avant la fin de la requête :
+ * la requête est alors enregistrée dans les statistiques par onComplete de cet AsyncListener,
+ * avec sa durée réelle, son erreur éventuelle et la taille finale de la réponse,
+ * sans retenir de thread pendant le traitement asynchrone.
+ *
+ * Les requêtes filles (sql en particulier) exécutées par les threads qui terminent la requête
+ * (AsyncContext.start(Runnable) et dispatch asynchrone par le filtre) sont ajoutées à la requête.
+ * Comme un contexte de requête n'est pas fait pour être modifié par plusieurs threads en même temps,
+ * chacun de ces threads a son propre contexte, reporté dans le contexte de la requête
+ * lorsque la requête est enregistrée.
+ * @author Emeric Vernat
+ */
+class AsyncRequestWrapper extends HttpServletRequestWrapper implements AsyncListener {
+	static final String REQUEST_KEY = "javamelody.asyncRequest";
+
+	private final MonitoringFilter filter;
+	private final Counter httpCounter;
+	private final HttpServletRequest httpRequest;
+	private final CounterServletResponseWrapper wrappedResponse;
+	private final String requestName;
+	private final long start;
+	private final RequestSampling sampling;
+	private final AtomicBoolean recorded = new AtomicBoolean();
+	// temps cpu du thread du filtre et des threads terminant la requête
+	private final AtomicLong cpuTimeMillis = new AtomicLong();
+	// contextes des threads terminant la requête, en cours ou terminés,
+	// à reporter dans le contexte de la requête
+	private final Queue<CounterRequestContext> activeThreadContexts = new ConcurrentLinkedQueue<CounterRequestContext>();
+	private final Queue<CounterRequestContext> finishedThreadContexts = new ConcurrentLinkedQueue<CounterRequestContext>();
+	private volatile boolean listening;
+	private volatile MonitoredAsyncContext monitoredAsyncContext;
+	private volatile CounterRequestContext context;
+	private volatile Throwable systemException;
+
+	/**
+	 * AsyncContext dont les Runnable sont exécutés avec un contexte lié à la requête.
+	 */
+	private class MonitoredAsyncContext implements AsyncContext {
+		private final AsyncContext asyncContext;
+
+		MonitoredAsyncContext(AsyncContext asyncContext) {
+			super();
+			this.asyncContext = asyncContext;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public ServletRequest getRequest() {
+			return asyncContext.getRequest();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public ServletResponse getResponse() {
+			return asyncContext.getResponse();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public boolean hasOriginalRequestAndResponse() {
+			return asyncContext.hasOriginalRequestAndResponse();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void dispatch() {
+			asyncContext.dispatch();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void dispatch(String path) {
+			asyncContext.dispatch(path);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void dispatch(ServletContext servletContext, String path) {
+			asyncContext.dispatch(servletContext, path);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void complete() {
+			asyncContext.complete();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void start(final Runnable runnable) {
+			asyncContext.start(new Runnable() {
+				@Override
+				public void run() {
+					runInThreadContext(runnable);
+				}
+			});
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void addListener(AsyncListener listener) {
+			asyncContext.addListener(listener);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void addListener(AsyncListener listener, ServletRequest servletRequest,
+				ServletResponse servletResponse) {
+			asyncContext.addListener(listener, servletRequest, servletResponse);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+			return asyncContext.createListener(clazz);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void setTimeout(long timeout) {
+			asyncContext.setTimeout(timeout);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public long getTimeout() {
+			return asyncContext.getTimeout();
+		}
+	}
+
+	// CHECKSTYLE:OFF
+	AsyncRequestWrapper(MonitoringFilter filter, Counter httpCounter,
+			HttpServletRequest wrappedRequest, HttpServletRequest httpRequest,
+			CounterServletResponseWrapper wrappedResponse, String requestName, long start,
+			RequestSampling sampling) {
+		// CHECKSTYLE:ON
+		super(wrappedRequest);
+		this.filter = filter;
+		this.httpCounter = httpCounter;
+		this.httpRequest = httpRequest;
+		this.wrappedResponse = wrappedResponse;
+		this.requestName = requestName;
+		this.start = start;
+		this.sampling = sampling;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public AsyncContext startAsync() {
+		// comme dans JspWrapper (issue 217), asyncContext.getResponse() doit retourner
+		// le wrapper de la réponse si response.getWriter() a déjà été appelée
+		return startAsync(this, wrappedResponse);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+		final AsyncContext asyncContext = super.startAsync(servletRequest, servletResponse);
+		startMonitoring(asyncContext);
+		final MonitoredAsyncContext result = new MonitoredAsyncContext(asyncContext);
+		monitoredAsyncContext = result;
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public AsyncContext getAsyncContext() {
+		final AsyncContext asyncContext = super.getAsyncContext();
+		final MonitoredAsyncContext result = monitoredAsyncContext;
+		if (result != null && result.asyncContext == asyncContext) {
+			return result;
+		}
+		return asyncContext;
+	}
+
+	private void startMonitoring(AsyncContext asyncContext) {
+		if (!listening) {
+			// appelé dans le thread du filtre, où le contexte courant est celui de la requête
+			// ou bien un contexte fils de celui-ci
+			CounterRequestContext currentContext = httpCounter.getCurrentContext();
+			while (currentContext != null && currentContext.getParentContext() != null) {
+				currentContext = currentContext.getParentContext();
+			}
+			context = currentContext;
+			asyncContext.addListener(this);
+			// pour que le filtre reconnaisse les dispatchs asynchrones de cette requête
+			httpRequest.setAttribute(REQUEST_KEY, this);
+			listening = true;
+		}
+	}
+
+	/**
+	 * Appelé par le filtre à la fin de son thread : si la requête est asynchrone, le contexte
+	 * de la requête est détaché de ce thread et la requête sera enregistrée par onComplete.
+	 * @param cpuUsedMillis Temps cpu du thread du filtre
+	 * @param exception Exception du thread du filtre ou null
+	 * @return true si la requête est asynchrone et ne doit pas être enregistrée par le filtre
+	 */
+	boolean detachIfAsync(long cpuUsedMillis, Throwable exception) {
+		if (!listening) {
+			if (!isAsyncStarted()) {
+				return false;
+			}
+			// startAsync a été appelée sans ce wrapper, par exemple sur la requête initiale
+			startMonitoring(super.getAsyncContext());
+		}
+		cpuTimeMillis.addAndGet(cpuUsedMillis);
+		if (exception != null && systemException == null) {
+			systemException = exception;
+		}
+		final CounterRequestContext detachedContext = httpCounter.detachContext();
+		if (context == null) {
+			context = detachedContext;
+		}
+		return true;
+	}
+
+	/**
+	 * Exécute une tâche d'un thread terminant la requête, avec un contexte propre à ce thread
+	 * pour y ajouter les requêtes filles.
+	 * @param runnable Runnable
+	 */
+	void runInThreadContext(Runnable runnable) {
+		final CounterRequestContext threadContext = createThreadContext();
+		final CounterRequestContext previousContext = httpCounter.attachContext(threadContext);
+		final long threadStart = System.currentTimeMillis();
+		final long startCpuTime = httpCounter.getStartCpuTime();
+		try {
+			runnable.run();
+		} finally {
+			finishThreadContext(threadContext, previousContext, threadStart, startCpuTime);
+		}
+	}
+
+	/**
+	 * Exécute un dispatch asynchrone de cette requête par le filtre, avec un contexte propre
+	 * à ce thread pour y ajouter les requêtes filles.
+	 * @param chain FilterChain
+	 * @param request ServletRequest
+	 * @param response ServletResponse
+	 * @throws IOException e
+	 * @throws ServletException e
+	 */
+	void doFilterInThreadContext(FilterChain chain, ServletRequest request,
+			ServletResponse response) throws IOException, ServletException {
+		final CounterRequestContext threadContext = createThreadContext();
+		final CounterRequestContext previousContext = httpCounter.attachContext(threadContext);
+		final long threadStart = System.currentTimeMillis();
+		final long startCpuTime = httpCounter.getStartCpuTime();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			finishThreadContext(threadContext, previousContext, threadStart, startCpuTime);
+		}
+	}
+
+	private CounterRequestContext createThreadContext() {
+		final CounterRequestContext threadContext = new CounterRequestContext(httpCounter, null,
+				requestName, requestName, null, -1);
+		threadContext.setDetached(true);
+		activeThreadContexts.add(threadContext);
+		return threadContext;
+	}
+
+	private void finishThreadContext(CounterRequestContext threadContext,
+			CounterRequestContext previousContext, long threadStart, long startCpuTime) {
+		try {
+			// temps cpu mesuré comme dans le thread du filtre (paramètre cpu-time-accounting),
+			// pour que la somme des temps cpu des threads de la requête soit homogène
+			final long duration = Math.max(System.currentTimeMillis() - threadStart, 0);
+			cpuTimeMillis.addAndGet(Math.max(httpCounter.getCpuTimeMillis(startCpuTime, duration),
+					0));
+			activeThreadContexts.remove(threadContext);
+			finishedThreadContexts.add(threadContext);
+		} finally {
+			httpCounter.restoreContext(previousContext);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onComplete(AsyncEvent event) {
+		if (!recorded.compareAndSet(false, true)) {
+			return;
+		}
+		final long duration = Math.max(System.currentTimeMillis() - start, 0);
+		final CounterRequestContext myContext = context;
+		if (myContext != null) {
+			// onComplete est souvent appelé dans le thread ayant appelé complete(),
+			// dont le contexte n'est pas encore terminé (les contextes des autres threads
+			// encore en cours ne peuvent pas être lus sans risque et ne sont pas reportés)
+			final CounterRequestContext currentContext = httpCounter.getCurrentContext();
+			if (currentContext != null && activeThreadContexts.contains(currentContext)) {
+				myContext.addChildRequests(currentContext);
+				currentContext.clearChildRequests();
+			}
+			CounterRequestContext threadContext = finishedThreadContexts.poll();
+			while (threadContext != null) {
+				myContext.addChildRequests(threadContext);
+				threadContext = finishedThreadContexts.poll();
+			}
+		}
+		filter.addRequest(httpRequest, wrappedResponse, requestName, duration,
+				cpuTimeMillis.get(), systemException, sampling, myContext);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onError(AsyncEvent event) {
+		if (systemException == null) {
+			systemException = event.getThrowable();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		// comme pour onError, la requête sera enregistrée en erreur par onComplete,
+		// même si le conteneur ou l'application ne répond pas avec un status http d'erreur
+		if (systemException == null) {
+			final Throwable throwable = event.getThrowable();
+			if (throwable != null) {
+				systemException = throwable;
+			} else if (event.getAsyncContext() != null) {
+				systemException = new TimeoutException("Async request timed out after "
+						+ event.getAsyncContext().getTimeout() + " ms");
+			} else {
+				systemException = new TimeoutException("Async request timed out");
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+		// nouvel appel de startAsync pendant un dispatch asynchrone :
+		// ce listener doit être ajouté à nouveau pour être appelé à la fin de la requête
+		event.getAsyncContext().addListener(this);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache borné et sans verrou, avec ses statistiques de hits, de misses et d'évictions
+ * affichées dans la page de monitoring (utilisé par RequestTransformCache et StackTraceFingerprints).
+ *
+ * Quand le cache est plein, un quart des entrées est évincé dans un ordre quelconque.
+ * @param <K> Type des clés
+ * @param <V> Type des valeurs
+ * @author Emeric Vernat
+ */
+class BoundedCache<K, V> {
+	private final int maxSize;
+	@SuppressWarnings("all")
+	private final ConcurrentMap<K, V> valuesByKey = new ConcurrentHashMap<K, V>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	BoundedCache(int maxSize) {
+		super();
+		assert maxSize >= 4;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param key Clé
+	 * @return Valeur dans le cache, ou null si absente (compté comme un miss)
+	 */
+	V get(K key) {
+		final V value = valuesByKey.get(key);
+		if (value != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Ajoute une valeur si la clé est absente, en évinçant des entrées si le cache est plein.
+	 * @param key Clé
+	 * @param value Valeur
+	 * @return Valeur précédente ajoutée en même temps par un autre thread, ou null
+	 */
+	V putIfAbsent(K key, V value) {
+		if (valuesByKey.size() >= maxSize) {
+			evict();
+		}
+		return valuesByKey.putIfAbsent(key, value);
+	}
+
+	private void evict() {
+		// l'itérateur de ConcurrentHashMap ne lance pas ConcurrentModificationException,
+		// même si plusieurs threads évincent en même temps
+		int toBeEvicted = maxSize / 4;
+		final Iterator<K> iterator = valuesByKey.keySet().iterator();
+		while (toBeEvicted > 0 && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			toBeEvicted--;
+			evictions.incrementAndGet();
+		}
+	}
+
+	void clear() {
+		valuesByKey.clear();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	int getSize() {
+		return valuesByKey.size();
+	}
+
+	/**
+	 * @return Pourcentage de hits dans le cache, entre 0 et 100
+	 */
+	int getHitsPercentage() {
+		final long myHits = getHits();
+		final long accesses = myHits + getMisses();
+		if (accesses == 0) {
+			return 0;
+		}
+		return (int) (100 * myHits / accesses);
+	}
+}
@@ -17,9 +17,9 @@
  */
 package net.bull.javamelody;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -29,7 +29,15 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.bull.javamelody.Counter.CounterRequestContextComparator;
 import net.bull.javamelody.SamplingProfiler.SampledMethod;
@@ -45,17 +53,30 @@ class Collector { // NOPMD
 	private final List<Counter> counters;
 	private final SamplingProfiler samplingProfiler;
 	private final Map<String, JRobin> requestJRobinsById = new ConcurrentHashMap<String, JRobin>();
+	// segments des courbes des requêtes (paramètre consolidated-request-graphs), ou null
+	private final JRobinSegments requestJRobinSegments;
+	// cache des jours précédents pour la semaine, le mois et l'année (paramètre period-counters-cache), ou null
+	private final PeriodCounterCache periodCounterCache;
+	// suppression des fichiers obsolètes et usage disque, en dehors de la collecte
+	private final StorageMaintenance storageMaintenance;
 	// les instances jrobins des compteurs sont créées à l'initialisation
 	private final Map<String, JRobin> counterJRobins = new LinkedHashMap<String, JRobin>();
 	private final Map<String, JRobin> otherJRobins = new LinkedHashMap<String, JRobin>();
-	// globalRequestsByCounter, requestsById, dayCountersByCounter et cpuTimeMillis
-	// sont utilisés par un seul thread lors des collectes,
+	// dayCountersByCounter et cpuTimeMillis sont utilisés par un seul thread lors des collectes,
 	// (et la méthode centrale "collect" est synchronisée pour éviter un accès concurrent
-	// avec la mise à jour avant le rapport html)
-	private final Map<Counter, CounterRequest> globalRequestsByCounter = new HashMap<Counter, CounterRequest>();
-	private final Map<String, CounterRequest> requestsById = new HashMap<String, CounterRequest>();
+	// avec la mise à jour avant le rapport html);
+	// globalRequestsByCounter, requestsById, firstCollectDoneByCounter et errorsOccurrencesByCounter
+	// sont des ConcurrentHashMap car les compteurs peuvent être collectés en parallèle (collect-threads)
+	private final Map<Counter, CounterRequest> globalRequestsByCounter = new ConcurrentHashMap<Counter, CounterRequest>();
+	private final Map<String, CounterRequest> requestsById = new ConcurrentHashMap<String, CounterRequest>();
 	private final Map<Counter, Counter> dayCountersByCounter = new LinkedHashMap<Counter, Counter>();
-	private final Map<Counter, Boolean> firstCollectDoneByCounter = new HashMap<Counter, Boolean>();
+	private final Map<Counter, Boolean> firstCollectDoneByCounter = new ConcurrentHashMap<Counter, Boolean>();
+	// nombres d'occurrences des erreurs lors de la collecte précédente, par message et stack-trace
+	private final Map<Counter, Map<List<String>, Long>> errorsOccurrencesByCounter = new ConcurrentHashMap<Counter, Map<List<String>, Long>>();
+	// durées de la dernière collecte par nom de compteur en millisecondes
+	private final Map<String, Long> lastCollectDurationsByCounter = new ConcurrentHashMap<String, Long>();
+	// threads de collecte parallèle des compteurs, ou null si collect-threads n'est pas supérieur à 1
+	private final ExecutorService collectExecutorService;
 	private long transactionCount;
 	private long cpuTimeMillis;
 	private long gcTimeMillis;
@@ -63,7 +84,6 @@ class Collector { // NOPMD
 	private long tomcatBytesSent;
 	private long lastCollectDuration;
 	private long estimatedMemorySize;
-	private long diskUsage;
 	private Date lastDateOfDeletedObsoleteFiles = new Date();
 	private boolean stopped;
 	private final boolean noDatabase = Parameters.isNoDatabase();
@@ -102,6 +122,19 @@ class Collector { // NOPMD
 			dayCountersByCounter.put(counter, dayCounter);
 		}
 		periodMillis = Parameters.getResolutionSeconds() * 1000;
+		collectExecutorService = createCollectExecutorService(application);
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.CONSOLIDATED_REQUEST_GRAPHS))) {
+			requestJRobinSegments = new JRobinSegments(application);
+		} else {
+			requestJRobinSegments = null;
+		}
+		storageMaintenance = new StorageMaintenance(application);
+		storageMaintenance.start();
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.PERIOD_COUNTERS_CACHE))) {
+			periodCounterCache = new PeriodCounterCache();
+		} else {
+			periodCounterCache = null;
+		}
 
 		try {
 			// on relit les compteurs à l'initialisation pour récupérer les stats;
@@ -124,6 +157,32 @@ class Collector { // NOPMD
 		}
 	}
 
+	private static ExecutorService createCollectExecutorService(final String application) {
+		final String collectThreads = Parameters.getParameter(Parameter.COLLECT_THREADS);
+		if (collectThreads == null) {
+			return null;
+		}
+		// lance une NumberFormatException si ce n'est pas un nombre
+		final int nbThreads = Integer.parseInt(collectThreads);
+		if (nbThreads <= 1) {
+			return null;
+		}
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			/** {@inheritDoc} */
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "javamelody collect " + application);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads, nbThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		// les threads s'arrêtent entre deux collectes si la période est supérieure à une minute
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	/**
 	 * Retourne le code de l'application.
 	 * @return String
@@ -199,26 +258,25 @@ class Collector { // NOPMD
 		return lastCollectDuration;
 	}
 
+	Map<String, Long> getLastCollectDurationsByCounter() {
+		return Collections.unmodifiableMap(lastCollectDurationsByCounter);
+	}
+
 	long getEstimatedMemorySize() {
 		return estimatedMemorySize;
 	}
 
+	PeriodCounterCache getPeriodCounterCache() {
+		return periodCounterCache;
+	}
+
 	long getDiskUsage() {
-		if (diskUsage == 0) {
-			// si diskUsage == 0, le serveur a été démarré ce jour et la taille totale des fichiers
-			// n'a pas encore été calculée lors de la purge des fichiers obsolètes,
-			// donc on la calcule ici
-			final File storageDir = Parameters.getStorageDirectory(application);
-			long sum = 0;
-			final File[] files = storageDir.listFiles();
-			if (files != null) {
-				for (final File file : files) {
-					sum += file.length();
-				}
-			}
-			diskUsage = sum;
-		}
-		return diskUsage;
+		// taille totale des fichiers selon l'index, sans parcourir le répertoire
+		return storageMaintenance.getDiskUsage();
+	}
+
+	StorageMaintenance getStorageMaintenance() {
+		return storageMaintenance;
 	}
 
 	List<Counter> getRangeCounters(Range range) throws IOException {
@@ -235,7 +293,8 @@ class Collector { // NOPMD
 	}
 
 	private Counter getRangeCounter(Range range, Counter dayCounter) throws IOException {
-		final PeriodCounterFactory periodCounterFactory = new PeriodCounterFactory(dayCounter);
+		final PeriodCounterFactory periodCounterFactory = new PeriodCounterFactory(dayCounter,
+				periodCounterCache);
 		final Counter counter;
 		if (range.getPeriod() == null) {
 			counter = periodCounterFactory.getCustomCounter(range);
@@ -292,6 +351,11 @@ class Collector { // NOPMD
 			final JavaInformations javaInformations = new JavaInformations(
 					Parameters.getServletContext(), false);
 
+			// les counters locaux fournissent directement les hits de la dernière période
+			// (contrairement aux counters d'un serveur de collecte, alimentés par désérialisation)
+			for (final Counter counter : counters) {
+				counter.setPeriodRequestsTracked(true);
+			}
 			collectWithoutErrors(Collections.singletonList(javaInformations));
 		} catch (final Throwable t) { // NOPMD
 			// include cause in message for debugging logs in the report
@@ -321,31 +385,56 @@ class Collector { // NOPMD
 				collectOtherJavaInformations(javaInformationsList);
 				collectTomcatInformations(javaInformationsList);
 			}
-			long memorySize = 0;
+			final List<Counter> displayedCounters = new ArrayList<Counter>(counters.size());
 			for (final Counter counter : counters) {
+				// un changement de jour modifie dayCountersByCounter et enregistre le compteur
+				// du jour précédent : il est fait ici pour tous les compteurs et dans ce seul thread,
+				// avant la collecte des compteurs éventuellement en parallèle (paramètre collect-threads)
+				final Counter dayCounter = getCurrentDayCounter(counter);
 				// counter.isDisplayed() peut changer pour spring, ejb, guice ou services selon l'utilisation
-				dayCountersByCounter.get(counter).setDisplayed(counter.isDisplayed());
+				dayCounter.setDisplayed(counter.isDisplayed());
 				// collecte pour chaque compteur (hits par minute, temps moyen, % d'erreurs système)
 				// Rq : il serait possible d'ajouter le débit total en Ko / minute (pour http)
 				// mais autant monitorer les vrais débits réseaux au niveau de l'OS
 				if (counter.isDisplayed()) {
 					// si le compteur n'est pas affiché (par ex ejb), pas de collecte
 					// et pas de persistance de fichiers jrobin ou du compteur
-					memorySize += collectCounterData(counter);
+					displayedCounters.add(counter);
 				}
 			}
+			long memorySize = 0;
+			if (collectExecutorService == null || collectExecutorService.isShutdown()
+					|| displayedCounters.size() <= 1) {
+				for (final Counter counter : displayedCounters) {
+					memorySize += collectCounterDataAndDuration(counter);
+				}
+			} else {
+				memorySize = collectCountersDataInParallel(displayedCounters);
+			}
+			if (requestJRobinSegments != null) {
+				// une seule écriture par segment pour toutes les requêtes de tous les compteurs
+				requestJRobinSegments.flush();
+			}
 
 			final Calendar calendar = Calendar.getInstance();
 			final int currentDayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
 			calendar.setTime(lastDateOfDeletedObsoleteFiles);
 			if (calendar.get(Calendar.DAY_OF_YEAR) != currentDayOfYear) {
 				// 1 fois par jour on supprime tous les fichiers .ser.gz obsolètes (modifiés il y a plus d'un an)
-				// et tous les fichiers .rrd obsolètes (modifiés il y a plus de 3 mois)
-				try {
-					deleteObsoleteFiles();
-				} finally {
-					lastDateOfDeletedObsoleteFiles = new Date();
-				}
+				// et tous les fichiers .rrd obsolètes (modifiés il y a plus de 3 mois),
+				// dans le thread de maintenance pour ne pas bloquer la collecte et les rapports
+				lastDateOfDeletedObsoleteFiles = new Date();
+				storageMaintenance.executeDeletion(new Runnable() {
+					/** {@inheritDoc} */
+					@Override
+					public void run() {
+						try {
+							deleteObsoleteFiles(true);
+						} catch (final Throwable t) { // NOPMD
+							LOG.warn("exception while deleting obsolete files", t);
+						}
+					}
+				});
 			}
 
 			return memorySize;
@@ -609,10 +698,71 @@ class Collector { // NOPMD
 		return t1 + t2;
 	}
 
+	private long collectCountersDataInParallel(List<Counter> displayedCounters)
+			throws IOException {
+		final List<Future<Long>> futures = new ArrayList<Future<Long>>(displayedCounters.size());
+		for (final Counter counter : displayedCounters) {
+			futures.add(collectExecutorService.submit(new Callable<Long>() {
+				/** {@inheritDoc} */
+				@Override
+				public Long call() throws IOException {
+					return collectCounterDataAndDuration(counter);
+				}
+			}));
+		}
+		// on attend la fin de toutes les tâches, même en cas d'erreur dans l'une d'elles,
+		// pour qu'aucune collecte de compteur ne continue en dehors du bloc synchronisé
+		long memorySize = 0;
+		Throwable firstError = null;
+		for (final Future<Long> future : futures) {
+			try {
+				memorySize += future.get();
+			} catch (final ExecutionException e) {
+				if (firstError == null) {
+					firstError = e.getCause();
+				}
+			} catch (final InterruptedException e) {
+				// arrêt du timer : la collecte est abandonnée
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+		if (firstError instanceof IOException) {
+			throw (IOException) firstError;
+		} else if (firstError instanceof RuntimeException) {
+			throw (RuntimeException) firstError;
+		} else if (firstError instanceof Error) {
+			throw (Error) firstError;
+		} else if (firstError != null) {
+			throw new IllegalStateException(firstError);
+		}
+		return memorySize;
+	}
+
+	private long collectCounterDataAndDuration(Counter counter) throws IOException {
+		final long start = System.currentTimeMillis();
+		try {
+			return collectCounterData(counter);
+		} finally {
+			lastCollectDurationsByCounter.put(counter.getName(),
+					Math.max(0, System.currentTimeMillis() - start));
+		}
+	}
+
 	private long collectCounterData(Counter counter) throws IOException {
 		// counterName vaut http, sql ou ws par exemple
 		final String counterName = counter.getName();
-		final List<CounterRequest> requests = counter.getRequests();
+		final boolean periodRequestsTracked = counter.isPeriodRequestsTracked();
+		// les requêtes remplacées sont relevées avant de lire les requêtes du counter :
+		// une requête remplacée entre les deux serait sinon comptée deux fois dans le jour
+		removeEvictedRequests(counter);
+		final List<CounterRequest> requests;
+		if (periodRequestsTracked) {
+			// hits de la dernière période seulement, sans clone de toutes les requêtes
+			requests = counter.pollPeriodRequests();
+		} else {
+			requests = counter.getRequests();
+		}
 		if (!counter.isErrorCounter()) {
 			// on calcule les totaux depuis le départ
 			final CounterRequest newGlobalRequest = new CounterRequest(counterName + " global",
@@ -637,17 +787,34 @@ class Collector { // NOPMD
 				systemErrorsJRobin = getOtherJRobin(counterName + "SystemErrors");
 			}
 
-			final CounterRequest globalRequest = globalRequestsByCounter.get(counter);
-			if (globalRequest != null) {
-				// on clone et on soustrait les précédents totaux
-				// pour obtenir les totaux sur la dernière période
-				// rq : s'il n'y a de précédents totaux (à l'initialisation)
-				// alors on n'inscrit pas de valeurs car les nouveaux hits
-				// ne seront connus (en delta) qu'au deuxième passage
-				// (au 1er passage, globalRequest contient déjà les données lues sur disque)
-				final CounterRequest lastPeriodGlobalRequest = newGlobalRequest.clone();
-				lastPeriodGlobalRequest.removeHits(globalRequest);
-
+			final CounterRequest lastPeriodGlobalRequest;
+			if (periodRequestsTracked) {
+				// newGlobalRequest contient déjà les totaux sur la dernière période,
+				// mais comme ci-dessous on n'inscrit pas de valeurs au premier passage
+				// dont la période est plus courte
+				if (Boolean.TRUE.equals(firstCollectDoneByCounter.get(counter))) {
+					lastPeriodGlobalRequest = newGlobalRequest;
+				} else {
+					lastPeriodGlobalRequest = null;
+				}
+			} else {
+				final CounterRequest globalRequest = globalRequestsByCounter.get(counter);
+				if (globalRequest != null) {
+					// on clone et on soustrait les précédents totaux
+					// pour obtenir les totaux sur la dernière période
+					// rq : s'il n'y a de précédents totaux (à l'initialisation)
+					// alors on n'inscrit pas de valeurs car les nouveaux hits
+					// ne seront connus (en delta) qu'au deuxième passage
+					// (au 1er passage, globalRequest contient déjà les données lues sur disque)
+					lastPeriodGlobalRequest = newGlobalRequest.clone();
+					lastPeriodGlobalRequest.removeHits(globalRequest);
+				} else {
+					lastPeriodGlobalRequest = null;
+				}
+				// on sauvegarde les nouveaux totaux pour la prochaine fois
+				globalRequestsByCounter.put(counter, newGlobalRequest);
+			}
+			if (lastPeriodGlobalRequest != null) {
 				final long hits = lastPeriodGlobalRequest.getHits();
 				final long hitsParMinute = hits * 60 * 1000 / periodMillis;
 
@@ -664,25 +831,35 @@ class Collector { // NOPMD
 					counter.writeToFile();
 				}
 			}
-
-			// on sauvegarde les nouveaux totaux pour la prochaine fois
-			globalRequestsByCounter.put(counter, newGlobalRequest);
 		}
 
 		// données de temps moyen pour les courbes par requête
 		final long dayCounterEstimatedMemorySize = collectCounterRequestsAndErrorsData(counter,
-				requests);
+				requests, periodRequestsTracked);
 		return counter.getEstimatedMemorySize() + dayCounterEstimatedMemorySize;
 	}
 
-	private long collectCounterRequestsAndErrorsData(Counter counter, List<CounterRequest> requests)
-			throws IOException {
-		final Counter dayCounter = getCurrentDayCounter(counter);
+	private long collectCounterRequestsAndErrorsData(Counter counter,
+			List<CounterRequest> requests, boolean periodRequestsTracked) throws IOException {
+		// compteur du jour déjà changé si besoin au début de la collecte
+		final Counter dayCounter = dayCountersByCounter.get(counter);
 		final boolean firstCollectDoneForCounter = Boolean.TRUE.equals(firstCollectDoneByCounter
 				.get(counter));
-		final List<CounterRequest> filteredRequests = filterRequestsIfOverflow(counter, requests);
-		for (final CounterRequest newRequest : filteredRequests) {
-			collectCounterRequestData(dayCounter, newRequest, firstCollectDoneForCounter);
+		if (periodRequestsTracked) {
+			// requests ne contient que les requêtes ayant eu des hits dans la dernière période,
+			// la liste complète n'est demandée que si le counter a trop de requêtes
+			if (counter.getRequestsCount() > counter.getMaxRequestsCount()) {
+				filterRequestsIfOverflow(counter, counter.getRequests());
+			}
+			for (final CounterRequest lastPeriodRequest : requests) {
+				collectLastPeriodRequestData(dayCounter, lastPeriodRequest);
+			}
+		} else {
+			final List<CounterRequest> filteredRequests = filterRequestsIfOverflow(counter,
+					requests);
+			for (final CounterRequest newRequest : filteredRequests) {
+				collectCounterRequestData(dayCounter, newRequest, firstCollectDoneForCounter);
+			}
 		}
 		if (dayCounter.getRequestsCount() > dayCounter.getMaxRequestsCount()) {
 			// issue 339: ne pas laisser dans dayCounter trop de requêtes si elles sont à chaque fois différentes
@@ -698,6 +875,35 @@ class Collector { // NOPMD
 		return dayCounter.getEstimatedMemorySize();
 	}
 
+	private void removeEvictedRequests(Counter counter) {
+		// en mode top-requests-count, les statistiques des requêtes remplacées par des requêtes
+		// plus lourdes ont été ajoutées dans la requête "autres requêtes" : ce qui a déjà été collecté
+		// pour ces requêtes est ajouté à la précédente valeur de "autres requêtes"
+		// pour ne pas être compté une 2ème fois dans le jour
+		final List<String> evictedRequestIds = counter.pollEvictedRequestIds();
+		if (evictedRequestIds.isEmpty()) {
+			return;
+		}
+		final CounterRequest collectedRequests = new CounterRequest(
+				CounterTopRequests.OTHER_REQUESTS_NAME, counter.getName());
+		for (final String evictedRequestId : evictedRequestIds) {
+			final CounterRequest evictedRequest = requestsById.remove(evictedRequestId);
+			if (evictedRequest != null) {
+				collectedRequests.addHits(evictedRequest);
+			}
+			// on garde le fichier rrd qui sera réutilisé si la requête revient ou sinon supprimé plus tard
+			requestJRobinsById.remove(evictedRequestId);
+		}
+		if (collectedRequests.getHits() > 0) {
+			final CounterRequest otherRequest = requestsById.get(collectedRequests.getId());
+			if (otherRequest == null) {
+				requestsById.put(collectedRequests.getId(), collectedRequests);
+			} else {
+				otherRequest.addHits(collectedRequests);
+			}
+		}
+	}
+
 	private List<CounterRequest> filterRequestsIfOverflow(Counter counter,
 			List<CounterRequest> requests) {
 		final int maxRequestsCount = counter.getMaxRequestsCount();
@@ -738,24 +944,7 @@ class Collector { // NOPMD
 			// sauf si c'est l'initialisation
 			final CounterRequest lastPeriodRequest = newRequest.clone();
 			lastPeriodRequest.removeHits(request);
-			// avec la condition getHits() > 1 au lieu de getHits() > 0, on évite de créer des fichiers RRD
-			// pour les toutes les requêtes appelées une seule fois sur la dernière période
-			// et notamment pour les requêtes http "écrites au hasard" (par exemple, pour tester les failles d'un site web) ;
-			// cela réduit la place occupée par de nombreux fichiers très peu utiles
-			// (et s'il y a eu 0 hit, alors la moyenne vaut -1 : elle n'a pas de sens)
-			if (lastPeriodRequest.getHits() > 1 && !dayCounter.isJspOrStrutsCounter()
-					&& (!dayCounter.isErrorCounter() || dayCounter.isJobCounter())) {
-				// on ne crée jamais de graphiques pour les "jsp", "error" et "job" car peu utiles
-				// et potentiellement lourd en usage disque et en mémoire utilisée
-				final JRobin requestJRobin = getRequestJRobin(requestStorageId,
-						newRequest.getName());
-				// plus nécessaire: if (dayCounter.isErrorCounter()) requestJRobin.addValue(lastPeriodRequest.getHits());
-
-				requestJRobin.addValue(lastPeriodRequest.getMean());
-			}
-
-			// agrégation de la requête sur le compteur pour le jour courant
-			dayCounter.addHits(lastPeriodRequest);
+			collectLastPeriodRequestData(dayCounter, lastPeriodRequest);
 		} else if (firstCollectDoneForCounter) {
 			// si c'est la première collecte pour ce compteur (!firstCollectDoneForCounter), alors on n'ajoute pas
 			// newRequest dans dayCounter car cela ajouterait la première fois tout le contenu
@@ -769,9 +958,32 @@ class Collector { // NOPMD
 		requestsById.put(requestStorageId, newRequest);
 	}
 
+	private void collectLastPeriodRequestData(Counter dayCounter, CounterRequest lastPeriodRequest)
+			throws IOException {
+		// avec la condition getHits() > 1 au lieu de getHits() > 0, on évite de créer des fichiers RRD
+		// pour les toutes les requêtes appelées une seule fois sur la dernière période
+		// et notamment pour les requêtes http "écrites au hasard" (par exemple, pour tester les failles d'un site web) ;
+		// cela réduit la place occupée par de nombreux fichiers très peu utiles
+		// (et s'il y a eu 0 hit, alors la moyenne vaut -1 : elle n'a pas de sens)
+		if (lastPeriodRequest.getHits() > 1 && !dayCounter.isJspOrStrutsCounter()
+				&& (!dayCounter.isErrorCounter() || dayCounter.isJobCounter())) {
+			// on ne crée jamais de graphiques pour les "jsp", "error" et "job" car peu utiles
+			// et potentiellement lourd en usage disque et en mémoire utilisée
+			final JRobin requestJRobin = getRequestJRobin(lastPeriodRequest.getId(),
+					lastPeriodRequest.getName());
+			// plus nécessaire: if (dayCounter.isErrorCounter()) requestJRobin.addValue(lastPeriodRequest.getHits());
+
+			requestJRobin.addValue(lastPeriodRequest.getMean());
+		}
+
+		// agrégation de la requête sur le compteur pour le jour courant
+		dayCounter.addHits(lastPeriodRequest);
+	}
+
 	private List<CounterError> getDeltaOfErrors(Counter counter, Counter dayCounter) {
 		final List<CounterError> errors = counter.getErrors();
 		if (errors.isEmpty()) {
+			errorsOccurrencesByCounter.remove(counter);
 			return Collections.emptyList();
 		}
 		final long lastErrorTime;
@@ -781,15 +993,30 @@ class Collector { // NOPMD
 		} else {
 			lastErrorTime = dayErrors.get(dayErrors.size() - 1).getTime();
 		}
+		Map<List<String>, Long> previousOccurrences = errorsOccurrencesByCounter.get(counter);
+		if (previousOccurrences == null) {
+			previousOccurrences = Collections.emptyMap();
+		}
+		final Map<List<String>, Long> occurrences = new HashMap<List<String>, Long>();
 		final List<CounterError> errorsOfDay = new ArrayList<CounterError>();
 		for (final CounterError error : errors) {
+			final List<String> errorKey = Arrays.asList(error.getMessage(), error.getStackTrace());
+			final long occurrencesCount = error.getOccurrencesCount();
+			occurrences.put(errorKey, occurrencesCount);
 			// il peut arriver de manquer une erreur dans l'affichage par jour
 			// si on récupère la liste et qu'il y a une nouvelle erreur dans la même ms
 			// mais tant pis et il y a peu de chance que cela arrive
 			if (error.getTime() > lastErrorTime) {
-				errorsOfDay.add(error);
+				// les occurrences de cette erreur déjà comptées dans le jour ne sont pas ajoutées à nouveau
+				final Long previousCount = previousOccurrences.get(errorKey);
+				if (previousCount != null && previousCount < occurrencesCount) {
+					errorsOfDay.add(new CounterError(error, occurrencesCount - previousCount));
+				} else {
+					errorsOfDay.add(error);
+				}
 			}
 		}
+		errorsOccurrencesByCounter.put(counter, occurrences);
 		return errorsOfDay;
 	}
 
@@ -799,7 +1026,16 @@ class Collector { // NOPMD
 		final int currentDayOfYear = calendar.get(Calendar.DAY_OF_YEAR);
 		calendar.setTime(dayCounter.getStartDate());
 		if (calendar.get(Calendar.DAY_OF_YEAR) != currentDayOfYear) {
-			// le jour a changé, on crée un compteur vide qui sera enregistré dans un nouveau fichier
+			// le jour a changé, le compteur du jour précédent est enregistré en entier
+			// si ses enregistrements étaient dans un journal (counters-journal)
+			try {
+				dayCounter.compactFile();
+			} catch (final IOException e) {
+				// si la compaction échoue, le journal reste lisible et on change de jour quand même
+				// pour ne pas ajouter les requêtes du nouveau jour dans le compteur du jour précédent
+				LOG.warn("exception while compacting counter file", e);
+			}
+			// et on crée un compteur vide qui sera enregistré dans un nouveau fichier
 			dayCounter = new PeriodCounterFactory(dayCounter).buildNewDayCounter();
 			dayCountersByCounter.put(counter, dayCounter);
 		}
@@ -807,11 +1043,17 @@ class Collector { // NOPMD
 	}
 
 	void deleteObsoleteFiles() throws IOException {
-		final long rrdDiskUsage = CounterStorage.deleteObsoleteCounterFiles(getApplication());
-		final long serGzDiskUsage = JRobin.deleteObsoleteJRobinFiles(getApplication());
-		diskUsage = rrdDiskUsage + serGzDiskUsage;
-		// il manque la taille du fichier "last_shutdown.html", mais on n'est pas à ça près
-		LOG.debug("Obsolete files deleted. JavaMelody disk usage: " + diskUsage / 1024 + " KB");
+		// action de purge demandée depuis le rapport : pas de limite de débit
+		deleteObsoleteFiles(false);
+	}
+
+	private void deleteObsoleteFiles(boolean rateLimited) throws IOException {
+		storageMaintenance.deleteObsoleteFiles(rateLimited);
+		if (requestJRobinSegments != null) {
+			requestJRobinSegments.deleteObsoleteSeries();
+		}
+		LOG.debug("Obsolete files deleted. JavaMelody disk usage: " + getDiskUsage() / 1024
+				+ " KB");
 	}
 
 	private void removeRequest(Counter counter, CounterRequest newRequest) {
@@ -826,28 +1068,37 @@ class Collector { // NOPMD
 	private JRobin getRequestJRobin(String requestId, String requestName) throws IOException {
 		JRobin jrobin = requestJRobinsById.get(requestId);
 		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), requestId, requestName);
+			if (requestJRobinSegments != null) {
+				jrobin = requestJRobinSegments.getJRobin(requestId, requestName);
+			} else {
+				jrobin = JRobin.createInstance(getApplication(), requestId, requestName);
+			}
 			requestJRobinsById.put(requestId, jrobin);
 		}
 		return jrobin;
 	}
 
 	private JRobin getCounterJRobin(String name) throws IOException {
-		JRobin jrobin = counterJRobins.get(name);
-		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), name, null);
-			counterJRobins.put(name, jrobin);
+		// synchronized car les compteurs peuvent être collectés en parallèle
+		synchronized (counterJRobins) {
+			JRobin jrobin = counterJRobins.get(name);
+			if (jrobin == null) {
+				jrobin = JRobin.createInstance(getApplication(), name, null);
+				counterJRobins.put(name, jrobin);
+			}
+			return jrobin;
 		}
-		return jrobin;
 	}
 
 	private JRobin getOtherJRobin(String name) throws IOException {
-		JRobin jrobin = otherJRobins.get(name);
-		if (jrobin == null) {
-			jrobin = JRobin.createInstance(getApplication(), name, null);
-			otherJRobins.put(name, jrobin);
+		synchronized (otherJRobins) {
+			JRobin jrobin = otherJRobins.get(name);
+			if (jrobin == null) {
+				jrobin = JRobin.createInstance(getApplication(), name, null);
+				otherJRobins.put(name, jrobin);
+			}
+			return jrobin;
 		}
-		return jrobin;
 	}
 
 	JRobin getJRobin(String graphName) {
@@ -928,6 +1179,9 @@ class Collector { // NOPMD
 			for (final Counter counter : counters) {
 				counter.writeToFile();
 			}
+			if (requestJRobinSegments != null) {
+				requestJRobinSegments.flush();
+			}
 		} catch (final IOException e) {
 			// persistance échouée, tant pis
 			LOG.warn("exception while writing counters data to files", e);
@@ -935,6 +1189,10 @@ class Collector { // NOPMD
 			for (final Counter counter : counters) {
 				counter.clear();
 			}
+			if (collectExecutorService != null) {
+				collectExecutorService.shutdown();
+			}
+			storageMaintenance.stop();
 			stopped = true;
 			// ici on ne fait pas de nettoyage de la liste counters car cette méthode
 			// est appelée sur la webapp monitorée quand il y a un serveur de collecte
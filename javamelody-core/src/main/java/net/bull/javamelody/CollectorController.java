@@ -27,6 +27,7 @@ import static net.bull.javamelody.HttpParameters.CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.DATABASE_PART;
 import static net.bull.javamelody.HttpParameters.EXPLAIN_PLAN_PART;
 import static net.bull.javamelody.HttpParameters.FORMAT_PARAMETER;
+import static net.bull.javamelody.HttpParameters.GRAPH_DATA_PART;
 import static net.bull.javamelody.HttpParameters.GRAPH_PARAMETER;
 import static net.bull.javamelody.HttpParameters.HEAP_HISTO_PART;
 import static net.bull.javamelody.HttpParameters.HOTSPOTS_PART;
@@ -328,7 +329,8 @@ class CollectorController {
 			}
 			applications.putAll(collectorServer.getLastCollectExceptionsByApplication());
 			return new HashMap<String, Throwable>(applications);
-		} else if (JROBINS_PART.equalsIgnoreCase(part) || OTHER_JROBINS_PART.equalsIgnoreCase(part)) {
+		} else if (JROBINS_PART.equalsIgnoreCase(part) || OTHER_JROBINS_PART.equalsIgnoreCase(part)
+				|| GRAPH_DATA_PART.equalsIgnoreCase(part)) {
 			// pour UI Swing
 			return serializableController.createSerializable(httpRequest, null, null);
 		}
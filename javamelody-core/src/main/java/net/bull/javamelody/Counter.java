@@ -105,9 +105,12 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	// (on garde en non transient pour ne pas avoir null après désérialisation ce qui pourrait donner des NPE)
 	@SuppressWarnings("all")
 	private final ConcurrentMap<Long, CounterRequestContext> rootCurrentContextsByThreadId = new ConcurrentHashMap<Long, CounterRequestContext>();
+	// errors n'est remplie que dans les clones (qui seuls sont sérialisés) et après désérialisation,
+	// les erreurs sont ensuite dans errorRing dès le premier accès
 	//CHECKSTYLE:OFF
 	private final LinkedList<CounterError> errors; // NOPMD
 	//CHECKSTYLE:ON
+	private transient volatile CounterErrorRing errorRing;
 	private Date startDate = new Date();
 	private int maxRequestsCount = MAX_REQUESTS_COUNT;
 	private long estimatedMemorySize;
@@ -116,6 +119,20 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	// et le contexte serait incomplet.
 	private final transient ThreadLocal<CounterRequestContext> contextThreadLocal;
 	private transient Pattern requestTransformPattern;
+	private transient RequestTransformCache requestTransformCache;
+	private transient boolean striped;
+	private transient boolean contextsRecycled;
+	private transient boolean highResolutionDurations;
+	// échantillonnage si le paramètre requests-sampling-rate est défini (null sinon)
+	private transient RequestSampling sampling;
+	// mesure du temps cpu si le paramètre cpu-time-accounting est défini (null sinon)
+	private transient CpuTimeAccounting cpuTimeAccounting;
+	private transient AsyncHitsRecorder asyncHitsRecorder;
+	private transient boolean periodRequestsTracked;
+	// requêtes les plus lourdes si le counter est borné par top-requests-count (null sinon)
+	private transient CounterTopRequests topRequests;
+	// journal des enregistrements si le paramètre counters-journal est true (null sinon)
+	private transient volatile CounterJournal journal;
 
 	/**
 	 * Comparateur pour ordonner les requêtes par sommes des durées.
@@ -376,6 +393,183 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	 */
 	void setRequestTransformPattern(Pattern requestTransformPattern) {
 		this.requestTransformPattern = requestTransformPattern;
+		if (requestTransformPattern == null) {
+			this.requestTransformCache = null;
+		} else {
+			this.requestTransformCache = new RequestTransformCache(requestTransformPattern,
+					TRANSFORM_REPLACEMENT);
+		}
+	}
+
+	/**
+	 * Retourne le cache des noms de requêtes transformés par l'expression régulière
+	 * de ce counter (null s'il n'y en a pas).
+	 * @return RequestTransformCache
+	 */
+	RequestTransformCache getRequestTransformCache() {
+		return requestTransformCache;
+	}
+
+	/**
+	 * Retourne true si les hits de ce counter sont accumulés par stripes
+	 * (paramètre striped-counters).
+	 * @return boolean
+	 */
+	boolean isStriped() {
+		return striped;
+	}
+
+	/**
+	 * Définit si les hits de ce counter sont accumulés par stripes
+	 * pour réduire la contention sur les requêtes les plus fréquentes.
+	 * @param striped boolean
+	 */
+	void setStriped(boolean striped) {
+		this.striped = striped;
+	}
+
+	/**
+	 * Borne ce counter aux requêtes les plus lourdes (paramètre top-requests-count),
+	 * les autres requêtes étant regroupées dans une requête "autres requêtes".
+	 * @param topRequestsCount Nombre de requêtes conservées, ou 0 pour ne pas borner le counter
+	 * @param durationWeight true pour un poids selon la durée cumulée, false selon les hits
+	 */
+	void setTopRequests(int topRequestsCount, boolean durationWeight) {
+		assert topRequestsCount >= 0;
+		if (topRequestsCount == 0) {
+			this.topRequests = null;
+		} else {
+			this.topRequests = new CounterTopRequests(topRequestsCount, durationWeight);
+		}
+	}
+
+	CounterTopRequests getTopRequests() {
+		return topRequests;
+	}
+
+	/**
+	 * @return Échantillonnage des requêtes de ce counter (paramètre requests-sampling-rate),
+	 * ou null si toutes les requêtes sont monitorées
+	 */
+	RequestSampling getSampling() {
+		return sampling;
+	}
+
+	void setSampling(RequestSampling sampling) {
+		this.sampling = sampling;
+	}
+
+	/**
+	 * @return Mesure du temps cpu des requêtes de ce counter (paramètre cpu-time-accounting),
+	 * ou null si le temps cpu de toutes les requêtes est mesuré
+	 */
+	CpuTimeAccounting getCpuTimeAccounting() {
+		return cpuTimeAccounting;
+	}
+
+	void setCpuTimeAccounting(CpuTimeAccounting cpuTimeAccounting) {
+		this.cpuTimeAccounting = cpuTimeAccounting;
+	}
+
+	/**
+	 * @return Temps cpu du thread courant au début d'une requête,
+	 * ou -1 si le temps cpu de cette requête ne sera pas mesuré (voir CpuTimeAccounting)
+	 */
+	long getStartCpuTime() {
+		final CpuTimeAccounting myCpuTimeAccounting = cpuTimeAccounting;
+		if (myCpuTimeAccounting != null) {
+			return myCpuTimeAccounting.getStartCpuTime();
+		}
+		return ThreadInformations.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * @param startCpuTime Résultat de getStartCpuTime
+	 * @param duration Durée de la requête
+	 * @return Temps cpu du thread courant depuis startCpuTime en millisecondes, à enregistrer pour la requête
+	 */
+	long getCpuTimeMillis(long startCpuTime, long duration) {
+		final CpuTimeAccounting myCpuTimeAccounting = cpuTimeAccounting;
+		if (myCpuTimeAccounting != null) {
+			return myCpuTimeAccounting.getCpuTimeMillis(startCpuTime, duration);
+		}
+		return (ThreadInformations.getCurrentThreadCpuTime() - startCpuTime) / 1000000;
+	}
+
+	boolean isPeriodRequestsTracked() {
+		return periodRequestsTracked;
+	}
+
+	/**
+	 * Définit si les hits des requêtes de ce counter sont aussi accumulés par période,
+	 * pour que la collecte récupère les hits de la dernière période avec pollPeriodRequests
+	 * au lieu de cloner et de soustraire toutes les requêtes.
+	 * @param periodRequestsTracked boolean
+	 */
+	void setPeriodRequestsTracked(boolean periodRequestsTracked) {
+		this.periodRequestsTracked = periodRequestsTracked;
+	}
+
+	AsyncHitsRecorder getAsyncHitsRecorder() {
+		return asyncHitsRecorder;
+	}
+
+	/**
+	 * Définit l'enregistrement asynchrone des hits de ce counter (paramètre async-hits).
+	 * @param asyncHitsRecorder AsyncHitsRecorder ou null pour enregistrer les hits dans le thread courant
+	 */
+	void setAsyncHitsRecorder(AsyncHitsRecorder asyncHitsRecorder) {
+		this.asyncHitsRecorder = asyncHitsRecorder;
+	}
+
+	/**
+	 * @return Ids des requêtes remplacées par d'autres plus lourdes depuis le précédent appel
+	 * (utilisé par Collector pour ne pas compter deux fois leurs statistiques)
+	 */
+	List<String> pollEvictedRequestIds() {
+		final CounterTopRequests myTopRequests = topRequests;
+		if (myTopRequests == null) {
+			return Collections.emptyList();
+		}
+		synchronized (myTopRequests) {
+			return myTopRequests.pollEvictedRequestIds();
+		}
+	}
+
+	/**
+	 * Retourne true si les contextes de requêtes de ce counter sont recyclés par thread
+	 * (paramètre recycled-contexts).
+	 * @return boolean
+	 */
+	boolean isContextsRecycled() {
+		return contextsRecycled;
+	}
+
+	/**
+	 * Définit si les contextes de requêtes de ce counter sont recyclés par thread
+	 * pour ne pas les allouer à chaque requête.
+	 * @param contextsRecycled boolean
+	 */
+	void setContextsRecycled(boolean contextsRecycled) {
+		this.contextsRecycled = contextsRecycled;
+	}
+
+	/**
+	 * Retourne true si les durées des requêtes de ce counter sont mesurées avec System.nanoTime()
+	 * à la microseconde près (paramètre high-resolution-durations).
+	 * @return boolean
+	 */
+	boolean isHighResolutionDurations() {
+		return highResolutionDurations;
+	}
+
+	/**
+	 * Définit si les durées des requêtes de ce counter sont mesurées avec System.nanoTime()
+	 * plutôt qu'avec System.currentTimeMillis().
+	 * @param highResolutionDurations boolean
+	 */
+	void setHighResolutionDurations(boolean highResolutionDurations) {
+		this.highResolutionDurations = highResolutionDurations;
 	}
 
 	/**
@@ -405,7 +599,7 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	void bindContextIncludingCpu(String requestName) {
-		bindContext(requestName, requestName, null, ThreadInformations.getCurrentThreadCpuTime());
+		bindContext(requestName, requestName, null, getStartCpuTime());
 	}
 
 	void bindContext(String requestName, String completeRequestName, String remoteUser,
@@ -414,6 +608,16 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// completeRequestName est la même chose éventuellement complétée
 		// pour cette requête à destination de l'affichage dans les requêtes courantes
 		// (sinon mettre 2 fois la même chose)
+		if (contextsRecycled) {
+			final CounterRequestContextPool pool = CounterRequestContextPool.getInstance();
+			final CounterRequestContext context = pool.acquire(this, contextThreadLocal.get(),
+					requestName, completeRequestName, remoteUser, startCpuTime);
+			contextThreadLocal.set(context);
+			if (context.getParentContext() == null) {
+				rootCurrentContextsByThreadId.put(pool.getThreadId(), context);
+			}
+			return;
+		}
 		final CounterRequestContext context = new CounterRequestContext(this,
 				contextThreadLocal.get(), requestName, completeRequestName, remoteUser,
 				startCpuTime);
@@ -424,6 +628,20 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	void unbindContext() {
+		if (contextsRecycled) {
+			final CounterRequestContextPool pool = CounterRequestContextPool.getInstance();
+			try {
+				contextThreadLocal.remove();
+			} finally {
+				final CounterRequestContext rootContext = rootCurrentContextsByThreadId
+						.remove(pool.getThreadId());
+				if (rootContext != null) {
+					// le contexte n'est plus référencé que par ce thread, il peut être réutilisé
+					pool.release(rootContext);
+				}
+			}
+			return;
+		}
 		try {
 			contextThreadLocal.remove();
 		} finally {
@@ -431,12 +649,98 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		}
 	}
 
+	/**
+	 * @return Contexte en cours dans le thread courant (éventuellement contexte fils) ou null
+	 */
+	CounterRequestContext getCurrentContext() {
+		return contextThreadLocal.get();
+	}
+
+	/**
+	 * Détache du thread courant le contexte racine en cours, pour une requête asynchrone de Servlet 3
+	 * dont la fin sera enregistrée par un autre thread avec addRequestForDetachedContext.
+	 * Le contexte n'apparaît alors plus dans les requêtes en cours, qui sont celles des threads.
+	 * @return CounterRequestContext ou null s'il n'y a pas de contexte
+	 */
+	CounterRequestContext detachContext() {
+		final CounterRequestContext context = contextThreadLocal.get();
+		if (context != null) {
+			assert context.getParentContext() == null;
+			context.setDetached(true);
+			// le contexte sera utilisé par d'autres threads, il ne doit pas être rendu à un pool
+			context.setRecycled(false);
+		}
+		try {
+			contextThreadLocal.remove();
+		} finally {
+			rootCurrentContextsByThreadId.remove(Thread.currentThread().getId());
+		}
+		return context;
+	}
+
+	/**
+	 * Lie au thread courant un contexte détaché par detachContext, pour que les requêtes filles
+	 * (sql en particulier) exécutées dans ce thread lui soient ajoutées.
+	 * @param context CounterRequestContext détaché
+	 * @return Contexte précédent de ce thread ou null, à restaurer avec restoreContext
+	 */
+	CounterRequestContext attachContext(CounterRequestContext context) {
+		assert context.isDetached();
+		final CounterRequestContext previousContext = contextThreadLocal.get();
+		contextThreadLocal.set(context);
+		return previousContext;
+	}
+
+	/**
+	 * Restaure le contexte de ce thread après attachContext.
+	 * @param previousContext Contexte retourné par attachContext
+	 */
+	void restoreContext(CounterRequestContext previousContext) {
+		if (previousContext == null) {
+			contextThreadLocal.remove();
+		} else {
+			contextThreadLocal.set(previousContext);
+		}
+	}
+
+	/**
+	 * Ajoute la requête d'un contexte détaché par detachContext, avec ses requêtes filles,
+	 * depuis n'importe quel thread.
+	 * @param context CounterRequestContext détaché
+	 * @param requestName Nom de la requête
+	 * @param duration Durée
+	 * @param cpuTime Temps cpu ou -1
+	 * @param systemError true si erreur système
+	 * @param responseSize Taille de la réponse ou -1
+	 * @param hitsWeight Poids des hits, au moins 1
+	 */
+	// CHECKSTYLE:OFF
+	void addRequestForDetachedContext(CounterRequestContext context, String requestName,
+			long duration, long cpuTime, boolean systemError, int responseSize, int hitsWeight) {
+		// CHECKSTYLE:ON
+		final CounterRequestContext previousContext = attachContext(context);
+		try {
+			addRequestMicros(requestName, duration * 1000, cpuTime, systemError, null,
+					responseSize, hitsWeight);
+		} finally {
+			restoreContext(previousContext);
+		}
+	}
+
+	private long getCpuTimeMillis(CounterRequestContext context, long duration) {
+		if (cpuTimeAccounting != null) {
+			return cpuTimeAccounting.getCpuTimeMillis(context.getStartCpuTime(), duration);
+		}
+		return context.getCpuTime();
+	}
+
 	void addRequestForCurrentContext(boolean systemError) {
 		final CounterRequestContext context = contextThreadLocal.get();
 		if (context != null) {
-			final long duration = context.getDuration(System.currentTimeMillis());
-			final long cpuUsedMillis = context.getCpuTime();
-			addRequest(context.getRequestName(), duration, cpuUsedMillis, systemError, -1);
+			final long durationMicros = context.getDurationMicros();
+			final long cpuUsedMillis = getCpuTimeMillis(context, durationMicros / 1000);
+			addRequestMicros(context.getRequestName(), durationMicros, cpuUsedMillis, systemError,
+					null, -1, 1);
 		}
 	}
 
@@ -445,47 +749,95 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		final CounterRequestContext context = contextThreadLocal.get();
 		// context peut être null (depuis JobGlobalListener, cf issue 34)
 		if (context != null) {
-			final long duration = context.getDuration(System.currentTimeMillis());
-			final long cpuUsedMillis = context.getCpuTime();
-			addRequest(context.getRequestName(), duration, cpuUsedMillis,
-					systemErrorStackTrace != null, systemErrorStackTrace, -1);
+			final long durationMicros = context.getDurationMicros();
+			final long cpuUsedMillis = getCpuTimeMillis(context, durationMicros / 1000);
+			addRequestMicros(context.getRequestName(), durationMicros, cpuUsedMillis,
+					systemErrorStackTrace != null, systemErrorStackTrace, -1, 1);
 		}
 	}
 
 	void addRequest(String requestName, long duration, long cpuTime, boolean systemError,
 			int responseSize) {
-		addRequest(requestName, duration, cpuTime, systemError, null, responseSize);
+		addRequestMicros(requestName, duration * 1000, cpuTime, systemError, null, responseSize, 1);
+	}
+
+	/**
+	 * Ajoute une requête échantillonnée (paramètre requests-sampling-rate),
+	 * dont les hits comptent pour hitsWeight hits.
+	 * @param requestName Nom de la requête
+	 * @param duration Durée
+	 * @param cpuTime Temps cpu ou -1
+	 * @param systemError true si erreur système
+	 * @param responseSize Taille de la réponse ou -1
+	 * @param hitsWeight Poids des hits, au moins 1 (voir RequestSampling)
+	 */
+	void addRequest(String requestName, long duration, long cpuTime, boolean systemError,
+			int responseSize, int hitsWeight) {
+		addRequestMicros(requestName, duration * 1000, cpuTime, systemError, null, responseSize,
+				hitsWeight);
+	}
+
+	/**
+	 * Ajoute une requête dont la durée est en microsecondes (paramètre high-resolution-durations).
+	 * @param requestName Nom de la requête
+	 * @param durationMicros Durée en microsecondes
+	 * @param cpuTime Temps cpu ou -1
+	 * @param systemError true si erreur système
+	 * @param responseSize Taille de la réponse ou -1
+	 * @param hitsWeight Poids des hits, au moins 1 (voir RequestSampling)
+	 */
+	void addRequestMicros(String requestName, long durationMicros, long cpuTime,
+			boolean systemError, int responseSize, int hitsWeight) {
+		addRequestMicros(requestName, durationMicros, cpuTime, systemError, null, responseSize,
+				hitsWeight);
 	}
 
-	private void addRequest(String requestName, long duration, long cpuTime, boolean systemError,
-			String systemErrorStackTrace, int responseSize) {
+	// CHECKSTYLE:OFF
+	private void addRequestMicros(String requestName, long durationMicros, long cpuTime,
+			boolean systemError, String systemErrorStackTrace, int responseSize, int hitsWeight) {
+		// CHECKSTYLE:ON
 		// la méthode addRequest n'est pas synchronisée pour ne pas avoir
 		// de synchronisation globale à l'application sur cette instance d'objet
 		// ce qui pourrait faire une contention et des ralentissements,
 		// par contre la map requests est synchronisée pour les modifications concurrentes
 
 		assert requestName != null;
-		assert duration >= 0;
+		assert durationMicros >= 0;
 		assert cpuTime >= -1; // -1 pour requêtes sql
 		assert responseSize >= -1; // -1 pour requêtes sql
+		assert hitsWeight >= 1;
 
 		final String aggregateRequestName = getAggregateRequestName(requestName);
+		// durée en millisecondes pour les requêtes filles du contexte
+		final long duration = durationMicros / 1000;
 
 		final CounterRequestContext context = contextThreadLocal.get();
 		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
-		synchronized (request) {
-			// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
-			// concurrents entre plusieurs threads pour le même type de requête.
-			// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
-			// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
-			request.addHit(duration, cpuTime, systemError, systemErrorStackTrace, responseSize);
-
-			if (context != null) {
-				// on ajoute dans la requête parente toutes les requêtes filles du contexte
-				if (context.getParentCounter() == this) {
-					request.addChildHits(context);
+		final AsyncHitsRecorder myAsyncHitsRecorder = asyncHitsRecorder;
+		if (myAsyncHitsRecorder != null && systemErrorStackTrace == null) {
+			// aucun lock ici : le hit sera reporté dans request par le thread de AsyncHitsRecorder,
+			// ou sera perdu (et compté) si le buffer de ce thread est plein
+			myAsyncHitsRecorder.record(this, request, durationMicros, cpuTime, systemError,
+					responseSize, hitsWeight, context);
+		} else if (striped && systemErrorStackTrace == null) {
+			addHitInStripes(request, context, durationMicros, cpuTime, systemError, responseSize,
+					hitsWeight);
+		} else {
+			synchronized (request) {
+				// on synchronise par l'objet request pour éviter de mélanger des ajouts de hits
+				// concurrents entre plusieurs threads pour le même type de requête.
+				// Rq : on pourrait remplacer ce bloc synchronized par un synchronized
+				// sur les méthodes addHit et addChildHits dans la classe CounterRequest.
+				request.addHitMicros(durationMicros, cpuTime, systemError, systemErrorStackTrace,
+						responseSize, hitsWeight);
+
+				if (context != null) {
+					// on ajoute dans la requête parente toutes les requêtes filles du contexte
+					if (context.getParentCounter() == this) {
+						request.addChildHits(context, hitsWeight);
+					}
+					request.addChildRequests(context, hitsWeight);
 				}
-				request.addChildRequests(context.getChildRequestsExecutionsByRequestId());
 			}
 		}
 		// perf: on fait le reste hors du synchronized sur request
@@ -493,9 +845,12 @@ class Counter implements Cloneable, Serializable { // NOPMD
 			if (context.getParentCounter() == this) {
 				final CounterRequestContext parentContext = context.getParentContext();
 				if (parentContext == null) {
-					// enlève du threadLocal le contexte que j'ai créé
-					// si je suis le counter parent et s'il n'y a pas de contexte parent
-					unbindContext();
+					if (!context.isDetached()) {
+						// enlève du threadLocal le contexte que j'ai créé
+						// si je suis le counter parent et s'il n'y a pas de contexte parent
+						unbindContext();
+					}
+					// sinon restoreContext rétablira le contexte de ce thread
 				} else {
 					// on ajoute une requête fille dans le contexte
 					context.addChildRequest(this, aggregateRequestName, request.getId(), duration,
@@ -503,6 +858,9 @@ class Counter implements Cloneable, Serializable { // NOPMD
 					// et reporte les requêtes filles dans le contexte parent et rebinde celui-ci
 					parentContext.closeChildContext();
 					contextThreadLocal.set(parentContext);
+					if (context.isRecycled()) {
+						CounterRequestContextPool.getInstance().release(context);
+					}
 				}
 			} else {
 				// on ajoute une requête fille dans le contexte
@@ -513,10 +871,32 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		}
 		if (systemErrorStackTrace != null) {
 			assert errorCounter;
-			synchronized (errors) {
-				errors.addLast(new CounterError(requestName, systemErrorStackTrace));
-				if (errors.size() > MAX_ERRORS_COUNT) {
-					errors.removeFirst();
+			getErrorRing().add(new CounterError(requestName, systemErrorStackTrace));
+		}
+	}
+
+	// CHECKSTYLE:OFF
+	private void addHitInStripes(CounterRequest request, CounterRequestContext context,
+			long durationMicros, long cpuTime, boolean systemError, int responseSize, int hitsWeight) {
+		// CHECKSTYLE:ON
+		// pas de synchronisation sur request ici : le hit est ajouté dans la stripe du thread courant
+		// et sera reporté dans request lors du prochain clone (getRequests en particulier)
+		int childHits = 0;
+		int childDurationsSum = 0;
+		if (context != null && context.getParentCounter() == this) {
+			childHits = context.getChildHits();
+			childDurationsSum = context.getChildDurationsSum();
+		}
+		request.getStripes().addHit(durationMicros, cpuTime, systemError, responseSize, childHits,
+				childDurationsSum, hitsWeight);
+		if (context != null) {
+			// seule la map des requêtes filles (pour le drill-down) nécessite encore
+			// une synchronisation sur request, et seulement s'il y a des requêtes filles
+			final IntLongHashMap childRequests = context.getChildRequestsExecutions();
+			if (childRequests != null && !childRequests.isEmpty()
+					|| context.getChildRequestsExecutionsWithoutIndex() != null) {
+				synchronized (request) {
+					request.addChildRequests(context, hitsWeight);
 				}
 			}
 		}
@@ -526,7 +906,7 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// comme la méthode addRequest, cette méthode n'est pas synchronisée pour ne pas avoir
 		// de synchronisation globale à l'application sur cette instance d'objet
 		// ce qui pourrait faire une contention et des ralentissements,
-		// par contre on synchronise request et errors
+		// par contre on synchronise request (les erreurs sont ajoutées sans lock)
 		assert requestName != null;
 		assert duration >= -1; // -1 pour le counter de log
 		assert cpuTime >= -1;
@@ -541,12 +921,7 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		synchronized (request) {
 			request.addHit(duration, cpuTime, true, stackTrace, -1);
 		}
-		synchronized (errors) {
-			errors.addLast(new CounterError(requestName, stackTrace));
-			if (errors.size() > MAX_ERRORS_COUNT) {
-				errors.removeFirst();
-			}
-		}
+		getErrorRing().add(new CounterError(requestName, stackTrace));
 	}
 
 	/**
@@ -593,7 +968,11 @@ class Counter implements Cloneable, Serializable { // NOPMD
 
 	private String getAggregateRequestName(String requestName) {
 		final String aggregateRequestName;
-		if (requestTransformPattern == null) {
+		final RequestTransformCache cache = requestTransformCache;
+		if (cache != null) {
+			// le cache évite l'expression régulière pour les requêtes déjà vues
+			aggregateRequestName = cache.transform(requestName);
+		} else if (requestTransformPattern == null) {
 			aggregateRequestName = requestName;
 		} else {
 			// ce pattern optionnel permet de transformer la description de la requête
@@ -634,6 +1013,10 @@ class Counter implements Cloneable, Serializable { // NOPMD
 			// car ce serait mauvais pour les perfs, cela ne laisserait aucune chance
 			// à une nouvelle requête et car cela sera fait par la classe collector
 			for (final CounterRequest request : requests.values()) {
+				synchronized (request) {
+					// on reporte d'abord les hits des stripes pour ne pas éliminer une requête fréquente
+					request.drainStripes();
+				}
 				if (request.getHits() < 10) {
 					removeRequest(request.getName());
 					size--;
@@ -665,30 +1048,38 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		if (counterErrorList.isEmpty()) {
 			return;
 		}
-		synchronized (errors) {
-			if (!errors.isEmpty() && errors.get(0).getTime() > counterErrorList.get(0).getTime()) {
-				// tant que faire se peut on les met à peu près dans l'ordre pour le sort ci après
-				errors.addAll(0, counterErrorList);
-			} else {
-				errors.addAll(counterErrorList);
-			}
-			if (errors.size() > 1) {
-				// "sort" a les mêmes performances sur LinkedList que sur ArrayList car il y a un tableau intermédiaire
-				// (selon Implementation Patterns, Kent Beck)
-				Collections.sort(errors, new CounterErrorComparator());
+		// pas de tri ici : les erreurs déjà présentes cumulent leurs occurrences
+		// et la liste n'est triée que lors de la lecture par getErrors()
+		getErrorRing().addAll(counterErrorList);
+	}
 
-				while (errors.size() > MAX_ERRORS_COUNT) {
-					errors.removeFirst();
+	private CounterErrorRing getErrorRing() {
+		CounterErrorRing ring = errorRing;
+		if (ring == null) {
+			synchronized (errors) {
+				ring = errorRing;
+				if (ring == null) {
+					ring = new CounterErrorRing(MAX_ERRORS_COUNT);
+					// erreurs d'un counter désérialisé ou cloné, errors restant inchangée
+					// pour la sérialisation éventuelle de ce clone
+					ring.addAll(errors);
+					errorRing = ring;
 				}
 			}
 		}
+		return ring;
 	}
 
+
 	void removeRequest(String requestName) {
 		assert requestName != null;
 		requests.remove(requestName);
 	}
 
+	boolean containsRequest(CounterRequest request) {
+		return requests.get(request.getName()) == request;
+	}
+
 	/**
 	 * Retourne l'objet CounterRequest correspondant au contexte de requête en cours en paramètre.
 	 * @param context CounterRequestContext
@@ -709,16 +1100,42 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// son état peut donc être lu sans synchronisation
 		// mais toute modification de cet état ne sera pas conservée
 		final String aggregateRequestName = getAggregateRequestName(requestName);
+		if (topRequests != null && !requests.containsKey(aggregateRequestName)) {
+			// en mode top-requests-count, une simple lecture ne doit pas remplacer une requête
+			return new CounterRequest(aggregateRequestName, getName());
+		}
+		drainAsyncHits();
 		final CounterRequest request = getCounterRequestInternal(aggregateRequestName);
 		synchronized (request) {
+			request.drainStripes();
 			return request.clone();
 		}
 	}
 
+	/**
+	 * Retourne la requête de ce counter pour y reporter un hit enregistré par AsyncHitsRecorder.
+	 * @param aggregateRequestName Nom de la requête déjà agrégé
+	 * @return CounterRequest
+	 */
+	CounterRequest getCounterRequestForHit(String aggregateRequestName) {
+		return getCounterRequestInternal(aggregateRequestName);
+	}
+
+	private void drainAsyncHits() {
+		final AsyncHitsRecorder myAsyncHitsRecorder = asyncHitsRecorder;
+		if (myAsyncHitsRecorder != null) {
+			myAsyncHitsRecorder.drain();
+		}
+	}
+
 	private CounterRequest getCounterRequestInternal(String requestName) {
 		CounterRequest request = requests.get(requestName);
 		if (request == null) {
-			request = new CounterRequest(requestName, getName());
+			final CounterTopRequests myTopRequests = topRequests;
+			if (myTopRequests != null) {
+				return addTopCounterRequest(requestName, myTopRequests);
+			}
+			request = createCounterRequest(requestName);
 			// putIfAbsent a l'avantage d'être garanti atomique, même si ce n'est pas indispensable
 			final CounterRequest precedentRequest = requests.putIfAbsent(requestName, request);
 			if (precedentRequest != null) {
@@ -728,6 +1145,71 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return request;
 	}
 
+	private CounterRequest addTopCounterRequest(String requestName,
+			CounterTopRequests myTopRequests) {
+		// synchronisé seulement pour une requête encore inconnue, pas pour chaque hit
+		synchronized (myTopRequests) {
+			CounterRequest request = requests.get(requestName);
+			if (request != null) {
+				return request;
+			}
+			request = createCounterRequest(requestName);
+			if (CounterTopRequests.OTHER_REQUESTS_NAME.equals(requestName)) {
+				// la requête "autres requêtes" n'est jamais remplacée
+				requests.put(requestName, request);
+				return request;
+			}
+			final CounterRequest otherRequest = requests
+					.get(CounterTopRequests.OTHER_REQUESTS_NAME);
+			final int requestsCount = requests.size() - (otherRequest != null ? 1 : 0);
+			long inheritedWeight = 0;
+			if (myTopRequests.isFull(requestsCount)) {
+				final CounterRequest evictedRequest = myTopRequests.evictLightestRequest(this);
+				if (evictedRequest != null) {
+					inheritedWeight = myTopRequests.getLastEvictedWeight();
+					addEvictedRequestToOtherRequests(evictedRequest, otherRequest);
+				}
+			}
+			requests.put(requestName, request);
+			myTopRequests.addRequest(request, inheritedWeight);
+			return request;
+		}
+	}
+
+	private CounterRequest createCounterRequest(String requestName) {
+		final CounterRequest request = new CounterRequest(requestName, getName());
+		if (periodRequestsTracked) {
+			// tous les hits d'une nouvelle requête sont dans la période en cours
+			request.setPeriodTracked(true);
+		}
+		return request;
+	}
+
+	private void addEvictedRequestToOtherRequests(CounterRequest evictedRequest,
+			CounterRequest otherRequest) {
+		final CounterRequest evictedRequestClone;
+		final CounterRequest evictedPeriodRequest;
+		synchronized (evictedRequest) {
+			// un hit en cours sur la requête enlevée peut être perdu, mais les totaux restent à peu près justes
+			requests.remove(evictedRequest.getName());
+			evictedRequest.drainStripes();
+			evictedRequestClone = evictedRequest.clone();
+			// les hits pas encore collectés de la requête enlevée restent dans la période en cours
+			evictedPeriodRequest = evictedRequest.pollPeriodRequest();
+		}
+		CounterRequest other = otherRequest;
+		if (other == null) {
+			other = createCounterRequest(CounterTopRequests.OTHER_REQUESTS_NAME);
+			requests.put(other.getName(), other);
+		}
+		synchronized (other) {
+			other.addHits(evictedRequestClone);
+			if (evictedPeriodRequest != null) {
+				other.addPeriodHits(evictedPeriodRequest);
+			}
+		}
+	}
+
 	/**
 	 * Retourne le nombre de requêtes dans ce counter.
 	 * @return int
@@ -746,16 +1228,44 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		// de manière à ce que l'appelant n'ai pas à se préoccuper des synchronisations nécessaires
 		// Rq : l'Iterator sur ConcurrentHashMap.values() est garanti ne pas lancer ConcurrentModificationException
 		// même s'il y a des ajouts concurrents
+		// les hits éventuellement en attente dans AsyncHitsRecorder sont reportés avant la copie
+		drainAsyncHits();
 		final List<CounterRequest> result = new ArrayList<CounterRequest>(requests.size());
 		for (final CounterRequest request : requests.values()) {
 			// on synchronize sur request en cas d'ajout en parallèle d'un hit sur cette request
 			synchronized (request) {
+				// les hits éventuellement accumulés dans les stripes sont reportés avant le clone
+				request.drainStripes();
 				result.add(request.clone());
 			}
 		}
 		return result;
 	}
 
+	/**
+	 * Retourne les hits de chaque requête depuis le précédent appel de cette méthode
+	 * et commence une nouvelle période, sans cloner les requêtes (voir setPeriodRequestsTracked).
+	 * @return Liste des requêtes ayant eu des hits dans la période, qui appartiennent à l'appelant
+	 */
+	List<CounterRequest> pollPeriodRequests() {
+		assert periodRequestsTracked;
+		// les hits éventuellement en attente dans AsyncHitsRecorder sont reportés avant
+		drainAsyncHits();
+		final List<CounterRequest> result = new ArrayList<CounterRequest>();
+		for (final CounterRequest request : requests.values()) {
+			final CounterRequest periodRequest;
+			synchronized (request) {
+				// les hits éventuellement accumulés dans les stripes sont reportés dans la période
+				request.drainStripes();
+				periodRequest = request.pollPeriodRequest();
+			}
+			if (periodRequest != null) {
+				result.add(periodRequest);
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * @return Liste des requêtes triées par durée cumulée décroissante,
 	 * 	la liste et ses objets peuvent être utilisés sans synchronized et sans crainte d'accès concurrents.
@@ -801,29 +1311,25 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	}
 
 	/**
-	 * @return Liste des erreurs triée par date croissante,
+	 * @return Liste des erreurs distinctes triée par date croissante de dernière occurrence,
 	 * 	la liste et ses objets peuvent être utilisés sans synchronized et sans crainte d'accès concurrents.
 	 */
 	List<CounterError> getErrors() {
 		if (errors == null) {
 			return Collections.emptyList();
 		}
-		synchronized (errors) {
-			return new ArrayList<CounterError>(errors);
-		}
+		return getErrorRing().getErrors();
 	}
 
 	/**
-	 * Retourne le nombre d'erreurs dans ce counter.
+	 * Retourne le nombre d'erreurs distinctes dans ce counter.
 	 * @return int
 	 */
 	int getErrorsCount() {
 		if (errors == null) {
 			return 0;
 		}
-		synchronized (errors) {
-			return errors.size();
-		}
+		return getErrorRing().size();
 	}
 
 	/**
@@ -831,12 +1337,18 @@ class Counter implements Cloneable, Serializable { // NOPMD
 	 * à l'heure courante.
 	 */
 	void clear() {
+		// les hits en attente sont reportés avant la purge pour ne pas réapparaître après
+		drainAsyncHits();
+		final CounterTopRequests myTopRequests = topRequests;
+		if (myTopRequests != null) {
+			synchronized (myTopRequests) {
+				myTopRequests.clear();
+			}
+		}
 		requests.clear();
 		rootCurrentContextsByThreadId.clear();
 		if (errors != null) {
-			synchronized (errors) {
-				errors.clear();
-			}
+			getErrorRing().clear();
 		}
 		startDate = new Date();
 	}
@@ -853,6 +1365,8 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		clone.maxRequestsCount = getMaxRequestsCount();
 		clone.displayed = isDisplayed();
 		clone.requestTransformPattern = getRequestTransformPattern();
+		clone.striped = isStriped();
+		clone.contextsRecycled = isContextsRecycled();
 		// on ne copie pas rootCurrentContextsByThreadId car on ne fournit pas les requêtes en cours
 		// qui sont très rapidement obsolètes au serveur de collecte (et sinon cela poserait la question
 		// des clones de parentCounter, de l'agrégation, de la synchro d'horloge pour la durée
@@ -868,17 +1382,132 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return clone;
 	}
 
+	/**
+	 * Ecrit ce counter au format binaire (voir CounterCodec), dans le même ordre que la lecture.
+	 * Cette instance doit être un clone, sans accès concurrents.
+	 * @param output CounterCodec.Output
+	 * @throws IOException e
+	 */
+	void writeBinary(CounterCodec.Output output) throws IOException {
+		output.writeString(name);
+		output.writeString(storageName);
+		output.writeString(iconName);
+		output.writeString(childCounterName);
+		output.writeString(application);
+		output.writeBoolean(displayed);
+		output.writeVarLong(startDate.getTime());
+		output.writeVarLong(maxRequestsCount);
+		output.writeVarLong(requests.size());
+		for (final CounterRequest request : requests.values()) {
+			request.writeBinary(output, name);
+		}
+		if (errors == null) {
+			output.writeVarLong(0);
+		} else {
+			output.writeVarLong(errors.size());
+			for (final CounterError error : errors) {
+				error.writeBinary(output);
+			}
+		}
+	}
+
+	/**
+	 * Lit un counter écrit au format binaire (voir CounterCodec).
+	 * @param input CounterCodec.Input
+	 * @return Counter
+	 * @throws IOException e
+	 */
+	static Counter readBinary(CounterCodec.Input input) throws IOException {
+		final String name = input.readString();
+		final String storageName = input.readString();
+		final String iconName = input.readString();
+		final String childCounterName = input.readString();
+		if (name == null || storageName == null) {
+			throw new IOException("Malformed counter file");
+		}
+		final Counter counter = new Counter(name, storageName, iconName, childCounterName,
+				new ThreadLocal<CounterRequestContext>());
+		counter.application = input.readString();
+		counter.displayed = input.readBoolean();
+		counter.startDate = new Date(input.readVarLong());
+		counter.maxRequestsCount = input.readVarInt();
+		final int requestsCount = input.readVarInt();
+		for (int i = 0; i < requestsCount; i++) {
+			final CounterRequest request = CounterRequest.readBinary(input, name);
+			counter.requests.put(request.getName(), request);
+		}
+		final int errorsCount = input.readVarInt();
+		for (int i = 0; i < errorsCount; i++) {
+			final CounterError error = CounterError.readBinary(input);
+			if (counter.errors != null) {
+				counter.errors.add(error);
+			}
+		}
+		return counter;
+	}
+
 	/**
 	 * Enregistre le counter.
 	 * @throws IOException e
 	 */
 	void writeToFile() throws IOException {
+		writeToFile(false);
+	}
+
+	/**
+	 * Enregistre le counter en entier si ses enregistrements sont dans un journal
+	 * (paramètre counters-journal), par exemple au changement de jour.
+	 * @throws IOException e
+	 */
+	void compactFile() throws IOException {
+		if (journal != null) {
+			writeToFile(true);
+		}
+	}
+
+	private void writeToFile(boolean compaction) throws IOException {
 		// on clone le counter avant de le sérialiser pour ne pas avoir de problèmes de concurrences d'accès
 		final Counter counter = this.clone();
 		// on n'écrit pas rootCurrentContextsByThreadId en fichier
 		// puisque ces données ne seront plus vraies dans quelques secondes (clear pour être sûr ici)
 		counter.rootCurrentContextsByThreadId.clear();
-		estimatedMemorySize = new CounterStorage(counter).writeToFile();
+		final CounterStorage counterStorage = new CounterStorage(counter);
+		if (CounterStorage.isJournalEnabled()) {
+			CounterJournal myJournal = journal;
+			if (myJournal == null) {
+				// s'il y a 2 instances créées en même temps, chacune fera seulement une compaction
+				myJournal = new CounterJournal();
+				journal = myJournal;
+			}
+			final int dataLength = counterStorage.writeToJournal(myJournal, compaction);
+			if (dataLength >= 0) {
+				// l'estimation mémoire n'est mise à jour qu'avec une écriture complète
+				estimatedMemorySize = dataLength;
+			}
+		} else {
+			estimatedMemorySize = counterStorage.writeToFile();
+		}
+	}
+
+	/**
+	 * Applique au counter lu depuis son fichier un enregistrement de son journal :
+	 * les requêtes enregistrées remplacent les précédentes de même nom
+	 * et les erreurs, si elles sont enregistrées, remplacent les précédentes.
+	 * @param record CounterJournal.Record
+	 */
+	void applyJournalRecord(CounterJournal.Record record) {
+		startDate = record.getStartDate();
+		for (final String requestName : record.getRemovedRequestNames()) {
+			requests.remove(requestName);
+		}
+		for (final CounterRequest request : record.getRequests()) {
+			requests.put(request.getName(), request);
+		}
+		if (record.getErrors() != null && errors != null) {
+			final CounterErrorRing ring = getErrorRing();
+			ring.clear();
+			ring.addAll(record.getErrors());
+		}
 	}
 
 	/**
@@ -895,8 +1524,9 @@ class Counter implements Cloneable, Serializable { // NOPMD
 				requests.put(request.getName(), request);
 			}
 			if (errors != null) {
-				errors.clear();
-				errors.addAll(counter.getErrors());
+				final CounterErrorRing ring = getErrorRing();
+				ring.clear();
+				ring.addAll(counter.getErrors());
 			}
 			// on ajoute les nouvelles requêtes enregistrées avant de lire le fichier
 			// (par ex. les premières requêtes collectées par le serveur de collecte lors de l'initialisation)
@@ -910,7 +1540,7 @@ class Counter implements Cloneable, Serializable { // NOPMD
 		return getClass().getSimpleName() + "[application=" + getApplication() + ", name="
 				+ getName() + ", storageName=" + getStorageName() + ", startDate=" + getStartDate()
 				+ ", childCounterName=" + getChildCounterName() + ", " + requests.size()
-				+ " requests, " + (errors == null ? "" : errors.size() + " errors, ")
+				+ " requests, " + (errors == null ? "" : getErrorsCount() + " errors, ")
 				+ "maxRequestsCount=" + getMaxRequestsCount() + ", displayed=" + isDisplayed()
 				+ ']';
 	}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Format binaire compact et versionné des fichiers de counters (paramètre counters-binary-format),
+ * plus rapide à écrire et à lire et plus petit que la sérialisation java du counter
+ * (en particulier pour le counter de l'année qui lit jusqu'à 365 fichiers de jours).
+ *
+ * Le format commence par un en-tête "JMC" suivi du numéro de version,
+ * puis les chaînes sont écrites une seule fois et ensuite référencées par leur index dans un dictionnaire
+ * (ids des requêtes filles, messages d'erreurs...), les ids des requêtes sont écrits en binaire
+ * (20 octets au lieu de 40 caractères hexadécimaux) et les nombres sont écrits en varint
+ * (1 octet pour les valeurs jusqu'à 127, 2 octets jusqu'à 16383...).
+ * Les fichiers sont toujours compressés en gzip et les fichiers au format de la sérialisation java
+ * restent lisibles (voir isEncoded).
+ * @author Emeric Vernat
+ */
+final class CounterCodec {
+	static final int VERSION = 1;
+	private static final byte[] HEADER = { 'J', 'M', 'C' };
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// longueur d'un id de requête après le nom du counter : sha1 en hexadécimal
+	private static final int REQUEST_ID_DIGEST_LENGTH = 20;
+
+	private CounterCodec() {
+		super();
+	}
+
+	/**
+	 * Flux d'écriture au format binaire.
+	 */
+	static final class Output {
+		private final DataOutputStream output;
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+		Output(OutputStream output) {
+			super();
+			this.output = new DataOutputStream(output);
+		}
+
+		void writeVarLong(long value) throws IOException {
+			// varint non signé : 7 bits par octet, le bit de poids fort indiquant s'il y a un octet suivant
+			// (les valeurs négatives, a priori inexistantes, sont écrites sur 10 octets)
+			long remaining = value;
+			while ((remaining & ~0x7FL) != 0) {
+				output.write((int) (remaining & 0x7F | 0x80));
+				remaining >>>= 7;
+			}
+			output.write((int) remaining);
+		}
+
+		void writeBoolean(boolean value) throws IOException {
+			output.writeBoolean(value);
+		}
+
+		/**
+		 * Ecrit une chaîne, ou seulement son index si elle a déjà été écrite.
+		 * @param string String (peut être nulle)
+		 * @throws IOException e
+		 */
+		void writeString(String string) throws IOException {
+			if (string == null) {
+				writeVarLong(0);
+				return;
+			}
+			final Integer index = dictionary.get(string);
+			if (index != null) {
+				writeVarLong(index + 2);
+				return;
+			}
+			dictionary.put(string, dictionary.size());
+			final byte[] bytes = string.getBytes("UTF-8");
+			writeVarLong(1);
+			writeVarLong(bytes.length);
+			output.write(bytes);
+		}
+
+		/**
+		 * Ecrit l'id d'une requête, en binaire s'il est de la forme nom du counter + sha1 en hexadécimal.
+		 * @param id Id de la requête
+		 * @param counterName Nom du counter
+		 * @throws IOException e
+		 */
+		void writeRequestId(String id, String counterName) throws IOException {
+			final byte[] digest = parseRequestIdDigest(id, counterName);
+			if (digest == null) {
+				writeBoolean(false);
+				writeString(id);
+			} else {
+				writeBoolean(true);
+				output.write(digest);
+			}
+		}
+
+		void flush() throws IOException {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Flux de lecture au format binaire.
+	 */
+	static final class Input {
+		private final DataInputStream input;
+		private final List<String> dictionary = new ArrayList<String>();
+
+		Input(InputStream input) {
+			super();
+			this.input = new DataInputStream(input);
+		}
+
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = input.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint in counter file");
+		}
+
+		int readVarInt() throws IOException {
+			final long value = readVarLong();
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new IOException("Malformed int in counter file: " + value);
+			}
+			return (int) value;
+		}
+
+		boolean readBoolean() throws IOException {
+			return input.readBoolean();
+		}
+
+		String readString() throws IOException {
+			final int reference = readVarInt();
+			if (reference == 0) {
+				return null;
+			} else if (reference == 1) {
+				final byte[] bytes = new byte[readVarInt()];
+				input.readFully(bytes);
+				final String string = new String(bytes, "UTF-8");
+				dictionary.add(string);
+				return string;
+			}
+			final int index = reference - 2;
+			if (index >= dictionary.size()) {
+				throw new IOException("Malformed string reference in counter file: " + index);
+			}
+			return dictionary.get(index);
+		}
+
+		String readRequestId(String counterName) throws IOException {
+			if (!readBoolean()) {
+				return readString();
+			}
+			final byte[] digest = new byte[REQUEST_ID_DIGEST_LENGTH];
+			input.readFully(digest);
+			final char[] chars = new char[2 * REQUEST_ID_DIGEST_LENGTH];
+			for (int i = 0; i < digest.length; i++) {
+				chars[2 * i] = HEX_DIGITS[digest[i] >> 4 & 0xF];
+				chars[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+			}
+			return counterName.concat(new String(chars));
+		}
+	}
+
+	/**
+	 * Ecrit le counter au format binaire.
+	 * @param counter Counter (un clone, sans requête en cours)
+	 * @param output OutputStream (non fermé)
+	 * @throws IOException e
+	 */
+	static void write(Counter counter, OutputStream output) throws IOException {
+		// buffer pour ne pas écrire octet par octet dans le flux compressé
+		final OutputStream bufferedOutput = new BufferedOutputStream(output);
+		writeHeader(bufferedOutput);
+		final Output codecOutput = new Output(bufferedOutput);
+		counter.writeBinary(codecOutput);
+		codecOutput.flush();
+	}
+
+	/**
+	 * Lit un counter écrit au format binaire.
+	 * @param input InputStream (non fermé, de préférence bufferisé)
+	 * @return Counter
+	 * @throws IOException e, en particulier si la version du format n'est pas connue
+	 */
+	static Counter read(InputStream input) throws IOException {
+		final DataInputStream dataInput = new DataInputStream(input);
+		readHeader(dataInput);
+		return Counter.readBinary(new Input(dataInput));
+	}
+
+	/**
+	 * Ecrit l'en-tête et la version du format binaire (fichiers de counters et enregistrements des journaux).
+	 * @param output OutputStream
+	 * @throws IOException e
+	 */
+	static void writeHeader(OutputStream output) throws IOException {
+		output.write(HEADER);
+		output.write(VERSION);
+	}
+
+	/**
+	 * Lit et vérifie l'en-tête et la version du format binaire.
+	 * @param dataInput DataInputStream
+	 * @throws IOException e, en particulier si la version du format n'est pas connue
+	 */
+	static void readHeader(DataInputStream dataInput) throws IOException {
+		final byte[] header = new byte[HEADER.length];
+		dataInput.readFully(header);
+		for (int i = 0; i < header.length; i++) {
+			if (header[i] != HEADER[i]) {
+				throw new IOException("Unknown counter file format");
+			}
+		}
+		final int version = dataInput.readUnsignedByte();
+		if (version > VERSION) {
+			// fichier écrit par une version plus récente de javamelody
+			throw new IOException("Unsupported counter file version: " + version);
+		}
+	}
+
+	/**
+	 * Indique si le flux commence par l'en-tête du format binaire, sans consommer le flux.
+	 * Sinon, le flux est supposé au format de la sérialisation java (fichiers écrits auparavant).
+	 * @param input InputStream supportant mark et reset
+	 * @return boolean
+	 * @throws IOException e
+	 */
+	static boolean isEncoded(InputStream input) throws IOException {
+		assert input.markSupported();
+		input.mark(HEADER.length);
+		try {
+			for (final byte b : HEADER) {
+				if (input.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			input.reset();
+		}
+	}
+
+	private static byte[] parseRequestIdDigest(String id, String counterName) {
+		final int prefixLength = counterName.length();
+		if (id.length() != prefixLength + 2 * REQUEST_ID_DIGEST_LENGTH
+				|| !id.startsWith(counterName)) {
+			return null;
+		}
+		final byte[] digest = new byte[REQUEST_ID_DIGEST_LENGTH];
+		for (int i = 0; i < digest.length; i++) {
+			final int high = Character.digit(id.charAt(prefixLength + 2 * i), 16);
+			final int low = Character.digit(id.charAt(prefixLength + 2 * i + 1), 16);
+			if (high < 0 || low < 0 || Character.isUpperCase(id.charAt(prefixLength + 2 * i))
+					|| Character.isUpperCase(id.charAt(prefixLength + 2 * i + 1))) {
+				// pas un id calculé par CounterRequest, il sera écrit tel quel
+				return null;
+			}
+			digest[i] = (byte) (high << 4 | low);
+		}
+		return digest;
+	}
+}
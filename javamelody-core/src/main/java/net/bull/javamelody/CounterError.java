@@ -17,6 +17,7 @@
  */
 package net.bull.javamelody;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
 
@@ -37,6 +38,8 @@ class CounterError implements Serializable {
 	private final String httpRequest;
 	private final String message;
 	private final String stackTrace;
+	// 0 si l'erreur n'a été enregistrée qu'une fois (et pour les erreurs sérialisées auparavant)
+	private final long occurrencesCount;
 
 	CounterError(String message, String stackTrace) {
 		super();
@@ -44,6 +47,7 @@ class CounterError implements Serializable {
 		this.time = System.currentTimeMillis();
 		this.message = message;
 		this.stackTrace = stackTrace;
+		this.occurrencesCount = 0;
 		final HttpServletRequest currentRequest = getCurrentRequest();
 		if (currentRequest == null) {
 			this.remoteUser = null;
@@ -62,6 +66,53 @@ class CounterError implements Serializable {
 		}
 	}
 
+	/**
+	 * Copie d'une erreur avec un autre nombre d'occurrences.
+	 * @param error CounterError dont la copie représente la dernière occurrence
+	 * @param occurrencesCount Nombre d'occurrences de cette erreur
+	 */
+	CounterError(CounterError error, long occurrencesCount) {
+		super();
+		assert occurrencesCount >= 1;
+		this.time = error.time;
+		this.remoteUser = error.remoteUser;
+		this.httpRequest = error.httpRequest;
+		this.message = error.message;
+		this.stackTrace = error.stackTrace;
+		this.occurrencesCount = occurrencesCount;
+	}
+
+	private CounterError(long time, String remoteUser, String httpRequest, String message,
+			String stackTrace, long occurrencesCount) {
+		super();
+		this.time = time;
+		this.remoteUser = remoteUser;
+		this.httpRequest = httpRequest;
+		this.message = message;
+		this.stackTrace = stackTrace;
+		this.occurrencesCount = occurrencesCount;
+	}
+
+	void writeBinary(CounterCodec.Output output) throws IOException {
+		output.writeVarLong(time);
+		output.writeString(remoteUser);
+		output.writeString(httpRequest);
+		output.writeString(message);
+		output.writeString(stackTrace);
+		output.writeVarLong(occurrencesCount);
+	}
+
+	static CounterError readBinary(CounterCodec.Input input) throws IOException {
+		final long time = input.readVarLong();
+		final String remoteUser = input.readString();
+		final String httpRequest = input.readString();
+		final String message = input.readString();
+		final String stackTrace = input.readString();
+		final long occurrencesCount = input.readVarLong();
+		return new CounterError(time, remoteUser, httpRequest, message, stackTrace,
+				occurrencesCount);
+	}
+
 	/**
 	 * Définit la requête http (peut être nulle) pour le thread courant.
 	 * @param request HttpServletRequest
@@ -111,6 +162,13 @@ class CounterError implements Serializable {
 		return stackTrace;
 	}
 
+	/**
+	 * @return Nombre d'occurrences de cette erreur, dont la dernière est celle-ci
+	 */
+	long getOccurrencesCount() {
+		return Math.max(occurrencesCount, 1);
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public String toString() {
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dernières erreurs distinctes d'un counter, dans un buffer circulaire de taille fixe sans lock.
+ *
+ * Une erreur ayant le même message et la même stack-trace qu'une erreur encore présente
+ * n'occupe pas de nouvelle place : elle incrémente le nombre d'occurrences de cette erreur
+ * et en devient la dernière occurrence (date, utilisateur et requête http).
+ * Ainsi, lors d'une avalanche d'erreurs identiques (base de données indisponible par exemple),
+ * la stack-trace n'est conservée qu'une fois, les threads en erreur ne se synchronisent pas
+ * entre eux et les autres erreurs ne sont pas chassées du buffer.
+ *
+ * Quand le buffer est plein, une nouvelle erreur distincte remplace la plus ancienne erreur distincte.
+ * @author Emeric Vernat
+ */
+class CounterErrorRing {
+	private final int capacity;
+	private final AtomicReferenceArray<Entry> slots;
+	private final AtomicLong sequence = new AtomicLong();
+	private final ConcurrentMap<ErrorKey, Entry> entriesByKey = new ConcurrentHashMap<ErrorKey, Entry>();
+
+	/**
+	 * Empreinte d'une erreur : son message et sa stack-trace éventuelle.
+	 */
+	private static final class ErrorKey {
+		private final String message;
+		private final String stackTrace;
+		private final int hashCode;
+
+		ErrorKey(String message, String stackTrace) {
+			super();
+			this.message = message;
+			this.stackTrace = stackTrace;
+			this.hashCode = 31 * message.hashCode()
+					+ (stackTrace != null ? stackTrace.hashCode() : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof ErrorKey)) {
+				return false;
+			}
+			final ErrorKey other = (ErrorKey) obj;
+			return hashCode == other.hashCode && message.equals(other.message)
+					&& (stackTrace == null ? other.stackTrace == null : stackTrace
+							.equals(other.stackTrace));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * Erreur distincte dans le buffer, avec sa dernière occurrence et son nombre d'occurrences.
+	 */
+	private static final class Entry {
+		final ErrorKey key;
+		final AtomicLong occurrencesCount;
+		volatile CounterError lastError;
+
+		Entry(ErrorKey key, CounterError error, long occurrencesCount) {
+			super();
+			this.key = key;
+			this.lastError = error;
+			this.occurrencesCount = new AtomicLong(occurrencesCount);
+		}
+
+		void addOccurrences(CounterError error, long count) {
+			occurrencesCount.addAndGet(count);
+			if (error.getTime() >= lastError.getTime()) {
+				// une occurrence plus ancienne (fusion de counters) ne remplace pas la dernière
+				lastError = error;
+			}
+		}
+
+		CounterError getError() {
+			final CounterError error = lastError;
+			final long count = occurrencesCount.get();
+			if (count == error.getOccurrencesCount()) {
+				return error;
+			}
+			return new CounterError(error, count);
+		}
+	}
+
+	CounterErrorRing(int capacity) {
+		super();
+		assert capacity > 0;
+		this.capacity = capacity;
+		this.slots = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	/**
+	 * Ajoute une erreur ou des occurrences d'une erreur déjà présente.
+	 * @param error CounterError, avec son nombre d'occurrences
+	 */
+	void add(CounterError error) {
+		final ErrorKey key = new ErrorKey(error.getMessage(), error.getStackTrace());
+		final long count = error.getOccurrencesCount();
+		final Entry entry = entriesByKey.get(key);
+		if (entry != null) {
+			// cas fréquent d'une erreur répétée : pas de nouvelle place ni de nouvelle stack-trace
+			entry.addOccurrences(error, count);
+			return;
+		}
+		final Entry newEntry = new Entry(key, error, count);
+		final Entry previousEntry = entriesByKey.putIfAbsent(key, newEntry);
+		if (previousEntry != null) {
+			// ajoutée par un autre thread entre-temps
+			previousEntry.addOccurrences(error, count);
+			return;
+		}
+		final int index = (int) (sequence.getAndIncrement() % capacity);
+		final Entry evictedEntry = slots.getAndSet(index, newEntry);
+		if (evictedEntry != null) {
+			// une occurrence ajoutée en même temps à l'erreur remplacée peut être perdue, tant pis
+			entriesByKey.remove(evictedEntry.key, evictedEntry);
+		}
+	}
+
+	void addAll(List<CounterError> errors) {
+		for (final CounterError error : errors) {
+			add(error);
+		}
+	}
+
+	/**
+	 * @return Liste des erreurs distinctes triées par date de dernière occurrence,
+	 * 	avec leur nombre d'occurrences
+	 */
+	List<CounterError> getErrors() {
+		final List<CounterError> result = new ArrayList<CounterError>(size());
+		for (int i = 0; i < capacity; i++) {
+			final Entry entry = slots.get(i);
+			if (entry != null) {
+				result.add(entry.getError());
+			}
+		}
+		if (result.size() > 1) {
+			Collections.sort(result, new Counter.CounterErrorComparator());
+		}
+		return result;
+	}
+
+	/**
+	 * @return Nombre d'erreurs distinctes
+	 */
+	int size() {
+		return (int) Math.min(sequence.get(), capacity);
+	}
+
+	void clear() {
+		for (int i = 0; i < capacity; i++) {
+			final Entry entry = slots.getAndSet(i, null);
+			if (entry != null) {
+				entriesByKey.remove(entry.key, entry);
+			}
+		}
+		sequence.set(0);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[capacity=" + capacity + ", size=" + size() + ']';
+	}
+}
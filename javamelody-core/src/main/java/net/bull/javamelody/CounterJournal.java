@@ -0,0 +1,334 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Journal des modifications d'un counter depuis l'écriture complète de son fichier
+ * (paramètre counters-journal).
+ * A chaque enregistrement du counter, seules les requêtes modifiées depuis l'enregistrement précédent
+ * sont ajoutées à la fin du fichier journal, au lieu de réécrire et de compresser tout le counter.
+ * Le counter est réécrit en entier et son journal supprimé (compaction) au premier enregistrement
+ * par cette instance, toutes les MAX_RECORDS_COUNT écritures dans le journal,
+ * quand le journal devient plus gros que le fichier du counter et au changement de jour.
+ * La lecture d'un counter rejoue son journal après avoir lu son fichier.
+ * Les enregistrements sont écrits au format binaire de CounterCodec si le paramètre
+ * counters-binary-format est actif, et sinon par sérialisation java comme les fichiers des counters ;
+ * les deux formats sont reconnus à la lecture par leur en-tête.
+ * @author Emeric Vernat
+ */
+class CounterJournal {
+	/**
+	 * Nombre max d'enregistrements dans un journal avant compaction (soit une heure par défaut).
+	 */
+	static final int MAX_RECORDS_COUNT = 60;
+
+	// hits des requêtes lors du dernier enregistrement, par nom de requête
+	private Map<String, Long> hitsByRequestName = new HashMap<String, Long>();
+	private long errorsSignature;
+	// -1 tant que le fichier complet n'a pas été écrit par cette instance
+	private int recordsCount = -1;
+
+	/**
+	 * Enregistrement dans le journal : requêtes modifiées ou supprimées depuis l'enregistrement
+	 * précédent et erreurs si elles ont changé.
+	 */
+	static class Record implements Serializable {
+		private static final long serialVersionUID = -3829537066834379187L;
+		private final Date startDate;
+		@SuppressWarnings("all")
+		private final ArrayList<CounterRequest> requests;
+		@SuppressWarnings("all")
+		private final ArrayList<String> removedRequestNames;
+		// null si les erreurs n'ont pas changé
+		@SuppressWarnings("all")
+		private final ArrayList<CounterError> errors;
+
+		Record(Date startDate, List<CounterRequest> requests, List<String> removedRequestNames,
+				List<CounterError> errors) {
+			super();
+			this.startDate = startDate;
+			this.requests = new ArrayList<CounterRequest>(requests);
+			this.removedRequestNames = new ArrayList<String>(removedRequestNames);
+			if (errors == null) {
+				this.errors = null;
+			} else {
+				this.errors = new ArrayList<CounterError>(errors);
+			}
+		}
+
+		Date getStartDate() {
+			return startDate;
+		}
+
+		List<CounterRequest> getRequests() {
+			return requests;
+		}
+
+		List<String> getRemovedRequestNames() {
+			return removedRequestNames;
+		}
+
+		List<CounterError> getErrors() {
+			return errors;
+		}
+
+		/**
+		 * Ecrit l'enregistrement au format binaire (voir CounterCodec), dans le même ordre que la lecture.
+		 * @param output CounterCodec.Output
+		 * @param counterName Nom du counter
+		 * @throws IOException e
+		 */
+		void writeBinary(CounterCodec.Output output, String counterName) throws IOException {
+			output.writeVarLong(startDate.getTime());
+			output.writeVarLong(requests.size());
+			for (final CounterRequest request : requests) {
+				request.writeBinary(output, counterName);
+			}
+			output.writeVarLong(removedRequestNames.size());
+			for (final String removedRequestName : removedRequestNames) {
+				output.writeString(removedRequestName);
+			}
+			output.writeBoolean(errors != null);
+			if (errors != null) {
+				output.writeVarLong(errors.size());
+				for (final CounterError error : errors) {
+					error.writeBinary(output);
+				}
+			}
+		}
+
+		static Record readBinary(CounterCodec.Input input, String counterName)
+				throws IOException {
+			final Date startDate = new Date(input.readVarLong());
+			final int requestsCount = input.readVarInt();
+			final List<CounterRequest> requests = new ArrayList<CounterRequest>(requestsCount);
+			for (int i = 0; i < requestsCount; i++) {
+				requests.add(CounterRequest.readBinary(input, counterName));
+			}
+			final int removedRequestsCount = input.readVarInt();
+			final List<String> removedRequestNames = new ArrayList<String>(removedRequestsCount);
+			for (int i = 0; i < removedRequestsCount; i++) {
+				removedRequestNames.add(input.readString());
+			}
+			List<CounterError> errors = null;
+			if (input.readBoolean()) {
+				final int errorsCount = input.readVarInt();
+				errors = new ArrayList<CounterError>(errorsCount);
+				for (int i = 0; i < errorsCount; i++) {
+					errors.add(CounterError.readBinary(input));
+				}
+			}
+			return new Record(startDate, requests, removedRequestNames, errors);
+		}
+	}
+
+	synchronized boolean isCompactionNeeded(File file, File journalFile) {
+		return recordsCount < 0 || recordsCount >= MAX_RECORDS_COUNT || !file.exists()
+				|| journalFile.length() > file.length();
+	}
+
+	/**
+	 * Retient l'état du counter qui vient d'être écrit en entier dans son fichier.
+	 * @param counter Counter écrit
+	 */
+	synchronized void compacted(Counter counter) {
+		final Map<String, Long> newHitsByRequestName = new HashMap<String, Long>();
+		for (final CounterRequest request : counter.getRequests()) {
+			newHitsByRequestName.put(request.getName(), request.getHits());
+		}
+		hitsByRequestName = newHitsByRequestName;
+		errorsSignature = getErrorsSignature(counter.getErrors());
+		recordsCount = 0;
+	}
+
+	/**
+	 * Retourne l'enregistrement des modifications du counter depuis l'enregistrement précédent
+	 * et retient le nouvel état.
+	 * @param counter Counter à enregistrer
+	 * @return Record ou null si le counter n'a pas changé
+	 */
+	synchronized Record createRecord(Counter counter) {
+		final List<CounterRequest> requests = counter.getRequests();
+		final Map<String, Long> newHitsByRequestName = new HashMap<String, Long>(
+				requests.size());
+		final List<CounterRequest> changedRequests = new ArrayList<CounterRequest>();
+		for (final CounterRequest request : requests) {
+			final Long previousHits = hitsByRequestName.get(request.getName());
+			if (previousHits == null || previousHits != request.getHits()) {
+				changedRequests.add(request);
+			}
+			newHitsByRequestName.put(request.getName(), request.getHits());
+		}
+		final List<String> removedRequestNames = new ArrayList<String>();
+		for (final String requestName : hitsByRequestName.keySet()) {
+			if (!newHitsByRequestName.containsKey(requestName)) {
+				removedRequestNames.add(requestName);
+			}
+		}
+		final List<CounterError> errors = counter.getErrors();
+		final long newErrorsSignature = getErrorsSignature(errors);
+		final boolean errorsChanged = newErrorsSignature != errorsSignature;
+		if (changedRequests.isEmpty() && removedRequestNames.isEmpty() && !errorsChanged) {
+			return null;
+		}
+		hitsByRequestName = newHitsByRequestName;
+		errorsSignature = newErrorsSignature;
+		recordsCount++;
+		return new Record(counter.getStartDate(), changedRequests, removedRequestNames,
+				errorsChanged ? errors : null);
+	}
+
+	private static long getErrorsSignature(List<CounterError> errors) {
+		// une erreur dédupliquée change seulement par son nombre d'occurrences
+		long signature = errors.size();
+		for (final CounterError error : errors) {
+			signature = 31 * signature + error.getTime() + error.getOccurrencesCount();
+		}
+		return signature;
+	}
+
+	/**
+	 * Ajoute un enregistrement à la fin du journal.
+	 * @param journalFile Fichier du journal
+	 * @param file Fichier du counter, dont la taille et la date sont écrites au début d'un nouveau journal
+	 * @param record Record
+	 * @param counterName Nom du counter
+	 * @throws IOException e
+	 */
+	static void append(File journalFile, File file, Record record, String counterName)
+			throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeRecord(record, counterName, bytes);
+		final boolean newJournal = !journalFile.exists();
+		final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(journalFile, true)));
+		try {
+			if (newJournal) {
+				output.writeLong(file.length());
+				output.writeLong(file.lastModified());
+			}
+			output.writeInt(bytes.size());
+			bytes.writeTo(output);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Rejoue le journal sur le counter lu depuis son fichier.
+	 * @param journalFile Fichier du journal
+	 * @param file Fichier du counter
+	 * @param counter Counter lu depuis file
+	 * @throws IOException e
+	 */
+	static void replay(File journalFile, File file, Counter counter) throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile)));
+		try {
+			final long fileLength = input.readLong();
+			final long fileLastModified = input.readLong();
+			if (fileLength != file.length() || fileLastModified != file.lastModified()) {
+				// journal d'un fichier précédent du counter qui n'a pas été supprimé,
+				// par exemple si arrêt brutal juste après une compaction
+				return;
+			}
+			while (true) {
+				final int length = input.readInt();
+				final byte[] bytes = new byte[length];
+				input.readFully(bytes);
+				counter.applyJournalRecord(readRecord(bytes, counter.getName()));
+			}
+		} catch (final EOFException e) {
+			// fin du journal, ou dernier enregistrement incomplet si arrêt brutal pendant l'écriture
+			return;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static void writeRecord(Record record, String counterName,
+			ByteArrayOutputStream bytes) throws IOException {
+		if (CounterStorage.isBinaryFormatEnabled()) {
+			final OutputStream output = new BufferedOutputStream(new GZIPOutputStream(bytes));
+			try {
+				CounterCodec.writeHeader(output);
+				final CounterCodec.Output codecOutput = new CounterCodec.Output(output);
+				record.writeBinary(codecOutput, counterName);
+				codecOutput.flush();
+			} finally {
+				// ce close libère les ressources du GZIPOutputStream
+				output.close();
+			}
+		} else {
+			final ObjectOutputStream output = new ObjectOutputStream(new GZIPOutputStream(bytes));
+			try {
+				output.writeObject(record);
+			} finally {
+				// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
+				output.close();
+			}
+		}
+	}
+
+	private static Record readRecord(byte[] bytes, String counterName) throws IOException {
+		final InputStream input = new BufferedInputStream(new GZIPInputStream(
+				new ByteArrayInputStream(bytes)));
+		try {
+			// le format de l'enregistrement est reconnu par son en-tête :
+			// format binaire ou sérialisation java (journaux écrits auparavant)
+			if (CounterCodec.isEncoded(input)) {
+				final DataInputStream dataInput = new DataInputStream(input);
+				CounterCodec.readHeader(dataInput);
+				return Record.readBinary(new CounterCodec.Input(dataInput), counterName);
+			}
+			return (Record) new ObjectInputStream(input).readObject();
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			// ce close libère les ressources du ObjectInputStream et du GZIPInputStream
+			input.close();
+		}
+	}
+}
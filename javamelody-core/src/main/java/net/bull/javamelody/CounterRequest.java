@@ -17,6 +17,7 @@
  */
 package net.bull.javamelody;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -34,6 +35,10 @@ import java.util.Map;
  * @author Emeric Vernat
  */
 class CounterRequest implements Cloneable, Serializable {
+	/**
+	 * Percentiles des temps d'exécution affichés dans les rapports.
+	 */
+	static final double[] DISPLAYED_PERCENTILES = { 50, 90, 99, 99.9 };
 	private static final long serialVersionUID = -4301825473892026959L;
 	private final String name;
 	private final String id;
@@ -43,6 +48,9 @@ class CounterRequest implements Cloneable, Serializable {
 	// et le type long est préféré au type BigInteger pour raison de performances
 	private long hits;
 	private long durationsSum;
+	// somme des temps d'exécution en microsecondes, plus précise que durationsSum avec le paramètre
+	// high-resolution-durations (0 dans les fichiers d'anciennes versions, voir getDurationsMicrosSum)
+	private long durationsMicrosSum;
 	private long durationsSquareSum;
 	private long maximum;
 	private long cpuTimeSum;
@@ -51,8 +59,21 @@ class CounterRequest implements Cloneable, Serializable {
 	private long childHits;
 	private long childDurationsSum;
 	private String stackTrace;
+	// histogramme des temps d'exécution pour les percentiles (null dans les fichiers d'anciennes versions)
+	private CounterRequestHistogram histogram;
+	// map des requêtes filles par id, dans les clones (pour la sérialisation et les rapports)
+	// et dans les instances désérialisées, sinon c'est childRequestsExecutions qui est utilisée
+	// sauf pour les ids sans index quand RequestIdDictionary est plein
 	@SuppressWarnings("all")
 	private Map<String, Long> childRequestsExecutionsByRequestId;
+	// nombres d'exécutions des requêtes filles par index dans RequestIdDictionary
+	private transient IntLongHashMap childRequestsExecutions;
+	// hits accumulés par stripes si le counter est en mode striped-counters (null sinon)
+	private transient volatile CounterRequestStripes stripes;
+	// si le counter est collecté par période, hits reçus depuis la dernière collecte
+	// (null tant qu'il n'y a pas eu de hit dans la période)
+	private transient boolean periodTracked;
+	private transient CounterRequest periodRequest;
 
 	/**
 	 * Interface du contexte d'une requête en cours.
@@ -87,6 +108,89 @@ class CounterRequest implements Cloneable, Serializable {
 		this.id = buildId(name, counterName);
 	}
 
+	/**
+	 * Constructeur d'une requête vide de même nom et de même id que la requête en paramètre,
+	 * sans recalculer l'id.
+	 * @param request CounterRequest
+	 */
+	private CounterRequest(CounterRequest request) {
+		super();
+		this.name = request.name;
+		this.id = request.id;
+	}
+
+	/**
+	 * Constructeur d'une requête lue au format binaire (voir CounterCodec).
+	 * @param input CounterCodec.Input
+	 * @param counterName Nom du counter
+	 * @throws IOException e
+	 */
+	private CounterRequest(CounterCodec.Input input, String counterName) throws IOException {
+		super();
+		this.name = input.readString();
+		this.id = input.readRequestId(counterName);
+		hits = input.readVarLong();
+		durationsSum = input.readVarLong();
+		durationsMicrosSum = input.readVarLong();
+		durationsSquareSum = input.readVarLong();
+		maximum = input.readVarLong();
+		cpuTimeSum = input.readVarLong();
+		systemErrors = input.readVarLong();
+		responseSizesSum = input.readVarLong();
+		childHits = input.readVarLong();
+		childDurationsSum = input.readVarLong();
+		stackTrace = input.readString();
+		if (input.readBoolean()) {
+			histogram = CounterRequestHistogram.readBinary(input);
+		}
+		final int childRequestsCount = input.readVarInt();
+		if (childRequestsCount > 0) {
+			childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>(
+					childRequestsCount * 4 / 3 + 1);
+			for (int i = 0; i < childRequestsCount; i++) {
+				final String childRequestId = input.readString();
+				childRequestsExecutionsByRequestId.put(childRequestId, input.readVarLong());
+			}
+		}
+	}
+
+	static CounterRequest readBinary(CounterCodec.Input input, String counterName)
+			throws IOException {
+		return new CounterRequest(input, counterName);
+	}
+
+	/**
+	 * Ecrit la requête au format binaire (voir CounterCodec), dans le même ordre que la lecture.
+	 * @param output CounterCodec.Output
+	 * @param counterName Nom du counter
+	 * @throws IOException e
+	 */
+	void writeBinary(CounterCodec.Output output, String counterName) throws IOException {
+		output.writeString(name);
+		output.writeRequestId(id, counterName);
+		output.writeVarLong(hits);
+		output.writeVarLong(durationsSum);
+		output.writeVarLong(durationsMicrosSum);
+		output.writeVarLong(durationsSquareSum);
+		output.writeVarLong(maximum);
+		output.writeVarLong(cpuTimeSum);
+		output.writeVarLong(systemErrors);
+		output.writeVarLong(responseSizesSum);
+		output.writeVarLong(childHits);
+		output.writeVarLong(childDurationsSum);
+		output.writeString(stackTrace);
+		output.writeBoolean(histogram != null);
+		if (histogram != null) {
+			histogram.writeBinary(output);
+		}
+		final Map<String, Long> childRequests = getChildRequestsExecutionsByRequestId();
+		output.writeVarLong(childRequests.size());
+		for (final Map.Entry<String, Long> entry : childRequests.entrySet()) {
+			output.writeString(entry.getKey());
+			output.writeVarLong(entry.getValue());
+		}
+	}
+
 	/**
 	 * @return Nom de la requête
 	 */
@@ -115,6 +219,17 @@ class CounterRequest implements Cloneable, Serializable {
 		return durationsSum;
 	}
 
+	/**
+	 * @return Somme des temps d'exécution de cette requête en microsecondes
+	 */
+	long getDurationsMicrosSum() {
+		if (durationsMicrosSum == 0 && durationsSum != 0) {
+			// requête lue dans un fichier d'une ancienne version
+			return durationsSum * 1000;
+		}
+		return durationsMicrosSum;
+	}
+
 	/**
 	 * @return Moyenne des temps d'exécution
 	 */
@@ -125,6 +240,17 @@ class CounterRequest implements Cloneable, Serializable {
 		return -1;
 	}
 
+	/**
+	 * @return Moyenne des temps d'exécution en millisecondes avec sa partie décimale
+	 * (moyenne de durées à la milliseconde près sans le paramètre high-resolution-durations)
+	 */
+	double getMeanMillis() {
+		if (hits > 0) {
+			return getDurationsMicrosSum() / 1000d / hits;
+		}
+		return -1;
+	}
+
 	/**
 	 * @return écart type (ou sigma, dit "standard deviation" en anglais)
 	 */
@@ -160,6 +286,29 @@ class CounterRequest implements Cloneable, Serializable {
 		return maximum;
 	}
 
+	/**
+	 * @param percentile Percentile entre 0 et 100 (par exemple 99.9)
+	 * @return Temps d'exécution en dessous duquel se trouvent ce pourcentage des exécutions,
+	 * 	à 12,5% près, ou -1 si inconnu
+	 */
+	long getDurationPercentile(double percentile) {
+		if (histogram == null) {
+			return -1;
+		}
+		return histogram.getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * @return Temps d'exécution pour chacun des DISPLAYED_PERCENTILES (-1 si inconnus)
+	 */
+	long[] getDisplayedDurationPercentiles() {
+		final long[] result = new long[DISPLAYED_PERCENTILES.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = getDurationPercentile(DISPLAYED_PERCENTILES[i]);
+		}
+		return result;
+	}
+
 	/**
 	 * @return Somme temps cpu pour l'exécution de cette requête
 	 */
@@ -231,20 +380,55 @@ class CounterRequest implements Cloneable, Serializable {
 	 * @return Map des nombres d'exécutions par requêtes filles
 	 */
 	Map<String, Long> getChildRequestsExecutionsByRequestId() {
-		if (childRequestsExecutionsByRequestId == null) {
+		if (childRequestsExecutions == null && childRequestsExecutionsByRequestId == null) {
 			return Collections.emptyMap();
 		}
 		synchronized (this) {
-			return new LinkedHashMap<String, Long>(childRequestsExecutionsByRequestId);
+			if (childRequestsExecutions != null) {
+				final Map<String, Long> result = toMapByRequestId(childRequestsExecutions);
+				if (childRequestsExecutionsByRequestId != null) {
+					addAll(result, childRequestsExecutionsByRequestId, 1);
+				}
+				return result;
+			} else if (childRequestsExecutionsByRequestId != null) {
+				return new LinkedHashMap<String, Long>(childRequestsExecutionsByRequestId);
+			}
+			return Collections.emptyMap();
 		}
 	}
 
 	boolean containsChildRequest(String requestId) {
-		if (childRequestsExecutionsByRequestId == null) {
+		if (childRequestsExecutions == null && childRequestsExecutionsByRequestId == null) {
 			return false;
 		}
 		synchronized (this) {
-			return childRequestsExecutionsByRequestId.containsKey(requestId);
+			if (childRequestsExecutions != null) {
+				final int index = RequestIdDictionary.getExistingIndex(requestId);
+				if (index >= 0 && childRequestsExecutions.containsKey(index)) {
+					return true;
+				}
+			}
+			return childRequestsExecutionsByRequestId != null
+					&& childRequestsExecutionsByRequestId.containsKey(requestId);
+		}
+	}
+
+	static Map<String, Long> toMapByRequestId(IntLongHashMap childRequests) {
+		final Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < childRequests.size(); i++) {
+			result.put(RequestIdDictionary.getRequestId(childRequests.keyAt(i)),
+					childRequests.valueAt(i));
+		}
+		return result;
+	}
+
+	static void addAll(Map<String, Long> childRequests, Map<String, Long> otherChildRequests,
+			int hitsWeight) {
+		for (final Map.Entry<String, Long> entry : otherChildRequests.entrySet()) {
+			final Long executions = childRequests.get(entry.getKey());
+			final long addedExecutions = entry.getValue() * hitsWeight;
+			childRequests.put(entry.getKey(), executions == null ? addedExecutions : executions
+					+ addedExecutions);
 		}
 	}
 
@@ -257,55 +441,278 @@ class CounterRequest implements Cloneable, Serializable {
 
 	void addHit(long duration, long cpuTime, boolean systemError, String systemErrorStackTrace,
 			int responseSize) {
-		hits++;
-		durationsSum += duration;
-		durationsSquareSum += duration * duration;
+		addHit(duration, cpuTime, systemError, systemErrorStackTrace, responseSize, 1);
+	}
+
+	// CHECKSTYLE:OFF
+	// ajoute un hit qui compte pour hitsWeight hits, pour une requête échantillonnée
+	// (paramètre requests-sampling-rate)
+	void addHit(long duration, long cpuTime, boolean systemError, String systemErrorStackTrace,
+			int responseSize, int hitsWeight) {
+		// CHECKSTYLE:ON
+		addHitMicros(duration * 1000, cpuTime, systemError, systemErrorStackTrace, responseSize,
+				hitsWeight);
+	}
+
+	// CHECKSTYLE:OFF
+	// ajoute un hit dont la durée est en microsecondes (paramètre high-resolution-durations)
+	void addHitMicros(long durationMicros, long cpuTime, boolean systemError,
+			String systemErrorStackTrace, int responseSize, int hitsWeight) {
+		// CHECKSTYLE:ON
+		assert hitsWeight >= 1;
+		final long duration = durationMicros / 1000;
+		durationsMicrosSum = getDurationsMicrosSum() + durationMicros * hitsWeight;
+		hits += hitsWeight;
+		durationsSum += duration * hitsWeight;
+		durationsSquareSum += duration * duration * hitsWeight;
 		if (duration > maximum) {
 			maximum = duration;
 		}
-		cpuTimeSum += cpuTime;
+		getHistogram().addValue(duration, hitsWeight);
+		if (cpuTime >= 0) {
+			cpuTimeSum += cpuTime * hitsWeight;
+		} else {
+			cpuTimeSum = addUnknownValues(cpuTimeSum, hits - hitsWeight, hitsWeight);
+		}
 		if (systemError) {
-			systemErrors++;
+			systemErrors += hitsWeight;
 		}
 		if (systemErrorStackTrace != null) {
 			stackTrace = systemErrorStackTrace;
 		}
-		responseSizesSum += responseSize;
+		if (responseSize >= 0) {
+			responseSizesSum += (long) responseSize * hitsWeight;
+		} else {
+			responseSizesSum = addUnknownValues(responseSizesSum, hits - hitsWeight, hitsWeight);
+		}
+		if (periodTracked) {
+			getPeriodRequest().addHitMicros(durationMicros, cpuTime, systemError,
+					systemErrorStackTrace, responseSize, hitsWeight);
+		}
+	}
+
+	/**
+	 * Suit ou non les hits de cette requête par période, pour la collecte (voir pollPeriodRequest).
+	 * @param periodTracked boolean
+	 */
+	void setPeriodTracked(boolean periodTracked) {
+		this.periodTracked = periodTracked;
+		if (!periodTracked) {
+			periodRequest = null;
+		}
+	}
+
+	/**
+	 * Retourne les hits reçus par cette requête depuis le précédent appel de cette méthode
+	 * et commence une nouvelle période, sans cloner ni soustraire les hits cumulés.
+	 * Le premier appel ne fait que commencer le suivi par période (pour une requête lue sur disque par exemple).
+	 * L'appelant doit être synchronisé sur cette requête et avoir reporté les stripes.
+	 * @return Requête contenant les hits de la période, ou null s'il n'y a pas eu de hit
+	 */
+	CounterRequest pollPeriodRequest() {
+		periodTracked = true;
+		final CounterRequest result = periodRequest;
+		periodRequest = null;
+		return result;
+	}
+
+	/**
+	 * Ajoute aux hits de la période en cours les hits d'une période d'une autre requête
+	 * (requête remplacée en mode top-requests-count par exemple).
+	 * @param request Requête retournée par pollPeriodRequest
+	 */
+	void addPeriodHits(CounterRequest request) {
+		if (periodTracked) {
+			getPeriodRequest().addHits(request);
+		}
+	}
+
+	private CounterRequest getPeriodRequest() {
+		// la requête de la période est allouée au premier hit de la période seulement
+		if (periodRequest == null) {
+			periodRequest = new CounterRequest(this);
+		}
+		return periodRequest;
+	}
+
+	/**
+	 * @return Stripes d'accumulation des hits de cette requête, créées si besoin
+	 */
+	CounterRequestStripes getStripes() {
+		CounterRequestStripes result = stripes;
+		if (result == null) {
+			synchronized (this) {
+				result = stripes;
+				if (result == null) {
+					result = new CounterRequestStripes();
+					stripes = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reporte les hits accumulés dans les stripes s'il y en a.
+	 * L'appelant doit être synchronisé sur cette requête.
+	 */
+	void drainStripes() {
+		final CounterRequestStripes currentStripes = stripes;
+		if (currentStripes != null) {
+			currentStripes.drainTo(this);
+		}
+	}
+
+	void addStripe(CounterRequestStripes.Stripe stripe) {
+		durationsMicrosSum = getDurationsMicrosSum() + stripe.durationsMicrosSum;
+		final long previousHits = hits;
+		hits += stripe.hits;
+		durationsSum += stripe.durationsSum;
+		durationsSquareSum += stripe.durationsSquareSum;
+		if (stripe.maximum > maximum) {
+			maximum = stripe.maximum;
+		}
+		getHistogram().addHistogram(stripe.histogram);
+		cpuTimeSum = addUnknownValues(cpuTimeSum + stripe.cpuTimeSum, previousHits + stripe.hits
+				- stripe.unknownCpuTimeHits, stripe.unknownCpuTimeHits);
+		systemErrors += stripe.systemErrors;
+		responseSizesSum = addUnknownValues(responseSizesSum + stripe.responseSizesSum,
+				previousHits + stripe.hits - stripe.unknownResponseSizeHits,
+				stripe.unknownResponseSizeHits);
+		childHits += stripe.childHits;
+		childDurationsSum += stripe.childDurationsSum;
+		if (periodTracked) {
+			getPeriodRequest().addStripe(stripe);
+		}
+	}
+
+	// Ajoute à une somme de temps cpu ou de tailles de réponses des hits dont la valeur est inconnue (-1).
+	// Si la requête a déjà des valeurs connues (requête http non échantillonnée par exemple),
+	// ces hits comptent pour la moyenne actuelle afin de ne pas la fausser,
+	// sinon ils comptent pour -1 comme pour les requêtes sql qui n'ont pas ces valeurs.
+	private static long addUnknownValues(long sum, long knownHits, long unknownHits) {
+		if (unknownHits == 0) {
+			return sum;
+		} else if (sum >= 0 && knownHits > 0) {
+			return sum + sum / knownHits * unknownHits;
+		}
+		return sum - unknownHits;
+	}
+
+	private CounterRequestHistogram getHistogram() {
+		if (histogram == null) {
+			histogram = new CounterRequestHistogram();
+		}
+		return histogram;
 	}
 
 	void addChildHits(ICounterRequestContext context) {
-		childHits += context.getChildHits();
-		childDurationsSum += context.getChildDurationsSum();
+		addChildHits(context, 1);
+	}
+
+	void addChildHits(ICounterRequestContext context, int hitsWeight) {
+		addChildHits(context.getChildHits(), context.getChildDurationsSum(), hitsWeight);
+	}
+
+	void addChildHits(int contextChildHits, int contextChildDurationsSum, int hitsWeight) {
+		childHits += (long) contextChildHits * hitsWeight;
+		childDurationsSum += (long) contextChildDurationsSum * hitsWeight;
+		if (periodTracked) {
+			getPeriodRequest().addChildHits(contextChildHits, contextChildDurationsSum, hitsWeight);
+		}
 	}
 
 	void addChildRequests(Map<String, Long> childRequests) {
 		if (childRequests != null && !childRequests.isEmpty()) {
-			if (childRequestsExecutionsByRequestId == null) {
-				childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>(childRequests);
-			} else {
-				for (final Map.Entry<String, Long> entry : childRequests.entrySet()) {
-					final String requestId = entry.getKey();
-					Long nbExecutions = childRequestsExecutionsByRequestId.get(requestId);
-					if (nbExecutions == null) {
-						nbExecutions = entry.getValue();
-					} else {
-						nbExecutions += entry.getValue();
-					}
-					childRequestsExecutionsByRequestId.put(requestId, nbExecutions);
+			final IntLongHashMap executions = getChildRequestsExecutions();
+			for (final Map.Entry<String, Long> entry : childRequests.entrySet()) {
+				final int index = RequestIdDictionary.getIndex(entry.getKey());
+				if (index >= 0) {
+					executions.add(index, entry.getValue());
+				} else {
+					addChildRequestWithoutIndex(entry.getKey(), entry.getValue());
 				}
 			}
 		}
 	}
 
+	private void addChildRequestWithoutIndex(String requestId, long executions) {
+		if (childRequestsExecutionsByRequestId == null) {
+			childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>();
+		}
+		final Long previousExecutions = childRequestsExecutionsByRequestId.get(requestId);
+		final long newExecutions = previousExecutions == null ? executions : previousExecutions
+				+ executions;
+		if (newExecutions > 0) {
+			childRequestsExecutionsByRequestId.put(requestId, newExecutions);
+		} else {
+			childRequestsExecutionsByRequestId.remove(requestId);
+		}
+	}
+
+	void addChildRequests(CounterRequestContext context, int hitsWeight) {
+		addChildRequests(context.getChildRequestsExecutions(), hitsWeight);
+		addChildRequestsWithoutIndex(context.getChildRequestsExecutionsWithoutIndex(), hitsWeight);
+	}
+
+	/**
+	 * Ajoute les requêtes filles dont les ids n'ont pas d'index car RequestIdDictionary est plein.
+	 * @param childRequests Nombres d'exécutions par id de requête, ou null
+	 * @param hitsWeight Poids des hits
+	 */
+	void addChildRequestsWithoutIndex(Map<String, Long> childRequests, int hitsWeight) {
+		if (childRequests != null && !childRequests.isEmpty()) {
+			// conversion éventuelle d'une instance désérialisée avant d'ajouter des ids sans index
+			getChildRequestsExecutions();
+			for (final Map.Entry<String, Long> entry : childRequests.entrySet()) {
+				addChildRequestWithoutIndex(entry.getKey(), entry.getValue() * hitsWeight);
+			}
+			if (periodTracked) {
+				getPeriodRequest().addChildRequestsWithoutIndex(childRequests, hitsWeight);
+			}
+		}
+	}
+
+	void addChildRequests(IntLongHashMap childRequests) {
+		addChildRequests(childRequests, 1);
+	}
+
+	void addChildRequests(IntLongHashMap childRequests, int hitsWeight) {
+		if (childRequests != null && !childRequests.isEmpty()) {
+			getChildRequestsExecutions().addAll(childRequests, hitsWeight);
+			if (periodTracked) {
+				getPeriodRequest().addChildRequests(childRequests, hitsWeight);
+			}
+		}
+	}
+
+	private IntLongHashMap getChildRequestsExecutions() {
+		if (childRequestsExecutions == null) {
+			childRequestsExecutions = new IntLongHashMap();
+			if (childRequestsExecutionsByRequestId != null) {
+				// instance désérialisée ou clone qui reçoit des hits :
+				// on passe une fois pour toutes aux index du dictionnaire
+				final Map<String, Long> childRequests = childRequestsExecutionsByRequestId;
+				childRequestsExecutionsByRequestId = null;
+				addChildRequests(childRequests);
+			}
+		}
+		return childRequestsExecutions;
+	}
+
 	void addHits(CounterRequest request) {
 		assert request != null;
 		if (request.hits != 0) {
+			durationsMicrosSum = getDurationsMicrosSum() + request.getDurationsMicrosSum();
 			hits += request.hits;
 			durationsSum += request.durationsSum;
 			durationsSquareSum += request.durationsSquareSum;
 			if (request.maximum > maximum) {
 				maximum = request.maximum;
 			}
+			if (request.histogram != null) {
+				getHistogram().addHistogram(request.histogram);
+			}
 			cpuTimeSum += request.cpuTimeSum;
 			systemErrors += request.systemErrors;
 			responseSizesSum += request.responseSizesSum;
@@ -314,6 +721,11 @@ class CounterRequest implements Cloneable, Serializable {
 			if (request.stackTrace != null) {
 				stackTrace = request.stackTrace;
 			}
+			// pas addChildRequests(IntLongHashMap) : ce ne sont pas des hits de la période
+			if (request.childRequestsExecutions != null
+					&& !request.childRequestsExecutions.isEmpty()) {
+				getChildRequestsExecutions().addAll(request.childRequestsExecutions);
+			}
 			addChildRequests(request.childRequestsExecutionsByRequestId);
 		}
 	}
@@ -321,6 +733,7 @@ class CounterRequest implements Cloneable, Serializable {
 	void removeHits(CounterRequest request) {
 		assert request != null;
 		if (request.hits != 0) {
+			durationsMicrosSum = getDurationsMicrosSum() - request.getDurationsMicrosSum();
 			hits -= request.hits;
 			durationsSum -= request.durationsSum;
 			durationsSquareSum -= request.durationsSquareSum;
@@ -333,6 +746,9 @@ class CounterRequest implements Cloneable, Serializable {
 					maximum = -1;
 				}
 			}
+			if (request.histogram != null && histogram != null) {
+				histogram.removeHistogram(request.histogram);
+			}
 			cpuTimeSum -= request.cpuTimeSum;
 			systemErrors -= request.systemErrors;
 			responseSizesSum -= request.responseSizesSum;
@@ -344,24 +760,32 @@ class CounterRequest implements Cloneable, Serializable {
 	}
 
 	private void removeChildHits(CounterRequest request) {
-		if (request.childRequestsExecutionsByRequestId != null
-				&& childRequestsExecutionsByRequestId != null) {
-			for (final Map.Entry<String, Long> entry : request.childRequestsExecutionsByRequestId
-					.entrySet()) {
-				final String requestId = entry.getKey();
-				Long nbExecutions = childRequestsExecutionsByRequestId.get(requestId);
-				if (nbExecutions != null) {
-					nbExecutions = Math.max(nbExecutions - entry.getValue(), 0);
-					if (nbExecutions == 0) {
-						childRequestsExecutionsByRequestId.remove(requestId);
-						if (childRequestsExecutionsByRequestId.isEmpty()) {
-							childRequestsExecutionsByRequestId = null;
-							break;
-						}
-					} else {
-						childRequestsExecutionsByRequestId.put(requestId, nbExecutions);
+		if ((request.childRequestsExecutions != null || request.childRequestsExecutionsByRequestId != null)
+				&& (childRequestsExecutions != null || childRequestsExecutionsByRequestId != null)) {
+			final IntLongHashMap executions = getChildRequestsExecutions();
+			if (request.childRequestsExecutions != null) {
+				executions.subtractAll(request.childRequestsExecutions);
+			}
+			if (request.childRequestsExecutionsByRequestId != null) {
+				final IntLongHashMap requestExecutions = new IntLongHashMap();
+				for (final Map.Entry<String, Long> entry : request.childRequestsExecutionsByRequestId
+						.entrySet()) {
+					final int index = RequestIdDictionary.getIndex(entry.getKey());
+					if (index >= 0) {
+						requestExecutions.add(index, entry.getValue());
+					} else if (childRequestsExecutionsByRequestId != null
+							&& childRequestsExecutionsByRequestId.containsKey(entry.getKey())) {
+						addChildRequestWithoutIndex(entry.getKey(), -entry.getValue());
 					}
 				}
+				executions.subtractAll(requestExecutions);
+			}
+			if (executions.isEmpty()) {
+				childRequestsExecutions = null;
+			}
+			if (childRequestsExecutionsByRequestId != null
+					&& childRequestsExecutionsByRequestId.isEmpty()) {
+				childRequestsExecutionsByRequestId = null;
 			}
 		}
 	}
@@ -371,9 +795,21 @@ class CounterRequest implements Cloneable, Serializable {
 	public CounterRequest clone() { // NOPMD
 		try {
 			final CounterRequest clone = (CounterRequest) super.clone();
-			if (childRequestsExecutionsByRequestId != null) {
-				// getChildRequestsExecutionsByRequestId fait déjà un clone de la map
-				clone.childRequestsExecutionsByRequestId = getChildRequestsExecutionsByRequestId();
+			// les stripes restent propres à l'instance d'origine
+			clone.stripes = null;
+			clone.periodTracked = false;
+			clone.periodRequest = null;
+			if (histogram != null) {
+				clone.histogram = histogram.clone();
+			}
+			// le clone a la map par id de requête (et pas d'index) pour être sérialisé
+			// dans le même format qu'avant et pour les rapports
+			clone.childRequestsExecutions = null;
+			if (childRequestsExecutions != null || childRequestsExecutionsByRequestId != null) {
+				// getChildRequestsExecutionsByRequestId fait déjà une copie de la map
+				final Map<String, Long> childRequests = getChildRequestsExecutionsByRequestId();
+				clone.childRequestsExecutionsByRequestId = childRequests.isEmpty() ? null
+						: childRequests;
 			}
 			return clone;
 		} catch (final CloneNotSupportedException e) {
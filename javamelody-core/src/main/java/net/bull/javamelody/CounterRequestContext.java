@@ -35,28 +35,43 @@ import net.bull.javamelody.CounterRequest.ICounterRequestContext;
  */
 class CounterRequestContext implements ICounterRequestContext, Cloneable, Serializable {
 	private static final long serialVersionUID = 1L;
-	private static final Long ONE = 1L;
 	// attention de ne pas sérialiser le counter d'origine vers le serveur de collecte, le vrai ayant été cloné
 	private Counter parentCounter;
-	private final CounterRequestContext parentContext;
+	// champs non final pour pouvoir réutiliser le contexte en mode recycled-contexts
+	private CounterRequestContext parentContext;
 	private CounterRequestContext currentChildContext;
-	private final String requestName;
-	private final String completeRequestName;
-	private final String remoteUser;
+	private String requestName;
+	private String completeRequestName;
+	private String remoteUser;
 	private final long threadId;
 	// attention, si sérialisation vers serveur de collecte, la durée peut être impactée s'il y a désynchronisation d'horloge
-	private final long startTime;
-	private final long startCpuTime;
+	private long startTime;
+	private long startCpuTime;
+	// début de la requête selon System.nanoTime() si le counter est en mode high-resolution-durations
+	private transient boolean highResolution;
+	private transient long startNanoTime;
 	// ces 2 champs sont initialisés à 0
 	private int childHits;
 	private int childDurationsSum;
+	// map des requêtes filles par id, dans les clones pour la sérialisation,
+	// sinon c'est childRequestsExecutions qui est utilisée
+	// sauf pour les ids sans index quand RequestIdDictionary est plein
 	@SuppressWarnings("all")
 	private Map<String, Long> childRequestsExecutionsByRequestId;
+	// nombres d'exécutions des requêtes filles par index dans RequestIdDictionary
+	private transient IntLongHashMap childRequestsExecutions;
+	// true si le contexte provient de CounterRequestContextPool et doit lui être rendu
+	private transient boolean recycled;
+	// true si le contexte est actuellement libre dans CounterRequestContextPool
+	private transient boolean pooled;
+	// true si le contexte n'est plus lié au thread l'ayant créé (requête asynchrone de Servlet 3)
+	private transient boolean detached;
 
 	CounterRequestContext(Counter parentCounter, CounterRequestContext parentContext,
 			String requestName, String completeRequestName, String remoteUser, long startCpuTime) {
 		this(parentCounter, parentContext, requestName, completeRequestName, remoteUser, Thread
 				.currentThread().getId(), System.currentTimeMillis(), startCpuTime);
+		initStartNanoTime();
 		if (parentContext != null) {
 			parentContext.setCurrentChildContext(this);
 		}
@@ -84,6 +99,67 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		this.startCpuTime = startCpuTime;
 	}
 
+	/**
+	 * Réinitialise un contexte rendu au pool pour une nouvelle requête sur le même thread.
+	 */
+	void reinit(Counter newParentCounter, CounterRequestContext newParentContext,
+			String newRequestName, String newCompleteRequestName, String newRemoteUser,
+			long newStartCpuTime) {
+		assert newParentCounter != null;
+		assert newRequestName != null;
+		assert newCompleteRequestName != null;
+		assert recycled && pooled && threadId == Thread.currentThread().getId();
+		this.parentCounter = newParentCounter;
+		this.parentContext = newParentContext;
+		this.requestName = newRequestName;
+		this.completeRequestName = newCompleteRequestName;
+		this.remoteUser = newRemoteUser;
+		this.startTime = System.currentTimeMillis();
+		this.startCpuTime = newStartCpuTime;
+		initStartNanoTime();
+		this.pooled = false;
+		if (newParentContext != null) {
+			newParentContext.setCurrentChildContext(this);
+		}
+	}
+
+	/**
+	 * Vide le contexte avant de le rendre au pool, en gardant la map des requêtes filles allouée.
+	 * Les noms et le counter ne sont pas remis à null, car un clone peut être en cours
+	 * sur un autre thread pour l'affichage des requêtes en cours.
+	 */
+	void reset() {
+		parentContext = null;
+		currentChildContext = null;
+		childHits = 0;
+		childDurationsSum = 0;
+		if (childRequestsExecutions != null) {
+			childRequestsExecutions.clear();
+		}
+		childRequestsExecutionsByRequestId = null;
+		pooled = true;
+	}
+
+	boolean isRecycled() {
+		return recycled;
+	}
+
+	void setRecycled(boolean recycled) {
+		this.recycled = recycled;
+	}
+
+	boolean isPooled() {
+		return pooled;
+	}
+
+	boolean isDetached() {
+		return detached;
+	}
+
+	void setDetached(boolean detached) {
+		this.detached = detached;
+	}
+
 	Counter getParentCounter() {
 		return parentCounter;
 	}
@@ -145,6 +221,28 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		return (int) Math.max(timeOfSnapshot - startTime, 0);
 	}
 
+	long getStartCpuTime() {
+		return startCpuTime;
+	}
+
+	private void initStartNanoTime() {
+		highResolution = parentCounter.isHighResolutionDurations();
+		if (highResolution) {
+			startNanoTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @return Durée écoulée depuis le début de la requête en microsecondes, mesurée avec
+	 * System.nanoTime() si le counter est en mode high-resolution-durations
+	 */
+	long getDurationMicros() {
+		if (highResolution) {
+			return Math.max(System.nanoTime() - startNanoTime, 0) / 1000;
+		}
+		return getDuration(System.currentTimeMillis()) * 1000L;
+	}
+
 	int getCpuTime() {
 		if (startCpuTime < 0) {
 			return -1;
@@ -169,11 +267,33 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 	/** {@inheritDoc} */
 	@Override
 	public Map<String, Long> getChildRequestsExecutionsByRequestId() {
-		if (childRequestsExecutionsByRequestId == null) {
-			return Collections.emptyMap();
+		if (childRequestsExecutions != null && !childRequestsExecutions.isEmpty()) {
+			final Map<String, Long> result = CounterRequest
+					.toMapByRequestId(childRequestsExecutions);
+			if (childRequestsExecutionsByRequestId != null) {
+				CounterRequest.addAll(result, childRequestsExecutionsByRequestId, 1);
+			}
+			return result;
+		} else if (childRequestsExecutionsByRequestId != null) {
+			return childRequestsExecutionsByRequestId;
 		}
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * @return Nombres d'exécutions par index des requêtes filles, ou null si aucune
+	 */
+	IntLongHashMap getChildRequestsExecutions() {
 		// pas de nouvelle instance de map ici pour raison de perf
 		// (la méthode est utilisée sur un seul thread)
+		return childRequestsExecutions;
+	}
+
+	/**
+	 * @return Nombres d'exécutions par id des requêtes filles sans index
+	 * (RequestIdDictionary plein), ou null si aucune
+	 */
+	Map<String, Long> getChildRequestsExecutionsWithoutIndex() {
 		return childRequestsExecutionsByRequestId;
 	}
 
@@ -225,7 +345,7 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		return Collections.unmodifiableList(childContexts);
 	}
 
-	private CounterRequestContext getCurrentChildContext() {
+	CounterRequestContext getCurrentChildContext() {
 		return currentChildContext;
 	}
 
@@ -255,16 +375,53 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 	}
 
 	private void addChildRequestForDrillDown(String requestId) {
+		final int index = RequestIdDictionary.getIndex(requestId);
+		if (index >= 0) {
+			if (childRequestsExecutions == null) {
+				childRequestsExecutions = new IntLongHashMap();
+			}
+			childRequestsExecutions.add(index, 1);
+		} else {
+			addChildRequestsWithoutIndex(Collections.singletonMap(requestId, 1L));
+		}
+	}
+
+	private void addChildRequestsWithoutIndex(Map<String, Long> childRequests) {
 		if (childRequestsExecutionsByRequestId == null) {
 			childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>();
 		}
-		Long nbExecutions = childRequestsExecutionsByRequestId.get(requestId);
-		if (nbExecutions == null) {
-			nbExecutions = ONE;
-		} else {
-			nbExecutions += 1;
+		CounterRequest.addAll(childRequestsExecutionsByRequestId, childRequests, 1);
+	}
+
+	/**
+	 * Ajoute à ce contexte les requêtes filles d'un autre contexte de la même requête,
+	 * utilisé par un autre thread (requête asynchrone de Servlet 3).
+	 * @param otherContext CounterRequestContext
+	 */
+	void addChildRequests(CounterRequestContext otherContext) {
+		childHits += otherContext.getChildHits();
+		childDurationsSum += otherContext.getChildDurationsSum();
+		final IntLongHashMap otherChildRequests = otherContext.getChildRequestsExecutions();
+		if (otherChildRequests != null && !otherChildRequests.isEmpty()) {
+			if (childRequestsExecutions == null) {
+				childRequestsExecutions = new IntLongHashMap();
+			}
+			childRequestsExecutions.addAll(otherChildRequests);
+		}
+		final Map<String, Long> otherChildRequestsWithoutIndex = otherContext
+				.getChildRequestsExecutionsWithoutIndex();
+		if (otherChildRequestsWithoutIndex != null) {
+			addChildRequestsWithoutIndex(otherChildRequestsWithoutIndex);
+		}
+	}
+
+	void clearChildRequests() {
+		childHits = 0;
+		childDurationsSum = 0;
+		if (childRequestsExecutions != null) {
+			childRequestsExecutions.clear();
 		}
-		childRequestsExecutionsByRequestId.put(requestId, nbExecutions);
+		childRequestsExecutionsByRequestId = null;
 	}
 
 	void closeChildContext() {
@@ -299,7 +456,10 @@ class CounterRequestContext implements ICounterRequestContext, Cloneable, Serial
 		if (childContext != null) {
 			clone.currentChildContext = childContext.clone(clone);
 		}
-		if (childRequestsExecutionsByRequestId != null) {
+		if (childRequestsExecutions != null && !childRequestsExecutions.isEmpty()) {
+			// le clone a la map par id de requête pour être sérialisé dans le même format qu'avant
+			clone.childRequestsExecutionsByRequestId = getChildRequestsExecutionsByRequestId();
+		} else if (childRequestsExecutionsByRequestId != null) {
 			clone.childRequestsExecutionsByRequestId = new LinkedHashMap<String, Long>(
 					childRequestsExecutionsByRequestId);
 		}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+/**
+ * Pool par thread des contextes de requêtes, pour le mode recycled-contexts :
+ * un contexte et sa map de requêtes filles sont réutilisés d'une requête à l'autre sur le même thread
+ * au lieu d'être alloués à chaque bindContext.
+ *
+ * Un contexte est rendu au pool par unbindContext pour un contexte root, ou à la fin de la requête
+ * pour un contexte fils (ejb dans http par exemple). Les contextes ne sont jamais exposés en dehors
+ * de leur thread autrement que par un clone (requêtes en cours et serveur de collecte).
+ *
+ * Attention, comme pour tout ThreadLocal non supprimé, le pool reste référencé par les threads
+ * du serveur après l'arrêt de la webapp jusqu'à la fin de ces threads.
+ * @author Emeric Vernat
+ */
+final class CounterRequestContextPool {
+	// profondeur d'imbrication des contextes au delà de laquelle les contextes ne sont plus recyclés
+	private static final int MAX_POOLED_CONTEXTS = 8;
+	private static final ThreadLocal<CounterRequestContextPool> POOLS = new ThreadLocal<CounterRequestContextPool>() {
+		@Override
+		protected CounterRequestContextPool initialValue() {
+			return new CounterRequestContextPool();
+		}
+	};
+
+	private final CounterRequestContext[] contexts = new CounterRequestContext[MAX_POOLED_CONTEXTS];
+	private int size;
+	// id du thread courant, converti en Long une seule fois pour Counter.rootCurrentContextsByThreadId
+	private final Long threadId = Thread.currentThread().getId();
+
+	private CounterRequestContextPool() {
+		super();
+	}
+
+	static CounterRequestContextPool getInstance() {
+		return POOLS.get();
+	}
+
+	Long getThreadId() {
+		return threadId;
+	}
+
+	CounterRequestContext acquire(Counter parentCounter, CounterRequestContext parentContext,
+			String requestName, String completeRequestName, String remoteUser, long startCpuTime) {
+		if (size == 0) {
+			final CounterRequestContext context = new CounterRequestContext(parentCounter,
+					parentContext, requestName, completeRequestName, remoteUser, startCpuTime);
+			context.setRecycled(true);
+			return context;
+		}
+		size--;
+		final CounterRequestContext context = contexts[size];
+		contexts[size] = null;
+		context.reinit(parentCounter, parentContext, requestName, completeRequestName,
+				remoteUser, startCpuTime);
+		return context;
+	}
+
+	/**
+	 * Rend au pool ce contexte et ses éventuels contextes fils non terminés.
+	 * @param context CounterRequestContext
+	 */
+	void release(CounterRequestContext context) {
+		CounterRequestContext current = context;
+		while (current != null && current.isRecycled() && !current.isPooled()) {
+			final CounterRequestContext childContext = current.getCurrentChildContext();
+			current.reset();
+			if (size < MAX_POOLED_CONTEXTS) {
+				contexts[size] = current;
+				size++;
+			}
+			current = childContext;
+		}
+	}
+
+	int getSize() {
+		return size;
+	}
+}
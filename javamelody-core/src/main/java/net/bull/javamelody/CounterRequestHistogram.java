@@ -0,0 +1,193 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Histogramme log-linéaire des temps d'exécution d'une requête (dans le style HDR),
+ * pour connaître les percentiles (p50, p90, p99, p99.9) et pas seulement la moyenne et l'écart-type.
+ *
+ * Les valeurs de 0 à 15 ont chacune leur bucket, puis chaque puissance de 2 est découpée en 8 buckets,
+ * soit une erreur relative d'au plus 12,5% et moins de 500 buckets pour toutes les valeurs possibles.
+ * Le tableau des buckets n'est alloué que jusqu'au plus grand bucket utilisé
+ * (une centaine de buckets pour des temps jusqu'à une dizaine de secondes).
+ *
+ * Deux histogrammes peuvent être additionnés ou soustraits, comme les autres statistiques de CounterRequest.
+ * Les méthodes d'une instance de cette classe ne sont pas thread-safe.
+ * @author Emeric Vernat
+ */
+class CounterRequestHistogram implements Cloneable, Serializable {
+	private static final long serialVersionUID = 1L;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	// nombre de buckets linéaires, de largeur 1, au début de l'histogramme
+	private static final int LINEAR_BUCKET_COUNT = 2 * SUB_BUCKET_COUNT;
+	private static final int LINEAR_BUCKET_BITS = SUB_BUCKET_BITS + 1;
+	private static final long[] EMPTY = new long[0];
+
+	private long[] counts = EMPTY;
+	private long totalCount;
+
+	void addValue(long value) {
+		addValue(value, 1);
+	}
+
+	/**
+	 * Ajoute count fois la même valeur (hits d'une requête échantillonnée).
+	 * @param value long
+	 * @param count long
+	 */
+	void addValue(long value, long count) {
+		if (value < 0) {
+			// pas de temps pour le counter de logs par exemple
+			return;
+		}
+		final int index = getBucketIndex(value);
+		ensureCapacity(index + 1);
+		counts[index] += count;
+		totalCount += count;
+	}
+
+	void addHistogram(CounterRequestHistogram histogram) {
+		final long[] otherCounts = histogram.counts;
+		ensureCapacity(otherCounts.length);
+		for (int i = 0; i < otherCounts.length; i++) {
+			counts[i] += otherCounts[i];
+		}
+		totalCount += histogram.totalCount;
+	}
+
+	void removeHistogram(CounterRequestHistogram histogram) {
+		final long[] otherCounts = histogram.counts;
+		final int length = Math.min(counts.length, otherCounts.length);
+		long total = 0;
+		for (int i = 0; i < length; i++) {
+			// pas de négatif, comme pour les requêtes filles dans CounterRequest.removeHits
+			counts[i] = Math.max(counts[i] - otherCounts[i], 0);
+		}
+		for (final long count : counts) {
+			total += count;
+		}
+		totalCount = total;
+	}
+
+	long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * @param percentile Percentile entre 0 et 100 (par exemple 99.9)
+	 * @return Valeur maximale du bucket contenant ce percentile, ou -1 si l'histogramme est vide
+	 */
+	long getValueAtPercentile(double percentile) {
+		assert percentile >= 0 && percentile <= 100;
+		if (totalCount == 0) {
+			return -1;
+		}
+		final long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+			if (count >= countAtPercentile) {
+				return getBucketHighestValue(i);
+			}
+		}
+		return getBucketHighestValue(counts.length - 1);
+	}
+
+	void clear() {
+		// on garde le tableau alloué pour les prochaines valeurs
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+	}
+
+	static int getBucketIndex(long value) {
+		if (value < LINEAR_BUCKET_COUNT) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+		return LINEAR_BUCKET_COUNT + (exponent - LINEAR_BUCKET_BITS) * SUB_BUCKET_COUNT
+				+ subBucket;
+	}
+
+	static long getBucketHighestValue(int index) {
+		if (index < LINEAR_BUCKET_COUNT) {
+			return index;
+		}
+		final int exponent = (index - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT
+				+ LINEAR_BUCKET_BITS;
+		final int subBucket = (index - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final long lowestValue = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+		return lowestValue + (1L << shift) - 1;
+	}
+
+	private void ensureCapacity(int length) {
+		if (counts.length < length) {
+			counts = Arrays.copyOf(counts, length);
+		}
+	}
+
+	void writeBinary(CounterCodec.Output output) throws IOException {
+		output.writeVarLong(totalCount);
+		output.writeVarLong(counts.length);
+		for (final long count : counts) {
+			output.writeVarLong(count);
+		}
+	}
+
+	static CounterRequestHistogram readBinary(CounterCodec.Input input) throws IOException {
+		final CounterRequestHistogram histogram = new CounterRequestHistogram();
+		histogram.totalCount = input.readVarLong();
+		final int length = input.readVarInt();
+		if (length > 0) {
+			histogram.counts = new long[length];
+			for (int i = 0; i < length; i++) {
+				histogram.counts[i] = input.readVarLong();
+			}
+		}
+		return histogram;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CounterRequestHistogram clone() { // NOPMD
+		try {
+			final CounterRequestHistogram clone = (CounterRequestHistogram) super.clone();
+			if (counts.length > 0) {
+				clone.counts = counts.clone();
+			}
+			return clone;
+		} catch (final CloneNotSupportedException e) {
+			// ne peut arriver puisque CounterRequestHistogram implémente Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[totalCount=" + totalCount + ", buckets="
+				+ counts.length + ']';
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accumulation répartie par "stripes" des hits d'une requête (dans le style de LongAdder),
+ * pour éviter que tous les threads se synchronisent sur la même instance de CounterRequest
+ * quand une requête est très fréquente (paramètre striped-counters).
+ *
+ * Comme dans LongAdder, les hits sont d'abord ajoutés dans une stripe de base
+ * et le tableau des stripes n'est créé, puis agrandi jusqu'à STRIPES_COUNT, que lorsqu'un thread
+ * échoue à prendre sans attendre le verrou de la stripe de base ou de sa stripe :
+ * une requête sans contention n'a donc qu'une stripe, quel que soit le nombre de threads.
+ * Chaque thread écrit ensuite dans la stripe choisie selon son identifiant
+ * et les stripes ne sont reportées dans la CounterRequest qu'au moment d'en prendre un clone.
+ * Chaque hit est ajouté entièrement dans une seule stripe sous le verrou de cette stripe :
+ * ainsi un hit ne peut pas être vu à moitié lors du report,
+ * ce qui ne serait pas garanti avec des cellules atomiques indépendantes.
+ * @author Emeric Vernat
+ */
+class CounterRequestStripes {
+	static final int STRIPES_COUNT = getStripesCount();
+
+	// stripe utilisée tant qu'il n'y a pas de contention
+	private final Stripe base = new Stripe();
+	// stripes créées à la première contention, null sinon
+	private volatile Stripe[] stripes;
+
+	/**
+	 * Cellule d'accumulation des hits pour une stripe.
+	 */
+	static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		long hits;
+		long durationsSum;
+		long durationsMicrosSum;
+		long durationsSquareSum;
+		long maximum;
+		long cpuTimeSum;
+		long systemErrors;
+		long responseSizesSum;
+		// hits dont le temps cpu ou la taille de réponse est inconnu (-1)
+		long unknownCpuTimeHits;
+		long unknownResponseSizeHits;
+		long childHits;
+		long childDurationsSum;
+		final CounterRequestHistogram histogram = new CounterRequestHistogram();
+
+		void reset() {
+			hits = 0;
+			durationsSum = 0;
+			durationsMicrosSum = 0;
+			durationsSquareSum = 0;
+			maximum = 0;
+			cpuTimeSum = 0;
+			systemErrors = 0;
+			responseSizesSum = 0;
+			unknownCpuTimeHits = 0;
+			unknownResponseSizeHits = 0;
+			childHits = 0;
+			childDurationsSum = 0;
+			histogram.clear();
+		}
+	}
+
+	// CHECKSTYLE:OFF
+	void addHit(long durationMicros, long cpuTime, boolean systemError, int responseSize,
+			int childHits, int childDurationsSum, int hitsWeight) {
+		// CHECKSTYLE:ON
+		final long duration = durationMicros / 1000;
+		final Stripe stripe = lockStripe();
+		try {
+			stripe.hits += hitsWeight;
+			stripe.durationsSum += duration * hitsWeight;
+			stripe.durationsMicrosSum += durationMicros * hitsWeight;
+			stripe.durationsSquareSum += duration * duration * hitsWeight;
+			if (duration > stripe.maximum) {
+				stripe.maximum = duration;
+			}
+			stripe.histogram.addValue(duration, hitsWeight);
+			if (cpuTime >= 0) {
+				stripe.cpuTimeSum += cpuTime * hitsWeight;
+			} else {
+				stripe.unknownCpuTimeHits += hitsWeight;
+			}
+			if (systemError) {
+				stripe.systemErrors += hitsWeight;
+			}
+			if (responseSize >= 0) {
+				stripe.responseSizesSum += (long) responseSize * hitsWeight;
+			} else {
+				stripe.unknownResponseSizeHits += hitsWeight;
+			}
+			stripe.childHits += (long) childHits * hitsWeight;
+			stripe.childDurationsSum += (long) childDurationsSum * hitsWeight;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Reporte dans la requête en paramètre les hits accumulés dans les stripes, puis vide les stripes.
+	 * L'appelant doit être synchronisé sur la requête.
+	 * @param request CounterRequest
+	 */
+	void drainTo(CounterRequest request) {
+		drainStripeTo(base, request);
+		final Stripe[] currentStripes = stripes;
+		if (currentStripes != null) {
+			for (final Stripe stripe : currentStripes) {
+				drainStripeTo(stripe, request);
+			}
+		}
+	}
+
+	private static void drainStripeTo(Stripe stripe, CounterRequest request) {
+		stripe.lock.lock();
+		try {
+			if (stripe.hits != 0) {
+				request.addStripe(stripe);
+				stripe.reset();
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Retourne une stripe dont le verrou est pris par le thread courant.
+	 * @return Stripe
+	 */
+	private Stripe lockStripe() {
+		Stripe[] currentStripes = stripes;
+		if (currentStripes == null) {
+			if (base.lock.tryLock()) {
+				return base;
+			}
+			// contention sur la stripe de base : création des stripes
+			currentStripes = growStripes(null);
+		}
+		final long threadId = Thread.currentThread().getId();
+		Stripe stripe = currentStripes[(int) threadId & (currentStripes.length - 1)];
+		if (stripe.lock.tryLock()) {
+			return stripe;
+		}
+		if (currentStripes.length < STRIPES_COUNT) {
+			// contention sur cette stripe : plus de stripes
+			currentStripes = growStripes(currentStripes);
+			stripe = currentStripes[(int) threadId & (currentStripes.length - 1)];
+		}
+		stripe.lock.lock();
+		return stripe;
+	}
+
+	private synchronized Stripe[] growStripes(Stripe[] expectedStripes) {
+		final Stripe[] currentStripes = stripes;
+		if (currentStripes != expectedStripes) {
+			// déjà agrandi par un autre thread
+			return currentStripes;
+		}
+		final int length = expectedStripes == null ? 2 : expectedStripes.length * 2;
+		final Stripe[] newStripes = new Stripe[length];
+		int index = 0;
+		if (expectedStripes != null) {
+			// les stripes existantes sont conservées avec leurs hits, qui seront reportés ensuite
+			System.arraycopy(expectedStripes, 0, newStripes, 0, expectedStripes.length);
+			index = expectedStripes.length;
+		}
+		for (; index < length; index++) {
+			newStripes[index] = new Stripe();
+		}
+		stripes = newStripes;
+		return newStripes;
+	}
+
+	/**
+	 * @return Nombre de stripes créées en plus de la stripe de base (pour tests unitaires)
+	 */
+	int getCreatedStripesCount() {
+		final Stripe[] currentStripes = stripes;
+		return currentStripes == null ? 0 : currentStripes.length;
+	}
+
+	private static int getStripesCount() {
+		// puissance de 2 supérieure ou égale au nombre de processeurs, entre 2 et 64
+		final int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+		int result = 2;
+		while (result < processors) {
+			result <<= 1;
+		}
+		return result;
+	}
+}
@@ -24,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Arrays;
@@ -39,6 +40,7 @@ import java.util.zip.GZIPOutputStream;
  */
 class CounterStorage {
 	private static final int DEFAULT_OBSOLETE_STATS_DAYS = 365;
+	private static final String JOURNAL_EXTENSION = ".journal";
 	private static boolean storageDisabled;
 	private final Counter counter;
 
@@ -72,22 +74,71 @@ class CounterStorage {
 			throw new IOException("JavaMelody directory can't be created: " + directory.getPath());
 		}
 		final FileOutputStream out = new FileOutputStream(file);
+		final CounterResponseStream counterOutput;
 		try {
-			final CounterResponseStream counterOutput = new CounterResponseStream(
-					new GZIPOutputStream(new BufferedOutputStream(out)));
-			final ObjectOutputStream output = new ObjectOutputStream(counterOutput);
-			try {
-				output.writeObject(counter);
-			} finally {
-				// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
-				output.close();
+			counterOutput = new CounterResponseStream(new GZIPOutputStream(
+					new BufferedOutputStream(out)));
+			if (isBinaryFormatEnabled()) {
+				try {
+					CounterCodec.write(counter, counterOutput);
+				} finally {
+					// ce close libère les ressources du GZIPOutputStream
+					counterOutput.close();
+				}
+			} else {
+				final ObjectOutputStream output = new ObjectOutputStream(counterOutput);
+				try {
+					output.writeObject(counter);
+				} finally {
+					// ce close libère les ressources du ObjectOutputStream et du GZIPOutputStream
+					output.close();
+				}
 			}
-			// retourne la taille sérialisée non compressée,
-			// qui est une estimation pessimiste de l'occupation mémoire
-			return counterOutput.getDataLength();
 		} finally {
 			out.close();
 		}
+		StorageMaintenance.fileWritten(file);
+		// le fichier contient maintenant tout le counter, le journal éventuel est donc supprimé
+		final File journalFile = getJournalFile();
+		if (journalFile.exists()) {
+			if (!journalFile.delete()) {
+				throw new IOException("JavaMelody file can't be deleted: " + journalFile.getPath());
+			}
+			StorageMaintenance.fileDeleted(journalFile);
+		}
+		// retourne la taille sérialisée non compressée,
+		// qui est une estimation pessimiste de l'occupation mémoire
+		// (le format binaire étant plus compact, l'estimation est alors moins pessimiste)
+		return counterOutput.getDataLength();
+	}
+
+	/**
+	 * Enregistre les modifications du counter dans son journal (paramètre counters-journal),
+	 * ou enregistre le counter en entier si une compaction du journal est nécessaire.
+	 * @param journal CounterJournal du counter
+	 * @param compaction true pour forcer l'enregistrement du counter en entier
+	 * @return Taille sérialisée non compressée du counter s'il a été enregistré en entier, -1 sinon
+	 * @throws IOException Exception d'entrée/sortie
+	 */
+	int writeToJournal(CounterJournal journal, boolean compaction) throws IOException {
+		if (storageDisabled) {
+			return -1;
+		}
+		final File file = getFile();
+		final File journalFile = getJournalFile();
+		synchronized (journal) {
+			if (compaction || journal.isCompactionNeeded(file, journalFile)) {
+				final int dataLength = writeToFile();
+				journal.compacted(counter);
+				return dataLength;
+			}
+			final CounterJournal.Record record = journal.createRecord(counter);
+			if (record != null) {
+				CounterJournal.append(journalFile, file, record, counter.getName());
+				StorageMaintenance.fileWritten(journalFile);
+			}
+			return -1;
+		}
 	}
 
 	/**
@@ -103,11 +154,21 @@ class CounterStorage {
 		if (file.exists()) {
 			final FileInputStream in = new FileInputStream(file);
 			try {
-				final ObjectInputStream input = new ObjectInputStream(new GZIPInputStream(
+				final InputStream input = new BufferedInputStream(new GZIPInputStream(
 						new BufferedInputStream(in)));
 				try {
-					// on retourne l'instance du counter lue
-					return (Counter) input.readObject();
+					// le format du fichier est reconnu par son en-tête :
+					// format binaire ou sérialisation java (fichiers écrits auparavant)
+					final Counter counter;
+					if (CounterCodec.isEncoded(input)) {
+						counter = CounterCodec.read(input);
+					} else {
+						counter = (Counter) new ObjectInputStream(input).readObject();
+					}
+					// on retourne l'instance du counter lue,
+					// avec les modifications enregistrées ensuite dans son journal le cas échéant
+					CounterJournal.replay(getJournalFile(), file, counter);
+					return counter;
 				} finally {
 					// ce close libère les ressources du ObjectInputStream et du GZIPInputStream
 					input.close();
@@ -127,13 +188,34 @@ class CounterStorage {
 		return new File(storageDirectory, counter.getStorageName() + ".ser.gz");
 	}
 
+	private File getJournalFile() {
+		final File storageDirectory = Parameters.getStorageDirectory(counter.getApplication());
+		return new File(storageDirectory, counter.getStorageName() + JOURNAL_EXTENSION);
+	}
+
+	static boolean isBinaryFormatEnabled() {
+		return Boolean.parseBoolean(Parameters.getParameter(Parameter.COUNTERS_BINARY_FORMAT));
+	}
+
+	static boolean isJournalEnabled() {
+		return Boolean.parseBoolean(Parameters.getParameter(Parameter.COUNTERS_JOURNAL));
+	}
+
 	static long deleteObsoleteCounterFiles(String application) {
+		return deleteObsoleteCounterFiles(listSerGzFiles(application));
+	}
+
+	/**
+	 * Supprime les fichiers obsolètes parmi les fichiers .ser.gz et .journal en paramètre.
+	 * @param files Fichiers .ser.gz et .journal
+	 * @return Taille des fichiers non supprimés
+	 */
+	static long deleteObsoleteCounterFiles(List<File> files) {
 		final Calendar nowMinusOneYearAndADay = Calendar.getInstance();
 		nowMinusOneYearAndADay.add(Calendar.DAY_OF_YEAR, -getObsoleteStatsDays());
 		nowMinusOneYearAndADay.add(Calendar.DAY_OF_YEAR, -1);
-		// filtre pour ne garder que les fichiers d'extension .ser.gz et pour éviter d'instancier des File inutiles
 		long diskUsage = 0;
-		for (final File file : listSerGzFiles(application)) {
+		for (final File file : files) {
 			boolean deleted = false;
 			if (file.lastModified() < nowMinusOneYearAndADay.getTimeInMillis()) {
 				deleted = file.delete();
@@ -151,7 +233,7 @@ class CounterStorage {
 	 * @return Nombre de jours avant qu'un fichier de statistiques (extension .ser.gz),
 	 * soit considéré comme obsolète et soit supprimé automatiquement, à minuit (365 par défaut, soit 1 an)
 	 */
-	private static int getObsoleteStatsDays() {
+	static int getObsoleteStatsDays() {
 		final String param = Parameters.getParameter(Parameter.OBSOLETE_STATS_DAYS);
 		if (param != null) {
 			// lance une NumberFormatException si ce n'est pas un nombre
@@ -172,7 +254,7 @@ class CounterStorage {
 			/** {@inheritDoc} */
 			@Override
 			public boolean accept(File dir, String fileName) {
-				return fileName.endsWith(".ser.gz");
+				return isCounterFileName(fileName);
 			}
 		};
 		final File[] files = storageDir.listFiles(filenameFilter);
@@ -182,6 +264,11 @@ class CounterStorage {
 		return Arrays.asList(files);
 	}
 
+	static boolean isCounterFileName(String fileName) {
+		// les journaux des counters sont supprimés avec les fichiers .ser.gz
+		return fileName.endsWith(".ser.gz") || fileName.endsWith(JOURNAL_EXTENSION);
+	}
+
 	// cette méthode est utilisée dans l'ihm Swing
 	static void disableStorage() {
 		storageDisabled = true;
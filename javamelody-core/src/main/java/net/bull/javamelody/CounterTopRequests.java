@@ -0,0 +1,189 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sélection des requêtes les plus lourdes d'un counter (paramètre top-requests-count),
+ * selon l'algorithme "space-saving" de Metwally et al. :
+ * quand le counter est plein, une nouvelle requête remplace la requête de poids minimum
+ * et hérite de ce poids, ce qui garantit de conserver toute requête dont le poids réel dépasse
+ * le total divisé par le nombre de requêtes conservées, même si elle arrive tard.
+ *
+ * Les statistiques d'une requête remplacée sont ajoutées dans une requête "autres requêtes"
+ * pour que les totaux du counter restent justes.
+ * Le tas des poids n'est mis à jour que lors d'un remplacement (les poids ne font qu'augmenter,
+ * un poids obsolète dans le tas est donc recalculé au moment où il sort du tas) :
+ * il n'y a ainsi rien de plus à faire pour chaque hit d'une requête déjà présente.
+ *
+ * Les méthodes de cette classe doivent être appelées en synchronisant l'instance.
+ * @author Emeric Vernat
+ */
+class CounterTopRequests {
+	/**
+	 * Nom de la requête regroupant les statistiques des requêtes remplacées.
+	 */
+	static final String OTHER_REQUESTS_NAME = "(other requests)";
+
+	private final int maxRequestsCount;
+	private final boolean durationWeight;
+	private final PriorityQueue<WeightedRequest> heap = new PriorityQueue<WeightedRequest>();
+	private final List<String> evictedRequestIds = new ArrayList<String>();
+	private long evictionsCount;
+	private long lastEvictedWeight;
+
+	/**
+	 * Requête et poids connu dans le tas.
+	 */
+	private static final class WeightedRequest implements Comparable<WeightedRequest> {
+		final CounterRequest request;
+		// poids hérité de la requête remplacée
+		final long inheritedWeight;
+		long weight;
+
+		WeightedRequest(CounterRequest request, long inheritedWeight) {
+			super();
+			this.request = request;
+			this.inheritedWeight = inheritedWeight;
+			this.weight = inheritedWeight;
+		}
+
+		@Override
+		public int compareTo(WeightedRequest other) {
+			return weight < other.weight ? -1 : weight == other.weight ? 0 : 1;
+		}
+	}
+
+	CounterTopRequests(int maxRequestsCount, boolean durationWeight) {
+		super();
+		assert maxRequestsCount > 0;
+		this.maxRequestsCount = maxRequestsCount;
+		this.durationWeight = durationWeight;
+	}
+
+	int getMaxRequestsCount() {
+		return maxRequestsCount;
+	}
+
+	boolean isDurationWeight() {
+		return durationWeight;
+	}
+
+	/**
+	 * @param requestsCount Nombre de requêtes dans le counter, sans la requête "autres requêtes"
+	 * @return true si une requête doit être remplacée pour en ajouter une nouvelle
+	 */
+	boolean isFull(int requestsCount) {
+		return requestsCount >= maxRequestsCount;
+	}
+
+	/**
+	 * Ajoute une nouvelle requête, après avoir appelé evictLightestRequest si isFull.
+	 * @param request CounterRequest
+	 * @param inheritedWeight Poids de la requête remplacée, ou 0
+	 */
+	void addRequest(CounterRequest request, long inheritedWeight) {
+		heap.add(new WeightedRequest(request, inheritedWeight));
+	}
+
+	/**
+	 * Enlève du tas la requête de poids minimum.
+	 * @param counter Counter contenant les requêtes, pour ignorer celles qui n'y sont plus
+	 * @return Requête enlevée du tas, ou null si le tas est vide
+	 */
+	CounterRequest evictLightestRequest(Counter counter) {
+		WeightedRequest lightest = heap.poll();
+		while (lightest != null) {
+			final CounterRequest request = lightest.request;
+			if (!counter.containsRequest(request)) {
+				// requête déjà enlevée du counter par ailleurs (par Collector par exemple)
+				lightest = heap.poll();
+				continue;
+			}
+			final long weight = lightest.inheritedWeight + getWeight(request);
+			if (weight > lightest.weight) {
+				// poids obsolète : on le remet dans le tas avec son poids actuel
+				lightest.weight = weight;
+				heap.add(lightest);
+				lightest = heap.poll();
+				continue;
+			}
+			evictedRequestIds.add(request.getId());
+			evictionsCount++;
+			lastEvictedWeight = weight;
+			return request;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Poids de la dernière requête enlevée par evictLightestRequest,
+	 * à hériter par la requête qui la remplace
+	 */
+	long getLastEvictedWeight() {
+		return lastEvictedWeight;
+	}
+
+	/**
+	 * @param request CounterRequest
+	 * @return Poids actuel de cette requête, selon les hits ou selon la durée cumulée
+	 */
+	long getWeight(CounterRequest request) {
+		synchronized (request) {
+			// les hits éventuellement accumulés dans les stripes sont comptés dans le poids
+			request.drainStripes();
+			if (durationWeight) {
+				return request.getDurationsSum();
+			}
+			return request.getHits();
+		}
+	}
+
+	/**
+	 * @return Ids des requêtes remplacées depuis le précédent appel de cette méthode
+	 */
+	List<String> pollEvictedRequestIds() {
+		if (evictedRequestIds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final List<String> result = new ArrayList<String>(evictedRequestIds);
+		evictedRequestIds.clear();
+		return result;
+	}
+
+	long getEvictionsCount() {
+		return evictionsCount;
+	}
+
+	void clear() {
+		heap.clear();
+		evictedRequestIds.clear();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[maxRequestsCount=" + maxRequestsCount
+				+ ", durationWeight=" + durationWeight + ", size=" + heap.size()
+				+ ", evictionsCount=" + evictionsCount + ']';
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Mesure du temps cpu des requêtes (paramètre cpu-time-accounting), pour les requêtes http
+ * et les requêtes incluant le temps cpu (ejb, spring, guice, services).
+ *
+ * Chaque mesure du temps cpu d'un thread est un appel à ThreadMXBean, dont le coût dépend
+ * de l'OS et de la JVM (voir measureCallCostNanos) et qui est fait au début et à la fin de la requête :
+ * <ul>
+ * <li>always : le temps cpu de chaque requête est mesuré (par défaut),</li>
+ * <li>sampled : le temps cpu d'une requête sur N, choisie au hasard, est mesuré et compte N fois
+ * dans la somme des temps cpu, pour que le temps cpu moyen reste une estimation non biaisée,</li>
+ * <li>slow : le temps cpu n'est mesuré à la fin de la requête que pour les requêtes plus lentes
+ * que le seuil, il compte pour 0 pour les autres (seule la mesure de fin est économisée).</li>
+ * </ul>
+ * Les requêtes dont le temps cpu n'est pas mesuré n'ont pas de temps cpu dans les requêtes en cours.
+ * @author Emeric Vernat
+ */
+class CpuTimeAccounting {
+	/**
+	 * Taux d'échantillonnage par défaut pour le mode sampled.
+	 */
+	static final int DEFAULT_SAMPLING_RATE = 10;
+
+	/**
+	 * Seuil par défaut en millisecondes pour le mode slow.
+	 */
+	static final long DEFAULT_SLOW_MILLIS = 1000;
+
+	private static final int BENCHMARK_WARMUP_CALLS = 10000;
+	private static final int BENCHMARK_CALLS = 10000;
+
+	// coût mesuré d'un appel en nanosecondes, ou -1 si non mesuré
+	private static volatile long measuredCallCostNanos = -1;
+
+	private final Mode mode;
+	private final int samplingRate;
+	private final long slowMillis;
+	// un Random par thread pour ne pas partager entre les threads le seed de Random,
+	// modifié par compare-and-set à chaque tirage (pas de ThreadLocalRandom en Java 6)
+	private final ThreadLocal<Random> randomThreadLocal = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	/**
+	 * Mode de mesure du temps cpu.
+	 */
+	enum Mode {
+		ALWAYS, SAMPLED, SLOW;
+
+		static Mode valueOfIgnoreCase(String mode) {
+			return valueOf(mode.toUpperCase(Locale.ENGLISH).trim());
+		}
+	}
+
+	CpuTimeAccounting(Mode mode, int samplingRate, long slowMillis) {
+		super();
+		assert mode != null;
+		assert samplingRate >= 1;
+		assert slowMillis >= 0;
+		this.mode = mode;
+		this.samplingRate = samplingRate;
+		this.slowMillis = slowMillis;
+	}
+
+	Mode getMode() {
+		return mode;
+	}
+
+	int getSamplingRate() {
+		return samplingRate;
+	}
+
+	long getSlowMillis() {
+		return slowMillis;
+	}
+
+	/**
+	 * Temps cpu du thread courant au début d'une requête.
+	 * @return Temps cpu en nanosecondes, ou -1 si le temps cpu de cette requête ne sera pas mesuré
+	 */
+	long getStartCpuTime() {
+		if (mode == Mode.SAMPLED && samplingRate > 1
+				&& randomThreadLocal.get().nextInt(samplingRate) != 0) {
+			return -1;
+		}
+		return ThreadInformations.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * Temps cpu du thread courant depuis le début d'une requête, à enregistrer pour cette requête.
+	 * @param startCpuTime Résultat de getStartCpuTime
+	 * @param duration Durée de la requête en millisecondes
+	 * @return Temps cpu en millisecondes, extrapolé en mode sampled, ou 0 s'il n'est pas mesuré
+	 */
+	long getCpuTimeMillis(long startCpuTime, long duration) {
+		if (startCpuTime < 0 || mode == Mode.SLOW && duration < slowMillis) {
+			return 0;
+		}
+		final long cpuTimeMillis = Math.max(
+				ThreadInformations.getCurrentThreadCpuTime() - startCpuTime, 0) / 1000000;
+		if (mode == Mode.SAMPLED) {
+			return cpuTimeMillis * samplingRate;
+		}
+		return cpuTimeMillis;
+	}
+
+	/**
+	 * Mesure le coût moyen d'un appel de ThreadInformations.getCurrentThreadCpuTime(),
+	 * pour choisir le mode de mesure du temps cpu.
+	 * @return Coût en nanosecondes
+	 */
+	static long measureCallCostNanos() {
+		long sum = 0;
+		// préchauffage pour que la mesure soit faite avec le code compilé
+		for (int i = 0; i < BENCHMARK_WARMUP_CALLS; i++) {
+			sum += ThreadInformations.getCurrentThreadCpuTime();
+		}
+		final long start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_CALLS; i++) {
+			sum += ThreadInformations.getCurrentThreadCpuTime();
+		}
+		final long cost = Math.max(System.nanoTime() - start, 0) / BENCHMARK_CALLS;
+		// sum est utilisé pour que les appels ne soient pas éliminés par le compilateur
+		if (sum == Long.MIN_VALUE) {
+			return -1;
+		}
+		measuredCallCostNanos = cost;
+		return cost;
+	}
+
+	/**
+	 * @return Coût d'un appel mesuré au démarrage en nanosecondes, ou -1 si non mesuré
+	 */
+	static long getMeasuredCallCostNanos() {
+		return measuredCallCostNanos;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[mode=" + mode + ", samplingRate=" + samplingRate
+				+ ", slowMillis=" + slowMillis + ']';
+	}
+}
@@ -40,6 +40,7 @@ class FilterContext {
 	private final Timer timer;
 	private final SamplingProfiler samplingProfiler;
 	private final TimerTask collectTimerTask;
+	private final AsyncHitsRecorder asyncHitsRecorder;
 
 	private static final class CollectTimerTask extends TimerTask {
 		private final Collector collector;
@@ -98,6 +99,7 @@ class FilterContext {
 			this.samplingProfiler = initSamplingProfiler();
 
 			final List<Counter> counters = initCounters();
+			this.asyncHitsRecorder = initAsyncHitsRecorder(counters);
 			final String application = Parameters.getCurrentApplication();
 			this.collector = new Collector(application, counters, this.samplingProfiler);
 			this.collectTimerTask = new CollectTimerTask(collector);
@@ -144,6 +146,41 @@ class FilterContext {
 		}
 
 		setRequestTransformPatterns(counters);
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.STRIPED_COUNTERS))) {
+			for (final Counter counter : counters) {
+				counter.setStriped(true);
+			}
+		}
+		if (Boolean.parseBoolean(Parameters.getParameter(Parameter.RECYCLED_CONTEXTS))) {
+			for (final Counter counter : counters) {
+				counter.setContextsRecycled(true);
+			}
+		}
+		final boolean highResolutionDurations = Boolean.parseBoolean(Parameters
+				.getParameter(Parameter.HIGH_RESOLUTION_DURATIONS));
+		for (final Counter counter : counters) {
+			// les requêtes http restent mesurées à la milliseconde près par MonitoringFilter,
+			// et le sqlCounter de JdbcWrapper peut avoir été initialisé par un précédent FilterContext
+			counter.setHighResolutionDurations(highResolutionDurations && counter != httpCounter);
+		}
+		initRequestsSampling(httpCounter, sqlCounter);
+		initCpuTimeAccounting(counters);
+		final String topRequestsCount = Parameters.getParameter(Parameter.TOP_REQUESTS_COUNT);
+		if (topRequestsCount != null) {
+			// lance une NumberFormatException si ce n'est pas un nombre
+			final int count = Integer.parseInt(topRequestsCount);
+			if (count <= 0) {
+				throw new IllegalStateException("The parameter top-requests-count should be > 0");
+			}
+			final boolean durationWeight = "duration".equalsIgnoreCase(Parameters
+					.getParameter(Parameter.TOP_REQUESTS_WEIGHT));
+			for (final Counter counter : counters) {
+				// moins que maxRequestsCount (avec "autres requêtes")
+				// pour ne jamais avoir d'éliminations arbitraires dans Collector
+				counter.setTopRequests(Math.min(count, counter.getMaxRequestsCount() - 1),
+						durationWeight);
+			}
+		}
 		final String displayedCounters = Parameters.getParameter(Parameter.DISPLAYED_COUNTERS);
 		if (displayedCounters == null) {
 			// par défaut, les compteurs http, sql, error et log (et ceux qui sont utilisés) sont affichés
@@ -166,6 +203,94 @@ class FilterContext {
 		return counters;
 	}
 
+	private static AsyncHitsRecorder initAsyncHitsRecorder(List<Counter> counters) {
+		if (!Boolean.parseBoolean(Parameters.getParameter(Parameter.ASYNC_HITS))) {
+			for (final Counter counter : counters) {
+				// le sqlCounter de JdbcWrapper peut avoir été initialisé par un précédent FilterContext
+				counter.setAsyncHitsRecorder(null);
+			}
+			return null;
+		}
+		final AsyncHitsRecorder recorder = new AsyncHitsRecorder();
+		recorder.start("javamelody async hits"
+				+ Parameters.getContextPath(Parameters.getServletContext()).replace('/', ' '));
+		for (final Counter counter : counters) {
+			counter.setAsyncHitsRecorder(recorder);
+		}
+		LOG.debug("async hits recording initialized");
+		return recorder;
+	}
+
+	private static void initRequestsSampling(Counter httpCounter, Counter sqlCounter) {
+		final String samplingRate = Parameters.getParameter(Parameter.REQUESTS_SAMPLING_RATE);
+		if (samplingRate == null) {
+			httpCounter.setSampling(null);
+			sqlCounter.setSampling(null);
+			return;
+		}
+		// lance une NumberFormatException si ce n'est pas un nombre
+		final int rate = Integer.parseInt(samplingRate);
+		if (rate < 1) {
+			throw new IllegalStateException("The parameter requests-sampling-rate should be >= 1");
+		}
+		final String slowMillisParameter = Parameters
+				.getParameter(Parameter.REQUESTS_SAMPLING_SLOW_MILLIS);
+		final long slowMillis;
+		if (slowMillisParameter == null) {
+			slowMillis = RequestSampling.DEFAULT_SLOW_MILLIS;
+		} else {
+			slowMillis = Long.parseLong(slowMillisParameter);
+		}
+		// une instance par counter pour avoir le taux effectif de chacun
+		httpCounter.setSampling(new RequestSampling(rate, slowMillis));
+		sqlCounter.setSampling(new RequestSampling(rate, slowMillis));
+	}
+
+	private static void initCpuTimeAccounting(List<Counter> counters) {
+		// coût d'une mesure du temps cpu sur cet OS et cette JVM, pour choisir cpu-time-accounting
+		final long callCostNanos = CpuTimeAccounting.measureCallCostNanos();
+		LOG.debug("cpu time measure cost: " + callCostNanos + " ns per call");
+		final String modeParameter = Parameters.getParameter(Parameter.CPU_TIME_ACCOUNTING);
+		final CpuTimeAccounting cpuTimeAccounting;
+		if (modeParameter == null) {
+			cpuTimeAccounting = null;
+		} else {
+			// lance une IllegalArgumentException si ce n'est pas un mode
+			final CpuTimeAccounting.Mode mode = CpuTimeAccounting.Mode
+					.valueOfIgnoreCase(modeParameter);
+			final String samplingRateParameter = Parameters
+					.getParameter(Parameter.CPU_TIME_SAMPLING_RATE);
+			final int samplingRate;
+			if (samplingRateParameter == null) {
+				samplingRate = CpuTimeAccounting.DEFAULT_SAMPLING_RATE;
+			} else {
+				// lance une NumberFormatException si ce n'est pas un nombre
+				samplingRate = Integer.parseInt(samplingRateParameter);
+				if (samplingRate < 1) {
+					throw new IllegalStateException(
+							"The parameter cpu-time-sampling-rate should be >= 1");
+				}
+			}
+			final String slowMillisParameter = Parameters
+					.getParameter(Parameter.CPU_TIME_SLOW_MILLIS);
+			final long slowMillis;
+			if (slowMillisParameter == null) {
+				slowMillis = CpuTimeAccounting.DEFAULT_SLOW_MILLIS;
+			} else {
+				slowMillis = Long.parseLong(slowMillisParameter);
+			}
+			if (mode == CpuTimeAccounting.Mode.ALWAYS) {
+				cpuTimeAccounting = null;
+			} else {
+				cpuTimeAccounting = new CpuTimeAccounting(mode, samplingRate, slowMillis);
+			}
+		}
+		for (final Counter counter : counters) {
+			// les counters de MonitoringProxy, etc peuvent avoir été initialisés par un précédent FilterContext
+			counter.setCpuTimeAccounting(cpuTimeAccounting);
+		}
+	}
+
 	private static void setRequestTransformPatterns(List<Counter> counters) {
 		for (final Counter counter : counters) {
 			// le paramètre pour ce nom de compteur doit exister
@@ -336,6 +461,10 @@ class FilterContext {
 		return null;
 	}
 
+	AsyncHitsRecorder getAsyncHitsRecorder() {
+		return asyncHitsRecorder;
+	}
+
 	void stopCollector() {
 		// cette méthode est appelée par MonitoringFilter lorsqu'il y a un serveur de collecte
 		if (samplingProfiler != null && collectTimerTask != null) {
@@ -381,9 +510,20 @@ class FilterContext {
 			if (samplingProfiler != null) {
 				samplingProfiler.clear();
 			}
+			if (asyncHitsRecorder != null) {
+				// les hits en attente sont reportés dans les counters avant leur persistance
+				// et les hits suivants sont enregistrés dans le thread courant
+				asyncHitsRecorder.stop();
+				if (collector != null) {
+					for (final Counter counter : collector.getCounters()) {
+						counter.setAsyncHitsRecorder(null);
+					}
+				}
+			}
 			if (collector != null) {
 				collector.stop();
 			}
+			StackTraceFingerprints.clear();
 			Collector.stopJRobin();
 			Collector.detachVirtualMachine();
 		}
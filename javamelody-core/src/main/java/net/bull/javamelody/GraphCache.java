@@ -0,0 +1,145 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache borné des images png des graphiques (paramètre graphs-cache-size),
+ * pour ne pas redessiner avec Java2D les mêmes graphiques à chaque affichage de la page
+ * de monitoring, rafraîchie par plusieurs utilisateurs ou par des écrans de supervision.
+ *
+ * Une image est identifiée par le fichier rrd, la courbe, la période, la taille, l'affichage
+ * du maximum et la langue. Elle n'est valable que pour la date de dernière mise à jour
+ * du fichier rrd et pour la fin de période (arrondie au pas de la résolution) avec lesquelles
+ * elle a été dessinée : elle est donc dessinée à nouveau après chaque collecte ayant mis à jour
+ * ce fichier, ou quand la période a avancé même si ce fichier n'est plus mis à jour.
+ *
+ * La taille totale des images est limitée et les images les moins récemment utilisées
+ * sont évincées. Le taux de hits et la mémoire utilisée sont affichés dans la page de monitoring.
+ * @author Emeric Vernat
+ */
+class GraphCache {
+	private final Map<String, Entry> entriesByKey = new LinkedHashMap<String, Entry>(16, 0.75f,
+			true);
+	private long memorySize;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static final class Entry {
+		final long lastUpdateTime;
+		final long endTime;
+		final byte[] image;
+
+		Entry(long lastUpdateTime, long endTime, byte[] image) {
+			super();
+			this.lastUpdateTime = lastUpdateTime;
+			this.endTime = endTime;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * @return Taille max en octets des images du cache selon le paramètre graphs-cache-size,
+	 * 	ou 0 si le cache n'est pas activé
+	 */
+	static long getMaxMemorySize() {
+		final String parameter = Parameters.getParameter(Parameter.GRAPHS_CACHE_SIZE);
+		if (parameter == null) {
+			return 0;
+		}
+		return Long.parseLong(parameter.trim()) * 1024 * 1024;
+	}
+
+	/**
+	 * @param key Clé de l'image
+	 * @param lastUpdateTime Date de dernière mise à jour du fichier rrd
+	 * @param endTime Fin de la période de l'image, arrondie au pas de la résolution
+	 * @return Image, ou null si elle n'est pas dans le cache ou si elle a été dessinée
+	 * 	avant la dernière mise à jour du fichier rrd ou pour une autre fin de période
+	 * 	(elle ne doit pas être modifiée)
+	 */
+	synchronized byte[] get(String key, long lastUpdateTime, long endTime) {
+		final Entry entry = entriesByKey.get(key);
+		if (entry != null && entry.lastUpdateTime == lastUpdateTime && entry.endTime == endTime) {
+			hits++;
+			return entry.image;
+		}
+		misses++;
+		return null;
+	}
+
+	synchronized void put(String key, long lastUpdateTime, long endTime, byte[] image,
+			long maxMemorySize) {
+		if (image.length > maxMemorySize) {
+			return;
+		}
+		// remplace l'image éventuelle d'une mise à jour ou d'une fin de période précédente
+		final Entry previous = entriesByKey.put(key, new Entry(lastUpdateTime, endTime, image));
+		if (previous != null) {
+			memorySize -= previous.image.length;
+		}
+		memorySize += image.length;
+		// éviction des images les moins récemment utilisées, dans l'ordre d'accès
+		final Iterator<Entry> iterator = entriesByKey.values().iterator();
+		while (memorySize > maxMemorySize && iterator.hasNext()) {
+			memorySize -= iterator.next().image.length;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	synchronized void clear() {
+		entriesByKey.clear();
+		memorySize = 0;
+	}
+
+	synchronized int getSize() {
+		return entriesByKey.size();
+	}
+
+	synchronized long getMemorySize() {
+		return memorySize;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Pourcentage de hits dans le cache, entre 0 et 100
+	 */
+	synchronized int getHitsPercentage() {
+		final long accesses = hits + misses;
+		if (accesses == 0) {
+			return 0;
+		}
+		return (int) (100 * hits / accesses);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.Serializable;
+
+/**
+ * Valeurs moyennes et maximales d'une courbe sur une période, lues dans l'archive du fichier rrd
+ * ayant la meilleure résolution pour cette période (part=graphData),
+ * pour dessiner la courbe dans le navigateur ou dans l'IHM Swing sans image png du serveur :
+ * le zoom et le redimensionnement ne font alors plus d'appel au serveur.
+ *
+ * Les valeurs inconnues (NaN) sont écrites null en JSON.
+ * @author Emeric Vernat
+ */
+class GraphSeries implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final String label;
+	// date de la première valeur et intervalle entre deux valeurs, en secondes
+	private final long startTime;
+	private final long step;
+	private final double[] averages;
+	private final double[] maxima;
+
+	GraphSeries(String name, String label, long startTime, long step, double[] averages,
+			double[] maxima) {
+		super();
+		assert name != null;
+		assert label != null;
+		assert step > 0;
+		assert averages != null;
+		assert maxima != null && maxima.length == averages.length;
+		this.name = name;
+		this.label = label;
+		this.startTime = startTime;
+		this.step = step;
+		this.averages = averages;
+		this.maxima = maxima;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	long getStartTime() {
+		return startTime;
+	}
+
+	long getStep() {
+		return step;
+	}
+
+	double[] getAverages() {
+		return averages;
+	}
+
+	double[] getMaxima() {
+		return maxima;
+	}
+
+	/**
+	 * @return Plus grande valeur maximale connue, ou 0 s'il n'y en a pas
+	 */
+	double getMaximum() {
+		double result = 0;
+		for (final double value : maxima) {
+			if (value > result) {
+				result = value;
+			}
+		}
+		for (final double value : averages) {
+			if (value > result) {
+				result = value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Courbe en JSON compact, les valeurs étant arrondies à 2 décimales
+	 */
+	String toJson() {
+		final StringBuilder sb = new StringBuilder(64 + 12 * 2 * averages.length);
+		sb.append("{\"name\":");
+		appendJsonString(sb, name);
+		sb.append(",\"label\":");
+		appendJsonString(sb, label);
+		sb.append(",\"start\":").append(startTime);
+		sb.append(",\"step\":").append(step);
+		sb.append(",\"average\":");
+		appendJsonValues(sb, averages);
+		sb.append(",\"max\":");
+		appendJsonValues(sb, maxima);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static void appendJsonValues(StringBuilder sb, double[] values) {
+		sb.append('[');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			final double value = values[i];
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				sb.append("null");
+			} else {
+				final double rounded = Math.round(value * 100) / 100d;
+				if (rounded == (long) rounded) {
+					sb.append((long) rounded);
+				} else {
+					sb.append(rounded);
+				}
+			}
+		}
+		sb.append(']');
+	}
+
+	private static void appendJsonString(StringBuilder sb, String string) {
+		sb.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ' || c == '<' || c == '>') {
+				// caractères de contrôle, et < > pour ne pas fermer une balise script
+				sb.append("\\u00").append(Character.forDigit(c >> 4, 16))
+						.append(Character.forDigit(c & 0xF, 16));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[name=" + getName() + ", startTime=" + getStartTime()
+				+ ", step=" + getStep() + ", values=" + averages.length + ']';
+	}
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.net.URLEncoder;
 import java.text.DateFormat;
+import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.HashMap;
@@ -861,11 +862,160 @@ class HtmlCoreReport extends HtmlAbstractReport {
 		writeln(END_DIV);
 	}
 
+	private void writeRequestTransformCaches() throws IOException {
+		// les caches n'existent que pour les counters locaux ayant un paramètre *-transform-pattern
+		for (final Counter counter : collector.getCounters()) {
+			final RequestTransformCache cache = counter.getRequestTransformCache();
+			if (cache != null && cache.getHits() + cache.getMisses() > 0) {
+				final DecimalFormat integerFormat = I18N.createIntegerFormat();
+				writeln("<br/>"
+						+ getFormattedString("cache_transform_pattern", counter.getName(),
+								cache.getHitsPercentage(),
+								integerFormat.format(cache.getHits()),
+								integerFormat.format(cache.getMisses()),
+								integerFormat.format(cache.getEvictions()),
+								integerFormat.format(cache.getSize())));
+			}
+		}
+	}
+
+	private void writeRequestsSamplings() throws IOException {
+		// l'échantillonnage n'existe que pour les counters locaux avec le paramètre requests-sampling-rate
+		for (final Counter counter : collector.getCounters()) {
+			final RequestSampling sampling = counter.getSampling();
+			if (sampling != null) {
+				final DecimalFormat integerFormat = I18N.createIntegerFormat();
+				final DecimalFormat decimalFormat = I18N.createPercentFormat();
+				writeln("<br/>"
+						+ getFormattedString("requests_sampling", counter.getName(),
+								integerFormat.format(sampling.getRate()),
+								decimalFormat.format(sampling.getEffectiveSamplingPercentage()),
+								integerFormat.format(sampling.getForcedRequestsCount())));
+			}
+		}
+	}
+
+	private void writeAsyncHits() throws IOException {
+		// l'enregistrement asynchrone des hits est commun à tous les counters (paramètre async-hits)
+		for (final Counter counter : collector.getCounters()) {
+			final AsyncHitsRecorder recorder = counter.getAsyncHitsRecorder();
+			if (recorder != null) {
+				final DecimalFormat integerFormat = I18N.createIntegerFormat();
+				writeln("<br/>"
+						+ getFormattedString("async_hits",
+								integerFormat.format(recorder.getPendingHitsCount()),
+								integerFormat.format(recorder.getDroppedHitsCount()),
+								integerFormat.format(recorder.getDrainedHitsCount()),
+								integerFormat.format(recorder.getBuffersCount())));
+				return;
+			}
+		}
+	}
+
+	private void writeStackTraceFingerprints() throws IOException {
+		// la table des stack-traces est celle de cette jvm, donc sans intérêt pour un serveur de collecte
+		final long hits = StackTraceFingerprints.getHits();
+		final long misses = StackTraceFingerprints.getMisses();
+		if (collectorServer == null && hits + misses > 0) {
+			final DecimalFormat integerFormat = I18N.createIntegerFormat();
+			writeln("<br/>"
+					+ getFormattedString("stack_traces_fingerprints",
+							StackTraceFingerprints.getHitsPercentage(), integerFormat.format(hits),
+							integerFormat.format(misses),
+							integerFormat.format(StackTraceFingerprints.getEvictions()),
+							integerFormat.format(StackTraceFingerprints.getSize())));
+		}
+	}
+
+	private void writeCpuTimeAccounting() throws IOException {
+		// le coût est mesuré au démarrage dans cette jvm, donc sans intérêt pour un serveur de collecte
+		final long callCostNanos = CpuTimeAccounting.getMeasuredCallCostNanos();
+		if (collectorServer == null && callCostNanos >= 0) {
+			final CpuTimeAccounting cpuTimeAccounting = collector.getCounters().get(0)
+					.getCpuTimeAccounting();
+			final String mode;
+			if (cpuTimeAccounting == null) {
+				mode = "always";
+			} else if (cpuTimeAccounting.getMode() == CpuTimeAccounting.Mode.SAMPLED) {
+				mode = "sampled 1/" + cpuTimeAccounting.getSamplingRate();
+			} else {
+				mode = "slow > " + cpuTimeAccounting.getSlowMillis() + " #ms#";
+			}
+			writeln("<br/>"
+					+ getFormattedString("cpu_time_accounting",
+							I18N.createIntegerFormat().format(callCostNanos), mode));
+		}
+	}
+
+	private void writePeriodCounterCache() throws IOException {
+		// le cache n'existe qu'avec le paramètre period-counters-cache
+		final PeriodCounterCache cache = collector.getPeriodCounterCache();
+		if (cache != null && cache.getSize() > 0) {
+			final DecimalFormat integerFormat = I18N.createIntegerFormat();
+			writeln("<br/>"
+					+ getFormattedString("period_counters_cache",
+							integerFormat.format(cache.getSize()),
+							integerFormat.format(cache.getRequestsCount()),
+							cache.getEstimatedMemorySize() / 1024 / 1024 + 1,
+							integerFormat.format(cache.getHits()),
+							integerFormat.format(cache.getMisses())));
+		}
+	}
+
+	private void writeRrdSyncs() throws IOException {
+		final long syncCount = RrdNioSyncScheduler.getSyncCount();
+		if (syncCount > 0) {
+			final DecimalFormat integerFormat = I18N.createIntegerFormat();
+			writeln("<br/>"
+					+ getFormattedString("rrd_syncs", integerFormat.format(syncCount),
+							integerFormat.format(RrdNioSyncScheduler.getSkippedCount()),
+							RrdNioSyncScheduler.getMeanSyncMillis(),
+							RrdNioSyncScheduler.getMaxSyncMillis(),
+							integerFormat.format(RrdNioSyncScheduler.getDirtyCount())));
+		}
+	}
+
+	private void writeGraphCache() throws IOException {
+		// le cache n'est utilisé qu'avec le paramètre graphs-cache-size
+		final GraphCache cache = JRobin.getGraphCache();
+		if (cache.getHits() + cache.getMisses() > 0) {
+			final DecimalFormat integerFormat = I18N.createIntegerFormat();
+			writeln("<br/>"
+					+ getFormattedString("graphs_cache", cache.getHitsPercentage(),
+							integerFormat.format(cache.getHits()),
+							integerFormat.format(cache.getMisses()),
+							integerFormat.format(cache.getEvictions()),
+							integerFormat.format(cache.getSize()),
+							integerFormat.format(cache.getMemorySize() / 1024)));
+		}
+	}
+
+	private void writeLastCollectDurationsByCounter() throws IOException {
+		final Map<String, Long> lastCollectDurationsByCounter = collector
+				.getLastCollectDurationsByCounter();
+		if (lastCollectDurationsByCounter.size() > 1) {
+			// durées par compteur, pour voir le compteur le plus lent notamment en collecte parallèle
+			final StringBuilder sb = new StringBuilder();
+			for (final Counter counter : collector.getCounters()) {
+				final Long duration = lastCollectDurationsByCounter.get(counter.getName());
+				if (duration != null) {
+					if (sb.length() > 0) {
+						sb.append(", ");
+					}
+					sb.append(counter.getName()).append(' ').append(duration).append(" #ms#");
+				}
+			}
+			writeln(" (" + sb + ')');
+		}
+	}
+
 	private void writeDurationAndOverhead() throws IOException {
 		final long displayDuration = System.currentTimeMillis() - start;
 		writeln("<a name='bottom'></a>");
 		writeln("<br/><div style='font-size: 11px;'>");
-		writeln("#temps_derniere_collecte#: " + collector.getLastCollectDuration() + " #ms#<br/>");
+		writeln("#temps_derniere_collecte#: " + collector.getLastCollectDuration() + " #ms#");
+		writeLastCollectDurationsByCounter();
+		writeln("<br/>");
 		writeln("#temps_affichage#: " + displayDuration + " #ms#<br/>");
 		writeln("#Estimation_overhead_memoire#: < "
 				+ (collector.getEstimatedMemorySize() / 1024 / 1024 + 1) + " #Mo#");
@@ -874,6 +1024,14 @@ class HtmlCoreReport extends HtmlAbstractReport {
 			writeln("&nbsp;&nbsp;&nbsp;<a href='?action=purge_obsolete_files' class='noPrint'>");
 			writeln("<img width='14' height='14' src='?resource=user-trash.png' alt='#Purger_les_fichiers_obsoletes#' title='#Purger_les_fichiers_obsoletes#'/></a>");
 		}
+		writeRequestTransformCaches();
+		writeRequestsSamplings();
+		writeAsyncHits();
+		writeStackTraceFingerprints();
+		writeCpuTimeAccounting();
+		writePeriodCounterCache();
+		writeRrdSyncs();
+		writeGraphCache();
 		if (Parameters.JAVAMELODY_VERSION != null) {
 			writeln("<br/><br/>JavaMelody " + Parameters.JAVAMELODY_VERSION);
 		}
@@ -110,6 +110,10 @@ class HtmlCounterErrorReport extends HtmlAbstractReport {
 			// writeDirectly pour ne pas gérer de traductions si le message contient '#'
 			writeDirectly(htmlEncode(error.getMessage()));
 		}
+		if (error.getOccurrencesCount() > 1) {
+			write(" ");
+			write(getFormattedString("error_occurrences", error.getOccurrencesCount()));
+		}
 		write("</td>");
 	}
 
@@ -136,6 +136,8 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				writeln("<img class='synthèse' id='img' src='"
 						+ "?width=960&amp;height=400&amp;graph=" + urlEncode(graphName)
 						+ "' alt='zoom'/>");
+				// courbe dessinée dans le navigateur, si canvas est supporté, à la place de l'image
+				writeln("<canvas class='synthèse' id='chart' style='display: none;'></canvas>");
 				writeDirectly("<br/><div align='right' style='color: #808080;'>");
 				writeln("#graph_units#");
 				writeln("</div></td></tr></table>");
@@ -267,7 +269,8 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				writeln("<th class='sorttable_numeric'>#Hits_par_requete#</th>");
 			}
 			writeln("<th class='sorttable_numeric'>#Temps_moyen#</th><th class='sorttable_numeric'>#Temps_max#</th>");
-			writeln("<th class='sorttable_numeric'>#Ecart_type#</th><th class='sorttable_numeric'>#Temps_cpu_moyen#</th>");
+			writeln("<th class='sorttable_numeric'>#Ecart_type#</th><th>#Percentiles#</th>");
+			writeln("<th class='sorttable_numeric'>#Temps_cpu_moyen#</th>");
 			writeln("<th class='sorttable_numeric'>#erreur_systeme#</th>");
 			final Counter parentCounter = getCounterByRequestId(request);
 			final boolean allChildHitsDisplayed = parentCounter != null
@@ -338,12 +341,14 @@ class HtmlCounterReport extends HtmlAbstractReport {
 				throws IOException {
 			final String nextColumn = "</td><td align='right'>";
 			writeln(nextColumn);
-			writeln(integerFormat.format(request.getMean()));
+			writeln(formatMean(request, integerFormat, systemErrorFormat));
 			writeln(nextColumn);
 			writeln(integerFormat.format(request.getMaximum()));
 			writeln(nextColumn);
 			writeln(integerFormat.format(request.getStandardDeviation()));
 			writeln(nextColumn);
+			writeln(formatPercentiles(request, integerFormat));
+			writeln(nextColumn);
 			final String nbsp = "&nbsp;";
 			if (request.getCpuTimeMean() >= 0) {
 				writeln(integerFormat.format(request.getCpuTimeMean()));
@@ -378,8 +383,22 @@ class HtmlCounterReport extends HtmlAbstractReport {
 		}
 
 		private void writeGraphDetailScript(String graphName) throws IOException {
+			writeln("<script type='text/javascript' src='?resource=graphSeries.js'></script>");
 			writeln(SCRIPT_BEGIN);
+			// valeurs de la courbe, quand elle est dessinée dans le navigateur
+			writeln("var graphSeries = null;");
+			writeln("var graphLabels = {average: '#Moyenne#', maximum: '#Maximum#'};");
+			writeln("function drawChart(width, height) {");
+			writeln("    var chart = document.getElementById('chart');");
+			writeln("    GraphSeries.draw(chart, graphSeries, width, height, document.getElementById('cb').checked, graphLabels);");
+			writeln("    chart.style.width = '';");
+			writeln("}");
 			writeln("function handleHideMaximumClick(checkbox) {");
+			writeln("    if (graphSeries != null) {");
+			writeln("        var chart = document.getElementById('chart');");
+			writeln("        drawChart(chart.width, chart.height);");
+			writeln("        return;");
+			writeln("    }");
 			writeln("    var img = document.getElementById('img');");
 			writeln("    if (checkbox.checked) {");
 			writeln("        img.src = img.src + '\\u0026max=false\\u0026r=' + Math.random();");
@@ -408,6 +427,12 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			// this is where the slider is released and the image is reloaded
 			// we use current style settings to work the required image dimensions
 			writeln("slider.options.onChange = function(value) {");
+			// courbe dessinée dans le navigateur : pas d'appel au serveur
+			writeln("  if (graphSeries != null) {");
+			writeln("    width = Math.round(Element.getStyle('chart','width').replace('px',''));");
+			writeln("    drawChart(width, Math.round(width * initialHeight / initialWidth));");
+			writeln("    return;");
+			writeln("  }");
 			// chop off "px" and round up float values
 			writeln("  width = Math.round(Element.getStyle('img','width').replace('px','')) - 80;");
 			writeln("  height = Math.round(width * initialHeight / initialWidth) - 48;");
@@ -425,6 +450,15 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			writeln("    initialWidth = Math.round(Element.getStyle('img','width').replace('px',''));");
 			writeln("    initialHeight = Math.round(Element.getStyle('img','height').replace('px',''));");
 			writeln("  }");
+			writeln("  if (GraphSeries.isSupported()) {");
+			writeln("    GraphSeries.load('?part=graphData\\u0026graph=" + urlEncode(graphName)
+					+ "', function(series) {");
+			writeln("      graphSeries = series;");
+			writeln("      drawChart(initialWidth, initialHeight);");
+			writeln("      document.getElementById('img').style.display = 'none';");
+			writeln("      document.getElementById('chart').style.display = '';");
+			writeln("    });");
+			writeln("  }");
 			writeln("}");
 			writeln(SCRIPT_END);
 		}
@@ -619,6 +653,7 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write("<th class='sorttable_numeric'>#Temps_moyen#</th>");
 			write("<th class='sorttable_numeric'>#Temps_max#</th>");
 			write("<th class='sorttable_numeric'>#Ecart_type#</th>");
+			write("<th>#Percentiles#</th>");
 		} else {
 			write("<th class='sorttable_numeric'>#Hits#</th>");
 		}
@@ -657,12 +692,14 @@ class HtmlCounterReport extends HtmlAbstractReport {
 			write("<span class='");
 			write(getSlaHtmlClass(mean));
 			write("'>");
-			write(integerFormat.format(mean));
+			write(formatMean(request, integerFormat, systemErrorFormat));
 			write("</span>");
 			write(nextColumn);
 			write(integerFormat.format(request.getMaximum()));
 			write(nextColumn);
 			write(integerFormat.format(request.getStandardDeviation()));
+			write(nextColumn);
+			write(formatPercentiles(request, integerFormat));
 		} else {
 			write(nextColumn);
 			write(integerFormat.format(request.getHits()));
@@ -695,6 +732,33 @@ class HtmlCounterReport extends HtmlAbstractReport {
 		write("</td>");
 	}
 
+	static String formatMean(CounterRequest request, DecimalFormat integerFormat,
+			DecimalFormat decimalFormat) {
+		final double meanMillis = request.getMeanMillis();
+		if (meanMillis >= 0 && meanMillis < 10) {
+			// une moyenne de quelques millisecondes est affichée avec ses décimales
+			// (en dessous de la milliseconde avec le paramètre high-resolution-durations)
+			return decimalFormat.format(meanMillis);
+		}
+		return integerFormat.format(request.getMean());
+	}
+
+	static String formatPercentiles(CounterRequest request, DecimalFormat integerFormat) {
+		final long[] percentiles = request.getDisplayedDurationPercentiles();
+		if (percentiles[0] < 0) {
+			// pas d'histogramme dans les données d'une ancienne version
+			return "&nbsp;";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final long percentile : percentiles) {
+			if (sb.length() > 0) {
+				sb.append("&nbsp;/ ");
+			}
+			sb.append(integerFormat.format(percentile));
+		}
+		return sb.toString();
+	}
+
 	void writeRequestName(String requestId, String requestName, boolean includeGraph,
 			boolean includeDetailLink, boolean includeSummaryPerClassLink) throws IOException {
 		if (includeGraph) {
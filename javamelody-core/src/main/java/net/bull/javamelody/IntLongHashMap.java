@@ -0,0 +1,236 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Arrays;
+
+/**
+ * Map de int vers long par adressage ouvert, sans objets Integer ou Long,
+ * pour les nombres d'exécutions des requêtes filles par index de requête (voir RequestIdDictionary).
+ *
+ * L'ordre d'insertion est conservé comme dans une LinkedHashMap :
+ * les entrées sont dans des tableaux denses dans l'ordre d'insertion
+ * et la table de hachage ne contient que les positions dans ces tableaux.
+ *
+ * Les méthodes d'une instance de cette classe ne sont pas thread-safe.
+ * @author Emeric Vernat
+ */
+class IntLongHashMap implements Cloneable {
+	private static final int DEFAULT_CAPACITY = 4;
+	// marque une entrée à supprimer lors du compactage (les valeurs ne sont jamais négatives)
+	private static final long REMOVED = -1;
+
+	private int[] keys;
+	private long[] values;
+	private int size;
+	// positions + 1 des entrées dans keys et values (0 pour une case vide),
+	// la taille est une puissance de 2 au moins double du nombre d'entrées
+	private int[] table;
+
+	IntLongHashMap() {
+		super();
+		keys = new int[DEFAULT_CAPACITY];
+		values = new long[DEFAULT_CAPACITY];
+		table = new int[DEFAULT_CAPACITY * 2];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param position Position entre 0 et size() - 1, dans l'ordre d'insertion
+	 * @return Clé à cette position
+	 */
+	int keyAt(int position) {
+		return keys[position];
+	}
+
+	/**
+	 * @param position Position entre 0 et size() - 1, dans l'ordre d'insertion
+	 * @return Valeur à cette position
+	 */
+	long valueAt(int position) {
+		return values[position];
+	}
+
+	boolean containsKey(int key) {
+		return getPosition(key) >= 0;
+	}
+
+	/**
+	 * @param key int
+	 * @return Valeur pour cette clé, ou 0 si absente
+	 */
+	long get(int key) {
+		final int position = getPosition(key);
+		if (position < 0) {
+			return 0;
+		}
+		return values[position];
+	}
+
+	/**
+	 * Ajoute delta à la valeur de cette clé, en ajoutant la clé si elle est absente.
+	 * @param key int
+	 * @param delta long
+	 */
+	void add(int key, long delta) {
+		final int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != 0) {
+			final int position = table[slot] - 1;
+			if (keys[position] == key) {
+				values[position] += delta;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size == keys.length) {
+			grow();
+			add(key, delta);
+			return;
+		}
+		keys[size] = key;
+		values[size] = delta;
+		size++;
+		table[slot] = size;
+	}
+
+	void addAll(IntLongHashMap map) {
+		addAll(map, 1);
+	}
+
+	/**
+	 * Ajoute les valeurs de la map en paramètre multipliées par factor.
+	 * @param map IntLongHashMap
+	 * @param factor int
+	 */
+	void addAll(IntLongHashMap map, int factor) {
+		for (int i = 0; i < map.size; i++) {
+			add(map.keys[i], map.values[i] * factor);
+		}
+	}
+
+	/**
+	 * Soustrait les valeurs de la map en paramètre, sans descendre en dessous de 0,
+	 * et supprime les clés dont la valeur atteint 0.
+	 * @param map IntLongHashMap
+	 */
+	void subtractAll(IntLongHashMap map) {
+		boolean removed = false;
+		for (int i = 0; i < map.size; i++) {
+			final int position = getPosition(map.keys[i]);
+			if (position >= 0) {
+				final long value = Math.max(values[position] - map.values[i], 0);
+				if (value == 0) {
+					values[position] = REMOVED;
+					removed = true;
+				} else {
+					values[position] = value;
+				}
+			}
+		}
+		if (removed) {
+			compact();
+		}
+	}
+
+	/**
+	 * Vide la map en gardant les tableaux alloués.
+	 */
+	void clear() {
+		size = 0;
+		Arrays.fill(table, 0);
+	}
+
+	private int getPosition(int key) {
+		final int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while (table[slot] != 0) {
+			final int position = table[slot] - 1;
+			if (keys[position] == key) {
+				return position;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void grow() {
+		keys = Arrays.copyOf(keys, keys.length * 2);
+		values = Arrays.copyOf(values, values.length * 2);
+		rehash(table.length * 2);
+	}
+
+	private void compact() {
+		int newSize = 0;
+		for (int i = 0; i < size; i++) {
+			if (values[i] != REMOVED) {
+				keys[newSize] = keys[i];
+				values[newSize] = values[i];
+				newSize++;
+			}
+		}
+		size = newSize;
+		rehash(table.length);
+	}
+
+	private void rehash(int tableLength) {
+		table = new int[tableLength];
+		final int mask = tableLength - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hash(keys[i]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = i + 1;
+		}
+	}
+
+	private static int hash(int key) {
+		// les clés sont des index consécutifs, il faut donc les disperser dans la table
+		final int h = key * 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public IntLongHashMap clone() { // NOPMD
+		try {
+			final IntLongHashMap clone = (IntLongHashMap) super.clone();
+			clone.keys = keys.clone();
+			clone.values = values.clone();
+			clone.table = table.clone();
+			return clone;
+		} catch (final CloneNotSupportedException e) {
+			// ne peut arriver puisque IntLongHashMap implémente Cloneable
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size + ']';
+	}
+}
@@ -34,6 +34,8 @@ import java.util.Timer;
 
 import javax.imageio.ImageIO;
 
+import org.jrobin.core.FetchData;
+import org.jrobin.core.FetchRequest;
 import org.jrobin.core.RrdBackendFactory;
 import org.jrobin.core.RrdDb;
 import org.jrobin.core.RrdDbPool;
@@ -83,6 +85,7 @@ final class JRobin {
 	private static final int HOUR = 60 * 60;
 	private static final int DAY = 24 * HOUR;
 	private static final int DEFAULT_OBSOLETE_GRAPHS_DAYS = 90;
+	private static final GraphCache GRAPH_CACHE = new GraphCache();
 
 	// pool of open RRD files
 	private final RrdDbPool rrdPool = getRrdDbPool();
@@ -91,14 +94,29 @@ final class JRobin {
 	private final String rrdFileName;
 	private final int step;
 	private final String requestName;
+	private final String dataSourceName;
+	// segments contenant la courbe de cette requête, ou null si elle a son propre fichier rrd
+	private final JRobinSegments segments;
 
 	private JRobin(String application, String name, File rrdFile, int step, String requestName)
 			throws RrdException, IOException {
+		// RrdDef.addDatasource n'accepte pas un nom de datasource supérieur à 20 caractères
+		this(application, name, rrdFile, step, requestName, name.substring(0,
+				Math.min(20, name.length())), null);
+
+		init();
+	}
+
+	// CHECKSTYLE:OFF
+	private JRobin(String application, String name, File rrdFile, int step, String requestName,
+			String dataSourceName, JRobinSegments segments) throws IOException {
+		// CHECKSTYLE:ON
 		super();
 		assert application != null;
 		assert name != null;
 		assert rrdFile != null;
 		assert step > 0;
+		assert dataSourceName != null;
 		// requestName est null pour un compteur
 
 		this.application = application;
@@ -106,14 +124,16 @@ final class JRobin {
 		this.rrdFileName = rrdFile.getPath();
 		this.step = step;
 		this.requestName = requestName;
-
-		init();
+		this.dataSourceName = dataSourceName;
+		this.segments = segments;
 	}
 
 	static void stop() {
 		if (RrdNioBackend.getFileSyncTimer() != null) {
 			RrdNioBackend.getFileSyncTimer().cancel();
 		}
+		// les fichiers modifiés depuis leur dernière synchronisation sont synchronisés à l'arrêt
+		RrdNioSyncScheduler.syncAll();
 	}
 
 	/**
@@ -147,6 +167,24 @@ final class JRobin {
 		}
 	}
 
+	/**
+	 * Instance pour la courbe d'une requête stockée dans une datasource d'un fichier de segment.
+	 * @param application Code de l'application
+	 * @param name Id de la requête
+	 * @param requestName Nom de la requête
+	 * @param segmentFile Fichier rrd du segment, déjà créé
+	 * @param dataSourceName Nom de la datasource de la requête dans le segment
+	 * @param segments JRobinSegments
+	 * @return JRobin
+	 * @throws IOException e
+	 */
+	static JRobin createSegmentInstance(String application, String name, String requestName,
+			File segmentFile, String dataSourceName, JRobinSegments segments) throws IOException {
+		assert segments != null;
+		return new JRobin(application, name, segmentFile, Parameters.getResolutionSeconds(),
+				requestName, dataSourceName, segments);
+	}
+
 	private void init() throws IOException, RrdException {
 		final File rrdFile = new File(rrdFileName);
 		final File rrdDirectory = rrdFile.getParentFile();
@@ -158,35 +196,44 @@ final class JRobin {
 		// (fix IOException: Read failed, file xxx.rrd not mapped for I/O)
 		if (!rrdFile.exists() || rrdFile.length() == 0) {
 			// create RRD file since it does not exist (or is empty)
-			final RrdDef rrdDef = new RrdDef(rrdFileName, step);
-			// "startTime" décalé de "step" pour éviter que addValue appelée juste
-			// après ne lance l'exception suivante la première fois
-			// "Bad sample timestamp x. Last update time was x, at least one second step is required"
-			rrdDef.setStartTime(Util.getTime() - step);
-			// single gauge datasource
-			final String dsType = "GAUGE";
-			// max time before "unknown value"
-			final int heartbeat = step * 2;
-			rrdDef.addDatasource(getDataSourceName(), dsType, heartbeat, 0, Double.NaN);
-			// several archives
-			final String average = "AVERAGE";
-			final String max = "MAX";
-			// 1 jour
-			rrdDef.addArchive(average, 0.25, 1, DAY / step);
-			rrdDef.addArchive(max, 0.25, 1, DAY / step);
-			// 1 semaine
-			rrdDef.addArchive(average, 0.25, HOUR / step, 7 * 24);
-			rrdDef.addArchive(max, 0.25, HOUR / step, 7 * 24);
-			// 1 mois
-			rrdDef.addArchive(average, 0.25, 6 * HOUR / step, 31 * 4);
-			rrdDef.addArchive(max, 0.25, 6 * HOUR / step, 31 * 4);
-			// 2 ans (1 an pour période "1 an" et 2 ans pour période "tout")
-			rrdDef.addArchive(average, 0.25, 8 * 6 * HOUR / step, 2 * 12 * 15);
-			rrdDef.addArchive(max, 0.25, 8 * 6 * HOUR / step, 2 * 12 * 15);
+			final RrdDef rrdDef = createRrdDef(rrdFileName, step, getDataSourceName());
 			// create RRD file in the pool
 			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdDef);
 			rrdPool.release(rrdDb);
+			StorageMaintenance.fileWritten(rrdFile);
+		}
+	}
+
+	static RrdDef createRrdDef(String rrdFileName, int step, String... dataSourceNames)
+			throws RrdException {
+		final RrdDef rrdDef = new RrdDef(rrdFileName, step);
+		// "startTime" décalé de "step" pour éviter que addValue appelée juste
+		// après ne lance l'exception suivante la première fois
+		// "Bad sample timestamp x. Last update time was x, at least one second step is required"
+		rrdDef.setStartTime(Util.getTime() - step);
+		// gauge datasources (une seule sauf pour les segments)
+		final String dsType = "GAUGE";
+		// max time before "unknown value"
+		final int heartbeat = step * 2;
+		for (final String dataSourceName : dataSourceNames) {
+			rrdDef.addDatasource(dataSourceName, dsType, heartbeat, 0, Double.NaN);
 		}
+		// several archives
+		final String average = "AVERAGE";
+		final String max = "MAX";
+		// 1 jour
+		rrdDef.addArchive(average, 0.25, 1, DAY / step);
+		rrdDef.addArchive(max, 0.25, 1, DAY / step);
+		// 1 semaine
+		rrdDef.addArchive(average, 0.25, HOUR / step, 7 * 24);
+		rrdDef.addArchive(max, 0.25, HOUR / step, 7 * 24);
+		// 1 mois
+		rrdDef.addArchive(average, 0.25, 6 * HOUR / step, 31 * 4);
+		rrdDef.addArchive(max, 0.25, 6 * HOUR / step, 31 * 4);
+		// 2 ans (1 an pour période "1 an" et 2 ans pour période "tout")
+		rrdDef.addArchive(average, 0.25, 8 * 6 * HOUR / step, 2 * 12 * 15);
+		rrdDef.addArchive(max, 0.25, 8 * 6 * HOUR / step, 2 * 12 * 15);
+		return rrdDef;
 	}
 
 	private void resetFile() throws IOException {
@@ -203,6 +250,27 @@ final class JRobin {
 	}
 
 	byte[] graph(Range range, int width, int height, boolean maxHidden) throws IOException {
+		final long maxCacheSize = GraphCache.getMaxMemorySize();
+		if (maxCacheSize <= 0) {
+			return renderGraph(range, width, height, maxHidden);
+		}
+		// l'image est dessinée à nouveau si le fichier rrd a été mis à jour depuis,
+		// ou si la fin de la période a avancé d'un pas même sans mise à jour (collecte arrêtée)
+		final String key = rrdFileName + '|' + getDataSourceName() + '|' + range.getValue() + '|'
+				+ width + '|' + height + '|' + maxHidden + '|' + I18N.getCurrentLocale();
+		final long lastUpdateTime = getLastUpdateTime();
+		final int resolutionSeconds = Parameters.getResolutionSeconds();
+		final long endTime = getEndTime(range) / resolutionSeconds * resolutionSeconds;
+		byte[] image = GRAPH_CACHE.get(key, lastUpdateTime, endTime);
+		if (image == null) {
+			image = renderGraph(range, width, height, maxHidden);
+			GRAPH_CACHE.put(key, lastUpdateTime, endTime, image, maxCacheSize);
+		}
+		return image;
+	}
+
+	private byte[] renderGraph(Range range, int width, int height, boolean maxHidden)
+			throws IOException {
 		// static init of the AppContext ClassLoader
 		AppContextClassLoaderLeakPrevention.dummy();
 
@@ -235,19 +303,70 @@ final class JRobin {
 		}
 	}
 
-	private void initGraphPeriodAndSize(Range range, int width, int height, RrdGraphDef graphDef) {
-		// ending timestamp is the (current) timestamp in seconds
-		// starting timestamp will be adjusted for each graph
-		final long endTime;
-		final long startTime;
+	private static long getEndTime(Range range) {
 		if (range.getPeriod() == null) {
 			// si endDate à la date du jour, alors on ne dépasse pas l'heure courante
-			endTime = Math.min(range.getEndDate().getTime() / 1000, Util.getTime());
-			startTime = range.getStartDate().getTime() / 1000;
-		} else {
-			endTime = Util.getTime();
-			startTime = endTime - range.getPeriod().getDurationSeconds();
+			return Math.min(range.getEndDate().getTime() / 1000, Util.getTime());
 		}
+		return Util.getTime();
+	}
+
+	private static long getStartTime(Range range, long endTime) {
+		if (range.getPeriod() == null) {
+			return range.getStartDate().getTime() / 1000;
+		}
+		return endTime - range.getPeriod().getDurationSeconds();
+	}
+
+	/**
+	 * Lit les valeurs moyennes et maximales de la courbe sur la période,
+	 * dans les mêmes archives que celles utilisées pour dessiner les images.
+	 * @param range Période
+	 * @return GraphSeries
+	 * @throws IOException e
+	 */
+	GraphSeries getGraphSeries(Range range) throws IOException {
+		final long endTime = getEndTime(range);
+		final long startTime = getStartTime(range, endTime);
+		final String dataSourceName = getDataSourceName();
+		try {
+			// request RRD database reference from the pool
+			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFileName);
+			try {
+				// archive avec la meilleure résolution contenant toute la période
+				final FetchRequest averageRequest = rrdDb.createFetchRequest("AVERAGE",
+						startTime, endTime);
+				// un fichier de segments contient les courbes de plusieurs requêtes
+				averageRequest.setFilter(dataSourceName);
+				final FetchData averageData = averageRequest.fetchData();
+				final FetchRequest maxRequest = rrdDb.createFetchRequest("MAX", startTime,
+						endTime, averageData.getStep());
+				maxRequest.setFilter(dataSourceName);
+				final FetchData maxData = maxRequest.fetchData();
+				final double[] averages = averageData.getValues(dataSourceName);
+				double[] maxima = maxData.getValues(dataSourceName);
+				if (maxima.length != averages.length) {
+					// ne devrait pas arriver car les archives MAX ont les mêmes résolutions
+					maxima = Arrays.copyOf(maxima, averages.length);
+					Arrays.fill(maxima, Math.min(maxData.getRowCount(), averages.length),
+							averages.length, Double.NaN);
+				}
+				return new GraphSeries(getName(), getLabel(), averageData.getFirstTimestamp(),
+						averageData.getStep(), averages, maxima);
+			} finally {
+				// release RRD database reference
+				rrdPool.release(rrdDb);
+			}
+		} catch (final RrdException e) {
+			throw createIOException(e);
+		}
+	}
+
+	private void initGraphPeriodAndSize(Range range, int width, int height, RrdGraphDef graphDef) {
+		// ending timestamp is the (current) timestamp in seconds
+		// starting timestamp will be adjusted for each graph
+		final long endTime = getEndTime(range);
+		final long startTime = getStartTime(range, endTime);
 		final String label = getLabel();
 		final String titleStart;
 		if (label.length() > 31 && width <= 200) {
@@ -329,6 +448,12 @@ final class JRobin {
 	}
 
 	void addValue(double value) throws IOException {
+		if (segments != null) {
+			// la valeur sera écrite dans le segment avec celles des autres requêtes
+			// en une seule mise à jour à la fin de la collecte
+			segments.addValue(name, value);
+			return;
+		}
 		try {
 			// request RRD database reference from the pool
 			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFileName);
@@ -372,6 +497,25 @@ final class JRobin {
 		}
 	}
 
+	private long getLastUpdateTime() throws IOException {
+		try {
+			// request RRD database reference from the pool
+			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFileName);
+			try {
+				return rrdDb.getLastUpdateTime();
+			} finally {
+				// release RRD database reference
+				rrdPool.release(rrdDb);
+			}
+		} catch (final RrdException e) {
+			throw createIOException(e);
+		}
+	}
+
+	static GraphCache getGraphCache() {
+		return GRAPH_CACHE;
+	}
+
 	double getLastValue() throws IOException {
 		try {
 			// request RRD database reference from the pool
@@ -388,7 +532,16 @@ final class JRobin {
 	}
 
 	boolean deleteFile() {
-		return new File(rrdFileName).delete();
+		if (segments != null) {
+			// le fichier du segment est conservé, seule la série de cette requête est libérée
+			return segments.removeSeries(name);
+		}
+		final File file = new File(rrdFileName);
+		final boolean deleted = file.delete();
+		if (deleted) {
+			StorageMaintenance.fileDeleted(file);
+		}
+		return deleted;
 	}
 
 	private String getApplication() {
@@ -400,8 +553,7 @@ final class JRobin {
 	}
 
 	private String getDataSourceName() {
-		// RrdDef.addDatasource n'accepte pas un nom de datasource supérieur à 20 caractères
-		return name.substring(0, Math.min(20, name.length()));
+		return dataSourceName;
 	}
 
 	String getLabel() {
@@ -418,12 +570,22 @@ final class JRobin {
 		return I18N.getFormattedString("Temps_moyens_de", shortRequestName);
 	}
 
-	private static IOException createIOException(Exception e) {
+	static IOException createIOException(Exception e) {
 		// Rq: le constructeur de IOException avec message et cause n'existe qu'en jdk 1.6
 		return new IOException(e.getMessage(), e);
 	}
 
 	static long deleteObsoleteJRobinFiles(String application) throws IOException {
+		return deleteObsoleteJRobinFiles(listRrdFiles(application));
+	}
+
+	/**
+	 * Supprime les fichiers obsolètes parmi les fichiers .rrd en paramètre.
+	 * @param files Fichiers .rrd
+	 * @return Taille des fichiers non supprimés
+	 * @throws IOException e
+	 */
+	static long deleteObsoleteJRobinFiles(List<File> files) throws IOException {
 		final Calendar nowMinusThreeMonthsAndADay = Calendar.getInstance();
 		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -getObsoleteGraphsDays());
 		nowMinusThreeMonthsAndADay.add(Calendar.DAY_OF_YEAR, -1);
@@ -431,7 +593,7 @@ final class JRobin {
 		final RrdDbPool rrdPool = getRrdDbPool();
 		final int counterRequestIdLength = new CounterRequest("", "").getId().length();
 		long diskUsage = 0;
-		for (final File file : listRrdFiles(application)) {
+		for (final File file : files) {
 			// on ne supprime que les fichiers rrd de requêtes (les autres sont peu nombreux)
 			if (file.getName().length() > counterRequestIdLength
 					&& file.lastModified() < nowMinusThreeMonthsAndADay.getTimeInMillis()) {
@@ -464,7 +626,7 @@ final class JRobin {
 	 * @return Nombre de jours avant qu'un fichier de graphique JRobin (extension .rrd) qui n'est plus utilisé,
 	 * soit considéré comme obsolète et soit supprimé automatiquement, à minuit (90 par défaut, soit 3 mois).
 	 */
-	private static int getObsoleteGraphsDays() {
+	static int getObsoleteGraphsDays() {
 		final String param = Parameters.getParameter(Parameter.OBSOLETE_GRAPHS_DAYS);
 		if (param != null) {
 			// lance une NumberFormatException si ce n'est pas un nombre
@@ -495,7 +657,7 @@ final class JRobin {
 		return Arrays.asList(files);
 	}
 
-	private static RrdDbPool getRrdDbPool() throws IOException {
+	static RrdDbPool getRrdDbPool() throws IOException {
 		try {
 			return RrdDbPool.getInstance();
 		} catch (final RrdException e) {
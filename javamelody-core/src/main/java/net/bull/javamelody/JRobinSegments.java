@@ -0,0 +1,447 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jrobin.core.Archive;
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDbPool;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Robin;
+import org.jrobin.core.Sample;
+import org.jrobin.core.Util;
+
+/**
+ * Stockage des courbes de temps moyens des requêtes dans quelques fichiers rrd de segments,
+ * au lieu d'un fichier rrd par requête (paramètre consolidated-request-graphs).
+ * Chaque segment contient SERIES_PER_SEGMENT datasources, une par requête, et un index
+ * associe l'id de chaque requête à son numéro de série.
+ * Les valeurs d'une collecte sont écrites en une seule mise à jour par segment (flush),
+ * et le graphique d'une requête ne lit que la datasource de cette requête.
+ * Le fichier rrd existant d'une requête est migré dans un segment quand la requête est de nouveau
+ * collectée, les autres fichiers rrd de requêtes sont supprimés comme avant quand ils sont obsolètes.
+ * @author Emeric Vernat
+ */
+final class JRobinSegments {
+	/**
+	 * Nombre de séries (datasources) dans un fichier de segment.
+	 */
+	static final int SERIES_PER_SEGMENT = 128;
+
+	// ces noms de fichiers sont plus courts que les ids de requêtes,
+	// donc les segments ne sont pas supprimés par JRobin.deleteObsoleteJRobinFiles
+	private static final String SEGMENT_FILE_PREFIX = "requestsSegment";
+	private static final String INDEX_FILE_NAME = "requestsSegments.idx";
+	private static final int INDEX_VERSION = 1;
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+	// attente max de la fermeture par le pool d'un fichier rrd migré, utilisé par un autre thread
+	private static final long MAX_CLOSE_WAIT_MILLIS = 1000;
+
+	private final String application;
+	private final File storageDirectory;
+	private final int step;
+	// séries par id de requête, numéros de séries utilisés et valeurs de la collecte en cours,
+	// gardés par this
+	private final Map<String, Series> seriesById = new HashMap<String, Series>();
+	private final BitSet usedIndexes = new BitSet();
+	private final Map<Integer, Double> pendingValuesByIndex = new HashMap<Integer, Double>();
+	private boolean indexChanged;
+
+	/**
+	 * Série d'une requête : numéro de la série et jour de la dernière valeur.
+	 */
+	private static class Series {
+		final int index;
+		int lastUpdateDay;
+
+		Series(int index, int lastUpdateDay) {
+			super();
+			this.index = index;
+			this.lastUpdateDay = lastUpdateDay;
+		}
+	}
+
+	JRobinSegments(String application) {
+		super();
+		assert application != null;
+		this.application = application;
+		this.storageDirectory = Parameters.getStorageDirectory(application);
+		this.step = Parameters.getResolutionSeconds();
+		try {
+			readIndex();
+		} catch (final IOException e) {
+			// index illisible, tant pis : les séries seront réutilisées après avoir été vidées
+			seriesById.clear();
+			usedIndexes.clear();
+			indexChanged = true;
+			LOG.warn("exception while reading " + getIndexFile().getPath(), e);
+		}
+	}
+
+	/**
+	 * Retourne l'instance JRobin de la série d'une requête, en allouant cette série si nécessaire
+	 * et en y migrant le fichier rrd existant de la requête le cas échéant.
+	 * @param requestId Id de la requête
+	 * @param requestName Nom de la requête
+	 * @return JRobin
+	 * @throws IOException e
+	 */
+	synchronized JRobin getJRobin(String requestId, String requestName) throws IOException {
+		Series series = seriesById.get(requestId);
+		if (series == null) {
+			final int index = usedIndexes.nextClearBit(0);
+			final File segmentFile = getSegmentFile(index);
+			createSegmentIfNeeded(segmentFile);
+			final int dsIndex = index % SERIES_PER_SEGMENT;
+			// la série a pu être utilisée par une requête supprimée depuis
+			clearSeries(segmentFile, dsIndex);
+			final File rrdFile = new File(storageDirectory, requestId + ".rrd");
+			if (rrdFile.exists() && rrdFile.length() > 0) {
+				migrate(rrdFile, segmentFile, dsIndex);
+				// si le fichier ne peut pas être supprimé, la série n'est pas allouée
+				// et la migration sera refaite à la prochaine collecte
+				deleteMigratedFile(rrdFile);
+			}
+			series = new Series(index, getToday());
+			seriesById.put(requestId, series);
+			usedIndexes.set(index);
+			indexChanged = true;
+		}
+		return JRobin.createSegmentInstance(application, requestId, requestName,
+				getSegmentFile(series.index), getDataSourceName(series.index), this);
+	}
+
+	synchronized void addValue(String requestId, double value) {
+		final Series series = seriesById.get(requestId);
+		// series peut être null si la série a été supprimée entre-temps
+		if (series != null) {
+			pendingValuesByIndex.put(series.index, value);
+			final int today = getToday();
+			// l'index n'est réécrit qu'une fois par jour pour une série mise à jour à chaque collecte
+			if (series.lastUpdateDay != today) {
+				series.lastUpdateDay = today;
+				indexChanged = true;
+			}
+		}
+	}
+
+	synchronized boolean removeSeries(String requestId) {
+		final Series series = seriesById.remove(requestId);
+		if (series == null) {
+			return false;
+		}
+		// les valeurs de la série seront vidées quand elle sera réutilisée
+		usedIndexes.clear(series.index);
+		pendingValuesByIndex.remove(series.index);
+		indexChanged = true;
+		return true;
+	}
+
+	/**
+	 * Ecrit les valeurs de la collecte, en une mise à jour par segment, puis l'index s'il a changé.
+	 * @throws IOException e
+	 */
+	void flush() throws IOException {
+		final Map<File, Map<Integer, Double>> valuesBySegment = new TreeMap<File, Map<Integer, Double>>();
+		synchronized (this) {
+			for (final Map.Entry<Integer, Double> entry : pendingValuesByIndex.entrySet()) {
+				final int index = entry.getKey();
+				final File segmentFile = getSegmentFile(index);
+				Map<Integer, Double> values = valuesBySegment.get(segmentFile);
+				if (values == null) {
+					values = new HashMap<Integer, Double>();
+					valuesBySegment.put(segmentFile, values);
+				}
+				values.put(index % SERIES_PER_SEGMENT, entry.getValue());
+			}
+			pendingValuesByIndex.clear();
+		}
+		for (final Map.Entry<File, Map<Integer, Double>> entry : valuesBySegment.entrySet()) {
+			final File segmentFile = entry.getKey();
+			// le segment a pu être supprimé depuis la création de la série
+			createSegmentIfNeeded(segmentFile);
+			updateSegment(segmentFile, entry.getValue());
+		}
+		writeIndexIfChanged();
+	}
+
+	/**
+	 * Supprime les séries des requêtes sans valeur depuis obsolete-graphs-days jours,
+	 * comme les fichiers rrd de requêtes obsolètes.
+	 * @throws IOException e
+	 */
+	void deleteObsoleteSeries() throws IOException {
+		final int obsoleteDay = getToday() - JRobin.getObsoleteGraphsDays() - 1;
+		synchronized (this) {
+			final Iterator<Series> it = seriesById.values().iterator();
+			while (it.hasNext()) {
+				final Series series = it.next();
+				if (series.lastUpdateDay < obsoleteDay) {
+					it.remove();
+					usedIndexes.clear(series.index);
+					pendingValuesByIndex.remove(series.index);
+					indexChanged = true;
+				}
+			}
+		}
+		writeIndexIfChanged();
+	}
+
+	synchronized int getSeriesCount() {
+		return seriesById.size();
+	}
+
+	private void createSegmentIfNeeded(File segmentFile) throws IOException {
+		// cf issue 41 pour un fichier de longueur 0
+		if (!segmentFile.exists() || segmentFile.length() == 0) {
+			if (!storageDirectory.mkdirs() && !storageDirectory.exists()) {
+				throw new IOException("JavaMelody directory can't be created: "
+						+ storageDirectory.getPath());
+			}
+			final String[] dataSourceNames = new String[SERIES_PER_SEGMENT];
+			for (int i = 0; i < SERIES_PER_SEGMENT; i++) {
+				dataSourceNames[i] = getDataSourceName(i);
+			}
+			try {
+				final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+				final RrdDb rrdDb = rrdPool.requestRrdDb(JRobin.createRrdDef(
+						segmentFile.getPath(), step, dataSourceNames));
+				rrdPool.release(rrdDb);
+				StorageMaintenance.fileWritten(segmentFile);
+			} catch (final RrdException e) {
+				throw JRobin.createIOException(e);
+			}
+		}
+	}
+
+	private static void updateSegment(File segmentFile, Map<Integer, Double> valuesByDsIndex)
+			throws IOException {
+		try {
+			final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+			final RrdDb rrdDb = rrdPool.requestRrdDb(segmentFile.getPath());
+			synchronized (rrdDb) {
+				try {
+					// les datasources sans valeur dans cette collecte restent à NaN (inconnu)
+					final Sample sample = rrdDb.createSample();
+					if (sample.getTime() > rrdDb.getLastUpdateTime()) {
+						for (final Map.Entry<Integer, Double> entry : valuesByDsIndex.entrySet()) {
+							sample.setValue(entry.getKey(), entry.getValue());
+						}
+						sample.update();
+					}
+				} finally {
+					rrdPool.release(rrdDb);
+				}
+			}
+		} catch (final RrdException e) {
+			throw JRobin.createIOException(e);
+		}
+	}
+
+	private static void clearSeries(File segmentFile, int dsIndex) throws IOException {
+		try {
+			final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+			final RrdDb rrdDb = rrdPool.requestRrdDb(segmentFile.getPath());
+			synchronized (rrdDb) {
+				try {
+					for (int i = 0; i < rrdDb.getArcCount(); i++) {
+						rrdDb.getArchive(i).getRobin(dsIndex).setValues(Double.NaN);
+					}
+				} finally {
+					rrdPool.release(rrdDb);
+				}
+			}
+		} catch (final RrdException e) {
+			throw JRobin.createIOException(e);
+		}
+	}
+
+	private static void migrate(File rrdFile, File segmentFile, int dsIndex) throws IOException {
+		try {
+			final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+			final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFile.getPath());
+			try {
+				final RrdDb segmentRrdDb = rrdPool.requestRrdDb(segmentFile.getPath());
+				synchronized (segmentRrdDb) {
+					try {
+						final int arcCount = Math.min(rrdDb.getArcCount(),
+								segmentRrdDb.getArcCount());
+						for (int i = 0; i < arcCount; i++) {
+							copyArchive(rrdDb.getArchive(i), segmentRrdDb.getArchive(i), dsIndex);
+						}
+					} finally {
+						rrdPool.release(segmentRrdDb);
+					}
+				}
+			} finally {
+				rrdPool.release(rrdDb);
+			}
+		} catch (final RrdException e) {
+			// fichier rrd de la requête corrompu, tant pis pour son historique
+			LOG.debug("A JRobin file was not migrated: " + rrdFile.getPath());
+		}
+	}
+
+	private static void deleteMigratedFile(File rrdFile) throws IOException {
+		// le fichier est mappé en mémoire par RrdNioBackend tant que son RrdDb est ouvert dans le pool,
+		// par exemple pour un graphique en cours : on attend que le pool le ferme avant de le supprimer
+		if (!waitForCloseInPool(rrdFile)) {
+			throw new IOException("JavaMelody file still in use and not deleted after migration: "
+					+ rrdFile.getPath());
+		}
+		if (!rrdFile.delete()) {
+			throw new IOException("JavaMelody file can't be deleted: " + rrdFile.getPath());
+		}
+		StorageMaintenance.fileDeleted(rrdFile);
+	}
+
+	private static boolean waitForCloseInPool(File rrdFile) throws IOException {
+		final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+		final String canonicalPath = Util.getCanonicalPath(rrdFile.getPath());
+		final long end = System.currentTimeMillis() + MAX_CLOSE_WAIT_MILLIS;
+		// le pool ferme le RrdDb quand il est libéré par tous ses utilisateurs
+		// et il notifie alors les threads en attente sur lui
+		synchronized (rrdPool) {
+			while (Arrays.asList(rrdPool.getOpenFiles()).contains(canonicalPath)) {
+				final long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					rrdPool.wait(remaining);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void copyArchive(Archive source, Archive target, int dsIndex)
+			throws IOException {
+		final long arcStep = target.getArcStep();
+		if (source.getArcStep() != arcStep
+				|| !source.getConsolFun().equals(target.getConsolFun())) {
+			return;
+		}
+		// les archives ont la même définition mais pas forcément la même date de fin,
+		// donc les lignes sont décalées selon la différence des dates de fin
+		final int shift = (int) ((target.getEndTime() - source.getEndTime()) / arcStep);
+		final double[] values = source.getRobin(0).getValues();
+		final Robin targetRobin = target.getRobin(dsIndex);
+		final int rows = target.getRows();
+		for (int i = 0; i < rows; i++) {
+			final int sourceIndex = i + shift;
+			if (sourceIndex >= 0 && sourceIndex < values.length) {
+				targetRobin.setValue(i, values[sourceIndex]);
+			}
+		}
+	}
+
+	private void readIndex() throws IOException {
+		final File indexFile = getIndexFile();
+		if (!indexFile.exists()) {
+			return;
+		}
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			final int version = input.readInt();
+			if (version != INDEX_VERSION) {
+				throw new IOException("Unknown version " + version + " of " + indexFile.getPath());
+			}
+			final int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				final String requestId = input.readUTF();
+				final Series series = new Series(input.readInt(), input.readInt());
+				seriesById.put(requestId, series);
+				usedIndexes.set(series.index);
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	private void writeIndexIfChanged() throws IOException {
+		synchronized (this) {
+			if (!indexChanged) {
+				return;
+			}
+			final File indexFile = getIndexFile();
+			// écriture dans un fichier temporaire puis renommage, pour ne jamais avoir d'index partiel
+			final File tmpFile = new File(storageDirectory, INDEX_FILE_NAME + ".tmp");
+			final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmpFile)));
+			try {
+				output.writeInt(INDEX_VERSION);
+				output.writeInt(seriesById.size());
+				for (final Map.Entry<String, Series> entry : seriesById.entrySet()) {
+					output.writeUTF(entry.getKey());
+					output.writeInt(entry.getValue().index);
+					output.writeInt(entry.getValue().lastUpdateDay);
+				}
+			} finally {
+				output.close();
+			}
+			if (!indexFile.delete() && indexFile.exists() || !tmpFile.renameTo(indexFile)) {
+				throw new IOException("JavaMelody file can't be written: " + indexFile.getPath());
+			}
+			StorageMaintenance.fileWritten(indexFile);
+			indexChanged = false;
+		}
+	}
+
+	private File getIndexFile() {
+		return new File(storageDirectory, INDEX_FILE_NAME);
+	}
+
+	private File getSegmentFile(int index) {
+		return new File(storageDirectory, SEGMENT_FILE_PREFIX + index / SERIES_PER_SEGMENT
+				+ ".rrd");
+	}
+
+	private static String getDataSourceName(int index) {
+		return "s" + index % SERIES_PER_SEGMENT;
+	}
+
+	private static int getToday() {
+		return (int) (System.currentTimeMillis() / DAY_MILLIS);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[application=" + application + ", seriesCount="
+				+ getSeriesCount() + ']';
+	}
+}
@@ -391,29 +391,27 @@ public final class JdbcWrapper {
 			}
 		}
 
-		final long start = System.currentTimeMillis();
+		final RequestSampling sampling = sqlCounter.getSampling();
+		// si seule une requête sur N est échantillonnée, on ne binde pas de contexte pour les autres
+		final boolean sampled = sampling == null || sampling.isSampledInCurrentRequest();
+		// avec le paramètre high-resolution-durations, la durée est mesurée à la microseconde près
+		final boolean highResolution = sqlCounter.isHighResolutionDurations();
+		final long start = highResolution ? System.nanoTime() : System.currentTimeMillis();
 		boolean systemError = true;
 		try {
 			ACTIVE_CONNECTION_COUNT.incrementAndGet();
 
 			// note perf: selon un paramètre current-sql(/requests)-disabled,
 			// on pourrait ici ne pas binder un nouveau contexte à chaque requête sql
-			sqlCounter.bindContext(requestName, requestName, null, -1);
+			if (sampled) {
+				sqlCounter.bindContext(requestName, requestName, null, -1);
+			}
 
 			final Object result = method.invoke(statement, args);
 			systemError = false;
 			return result;
 		} catch (final InvocationTargetException e) {
-			if (e.getCause() instanceof SQLException) {
-				final int errorCode = ((SQLException) e.getCause()).getErrorCode();
-				if (errorCode >= 20000 && errorCode < 30000) {
-					// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
-					// comme étant des erreurs lancées par l'application dans des procédures stockées
-					// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
-					// Ce ne sont donc pas des erreurs systèmes.
-					systemError = false;
-				}
-			}
+			systemError = isSystemError(e);
 			throw e;
 		} finally {
 			// Rq : on n'utilise pas la création du statement et l'appel à la méthode close du statement
@@ -422,9 +420,37 @@ public final class JdbcWrapper {
 			// (par exemple, seule la méthode close de la connection peut être appelée ce qui ferme aussi le statement)
 			// Rq : pas de temps cpu pour les requêtes sql car c'est 0 ou quasiment 0
 			ACTIVE_CONNECTION_COUNT.decrementAndGet();
-			final long duration = Math.max(System.currentTimeMillis() - start, 0);
-			sqlCounter.addRequest(requestName, duration, -1, systemError, -1);
+			final long durationMicros;
+			if (highResolution) {
+				durationMicros = Math.max(System.nanoTime() - start, 0) / 1000;
+			} else {
+				durationMicros = Math.max(System.currentTimeMillis() - start, 0) * 1000;
+			}
+			if (sampling == null) {
+				sqlCounter.addRequestMicros(requestName, durationMicros, -1, systemError, -1, 1);
+			} else {
+				final int hitsWeight = sampling.getHitsWeight(sampled, durationMicros / 1000,
+						systemError);
+				if (hitsWeight > 0) {
+					sqlCounter.addRequestMicros(requestName, durationMicros, -1, systemError, -1,
+							hitsWeight);
+				}
+			}
+		}
+	}
+
+	private static boolean isSystemError(InvocationTargetException e) {
+		if (e.getCause() instanceof SQLException) {
+			final int errorCode = ((SQLException) e.getCause()).getErrorCode();
+			if (errorCode >= 20000 && errorCode < 30000) {
+				// Dans Oracle par exemple, les erreurs 20000 à 30000 sont standardisées
+				// comme étant des erreurs lancées par l'application dans des procédures stockées
+				// pour être traitées comme des erreurs de saisies ou comme des règles de gestion.
+				// Ce ne sont donc pas des erreurs systèmes.
+				return false;
+			}
 		}
+		return true;
 	}
 
 	boolean rebindDataSources() {
@@ -24,6 +24,8 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
 /**
@@ -84,6 +86,13 @@ public class LogbackAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 		// car il est démarré dans le constructeur et si cela ne fonctionne pas il n'y a pas d'instance
 		if (event.getLevel().isGreaterOrEqual(THRESHOLD)) {
 			final String output = messageLayout.doLayout(event);
+			final IThrowableProxy throwableProxy = event.getThrowableProxy();
+			if (throwableProxy instanceof ThrowableProxy) {
+				// l'exception est disponible : sa stack-trace n'est formatée que si elle est nouvelle
+				LoggingHandler.addErrorLogToCounter(output,
+						((ThrowableProxy) throwableProxy).getThrowable());
+				return;
+			}
 			String stackTrace = exceptionLayout.doLayout(event);
 			if (stackTrace.length() == 0) {
 				stackTrace = null;
@@ -17,8 +17,6 @@
  */
 package net.bull.javamelody;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.List;
@@ -66,9 +64,8 @@ public class LoggingHandler extends Handler {
 		if (throwable == null) {
 			addErrorLogToCounter(message, (String) null);
 		} else {
-			final StringWriter stackTrace = new StringWriter(200);
-			throwable.printStackTrace(new PrintWriter(stackTrace));
-			addErrorLogToCounter(message, stackTrace.toString());
+			// stack-trace formatée seulement si elle n'a pas déjà été rencontrée
+			addErrorLogToCounter(message, StackTraceFingerprints.getStackTrace(throwable));
 		}
 	}
 
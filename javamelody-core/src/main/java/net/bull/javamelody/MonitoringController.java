@@ -24,6 +24,7 @@ import static net.bull.javamelody.HttpParameters.COUNTER_PARAMETER;
 import static net.bull.javamelody.HttpParameters.CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.DEFAULT_WITH_CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.FORMAT_PARAMETER;
+import static net.bull.javamelody.HttpParameters.GRAPH_DATA_PART;
 import static net.bull.javamelody.HttpParameters.GRAPH_PARAMETER;
 import static net.bull.javamelody.HttpParameters.HEIGHT_PARAMETER;
 import static net.bull.javamelody.HttpParameters.JMX_VALUE;
@@ -176,6 +177,11 @@ class MonitoringController {
 				doGraph(httpRequest, httpResponse, range, graph);
 			} else if (LAST_VALUE_PART.equalsIgnoreCase(part)) {
 				doLastValue(httpResponse, graph);
+			} else if (GRAPH_DATA_PART.equalsIgnoreCase(part)
+					&& httpRequest.getParameter(FORMAT_PARAMETER) == null) {
+				// sans paramètre format, en JSON compact pour dessiner la courbe dans le navigateur
+				final Range range = httpCookieManager.getRange(httpRequest, httpResponse);
+				doGraphData(httpResponse, range, graph);
 			} else if (WEB_XML_PART.equalsIgnoreCase(part)) {
 				doWebXml(httpResponse);
 			} else if (POM_XML_PART.equalsIgnoreCase(part)) {
@@ -373,6 +379,20 @@ class MonitoringController {
 		}
 	}
 
+	private void doGraphData(HttpServletResponse httpResponse, Range range, String graphName)
+			throws IOException {
+		final JRobin jrobin = collector.getJRobin(graphName);
+		if (jrobin == null) {
+			httpResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "Graph not found");
+			return;
+		}
+		final byte[] json = jrobin.getGraphSeries(range).toJson().getBytes("UTF-8");
+		httpResponse.setContentType("application/json; charset=UTF-8");
+		httpResponse.setContentLength(json.length);
+		httpResponse.getOutputStream().write(json);
+		httpResponse.flushBuffer();
+	}
+
 	// part=lastValue&graph=x,y,z sera utilisé par munin notamment
 	private void doLastValue(HttpServletResponse httpResponse, String graphName) throws IOException {
 		httpResponse.setContentType("text/plain");
@@ -20,13 +20,12 @@ package net.bull.javamelody;
 import static net.bull.javamelody.HttpParameters.COLLECTOR_PARAMETER;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -57,6 +56,8 @@ public class MonitoringFilter implements Filter {
 
 	private boolean monitoringDisabled;
 	private boolean logEnabled;
+	// true si le conteneur est compatible Servlet 3, pour les requêtes asynchrones
+	private boolean servlet3;
 	private Pattern urlExcludePattern;
 	private FilterContext filterContext;
 	private HttpAuth httpAuth;
@@ -115,6 +116,7 @@ public class MonitoringFilter implements Filter {
 		this.errorCounter = collector.getCounterByName(Counter.ERROR_COUNTER_NAME);
 
 		logEnabled = Boolean.parseBoolean(Parameters.getParameter(Parameter.LOG));
+		servlet3 = config.getServletContext().getMajorVersion() >= 3;
 		if (Parameters.getParameter(Parameter.URL_EXCLUDE_PATTERN) != null) {
 			// lance une PatternSyntaxException si la syntaxe du pattern est invalide
 			urlExcludePattern = Pattern.compile(Parameters
@@ -163,6 +165,15 @@ public class MonitoringFilter implements Filter {
 		final HttpServletRequest httpRequest = (HttpServletRequest) request;
 		final HttpServletResponse httpResponse = (HttpServletResponse) response;
 
+		if (servlet3 && request.getDispatcherType() == DispatcherType.ASYNC) {
+			final AsyncRequestWrapper asyncRequest = (AsyncRequestWrapper) request
+					.getAttribute(AsyncRequestWrapper.REQUEST_KEY);
+			if (asyncRequest != null) {
+				// dispatch asynchrone d'une requête déjà monitorée, qui sera enregistrée à sa fin
+				asyncRequest.doFilterInThreadContext(chain, request, response);
+				return;
+			}
+		}
 		if (httpRequest.getRequestURI().equals(getMonitoringUrl(httpRequest))) {
 			doMonitoring(httpRequest, httpResponse);
 			return;
@@ -178,25 +189,45 @@ public class MonitoringFilter implements Filter {
 
 	private void doFilter(FilterChain chain, HttpServletRequest httpRequest,
 			HttpServletResponse httpResponse) throws IOException, ServletException {
+		final RequestSampling sampling = httpCounter.getSampling();
+		if (sampling != null && !sampling.isSampled()) {
+			doFilterWithoutSampling(chain, httpRequest, httpResponse, sampling);
+			return;
+		}
 		final CounterServletResponseWrapper wrappedResponse = new CounterServletResponseWrapper(
 				httpResponse);
-		final HttpServletRequest wrappedRequest = createRequestWrapper(httpRequest, wrappedResponse);
+		HttpServletRequest wrappedRequest = createRequestWrapper(httpRequest, wrappedResponse);
 		final long start = System.currentTimeMillis();
-		final long startCpuTime = ThreadInformations.getCurrentThreadCpuTime();
-		boolean systemError = false;
+		final long startCpuTime = httpCounter.getStartCpuTime();
 		Throwable systemException = null;
-		String requestName = getRequestName(wrappedRequest);
+		final String requestName = getRequestName(wrappedRequest);
 		final String completeRequestName = getCompleteRequestName(wrappedRequest, true);
+		final AsyncRequestWrapper asyncRequest;
+		if (servlet3) {
+			// pour enregistrer les requêtes asynchrones à leur fin réelle
+			asyncRequest = new AsyncRequestWrapper(this, httpCounter, wrappedRequest, httpRequest,
+					wrappedResponse, requestName, start, sampling);
+			wrappedRequest = asyncRequest;
+		} else {
+			asyncRequest = null;
+		}
 		try {
 			JdbcWrapper.ACTIVE_THREAD_COUNT.incrementAndGet();
 			// on binde le contexte de la requête http pour les requêtes sql
 			httpCounter.bindContext(requestName, completeRequestName, httpRequest.getRemoteUser(),
 					startCpuTime);
+			if (sampling != null) {
+				// les requêtes sql de cette requête http sont aussi entièrement monitorées
+				sampling.bindCurrentRequest(true);
+			}
 			// on binde la requête http (utilisateur courant et requête complète) pour les derniers logs d'erreurs
 			httpRequest.setAttribute(CounterError.REQUEST_KEY, completeRequestName);
 			CounterError.bindRequest(httpRequest);
 			chain.doFilter(wrappedRequest, wrappedResponse);
-			wrappedResponse.flushBuffer();
+			if (asyncRequest == null || !asyncRequest.isAsyncStarted()) {
+				// pour une requête asynchrone, la réponse sera envoyée à la fin de la requête
+				wrappedResponse.flushBuffer();
+			}
 		} catch (final Throwable t) { // NOPMD
 			// on catche Throwable pour avoir tous les cas d'erreur système
 			systemException = t;
@@ -219,41 +250,19 @@ public class MonitoringFilter implements Filter {
 				// voir aussi http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6440250)
 				// et car des millisecondes suffisent pour une requête http
 				final long duration = Math.max(System.currentTimeMillis() - start, 0);
-				final long cpuUsedMillis = (ThreadInformations.getCurrentThreadCpuTime() - startCpuTime) / 1000000;
+				final long cpuUsedMillis = httpCounter.getCpuTimeMillis(startCpuTime, duration);
 
 				JdbcWrapper.ACTIVE_THREAD_COUNT.decrementAndGet();
 
 				putUserInfoInSession(httpRequest);
 
-				if (systemException != null) {
-					systemError = true;
-					final StringWriter stackTrace = new StringWriter(200);
-					systemException.printStackTrace(new PrintWriter(stackTrace));
-					errorCounter.addRequestForSystemError(systemException.toString(), duration,
-							cpuUsedMillis, stackTrace.toString());
-				} else if (wrappedResponse.getCurrentStatus() >= HttpServletResponse.SC_BAD_REQUEST
-						&& wrappedResponse.getCurrentStatus() != HttpServletResponse.SC_UNAUTHORIZED) {
-					// SC_UNAUTHORIZED (401) is not an error, it is the first handshake of a Basic (or Digest) Auth (issue 455)
-					systemError = true;
-					errorCounter.addRequestForSystemError(
-							"Error" + wrappedResponse.getCurrentStatus(), duration, cpuUsedMillis,
-							null);
-				}
-
-				// taille du flux sortant
-				final int responseSize = wrappedResponse.getDataLength();
-				// nom identifiant la requête
-				if (wrappedResponse.getCurrentStatus() == HttpServletResponse.SC_NOT_FOUND) {
-					// Sécurité : si status http est 404, alors requestName est Error404
-					// pour éviter de saturer la mémoire avec potentiellement beaucoup d'url différentes
-					requestName = "Error404";
+				if (asyncRequest == null
+						|| !asyncRequest.detachIfAsync(cpuUsedMillis, systemException)) {
+					addRequest(httpRequest, wrappedResponse, requestName, duration, cpuUsedMillis,
+							systemException, sampling, null);
 				}
-
-				// on enregistre la requête dans les statistiques
-				httpCounter.addRequest(requestName, duration, cpuUsedMillis, systemError,
-						responseSize);
-				// on log sur Log4J ou java.util.logging dans la catégorie correspond au nom du filtre dans web.xml
-				log(httpRequest, requestName, duration, systemError, responseSize);
+				// sinon la requête est asynchrone et sera enregistrée à sa fin,
+				// sans retenir ce thread
 			} finally {
 				// normalement le unbind du contexte a été fait dans httpCounter.addRequest
 				// mais pour être sûr au cas où il y ait une exception comme OutOfMemoryError
@@ -262,6 +271,125 @@ public class MonitoringFilter implements Filter {
 				httpCounter.unbindContext();
 				// et unbind de la requête http
 				CounterError.unbindRequest();
+				if (sampling != null) {
+					RequestSampling.unbindCurrentRequest();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enregistre une requête http terminée dans les statistiques.
+	 * @param httpRequest HttpServletRequest
+	 * @param wrappedResponse CounterServletResponseWrapper
+	 * @param requestName Nom de la requête
+	 * @param duration Durée
+	 * @param cpuUsedMillis Temps cpu
+	 * @param systemException Exception ou null
+	 * @param sampling RequestSampling ou null
+	 * @param detachedContext Contexte détaché d'une requête asynchrone, ou null pour le contexte courant
+	 */
+	// CHECKSTYLE:OFF
+	void addRequest(HttpServletRequest httpRequest, CounterServletResponseWrapper wrappedResponse,
+			String requestName, long duration, long cpuUsedMillis, Throwable systemException,
+			RequestSampling sampling, CounterRequestContext detachedContext) {
+		// CHECKSTYLE:ON
+		if (httpCounter == null) {
+			// filtre arrêté avant la fin d'une requête asynchrone
+			return;
+		}
+		final int status = wrappedResponse.getCurrentStatus();
+		final boolean systemError = isSystemError(systemException, status);
+		if (systemError) {
+			addRequestForSystemError(systemException, status, duration, cpuUsedMillis);
+		}
+
+		// taille du flux sortant
+		final int responseSize = wrappedResponse.getDataLength();
+		// nom identifiant la requête
+		final String myRequestName = getRequestNameForStatus(requestName, status);
+
+		// on enregistre la requête dans les statistiques,
+		// en comptant N hits si seule une requête sur N est échantillonnée
+		final int hitsWeight;
+		if (sampling != null) {
+			hitsWeight = sampling.getHitsWeight(true, duration, systemError);
+		} else {
+			hitsWeight = 1;
+		}
+		if (detachedContext != null) {
+			httpCounter.addRequestForDetachedContext(detachedContext, myRequestName, duration,
+					cpuUsedMillis, systemError, responseSize, hitsWeight);
+		} else {
+			httpCounter.addRequest(myRequestName, duration, cpuUsedMillis, systemError,
+					responseSize, hitsWeight);
+		}
+		// on log sur Log4J ou java.util.logging dans la catégorie correspond au nom du filtre dans web.xml
+		log(httpRequest, myRequestName, duration, systemError, responseSize);
+	}
+
+	private static boolean isSystemError(Throwable systemException, int status) {
+		// SC_UNAUTHORIZED (401) is not an error, it is the first handshake of a Basic (or Digest) Auth (issue 455)
+		return systemException != null || status >= HttpServletResponse.SC_BAD_REQUEST
+				&& status != HttpServletResponse.SC_UNAUTHORIZED;
+	}
+
+	private void addRequestForSystemError(Throwable systemException, int status, long duration,
+			long cpuUsedMillis) {
+		if (systemException != null) {
+			// stack-trace formatée seulement si elle n'a pas déjà été rencontrée
+			final String stackTrace = StackTraceFingerprints.getStackTrace(systemException);
+			errorCounter.addRequestForSystemError(systemException.toString(), duration,
+					cpuUsedMillis, stackTrace);
+		} else {
+			errorCounter.addRequestForSystemError("Error" + status, duration, cpuUsedMillis, null);
+		}
+	}
+
+	private static String getRequestNameForStatus(String requestName, int status) {
+		if (status == HttpServletResponse.SC_NOT_FOUND) {
+			// Sécurité : si status http est 404, alors requestName est Error404
+			// pour éviter de saturer la mémoire avec potentiellement beaucoup d'url différentes
+			return "Error404";
+		}
+		return requestName;
+	}
+
+	private void doFilterWithoutSampling(FilterChain chain, HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse, RequestSampling sampling) throws IOException,
+			ServletException {
+		// requête non échantillonnée (paramètre requests-sampling-rate) : pas de wrapper de requête,
+		// ni de flux de réponse, ni de temps cpu, ni de contexte, ni de requêtes sql filles,
+		// seuls la durée et le status sont retenus pour enregistrer quand même les requêtes en erreur ou lentes
+		final long start = System.currentTimeMillis();
+		final StatusServletResponseWrapper wrappedResponse = new StatusServletResponseWrapper(
+				httpResponse);
+		Throwable systemException = null;
+		try {
+			JdbcWrapper.ACTIVE_THREAD_COUNT.incrementAndGet();
+			sampling.bindCurrentRequest(false);
+			chain.doFilter(httpRequest, wrappedResponse);
+		} catch (final Throwable t) { // NOPMD
+			systemException = t;
+			throwException(t);
+		} finally {
+			JdbcWrapper.ACTIVE_THREAD_COUNT.decrementAndGet();
+			RequestSampling.unbindCurrentRequest();
+			if (httpCounter != null) {
+				final long duration = Math.max(System.currentTimeMillis() - start, 0);
+				final int status = wrappedResponse.getCurrentStatus();
+				final boolean systemError = isSystemError(systemException, status);
+				if (sampling.getHitsWeight(false, duration, systemError) > 0) {
+					if (systemError) {
+						addRequestForSystemError(systemException, status, duration, -1);
+					}
+					// le temps cpu et la taille de la réponse ne sont pas connus ici (-1),
+					// ils ne comptent donc pas dans les moyennes de la requête
+					final String requestName = getRequestNameForStatus(
+							getRequestName(httpRequest), status);
+					httpCounter.addRequest(requestName, duration, -1, systemError, -1);
+					log(httpRequest, requestName, duration, systemError, -1);
+				}
 			}
 		}
 	}
@@ -294,6 +294,123 @@ public enum Parameter {
 	 */
 	CONNECTIONS_STACK_TRACES_DISABLED("connections-stack-traces-disabled"),
 
+	/**
+	 * true | false, true will accumulate hits of each request in stripes, created only when threads contend,
+	 * to reduce lock contention on the most frequent requests with many cores (default: false).
+	 */
+	STRIPED_COUNTERS("striped-counters"),
+
+	/**
+	 * true | false, true will reuse per thread the contexts of requests (and their maps of child requests)
+	 * instead of allocating them for each request, contexts are only cloned for the current requests view (default: false).
+	 */
+	RECYCLED_CONTEXTS("recycled-contexts"),
+
+	/**
+	 * true | false, true will record hits in per-thread ring buffers without any lock in the request thread,
+	 * the hits being applied to the counters by a background thread
+	 * (hits are dropped and counted if a buffer is full, default: false).
+	 */
+	ASYNC_HITS("async-hits"),
+
+	/**
+	 * Number of the heaviest requests kept by each counter with the "space-saving" algorithm,
+	 * the other requests being aggregated in one "(other requests)" request
+	 * (default: null, that is no limit other than the overflow of 10000 requests per counter).
+	 * Useful for unbound sql requests or urls with ids.
+	 */
+	TOP_REQUESTS_COUNT("top-requests-count"),
+
+	/**
+	 * hits | duration, weight of the requests for the parameter top-requests-count:
+	 * number of hits or cumulated duration (default: hits).
+	 */
+	TOP_REQUESTS_WEIGHT("top-requests-weight"),
+
+	/**
+	 * Integer N, only 1 http request and 1 sql request in N, chosen at random, are fully monitored
+	 * and their hits count for N hits, to reduce the overhead with very high loads.
+	 * Errors and requests slower than requests-sampling-slow-millis are always recorded.
+	 * Requests which are not sampled are not displayed in the current requests
+	 * (default: null, that is all requests are monitored).
+	 */
+	REQUESTS_SAMPLING_RATE("requests-sampling-rate"),
+
+	/**
+	 * Duration in milliseconds above which a request is always recorded,
+	 * when the parameter requests-sampling-rate is defined (default: 1000).
+	 */
+	REQUESTS_SAMPLING_SLOW_MILLIS("requests-sampling-slow-millis"),
+
+	/**
+	 * always | sampled | slow, measure of the cpu time of http, ejb, spring, guice and services requests:
+	 * for every request, for 1 request in cpu-time-sampling-rate (the cpu time counting for N requests)
+	 * or only at the end of requests slower than cpu-time-slow-millis (default: always).
+	 * The cost of a cpu time measure is displayed at the bottom of the report.
+	 */
+	CPU_TIME_ACCOUNTING("cpu-time-accounting"),
+
+	/**
+	 * Integer N, 1 request in N has its cpu time measured when cpu-time-accounting is sampled (default: 10).
+	 */
+	CPU_TIME_SAMPLING_RATE("cpu-time-sampling-rate"),
+
+	/**
+	 * Duration in milliseconds above which the cpu time of a request is measured,
+	 * when cpu-time-accounting is slow (default: 1000).
+	 */
+	CPU_TIME_SLOW_MILLIS("cpu-time-slow-millis"),
+
+	/**
+	 * true | false, true will measure the durations of sql, ejb, spring, guice, services and jobs requests
+	 * with System.nanoTime() to the microsecond, instead of System.currentTimeMillis() to the millisecond,
+	 * for fast requests and means under one millisecond (default: false).
+	 */
+	HIGH_RESOLUTION_DURATIONS("high-resolution-durations"),
+
+	/**
+	 * Integer N, number of threads collecting the counters in parallel every minute,
+	 * the duration of the collect being then the one of the slowest counter (default: 1, no parallel collect).
+	 * The durations of the last collect by counter are displayed at the bottom of the report.
+	 */
+	COLLECT_THREADS("collect-threads"),
+
+	/**
+	 * true | false, true will store the graphs of mean times of requests in a few segment files
+	 * of 128 requests each, with one write per segment at each collect, instead of one rrd file per request.
+	 * The existing rrd files of requests are migrated when the requests are collected again (default: false).
+	 */
+	CONSOLIDATED_REQUEST_GRAPHS("consolidated-request-graphs"),
+
+	/**
+	 * true | false, true will keep in memory the statistics of the previous days for the week,
+	 * month and year periods, instead of reading again the files of each day at each display.
+	 * The statistics of the current day are added at each display and the previous days
+	 * are computed again after the change of day (default: false).
+	 */
+	PERIOD_COUNTERS_CACHE("period-counters-cache"),
+
+	/**
+	 * true | false, true will append only the requests changed since the previous write to a journal file
+	 * at each collect, instead of writing again the whole counter in its .ser.gz file.
+	 * The whole counter is written again every hour and at the change of day (default: false).
+	 */
+	COUNTERS_JOURNAL("counters-journal"),
+
+	/**
+	 * true | false, true will write the counters files in a compact binary format,
+	 * faster to write and to read than the java serialization (default: false).
+	 * The files written before in the java serialization format are still readable.
+	 */
+	COUNTERS_BINARY_FORMAT("counters-binary-format"),
+
+	/**
+	 * Max memory size in MB of the cache of rendered graph images (default: null, no cache).
+	 * A cached image is rendered again when its rrd file has been updated since,
+	 * and the least recently used images are evicted when the cache is full.
+	 */
+	GRAPHS_CACHE_SIZE("graphs-cache-size"),
+
 	/**
 	 * URL http du fichier jar javamelody-swing (null par défaut : le fichier sera téléchargé depuis http://javamelody.googlecode.com selon la version). <br/>
 	 * Ce paramètre est surtout utile quand les utilisateurs n'ont pas accès à Internet pour télécharger sur googlecode.
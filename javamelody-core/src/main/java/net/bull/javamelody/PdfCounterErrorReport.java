@@ -117,6 +117,11 @@ class PdfCounterErrorReport extends PdfAbstractTableReport {
 				addCell(error.getRemoteUser());
 			}
 		}
-		addCell(error.getMessage());
+		if (error.getOccurrencesCount() > 1) {
+			addCell(error.getMessage() + ' '
+					+ getFormattedString("error_occurrences", error.getOccurrencesCount()));
+		} else {
+			addCell(error.getMessage());
+		}
 	}
 }
@@ -178,6 +178,7 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			headers.add(getString("Temps_moyen"));
 			headers.add(getString("Temps_max"));
 			headers.add(getString("Ecart_type"));
+			headers.add(getString("Percentiles"));
 		} else {
 			headers.add(getString("Hits"));
 		}
@@ -238,9 +239,11 @@ class PdfCounterReport extends PdfAbstractTableReport {
 			addPercentageCell(request.getDurationsSum(), globalRequest.getDurationsSum());
 			addCell(integerFormat.format(request.getHits()));
 			final int mean = request.getMean();
-			addCell(new Phrase(integerFormat.format(mean), getSlaFont(mean)));
+			addCell(new Phrase(HtmlCounterReport.formatMean(request, integerFormat,
+					systemErrorFormat), getSlaFont(mean)));
 			addCell(integerFormat.format(request.getMaximum()));
 			addCell(integerFormat.format(request.getStandardDeviation()));
+			addCell(formatPercentiles(request));
 		} else {
 			addCell(integerFormat.format(request.getHits()));
 		}
@@ -261,6 +264,22 @@ class PdfCounterReport extends PdfAbstractTableReport {
 		}
 	}
 
+	private String formatPercentiles(CounterRequest request) {
+		final long[] percentiles = request.getDisplayedDurationPercentiles();
+		if (percentiles[0] < 0) {
+			// pas d'histogramme dans les données d'une ancienne version
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final long percentile : percentiles) {
+			if (sb.length() > 0) {
+				sb.append(" / ");
+			}
+			sb.append(integerFormat.format(percentile));
+		}
+		return sb.toString();
+	}
+
 	private void writeRequestGraph(CounterRequest request) throws BadElementException, IOException {
 		final JRobin jrobin = collector.getJRobin(request.getId());
 		if (jrobin == null) {
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache des statistiques agrégées des jours précédents pour les périodes semaine, mois et année
+ * (paramètre period-counters-cache), pour ne pas relire et agréger à chaque affichage
+ * les 7, 31 ou 365 fichiers de jours de chaque counter.
+ *
+ * Les jours précédents ne changent plus dans la journée : le compteur du jour courant,
+ * qui change à chaque collecte, est ajouté par PeriodCounterFactory à chaque demande
+ * et une entrée du cache n'est valable que pour le compteur du jour avec lequel elle a été calculée.
+ * Au changement de jour (et donc de mois), les entrées sont recalculées à la demande suivante.
+ *
+ * Le cache contient au plus une entrée par counter et par période, chacune étant limitée
+ * comme les autres counters au nombre max de requêtes. Le nombre de requêtes et l'estimation
+ * mémoire du cache sont affichées dans la page de monitoring.
+ * @author Emeric Vernat
+ */
+class PeriodCounterCache {
+	@SuppressWarnings("all")
+	private final ConcurrentMap<String, Entry> entriesByKey = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static final class Entry {
+		// nom de stockage du compteur du jour, qui contient la date du jour
+		final String dayStorageName;
+		final Counter previousDaysCounter;
+		final long estimatedMemorySize;
+
+		Entry(String dayStorageName, Counter previousDaysCounter, long estimatedMemorySize) {
+			super();
+			this.dayStorageName = dayStorageName;
+			this.previousDaysCounter = previousDaysCounter;
+			this.estimatedMemorySize = estimatedMemorySize;
+		}
+	}
+
+	/**
+	 * @param currentDayCounter Compteur du jour courant
+	 * @param period Période
+	 * @return Compteur des jours précédents de la période, ou null s'il n'est pas dans le cache
+	 * 	ou s'il a été calculé un autre jour (il ne doit pas être modifié)
+	 */
+	Counter get(Counter currentDayCounter, Period period) {
+		final Entry entry = entriesByKey.get(getKey(currentDayCounter, period));
+		if (entry != null && entry.dayStorageName.equals(currentDayCounter.getStorageName())) {
+			hits.incrementAndGet();
+			return entry.previousDaysCounter;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	void put(Counter currentDayCounter, Period period, Counter previousDaysCounter) {
+		// estimation mémoire selon celle du compteur du jour, mesurée lors de son enregistrement
+		long estimatedMemorySize = 0;
+		final int dayRequestsCount = currentDayCounter.getRequestsCount();
+		if (dayRequestsCount > 0) {
+			estimatedMemorySize = currentDayCounter.getEstimatedMemorySize()
+					* previousDaysCounter.getRequestsCount() / dayRequestsCount;
+		}
+		// remplace l'entrée éventuelle d'un jour précédent
+		entriesByKey.put(getKey(currentDayCounter, period), new Entry(
+				currentDayCounter.getStorageName(), previousDaysCounter, estimatedMemorySize));
+	}
+
+	int getSize() {
+		return entriesByKey.size();
+	}
+
+	int getRequestsCount() {
+		int result = 0;
+		for (final Entry entry : entriesByKey.values()) {
+			result += entry.previousDaysCounter.getRequestsCount();
+		}
+		return result;
+	}
+
+	long getEstimatedMemorySize() {
+		long result = 0;
+		for (final Entry entry : entriesByKey.values()) {
+			result += entry.estimatedMemorySize;
+		}
+		return result;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	private static String getKey(Counter currentDayCounter, Period period) {
+		return currentDayCounter.getName() + '|' + period.getCode();
+	}
+}
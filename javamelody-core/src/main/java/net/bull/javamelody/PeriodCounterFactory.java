@@ -19,9 +19,12 @@ package net.bull.javamelody;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 /**
  * Factory pour les compteurs par jour, par semaine, par mois et par année.
@@ -32,11 +35,23 @@ class PeriodCounterFactory {
 	// de Calendar à la date et à l'heure courante (cette date-heure peut être modifiée)
 
 	private final Counter currentDayCounter;
+	private final PeriodCounterCache periodCounterCache;
 
 	PeriodCounterFactory(Counter currentDayCounter) {
+		this(currentDayCounter, null);
+	}
+
+	/**
+	 * Constructeur.
+	 * @param currentDayCounter Compteur du jour courant
+	 * @param periodCounterCache Cache des jours précédents pour la semaine, le mois et l'année
+	 * 	(null si paramètre period-counters-cache non défini)
+	 */
+	PeriodCounterFactory(Counter currentDayCounter, PeriodCounterCache periodCounterCache) {
 		super();
 		assert currentDayCounter != null;
 		this.currentDayCounter = currentDayCounter;
+		this.periodCounterCache = periodCounterCache;
 	}
 
 	Counter buildNewDayCounter() throws IOException {
@@ -66,7 +81,7 @@ class PeriodCounterFactory {
 	}
 
 	// compteur custom
-	Counter getCustomCounter(Range range) {
+	Counter getCustomCounter(Range range) throws IOException {
 		assert range.getPeriod() == null;
 		final Counter customCounter = createPeriodCounter("yyyy-MM-dd", range.getStartDate());
 		addRequestsAndErrorsForRange(customCounter, range);
@@ -79,34 +94,113 @@ class PeriodCounterFactory {
 	}
 
 	// compteur des 7 derniers jours
-	Counter getWeekCounter() {
+	Counter getWeekCounter() throws IOException {
 		final Counter weekCounter = createPeriodCounter("yyyyWW", currentDayCounter.getStartDate());
-		addRequestsAndErrorsForRange(weekCounter, Period.SEMAINE.getRange());
+		addRequestsAndErrorsForPeriod(weekCounter, Period.SEMAINE);
 		return weekCounter;
 	}
 
 	// compteur des 31 derniers jours,
 	// ici c'est un mois flottant (ie une durée), et pas un mois entier
-	Counter getMonthCounter() {
+	Counter getMonthCounter() throws IOException {
 		final Counter monthCounter = createMonthCounterAtDate(currentDayCounter.getStartDate());
-		addRequestsAndErrorsForRange(monthCounter, Period.MOIS.getRange());
+		addRequestsAndErrorsForPeriod(monthCounter, Period.MOIS);
 		return monthCounter;
 	}
 
-	private void addRequestsAndErrorsForRange(Counter counter, Range range) {
-		final Calendar dayCalendar = Calendar.getInstance();
-		if (range.getPeriod() == null) {
-			counter.addRequestsAndErrors(getDayCounterAtDate(range.getEndDate()));
-			dayCalendar.setTime(range.getEndDate());
-			// issue 122: attention endDate contient un jour jusqu'à 23h59m59s selon Range.parse
-			dayCalendar.set(Calendar.HOUR_OF_DAY, 0);
-			dayCalendar.set(Calendar.MINUTE, 0);
-			dayCalendar.set(Calendar.SECOND, 0);
+	// compteur des 366 derniers jours
+	Counter getYearCounter() throws IOException {
+		final Counter yearCounter = createPeriodCounter("yyyy", currentDayCounter.getStartDate());
+		addRequestsAndErrorsForPeriod(yearCounter, Period.ANNEE);
+		return yearCounter;
+	}
+
+	private void addRequestsAndErrorsForPeriod(Counter counter, Period period)
+			throws IOException {
+		final Counter previousDaysCounter = getPreviousDaysCounter(period);
+		counter.addRequestsAndErrors(previousDaysCounter);
+		counter.addRequestsAndErrors(currentDayCounter);
+		counter.setStartDate(previousDaysCounter.getStartDate());
+	}
+
+	// compteur des jours de la période avant le jour courant, depuis le cache si possible
+	private Counter getPreviousDaysCounter(Period period) throws IOException {
+		if (periodCounterCache != null) {
+			final Counter cachedCounter = periodCounterCache.get(currentDayCounter, period);
+			if (cachedCounter != null) {
+				return cachedCounter;
+			}
+		}
+		final Counter previousDaysCounter = createPeriodCounter("yyyyMMdd",
+				currentDayCounter.getStartDate());
+		if (period == Period.ANNEE) {
+			addRequestsAndErrorsForPreviousDaysOfYear(previousDaysCounter);
 		} else {
-			counter.addRequestsAndErrors(currentDayCounter);
+			final Calendar dayCalendar = Calendar.getInstance();
 			dayCalendar.setTime(currentDayCounter.getStartDate());
+			addRequestsAndErrorsForPreviousDays(previousDaysCounter, dayCalendar,
+					period.getDurationDays());
+		}
+		if (periodCounterCache != null) {
+			periodCounterCache.put(currentDayCounter, period, previousDaysCounter);
 		}
-		final int durationDays = range.getDurationDays();
+		return previousDaysCounter;
+	}
+
+	private void addRequestsAndErrorsForRange(Counter counter, Range range) throws IOException {
+		final Calendar dayCalendar = Calendar.getInstance();
+		dayCalendar.setTime(range.getEndDate());
+		// issue 122: attention endDate contient un jour jusqu'à 23h59m59s selon Range.parse
+		setStartOfDay(dayCalendar);
+		final Date endDay = dayCalendar.getTime();
+		dayCalendar.add(Calendar.DAY_OF_YEAR, -Math.max(range.getDurationDays(), 1) + 1);
+		counter.setStartDate(dayCalendar.getTime());
+		final Calendar currentMonthCalendar = Calendar.getInstance();
+		currentMonthCalendar.set(Calendar.DAY_OF_MONTH, 1);
+		setStartOfDay(currentMonthCalendar);
+		final Date currentMonthStart = currentMonthCalendar.getTime();
+		// les fichiers des jours et des mois sont lus et fusionnés en parallèle,
+		// et les mois entiers avant le mois courant sont lus depuis les fichiers des mois
+		// (comme pour getYearCounter, le mois courant n'est pas encore complet)
+		final List<Callable<Counter>> loaders = new ArrayList<Callable<Counter>>();
+		while (!dayCalendar.getTime().after(endDay)) {
+			final Date day = dayCalendar.getTime();
+			final Calendar lastDayOfMonthCalendar = (Calendar) dayCalendar.clone();
+			lastDayOfMonthCalendar.set(Calendar.DAY_OF_MONTH,
+					dayCalendar.getActualMaximum(Calendar.DAY_OF_MONTH));
+			if (dayCalendar.get(Calendar.DAY_OF_MONTH) == 1 && day.before(currentMonthStart)
+					&& !lastDayOfMonthCalendar.getTime().after(endDay)) {
+				loaders.add(new Callable<Counter>() {
+					/** {@inheritDoc} */
+					@Override
+					public Counter call() throws IOException {
+						return getMonthCounterAtDate(day);
+					}
+				});
+				dayCalendar.add(Calendar.MONTH, 1);
+			} else {
+				loaders.add(new Callable<Counter>() {
+					/** {@inheritDoc} */
+					@Override
+					public Counter call() {
+						return getDayCounterAtDate(day);
+					}
+				});
+				dayCalendar.add(Calendar.DAY_OF_YEAR, 1);
+			}
+		}
+		RangeCounterLoader.loadAndMerge(counter, loaders);
+	}
+
+	private static void setStartOfDay(Calendar calendar) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+	}
+
+	private void addRequestsAndErrorsForPreviousDays(Counter counter, Calendar dayCalendar,
+			int durationDays) {
 		for (int i = 1; i < durationDays; i++) {
 			// TODO optimisation avec getMonthCounterAtDate comme getYearCounter() ?
 			dayCalendar.add(Calendar.DAY_OF_YEAR, -1);
@@ -115,10 +209,8 @@ class PeriodCounterFactory {
 		counter.setStartDate(dayCalendar.getTime());
 	}
 
-	// compteur des 366 derniers jours
-	Counter getYearCounter() throws IOException {
-		final Counter yearCounter = createPeriodCounter("yyyy", currentDayCounter.getStartDate());
-		yearCounter.addRequestsAndErrors(currentDayCounter);
+	private void addRequestsAndErrorsForPreviousDaysOfYear(Counter yearCounter)
+			throws IOException {
 		final Calendar dayCalendar = Calendar.getInstance();
 		final int currentMonth = dayCalendar.get(Calendar.MONTH);
 		dayCalendar.setTime(currentDayCounter.getStartDate());
@@ -139,7 +231,6 @@ class PeriodCounterFactory {
 			}
 			dayCalendar.add(Calendar.DAY_OF_YEAR, 1);
 		}
-		return yearCounter;
 	}
 
 	private Counter getMonthCounterAtDate(Date day) throws IOException {
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chargement en parallèle des compteurs de jours et de mois d'une période personnalisée,
+ * puis fusion en arbre de ces compteurs deux à deux, au lieu de lire et d'ajouter
+ * chaque fichier l'un après l'autre pendant que l'utilisateur attend son rapport.
+ *
+ * Les threads sont ceux d'un pool borné, commun à toutes les applications,
+ * et ils s'arrêtent quand aucun rapport n'est demandé.
+ * Les tâches soumises ne s'attendent pas entre elles : c'est le thread appelant qui attend
+ * la fin des lectures puis la fin de chaque niveau de fusion, ce qui évite tout interblocage.
+ * @author Emeric Vernat
+ */
+final class RangeCounterLoader {
+	private static final int MAX_THREADS = 4;
+	private static final ExecutorService EXECUTOR_SERVICE = createExecutorService();
+
+	private RangeCounterLoader() {
+		super();
+	}
+
+	private static ExecutorService createExecutorService() {
+		final int nbThreads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			/** {@inheritDoc} */
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "javamelody range loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads, nbThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Charge les compteurs en parallèle et les ajoute au compteur en paramètre.
+	 * @param counter Compteur auquel sont ajoutés les compteurs chargés
+	 * @param loaders Lecture des compteurs de jours ou de mois
+	 * @throws IOException e
+	 */
+	static void loadAndMerge(Counter counter, List<Callable<Counter>> loaders)
+			throws IOException {
+		final List<Future<Counter>> loadFutures = new ArrayList<Future<Counter>>(loaders.size());
+		for (final Callable<Counter> loader : loaders) {
+			loadFutures.add(EXECUTOR_SERVICE.submit(loader));
+		}
+		List<Counter> counters = new ArrayList<Counter>(loaders.size() + 1);
+		counters.add(counter);
+		counters.addAll(getAll(loadFutures));
+		// fusion en arbre : à chaque niveau, les compteurs sont ajoutés deux à deux en parallèle,
+		// le compteur en paramètre restant toujours le premier
+		while (counters.size() > 1) {
+			final List<Future<Counter>> mergeFutures = new ArrayList<Future<Counter>>(
+					counters.size() / 2);
+			for (int i = 0; i + 1 < counters.size(); i += 2) {
+				final Counter left = counters.get(i);
+				final Counter right = counters.get(i + 1);
+				mergeFutures.add(EXECUTOR_SERVICE.submit(new Callable<Counter>() {
+					/** {@inheritDoc} */
+					@Override
+					public Counter call() {
+						left.addRequestsAndErrors(right);
+						return left;
+					}
+				}));
+			}
+			final List<Counter> mergedCounters = getAll(mergeFutures);
+			if (counters.size() % 2 == 1) {
+				mergedCounters.add(counters.get(counters.size() - 1));
+			}
+			counters = mergedCounters;
+		}
+	}
+
+	private static List<Counter> getAll(List<Future<Counter>> futures) throws IOException {
+		// on attend la fin de toutes les tâches, même en cas d'erreur dans l'une d'elles
+		final List<Counter> result = new ArrayList<Counter>(futures.size());
+		Throwable firstError = null;
+		for (final Future<Counter> future : futures) {
+			try {
+				result.add(future.get());
+			} catch (final ExecutionException e) {
+				if (firstError == null) {
+					firstError = e.getCause();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+		if (firstError instanceof IOException) {
+			throw (IOException) firstError;
+		} else if (firstError instanceof RuntimeException) {
+			throw (RuntimeException) firstError;
+		} else if (firstError instanceof Error) {
+			throw (Error) firstError;
+		} else if (firstError != null) {
+			throw new IllegalStateException(firstError);
+		}
+		return result;
+	}
+}
@@ -22,6 +22,7 @@ import static net.bull.javamelody.HttpParameters.CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.DATABASE_PART;
 import static net.bull.javamelody.HttpParameters.DEFAULT_WITH_CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.EXPLAIN_PLAN_PART;
+import static net.bull.javamelody.HttpParameters.GRAPH_DATA_PART;
 import static net.bull.javamelody.HttpParameters.GRAPH_PARAMETER;
 import static net.bull.javamelody.HttpParameters.HEAP_HISTO_PART;
 import static net.bull.javamelody.HttpParameters.HEIGHT_PARAMETER;
@@ -62,6 +63,8 @@ class RemoteCollector {
 	private Map<JavaInformations, List<CounterRequestContext>> currentRequests;
 	private String cookies;
 	private boolean aggregationDisabled;
+	// serveur d'une version précédente sans part=graphData
+	private boolean graphDataUnsupported;
 
 	/**
 	 * Constructeur.
@@ -386,6 +389,26 @@ class RemoteCollector {
 		return collectForUrl(jrobinUrl);
 	}
 
+	GraphSeries collectGraphSeries(String graphName) throws IOException {
+		if (graphDataUnsupported) {
+			// pas d'appel au serveur qui renverrait à chaque fois toutes les données par défaut
+			return null;
+		}
+		final URL url = urls.get(0);
+		final URL graphDataUrl = new URL(url.toString() + '&' + GRAPH_PARAMETER + '=' + graphName
+				+ '&' + PART_PARAMETER + '=' + GRAPH_DATA_PART);
+		final Object result = collectForUrl(graphDataUrl);
+		if (result instanceof GraphSeries) {
+			return (GraphSeries) result;
+		} else if (result != null) {
+			// serveur d'une version précédente sans part=graphData, qui a renvoyé les données
+			// par défaut : on s'en souvient pour ne plus lui demander
+			graphDataUnsupported = true;
+		}
+		// ou courbe non trouvée
+		return null;
+	}
+
 	String collectSqlRequestExplainPlan(String sqlRequest) throws IOException {
 		final URL url = urls.get(0);
 		final URL explainPlanUrl = new URL(url.toString() + '&' + PART_PARAMETER + '='
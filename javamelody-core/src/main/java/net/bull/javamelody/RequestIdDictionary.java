@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionnaire des ids de requêtes (voir CounterRequest.getId()) vers des index entiers,
+ * pour que les nombres d'exécutions des requêtes filles soient dans des IntLongHashMap
+ * plutôt que dans des Map&lt;String, Long&gt; (pas de hashCode ni equals de String ni d'objets Long à chaque hit).
+ *
+ * Un index n'est jamais réattribué, et il n'est valable que dans cette JVM :
+ * les index ne sont donc ni sérialisés ni transmis, ce sont les ids qui le sont.
+ * Le dictionnaire n'est jamais purgé, car les index peuvent être utilisés dans des requêtes
+ * toujours en mémoire. Il est donc borné (requêtes sql non bindées, serveur de collecte
+ * désérialisant les counters de nombreuses applications...) : une fois plein, les nouveaux ids
+ * n'ont pas d'index et les requêtes filles correspondantes restent dans des maps par id.
+ * @author Emeric Vernat
+ */
+final class RequestIdDictionary {
+	@SuppressWarnings("all")
+	private static final ConcurrentMap<String, Integer> INDEXES_BY_REQUEST_ID = new ConcurrentHashMap<String, Integer>();
+	private static final Object LOCK = new Object();
+	// nombre maximum d'ids dans le dictionnaire (quelques Mo au plus)
+	private static final int DEFAULT_MAX_SIZE = 100000;
+	private static int maxSize = DEFAULT_MAX_SIZE;
+	// volatile pour voir le dernier tableau après agrandissement, sans synchronisation en lecture
+	private static volatile String[] requestIds = new String[64];
+	private static int size;
+
+	private RequestIdDictionary() {
+		super();
+	}
+
+	/**
+	 * @param requestId Id de requête
+	 * @return Index de cet id, attribué s'il n'existe pas encore, ou -1 si le dictionnaire est plein
+	 */
+	static int getIndex(String requestId) {
+		assert requestId != null;
+		final Integer index = INDEXES_BY_REQUEST_ID.get(requestId);
+		if (index != null) {
+			return index;
+		}
+		synchronized (LOCK) {
+			final Integer existingIndex = INDEXES_BY_REQUEST_ID.get(requestId);
+			if (existingIndex != null) {
+				return existingIndex;
+			}
+			if (size >= maxSize) {
+				return -1;
+			}
+			if (size == requestIds.length) {
+				requestIds = Arrays.copyOf(requestIds, size * 2);
+			}
+			final int newIndex = size;
+			requestIds[newIndex] = requestId;
+			size++;
+			// le put dans la ConcurrentHashMap publie aussi requestIds[newIndex] aux autres threads
+			INDEXES_BY_REQUEST_ID.put(requestId, newIndex);
+			return newIndex;
+		}
+	}
+
+	/**
+	 * @param requestId Id de requête
+	 * @return Index de cet id, ou -1 s'il n'existe pas (sans l'attribuer)
+	 */
+	static int getExistingIndex(String requestId) {
+		final Integer index = INDEXES_BY_REQUEST_ID.get(requestId);
+		if (index == null) {
+			return -1;
+		}
+		return index;
+	}
+
+	/**
+	 * @param index Index attribué par getIndex
+	 * @return Id de requête
+	 */
+	static String getRequestId(int index) {
+		return requestIds[index];
+	}
+
+	static int getSize() {
+		return INDEXES_BY_REQUEST_ID.size();
+	}
+
+	static int getMaxSize() {
+		synchronized (LOCK) {
+			return maxSize;
+		}
+	}
+
+	// pour tests unitaires
+	static void setMaxSize(int newMaxSize) {
+		synchronized (LOCK) {
+			maxSize = newMaxSize;
+		}
+	}
+}
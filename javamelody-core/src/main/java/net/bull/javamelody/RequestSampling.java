@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Échantillonnage des requêtes d'un counter (paramètre requests-sampling-rate) :
+ * seule une requête sur N, choisie au hasard, est entièrement monitorée (wrapper de la réponse,
+ * temps cpu, contexte, requêtes filles) et ses hits comptent alors N fois.
+ * Pour les autres requêtes, seule la durée est mesurée : une requête en erreur ou plus lente
+ * que le seuil requests-sampling-slow-millis est toujours enregistrée, avec un poids de 1.
+ *
+ * Pour que les statistiques restent non biaisées, une requête échantillonnée en erreur ou lente
+ * compte aussi avec un poids de 1 puisqu'elle aurait été enregistrée de toute façon.
+ * Les requêtes sql exécutées dans une requête http suivent l'échantillonnage de la requête http
+ * pour que les requêtes filles des requêtes http échantillonnées soient complètes.
+ * @author Emeric Vernat
+ */
+class RequestSampling {
+	/**
+	 * Seuil par défaut en millisecondes au-delà duquel une requête est toujours enregistrée.
+	 */
+	static final long DEFAULT_SLOW_MILLIS = 1000;
+
+	// poids des hits de la requête http en cours pour les requêtes sql de ce thread :
+	// null hors requête http échantillonnée ou non, 0 si la requête http n'est pas échantillonnée
+	private static final ThreadLocal<Integer> CURRENT_REQUEST_WEIGHT = new ThreadLocal<Integer>();
+	private static final Integer UNSAMPLED_WEIGHT = 0;
+
+	private final int rate;
+	// Integer alloué une seule fois pour CURRENT_REQUEST_WEIGHT
+	private final Integer rateWeight;
+	private final long slowMillis;
+	private final Random random = new Random();
+	private final AtomicLong requestsCount = new AtomicLong();
+	private final AtomicLong sampledRequestsCount = new AtomicLong();
+	private final AtomicLong forcedRequestsCount = new AtomicLong();
+
+	RequestSampling(int rate, long slowMillis) {
+		super();
+		assert rate >= 1;
+		assert slowMillis >= 0;
+		this.rate = rate;
+		this.rateWeight = rate;
+		this.slowMillis = slowMillis;
+	}
+
+	int getRate() {
+		return rate;
+	}
+
+	long getSlowMillis() {
+		return slowMillis;
+	}
+
+	/**
+	 * Tire au hasard si la requête qui commence doit être entièrement monitorée.
+	 * @return boolean
+	 */
+	boolean isSampled() {
+		requestsCount.incrementAndGet();
+		if (rate == 1 || random.nextInt(rate) == 0) {
+			sampledRequestsCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Détermine si une requête sql doit être entièrement monitorée, selon la requête http en cours
+	 * dans ce thread, ou sinon au hasard.
+	 * @return boolean
+	 */
+	boolean isSampledInCurrentRequest() {
+		final Integer currentRequestWeight = CURRENT_REQUEST_WEIGHT.get();
+		if (currentRequestWeight == null) {
+			return isSampled();
+		}
+		requestsCount.incrementAndGet();
+		if (currentRequestWeight.intValue() != 0) {
+			sampledRequestsCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param sampled true si la requête a été entièrement monitorée
+	 * @param duration Durée de la requête
+	 * @param systemError true si la requête est en erreur
+	 * @return Poids des hits pour cette requête, 0 si elle ne doit pas être enregistrée
+	 */
+	int getHitsWeight(boolean sampled, long duration, boolean systemError) {
+		if (systemError || duration >= slowMillis) {
+			if (!sampled) {
+				forcedRequestsCount.incrementAndGet();
+			}
+			return 1;
+		}
+		return sampled ? rate : 0;
+	}
+
+	/**
+	 * Définit pour ce thread l'échantillonnage de la requête http qui commence.
+	 * @param sampled boolean
+	 */
+	void bindCurrentRequest(boolean sampled) {
+		CURRENT_REQUEST_WEIGHT.set(sampled ? rateWeight : UNSAMPLED_WEIGHT);
+	}
+
+	static void unbindCurrentRequest() {
+		CURRENT_REQUEST_WEIGHT.remove();
+	}
+
+	long getRequestsCount() {
+		return requestsCount.get();
+	}
+
+	/**
+	 * @return Nombre de requêtes entièrement monitorées
+	 */
+	long getSampledRequestsCount() {
+		return sampledRequestsCount.get();
+	}
+
+	/**
+	 * @return Nombre de requêtes non échantillonnées, mais enregistrées car en erreur ou lentes
+	 */
+	long getForcedRequestsCount() {
+		return forcedRequestsCount.get();
+	}
+
+	/**
+	 * @return Pourcentage effectif des requêtes entièrement monitorées, entre 0 et 100
+	 */
+	double getEffectiveSamplingPercentage() {
+		final long count = getRequestsCount();
+		if (count == 0) {
+			return 100d / rate;
+		}
+		return 100d * getSampledRequestsCount() / count;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[rate=" + rate + ", slowMillis=" + slowMillis
+				+ ", requestsCount=" + getRequestsCount() + ", sampledRequestsCount="
+				+ getSampledRequestsCount() + ", forcedRequestsCount="
+				+ getForcedRequestsCount() + ']';
+	}
+}
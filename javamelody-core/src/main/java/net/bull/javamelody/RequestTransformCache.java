@@ -0,0 +1,96 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.regex.Pattern;
+
+/**
+ * Cache borné des noms de requêtes transformés par un paramètre *-transform-pattern,
+ * pour ne pas exécuter l'expression régulière à chaque hit sur les requêtes déjà vues
+ * (sql ou urls répétées en particulier).
+ *
+ * Quand le cache est plein, un quart des entrées est évincé dans un ordre quelconque.
+ * Les statistiques de hits, de misses et d'évictions sont affichées dans la page de monitoring
+ * pour vérifier l'efficacité du cache : si les noms de requêtes bruts sont tous différents,
+ * le taux de hits reste faible.
+ * @author Emeric Vernat
+ */
+class RequestTransformCache {
+	/**
+	 * Nombre max d'entrées du cache par counter.
+	 */
+	static final int MAX_SIZE = 2000;
+	// les noms de requêtes plus longs ne sont pas mis en cache pour borner aussi la mémoire
+	private static final int MAX_REQUEST_NAME_LENGTH = 2048;
+
+	private final Pattern pattern;
+	private final String replacement;
+	private final BoundedCache<String, String> aggregateNamesByRequestName = new BoundedCache<String, String>(
+			MAX_SIZE);
+
+	RequestTransformCache(Pattern pattern, String replacement) {
+		super();
+		assert pattern != null;
+		assert replacement != null;
+		this.pattern = pattern;
+		this.replacement = replacement;
+	}
+
+	String transform(String requestName) {
+		String aggregateName = aggregateNamesByRequestName.get(requestName);
+		if (aggregateName != null) {
+			return aggregateName;
+		}
+		aggregateName = pattern.matcher(requestName).replaceAll(replacement);
+		if (requestName.length() <= MAX_REQUEST_NAME_LENGTH) {
+			aggregateNamesByRequestName.putIfAbsent(requestName, aggregateName);
+		}
+		return aggregateName;
+	}
+
+	long getHits() {
+		return aggregateNamesByRequestName.getHits();
+	}
+
+	long getMisses() {
+		return aggregateNamesByRequestName.getMisses();
+	}
+
+	long getEvictions() {
+		return aggregateNamesByRequestName.getEvictions();
+	}
+
+	int getSize() {
+		return aggregateNamesByRequestName.getSize();
+	}
+
+	/**
+	 * @return Pourcentage de hits dans le cache, entre 0 et 100
+	 */
+	int getHitsPercentage() {
+		return aggregateNamesByRequestName.getHitsPercentage();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[pattern=" + pattern + ", size=" + getSize()
+				+ ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+				+ getEvictions() + ']';
+	}
+}
@@ -29,7 +29,7 @@ import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jrobin.core.RrdFileBackend;
 
@@ -38,17 +38,17 @@ import sun.nio.ch.DirectBuffer;
 /**
  * JRobin backend which is used to store RRD data to ordinary disk files
  * by using fast java.nio.* package. This is the default backend engine since JRobin 1.4.0.
+ * <p>
+ * Reads and writes stay synchronized: RrdDb.fetchData and RrdDb.store are themselves synchronized
+ * on the pooled RrdDb of each file, so graph fetches and the collect are already serialized
+ * before reaching this backend and lock-free reads here would not make them concurrent.
  */
 public class RrdNioBackend extends RrdFileBackend {
 	private static Timer fileSyncTimer;
 
 	private MappedByteBuffer byteBuffer;
-	private final TimerTask syncTask = new TimerTask() {
-		@Override
-		public void run() {
-			sync();
-		}
-	};
+	// true if written since the last sync, the file being then queued in RrdNioSyncScheduler
+	private final AtomicBoolean dirty = new AtomicBoolean();
 
 	/**
 	 * Creates RrdFileBackend object for the given file path, backed by java.nio.* classes.
@@ -63,7 +63,8 @@ public class RrdNioBackend extends RrdFileBackend {
 		try {
 			mapFile();
 			if (!readOnly) {
-				fileSyncTimer.schedule(syncTask, syncPeriod * 1000L, syncPeriod * 1000L);
+				// one shared sync task for all files, instead of one task per file
+				RrdNioSyncScheduler.schedule(fileSyncTimer, syncPeriod);
 			}
 		} catch (final IOException ioe) {
 			super.close();
@@ -130,6 +131,9 @@ public class RrdNioBackend extends RrdFileBackend {
 		if (byteBuffer != null) {
 			byteBuffer.position((int) offset);
 			byteBuffer.put(b);
+			if (dirty.compareAndSet(false, true)) {
+				RrdNioSyncScheduler.markDirty(this);
+			}
 		} else {
 			throw new IOException("Write failed, file " + getPath() + " not mapped for I/O");
 		}
@@ -158,11 +162,9 @@ public class RrdNioBackend extends RrdFileBackend {
 	 */
 	@Override
 	public synchronized void close() throws IOException {
-		// cancel synchronization
 		try {
-			if (syncTask != null) {
-				syncTask.cancel();
-			}
+			// the file may stay queued in the scheduler, but it will be skipped as clean
+			dirty.set(false);
 			sync();
 			unmapFile();
 		} finally {
@@ -179,4 +181,17 @@ public class RrdNioBackend extends RrdFileBackend {
 			byteBuffer.force();
 		}
 	}
+
+	/**
+	 * Forces the data to be stored in the file, only if written since the last sync.
+	 * Called by RrdNioSyncScheduler.
+	 * @return true if the file was synchronized, false if it was clean
+	 */
+	boolean syncIfDirty() {
+		if (dirty.getAndSet(false)) {
+			sync();
+			return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Planificateur unique des synchronisations sur disque (force) des fichiers rrd ouverts
+ * par RrdNioBackend, au lieu d'une tâche par fichier dans le timer toutes les 5 minutes.
+ *
+ * Un fichier est ajouté à la file des fichiers modifiés lors de sa première écriture
+ * depuis sa dernière synchronisation : les fichiers non modifiés ne sont donc pas synchronisés.
+ * Une seule tâche dans le timer s'exécute plusieurs fois par période de synchronisation
+ * et synchronise à chaque fois une partie des fichiers modifiés, les plus anciens d'abord,
+ * pour répartir les écritures disque sur la période au lieu de les faire toutes en même temps.
+ * La durée des synchronisations à chaque exécution est limitée (budget d'entrées/sorties),
+ * les fichiers restants étant synchronisés lors des exécutions suivantes.
+ *
+ * Le nombre et la durée des synchronisations sont affichés dans la page de monitoring.
+ * @author Emeric Vernat
+ */
+final class RrdNioSyncScheduler {
+	// nombre d'exécutions de la tâche par période de synchronisation
+	private static final int TICKS_PER_PERIOD = 30;
+	// durée maximale des synchronisations à chaque exécution de la tâche
+	private static final long MAX_SYNC_NANOS_PER_TICK = 1000L * 1000 * 1000;
+
+	private static final Queue<RrdNioBackend> DIRTY_BACKENDS = new ConcurrentLinkedQueue<RrdNioBackend>();
+	// taille de la file, car ConcurrentLinkedQueue.size() parcourt toute la file
+	private static final AtomicInteger DIRTY_COUNT = new AtomicInteger();
+	private static final AtomicLong SYNC_COUNT = new AtomicLong();
+	private static final AtomicLong SKIPPED_COUNT = new AtomicLong();
+	private static final AtomicLong TOTAL_SYNC_NANOS = new AtomicLong();
+	private static final AtomicLong MAX_SYNC_NANOS = new AtomicLong();
+	private static Timer scheduledTimer;
+	private static long tickMillis;
+	private static volatile long periodMillis;
+
+	private RrdNioSyncScheduler() {
+		super();
+	}
+
+	/**
+	 * Planifie la tâche de synchronisation dans le timer si ce n'est pas déjà fait.
+	 * @param timer Timer de synchronisation des fichiers (un nouveau timer après un arrêt)
+	 * @param syncPeriod Période de synchronisation en secondes
+	 */
+	static synchronized void schedule(Timer timer, int syncPeriod) {
+		periodMillis = syncPeriod * 1000L;
+		if (timer == scheduledTimer) {
+			return;
+		}
+		tickMillis = Math.max(periodMillis / TICKS_PER_PERIOD, 1000);
+		final TimerTask syncTask = new TimerTask() {
+			/** {@inheritDoc} */
+			@Override
+			public void run() {
+				syncDirtyBackends(MAX_SYNC_NANOS_PER_TICK);
+			}
+		};
+		timer.schedule(syncTask, tickMillis, tickMillis);
+		scheduledTimer = timer;
+	}
+
+	/**
+	 * Ajoute le fichier à la file des fichiers à synchroniser.
+	 * Appelé par le fichier lors de sa première écriture depuis sa dernière synchronisation.
+	 * @param backend RrdNioBackend
+	 */
+	static void markDirty(RrdNioBackend backend) {
+		DIRTY_BACKENDS.add(backend);
+		DIRTY_COUNT.incrementAndGet();
+	}
+
+	/**
+	 * Synchronise une partie des fichiers modifiés, pour qu'ils le soient tous sur une période.
+	 * @param maxSyncNanos Durée maximale des synchronisations
+	 * @return Nombre de fichiers synchronisés
+	 */
+	static int syncDirtyBackends(long maxSyncNanos) {
+		final long start = System.nanoTime();
+		// au moins la part des fichiers modifiés correspondant à une exécution dans la période
+		final int dirtyCount = DIRTY_COUNT.get();
+		final long count = (dirtyCount * tickMillis + periodMillis - 1) / Math.max(periodMillis, 1);
+		int synced = 0;
+		while (synced < count && System.nanoTime() - start < maxSyncNanos) {
+			final RrdNioBackend backend = DIRTY_BACKENDS.poll();
+			if (backend == null) {
+				break;
+			}
+			DIRTY_COUNT.decrementAndGet();
+			if (sync(backend)) {
+				synced++;
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * Synchronise tous les fichiers modifiés, sans limite de durée (pour les tests ou à l'arrêt).
+	 */
+	static void syncAll() {
+		while (!DIRTY_BACKENDS.isEmpty()) {
+			final RrdNioBackend backend = DIRTY_BACKENDS.poll();
+			if (backend != null) {
+				DIRTY_COUNT.decrementAndGet();
+				sync(backend);
+			}
+		}
+	}
+
+	private static boolean sync(RrdNioBackend backend) {
+		final long start = System.nanoTime();
+		if (!backend.syncIfDirty()) {
+			// fichier fermé (et donc synchronisé) depuis sa modification
+			SKIPPED_COUNT.incrementAndGet();
+			return false;
+		}
+		final long syncNanos = System.nanoTime() - start;
+		SYNC_COUNT.incrementAndGet();
+		TOTAL_SYNC_NANOS.addAndGet(syncNanos);
+		long max = MAX_SYNC_NANOS.get();
+		while (syncNanos > max && !MAX_SYNC_NANOS.compareAndSet(max, syncNanos)) {
+			max = MAX_SYNC_NANOS.get();
+		}
+		return true;
+	}
+
+	static int getDirtyCount() {
+		return DIRTY_COUNT.get();
+	}
+
+	static long getSyncCount() {
+		return SYNC_COUNT.get();
+	}
+
+	static long getSkippedCount() {
+		return SKIPPED_COUNT.get();
+	}
+
+	static long getMeanSyncMillis() {
+		final long syncCount = SYNC_COUNT.get();
+		if (syncCount == 0) {
+			return 0;
+		}
+		return TOTAL_SYNC_NANOS.get() / syncCount / 1000000;
+	}
+
+	static long getMaxSyncMillis() {
+		return MAX_SYNC_NANOS.get() / 1000000;
+	}
+}
@@ -26,6 +26,7 @@ import static net.bull.javamelody.HttpParameters.DATABASE_PART;
 import static net.bull.javamelody.HttpParameters.DEFAULT_WITH_CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.EXPLAIN_PLAN_PART;
 import static net.bull.javamelody.HttpParameters.FORMAT_PARAMETER;
+import static net.bull.javamelody.HttpParameters.GRAPH_DATA_PART;
 import static net.bull.javamelody.HttpParameters.GRAPH_PARAMETER;
 import static net.bull.javamelody.HttpParameters.GRAPH_PART;
 import static net.bull.javamelody.HttpParameters.HEAP_HISTO_PART;
@@ -161,6 +162,14 @@ class SerializableController {
 			final int height = Integer.parseInt(httpRequest.getParameter(HEIGHT_PARAMETER));
 			final Collection<JRobin> jrobins = collector.getDisplayedOtherJRobins();
 			return (Serializable) convertJRobinsToImages(jrobins, range, width, height);
+		} else if (GRAPH_DATA_PART.equalsIgnoreCase(part)) {
+			// pour UI Swing
+			final String graphName = httpRequest.getParameter(GRAPH_PARAMETER);
+			final JRobin jrobin = collector.getJRobin(graphName);
+			if (jrobin != null) {
+				return jrobin.getGraphSeries(range);
+			}
+			return null;
 		} else if (THREADS_PART.equalsIgnoreCase(part)) {
 			return new ArrayList<ThreadInformations>(javaInformationsList.get(0)
 					.getThreadInformationsList());
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Table bornée des stack-traces déjà formatées, par empreinte des exceptions,
+ * pour les erreurs http du filtre et pour les logs d'erreurs.
+ *
+ * L'empreinte d'une exception est composée, pour elle et ses causes, de son toString()
+ * et de ses StackTraceElement. Le formatage par printStackTrace, coûteux, n'est fait que la première fois
+ * qu'une empreinte est rencontrée : ensuite seul un compteur de hits est incrémenté
+ * et la même instance de String est réutilisée (ce qui rend aussi immédiate la comparaison des erreurs
+ * par CounterErrorRing). Ainsi lors d'une avalanche d'erreurs identiques, le coût du formatage
+ * n'est pas payé au pire moment.
+ *
+ * Les exceptions "suppressed" de Java 7 ne font pas partie de l'empreinte : la stack-trace affichée
+ * est alors celle de la première occurrence.
+ * Quand la table est pleine, un quart des empreintes est évincé dans un ordre quelconque.
+ * @author Emeric Vernat
+ */
+final class StackTraceFingerprints {
+	/**
+	 * Nombre max d'empreintes dans la table.
+	 */
+	static final int MAX_SIZE = 500;
+	// nombre max d'exceptions dans la chaîne des causes prises en compte pour une empreinte
+	private static final int MAX_CAUSES_DEPTH = 20;
+
+	private static final BoundedCache<Fingerprint, String> STACK_TRACES = new BoundedCache<Fingerprint, String>(
+			MAX_SIZE);
+
+	/**
+	 * Empreinte d'une exception et de ses causes.
+	 */
+	private static final class Fingerprint {
+		// toString() et StackTraceElement[] de chaque exception de la chaîne des causes
+		private final Object[] parts;
+		private final int hashCode;
+
+		Fingerprint(Throwable throwable) {
+			super();
+			final List<Object> list = new ArrayList<Object>();
+			Throwable current = throwable;
+			int depth = 0;
+			while (current != null && depth < MAX_CAUSES_DEPTH) {
+				list.add(current.toString());
+				list.add(current.getStackTrace());
+				final Throwable cause = current.getCause();
+				current = cause == current ? null : cause;
+				depth++;
+			}
+			this.parts = list.toArray();
+			this.hashCode = Arrays.deepHashCode(parts);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Fingerprint)) {
+				return false;
+			}
+			final Fingerprint other = (Fingerprint) obj;
+			return hashCode == other.hashCode && Arrays.deepEquals(parts, other.parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private StackTraceFingerprints() {
+		super();
+	}
+
+	/**
+	 * Retourne la stack-trace formatée d'une exception, formatée seulement si son empreinte
+	 * n'est pas déjà dans la table.
+	 * @param throwable Throwable
+	 * @return String
+	 */
+	static String getStackTrace(Throwable throwable) {
+		assert throwable != null;
+		final Fingerprint fingerprint = new Fingerprint(throwable);
+		final String formattedStackTrace = STACK_TRACES.get(fingerprint);
+		if (formattedStackTrace != null) {
+			return formattedStackTrace;
+		}
+		final StringWriter stackTrace = new StringWriter(200);
+		throwable.printStackTrace(new PrintWriter(stackTrace));
+		final String newFormattedStackTrace = stackTrace.toString();
+		final String previous = STACK_TRACES.putIfAbsent(fingerprint, newFormattedStackTrace);
+		if (previous != null) {
+			// formatée en même temps par un autre thread
+			return previous;
+		}
+		return newFormattedStackTrace;
+	}
+
+	/**
+	 * @return Nombre de stack-traces non formatées car leur empreinte était déjà dans la table
+	 */
+	static long getHits() {
+		return STACK_TRACES.getHits();
+	}
+
+	/**
+	 * @return Nombre de stack-traces formatées
+	 */
+	static long getMisses() {
+		return STACK_TRACES.getMisses();
+	}
+
+	static long getEvictions() {
+		return STACK_TRACES.getEvictions();
+	}
+
+	static int getSize() {
+		return STACK_TRACES.getSize();
+	}
+
+	/**
+	 * @return Pourcentage de stack-traces non formatées, entre 0 et 100
+	 */
+	static int getHitsPercentage() {
+		return STACK_TRACES.getHitsPercentage();
+	}
+
+	static void clear() {
+		STACK_TRACES.clear();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Implémentation de HttpServletResponseWrapper qui retient seulement le status http,
+ * sans encapsuler le flux de la réponse (requêtes non échantillonnées, paramètre requests-sampling-rate).
+ * @author Emeric Vernat
+ */
+class StatusServletResponseWrapper extends HttpServletResponseWrapper {
+	private int status;
+
+	/**
+	 * Constructeur.
+	 * @param response HttpServletResponse
+	 */
+	StatusServletResponseWrapper(HttpServletResponse response) {
+		super(response);
+		assert response != null;
+	}
+
+	/**
+	 * Retourne le status définit par setStatus ou sendError.
+	 * @return int
+	 */
+	int getCurrentStatus() {
+		// comme dans FilterServletResponseWrapper, pas getStatus de servlet api 3.0
+		return status;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void reset() {
+		super.reset();
+		status = 0;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setStatus(int status) {
+		super.setStatus(status);
+		this.status = status;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void sendError(int error) throws IOException {
+		super.sendError(error);
+		this.status = error;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void sendError(int error, String message) throws IOException {
+		super.sendError(error, message);
+		this.status = error;
+	}
+}
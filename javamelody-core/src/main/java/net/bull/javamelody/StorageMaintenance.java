@@ -0,0 +1,236 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Maintenance du répertoire de stockage d'une application en dehors de la collecte :
+ * suppression des fichiers obsolètes et calcul de l'usage disque.
+ *
+ * Un index des fichiers (taille et date de modification) est construit une seule fois
+ * en tâche de fond au démarrage, puis il est mis à jour lors de l'écriture et de la suppression
+ * des fichiers par CounterStorage, JRobin et JRobinSegments.
+ * Ainsi, l'usage disque et la recherche des fichiers obsolètes ne parcourent plus le répertoire,
+ * et seuls les fichiers candidats selon l'index sont vérifiés puis supprimés.
+ *
+ * La suppression quotidienne est faite dans le thread de maintenance de l'application,
+ * et non pas dans la collecte qui est synchronisée avec les rapports,
+ * avec un nombre limité de fichiers vérifiés par seconde pour ne pas saturer les disques.
+ * @author Emeric Vernat
+ */
+class StorageMaintenance {
+	// nombre de fichiers candidats vérifiés avant chaque pause, et durée de la pause
+	private static final int BATCH_SIZE = 50;
+	private static final long BATCH_PAUSE_MILLIS = 250;
+	private static final ConcurrentMap<String, StorageMaintenance> INSTANCES_BY_DIRECTORY = new ConcurrentHashMap<String, StorageMaintenance>();
+
+	private final File storageDirectory;
+	// taille et date de modification des fichiers, par nom de fichier
+	@SuppressWarnings("all")
+	private final ConcurrentMap<String, long[]> filesByName = new ConcurrentHashMap<String, long[]>();
+	private final ThreadPoolExecutor executor;
+	private final AtomicBoolean deletionPending = new AtomicBoolean();
+	private volatile boolean indexed;
+
+	StorageMaintenance(final String application) {
+		super();
+		this.storageDirectory = Parameters.getStorageDirectory(application);
+		final ThreadFactory threadFactory = new ThreadFactory() {
+			/** {@inheritDoc} */
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "javamelody maintenance " + application);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Enregistre cette instance pour les notifications d'écriture de fichiers
+	 * et lance la construction de l'index en tâche de fond.
+	 */
+	void start() {
+		INSTANCES_BY_DIRECTORY.put(storageDirectory.getPath(), this);
+		executor.execute(new Runnable() {
+			/** {@inheritDoc} */
+			@Override
+			public void run() {
+				ensureIndexed();
+			}
+		});
+	}
+
+	void stop() {
+		INSTANCES_BY_DIRECTORY.remove(storageDirectory.getPath(), this);
+		executor.shutdown();
+	}
+
+	/**
+	 * Met à jour l'index après l'écriture d'un fichier.
+	 * @param file Fichier écrit ou créé
+	 */
+	static void fileWritten(File file) {
+		final StorageMaintenance instance = INSTANCES_BY_DIRECTORY.get(file.getParent());
+		if (instance != null) {
+			instance.filesByName.put(file.getName(),
+					new long[] { file.length(), file.lastModified() });
+		}
+	}
+
+	/**
+	 * Met à jour l'index après la suppression d'un fichier.
+	 * @param file Fichier supprimé
+	 */
+	static void fileDeleted(File file) {
+		final StorageMaintenance instance = INSTANCES_BY_DIRECTORY.get(file.getParent());
+		if (instance != null) {
+			instance.filesByName.remove(file.getName());
+		}
+	}
+
+	/**
+	 * Demande la suppression des fichiers obsolètes dans le thread de maintenance,
+	 * sans attendre (sauf si une suppression est déjà en attente).
+	 * @param task Suppression des fichiers obsolètes
+	 */
+	void executeDeletion(final Runnable task) {
+		if (executor.isShutdown() || !deletionPending.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			/** {@inheritDoc} */
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					deletionPending.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Supprime les fichiers obsolètes parmi les fichiers candidats selon l'index.
+	 * @param rateLimited true pour limiter le nombre de fichiers vérifiés par seconde
+	 * @throws IOException e
+	 */
+	synchronized void deleteObsoleteFiles(boolean rateLimited) throws IOException {
+		ensureIndexed();
+		// les dates de modification dans l'index peuvent être plus anciennes que les vraies dates
+		// (une mise à jour rrd ne change pas la taille du fichier et n'est pas notifiée),
+		// donc les candidats incluent tous les fichiers obsolètes et ils sont vérifiés ensuite
+		final long now = System.currentTimeMillis();
+		final long counterFilesLimit = now - (CounterStorage.getObsoleteStatsDays() + 1L) * 24
+				* 60 * 60 * 1000;
+		final long rrdFilesLimit = now - (JRobin.getObsoleteGraphsDays() + 1L) * 24 * 60 * 60
+				* 1000;
+		final List<File> counterFiles = new ArrayList<File>();
+		final List<File> rrdFiles = new ArrayList<File>();
+		for (final Map.Entry<String, long[]> entry : filesByName.entrySet()) {
+			final String fileName = entry.getKey();
+			final long lastModified = entry.getValue()[1];
+			if (CounterStorage.isCounterFileName(fileName) && lastModified < counterFilesLimit) {
+				counterFiles.add(new File(storageDirectory, fileName));
+			} else if (fileName.endsWith(".rrd") && lastModified < rrdFilesLimit) {
+				rrdFiles.add(new File(storageDirectory, fileName));
+			}
+		}
+		deleteInBatches(counterFiles, true, rateLimited);
+		deleteInBatches(rrdFiles, false, rateLimited);
+	}
+
+	private void deleteInBatches(List<File> files, boolean counterFiles, boolean rateLimited)
+			throws IOException {
+		for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+			if (i > 0 && rateLimited) {
+				try {
+					Thread.sleep(BATCH_PAUSE_MILLIS);
+				} catch (final InterruptedException e) {
+					// arrêt : la suppression continuera le jour suivant
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			final List<File> batch = files.subList(i, Math.min(i + BATCH_SIZE, files.size()));
+			if (counterFiles) {
+				CounterStorage.deleteObsoleteCounterFiles(batch);
+			} else {
+				JRobin.deleteObsoleteJRobinFiles(batch);
+			}
+			for (final File file : batch) {
+				if (file.exists()) {
+					filesByName.put(file.getName(),
+							new long[] { file.length(), file.lastModified() });
+				} else {
+					filesByName.remove(file.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Somme des tailles des fichiers du répertoire de stockage selon l'index
+	 */
+	long getDiskUsage() {
+		ensureIndexed();
+		long sum = 0;
+		for (final long[] lengthAndLastModified : filesByName.values()) {
+			sum += lengthAndLastModified[0];
+		}
+		return sum;
+	}
+
+	int getIndexedFilesCount() {
+		return filesByName.size();
+	}
+
+	private synchronized void ensureIndexed() {
+		if (indexed) {
+			return;
+		}
+		// seul parcours complet du répertoire, les notifications ayant pu déjà arriver
+		final File[] files = storageDirectory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (file.isFile() && !filesByName.containsKey(file.getName())) {
+					filesByName.put(file.getName(),
+							new long[] { file.length(), file.lastModified() });
+				}
+			}
+		}
+		indexed = true;
+	}
+}
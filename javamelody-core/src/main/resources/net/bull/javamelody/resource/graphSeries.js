@@ -0,0 +1,187 @@
+/* Client-side rendering of a graph in a canvas, from the average and maximum values
+of the graph (?part=graphData&graph=name), so that resizing the zoomed graph
+or hiding the maximum does not request a new image from the server. */
+var GraphSeries = {
+	isSupported : function() {
+		var canvas = document.createElement('canvas');
+		return !!(canvas.getContext && canvas.getContext('2d'));
+	},
+
+	load : function(url, callback) {
+		var request = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject('Microsoft.XMLHTTP');
+		request.open('GET', url, true);
+		request.onreadystatechange = function() {
+			if (request.readyState == 4 && request.status == 200) {
+				var text = request.responseText;
+				callback(window.JSON ? JSON.parse(text) : eval('(' + text + ')'));
+			}
+		};
+		request.send(null);
+	},
+
+	draw : function(canvas, series, width, height, maxHidden, labels) {
+		var left = 70, right = 20, top = 30, bottom = 50;
+		var plotWidth = Math.max(width - left - right, 10), plotHeight = Math.max(height - top - bottom, 10);
+		canvas.width = width;
+		canvas.height = height;
+		var context = canvas.getContext('2d');
+		context.fillStyle = '#f0f0f0';
+		context.fillRect(0, 0, width, height);
+		context.fillStyle = '#ffffff';
+		context.fillRect(left, top, plotWidth, plotHeight);
+
+		var averages = series.average, maxima = series.max, count = averages.length;
+		var maxValue = GraphSeries.getMaxValue(averages);
+		if (!maxHidden) {
+			maxValue = Math.max(maxValue, GraphSeries.getMaxValue(maxima));
+		}
+		var scale = GraphSeries.getScale(maxValue);
+		var x = function(i) {
+			return left + (count > 1 ? i * plotWidth / (count - 1) : 0);
+		};
+		var y = function(value) {
+			return top + plotHeight - value * plotHeight / scale;
+		};
+
+		// grid and value labels
+		context.font = '10px sans-serif';
+		context.strokeStyle = '#d0d0d0';
+		context.fillStyle = '#000000';
+		context.textAlign = 'right';
+		context.textBaseline = 'middle';
+		for ( var tick = 0; tick <= 5; tick++) {
+			var value = scale * tick / 5, tickY = Math.round(y(value)) + 0.5;
+			context.beginPath();
+			context.moveTo(left, tickY);
+			context.lineTo(left + plotWidth, tickY);
+			context.stroke();
+			context.fillText(GraphSeries.formatValue(value), left - 5, tickY);
+		}
+		// time labels
+		context.textAlign = 'center';
+		context.textBaseline = 'top';
+		var duration = series.step * count, timeTicks = Math.max(Math.floor(plotWidth / 100), 1);
+		for ( var timeTick = 0; timeTick <= timeTicks; timeTick++) {
+			var index = Math.round(timeTick * (count - 1) / timeTicks);
+			var date = new Date((series.start + index * series.step) * 1000);
+			var tickX = Math.round(x(index)) + 0.5;
+			context.beginPath();
+			context.moveTo(tickX, top);
+			context.lineTo(tickX, top + plotHeight);
+			context.stroke();
+			context.fillText(GraphSeries.formatDate(date, duration), tickX, top + plotHeight + 4);
+		}
+
+		// average as an area, unknown values (null) interrupting the area
+		context.fillStyle = '#00c000';
+		for ( var start = 0; start < count; start++) {
+			if (averages[start] === null) {
+				continue;
+			}
+			var end = start;
+			context.beginPath();
+			context.moveTo(x(start), y(0));
+			while (end < count && averages[end] !== null) {
+				context.lineTo(x(end), y(averages[end]));
+				end++;
+			}
+			context.lineTo(x(end - 1), y(0));
+			context.closePath();
+			context.fill();
+			start = end;
+		}
+		// maximum as a line
+		if (!maxHidden) {
+			context.strokeStyle = '#0000ff';
+			context.beginPath();
+			var drawing = false;
+			for ( var i = 0; i < count; i++) {
+				if (maxima[i] === null) {
+					drawing = false;
+				} else if (drawing) {
+					context.lineTo(x(i), y(maxima[i]));
+				} else {
+					context.moveTo(x(i), y(maxima[i]));
+					drawing = true;
+				}
+			}
+			context.stroke();
+		}
+
+		context.strokeStyle = '#000000';
+		context.strokeRect(left + 0.5, top + 0.5, plotWidth, plotHeight);
+		// title and legend
+		context.fillStyle = '#000000';
+		context.font = 'bold 12px sans-serif';
+		context.textBaseline = 'middle';
+		context.fillText(series.label, left + plotWidth / 2, top / 2);
+		context.font = '11px sans-serif';
+		context.textAlign = 'left';
+		var legendY = top + plotHeight + 35;
+		context.fillStyle = '#00c000';
+		context.fillRect(left, legendY - 5, 10, 10);
+		context.fillStyle = '#000000';
+		context.fillText(labels.average + ': ' + GraphSeries.formatValue(GraphSeries.getMean(averages)), left + 15, legendY);
+		if (!maxHidden) {
+			context.fillStyle = '#0000ff';
+			context.fillRect(left + plotWidth / 2, legendY - 5, 10, 10);
+			context.fillStyle = '#000000';
+			context.fillText(labels.maximum + ': ' + GraphSeries.formatValue(GraphSeries.getMaxValue(maxima)), left + plotWidth / 2 + 15, legendY);
+		}
+	},
+
+	getMaxValue : function(values) {
+		var result = 0;
+		for ( var i = 0; i < values.length; i++) {
+			if (values[i] !== null && values[i] > result) {
+				result = values[i];
+			}
+		}
+		return result;
+	},
+
+	getMean : function(values) {
+		var sum = 0, count = 0;
+		for ( var i = 0; i < values.length; i++) {
+			if (values[i] !== null) {
+				sum += values[i];
+				count++;
+			}
+		}
+		return count > 0 ? sum / count : 0;
+	},
+
+	// rounded maximum of the vertical axis: 1, 2 or 5 times a power of 10
+	getScale : function(maxValue) {
+		if (maxValue <= 0) {
+			return 1;
+		}
+		var power = Math.pow(10, Math.floor(Math.log(maxValue) / Math.LN10));
+		var factors = [ 1, 2, 5, 10 ];
+		for ( var i = 0; i < factors.length; i++) {
+			if (factors[i] * power >= maxValue) {
+				return factors[i] * power;
+			}
+		}
+		return 10 * power;
+	},
+
+	formatValue : function(value) {
+		if (value >= 1000000) {
+			return Math.round(value / 100000) / 10 + ' M';
+		} else if (value >= 1000) {
+			return Math.round(value / 100) / 10 + ' k';
+		}
+		return String(Math.round(value * 10) / 10);
+	},
+
+	formatDate : function(date, duration) {
+		var pad = function(number) {
+			return number < 10 ? '0' + number : String(number);
+		};
+		if (duration <= 2 * 24 * 60 * 60) {
+			return pad(date.getHours()) + ':' + pad(date.getMinutes());
+		}
+		return pad(date.getDate()) + '/' + pad(date.getMonth() + 1);
+	}
+};
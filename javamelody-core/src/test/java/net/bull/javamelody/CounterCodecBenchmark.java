@@ -0,0 +1,133 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Benchmark du format binaire des fichiers de counters (CounterCodec)
+ * comparé à la sérialisation java, en taille compressée et en temps d'écriture et de lecture.
+ * Ce n'est pas un test unitaire : à lancer avec la méthode main,
+ * avec en argument éventuel le nombre de requêtes du counter (10000 par défaut).
+ * @author Emeric Vernat
+ */
+public final class CounterCodecBenchmark {
+	private static final int ITERATIONS = 20;
+
+	private CounterCodecBenchmark() {
+		super();
+	}
+
+	/**
+	 * Méthode main.
+	 * @param args Nombre de requêtes du counter
+	 * @throws Exception e
+	 */
+	public static void main(String[] args) throws Exception { // NOPMD
+		final int requestsCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final Counter counter = createCounter(requestsCount);
+
+		System.out.println("counter with " + counter.getRequestsCount() + " requests");
+		benchmark("java serialization", counter, false);
+		benchmark("binary format", counter, true);
+	}
+
+	private static Counter createCounter(int requestsCount) {
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter counter = new Counter(Counter.HTTP_COUNTER_NAME, null, sqlCounter);
+		counter.setApplication("benchmark");
+		counter.setMaxRequestsCount(requestsCount);
+		for (int i = 0; i < requestsCount; i++) {
+			final String requestName = "/page" + i + ".jsp GET";
+			for (int hit = 0; hit < 1 + i % 5; hit++) {
+				counter.bindContext(requestName, requestName, null, -1);
+				for (int j = 0; j < 3; j++) {
+					final String sqlRequestName = "select * from table" + (i + j) % 500;
+					sqlCounter.bindContext(sqlRequestName, sqlRequestName, null, -1);
+					sqlCounter.addRequest(sqlRequestName, j + hit, 0, false, -1);
+				}
+				counter.addRequest(requestName, 10 * hit + i % 1000, hit, false, 1000 + i);
+			}
+		}
+		return counter;
+	}
+
+	private static void benchmark(String format, Counter counter, boolean binary)
+			throws IOException, ClassNotFoundException {
+		final Counter clone = counter.clone();
+		byte[] bytes = null;
+		long writeNanos = 0;
+		long readNanos = 0;
+		// la première itération sert à chauffer la JVM et n'est pas comptée
+		for (int i = 0; i <= ITERATIONS; i++) {
+			final long start = System.nanoTime();
+			bytes = write(clone, binary);
+			final long middle = System.nanoTime();
+			final Counter readCounter = read(bytes, binary);
+			final long end = System.nanoTime();
+			if (readCounter.getRequestsCount() != clone.getRequestsCount()) {
+				throw new IllegalStateException("read counter differs");
+			}
+			if (i > 0) {
+				writeNanos += middle - start;
+				readNanos += end - middle;
+			}
+		}
+		System.out.println(format + ": " + bytes.length / 1024 + " KB compressed, write "
+				+ writeNanos / ITERATIONS / 1000000 + " ms, read " + readNanos / ITERATIONS
+				/ 1000000 + " ms");
+	}
+
+	private static byte[] write(Counter counter, boolean binary) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final GZIPOutputStream output = new GZIPOutputStream(bytes);
+		try {
+			if (binary) {
+				CounterCodec.write(counter, output);
+			} else {
+				final ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+				objectOutput.writeObject(counter);
+				objectOutput.flush();
+			}
+		} finally {
+			output.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Counter read(byte[] bytes, boolean binary) throws IOException,
+			ClassNotFoundException {
+		final BufferedInputStream input = new BufferedInputStream(new GZIPInputStream(
+				new ByteArrayInputStream(bytes)));
+		try {
+			if (binary) {
+				return CounterCodec.read(input);
+			}
+			return (Counter) new ObjectInputStream(input).readObject();
+		} finally {
+			input.close();
+		}
+	}
+}
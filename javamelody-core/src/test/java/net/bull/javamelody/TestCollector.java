@@ -18,7 +18,9 @@
 package net.bull.javamelody;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -28,11 +30,14 @@ import java.io.IOException;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 
 import javax.management.JMException;
@@ -283,6 +288,260 @@ public class TestCollector {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectTopRequests() throws IOException {
+		final Counter counter = createCounter();
+		counter.setTopRequests(2, false);
+		final Collector collector = new Collector(TEST, Collections.singletonList(counter));
+		counter.addRequest("test 1", 0, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		for (int i = 0; i < 5; i++) {
+			counter.addRequest("test 1", 0, 0, false, 1000);
+			counter.addRequest("test 2", 0, 0, false, 1000);
+		}
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		// "test 2" est remplacée par "test 3" et ses statistiques vont dans "autres requêtes"
+		counter.addRequest("test 3", 0, 0, false, 1000);
+		counter.addRequest("test 1", 0, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		assertEquals("requestsCount", 3, counter.getRequestsCount());
+		assertEquals("other requests", 5,
+				counter.getCounterRequestByName(CounterTopRequests.OTHER_REQUESTS_NAME).getHits());
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				counter.getName());
+		long dayHits = 0;
+		for (final CounterRequest request : dayCounter.getRequests()) {
+			dayHits += request.getHits();
+		}
+		// les hits de "test 2" déjà collectés ne sont pas comptés une 2ème fois dans le jour
+		assertEquals("day hits", 12, dayHits);
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectPeriodRequests() throws IOException {
+		final Counter counter = createCounter();
+		counter.setPeriodRequestsTracked(true);
+		counter.setTopRequests(2, false);
+		final Collector collector = new Collector(TEST, Collections.singletonList(counter));
+		counter.addRequest("test 1", 0, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		for (int i = 0; i < 5; i++) {
+			counter.addRequest("test 1", 10, 0, false, 1000);
+			counter.addRequest("test 2", 0, 0, false, 1000);
+		}
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		final String requestId = counter.getCounterRequestByName("test 1").getId();
+		assertNotNull("request jrobin", collector.getJRobin(requestId));
+		// "test 2" est remplacée par "test 3" et ses statistiques vont dans "autres requêtes"
+		counter.addRequest("test 3", 0, 0, false, 1000);
+		counter.addRequest("test 1", 0, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		assertEquals("test 1", 7, counter.getCounterRequestByName("test 1").getHits());
+		assertTrue("no more period hits", counter.pollPeriodRequests().isEmpty());
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				counter.getName());
+		long dayHits = 0;
+		for (final CounterRequest request : dayCounter.getRequests()) {
+			dayHits += request.getHits();
+		}
+		// chaque hit est compté une seule fois dans le jour, y compris le premier
+		// puisque les hits de la période ne contiennent pas les données lues sur disque
+		assertEquals("day hits", 13, dayHits);
+		assertEquals("day test 1", 50, dayCounter.getCounterRequestByName("test 1")
+				.getDurationsSum());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectInParallel() throws IOException {
+		setProperty(Parameter.COLLECT_THREADS, "2");
+		try {
+			final Counter httpCounter = createCounter();
+			final Counter sqlCounter = new Counter("sql", null);
+			final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			final Collector collector = new Collector(TEST, Arrays.asList(httpCounter,
+					sqlCounter, errorCounter));
+			httpCounter.addRequest("test 1", 0, 0, false, 1000);
+			sqlCounter.addRequest("test 2", 0, 0, false, 1000);
+			collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+			for (int i = 0; i < 5; i++) {
+				httpCounter.addRequest("test 1", 10, 0, false, 1000);
+				sqlCounter.addRequest("test 2", 20, 0, false, 1000);
+				errorCounter.addRequestForSystemError("error", 0, 0, null);
+			}
+			collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+			assertNotNull("request jrobin", collector.getJRobin(httpCounter
+					.getCounterRequestByName("test 1").getId()));
+			assertNotNull("request jrobin", collector.getJRobin(sqlCounter
+					.getCounterRequestByName("test 2").getId()));
+			assertEquals("day sql hits", 5,
+					collector.getRangeCounter(Period.JOUR.getRange(), sqlCounter.getName())
+							.getCounterRequestByName("test 2").getHits());
+			assertEquals("lastCollectDurationsByCounter", 3, collector
+					.getLastCollectDurationsByCounter().size());
+
+			// changement de jour pour tous les compteurs avant la collecte en parallèle
+			final Date yesterday = new Date(System.currentTimeMillis() - 24L * 60 * 60 * 1000);
+			final List<Counter> previousDayCounters = new ArrayList<Counter>();
+			for (final Counter counter : Arrays.asList(httpCounter, sqlCounter, errorCounter)) {
+				final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+						counter.getName());
+				dayCounter.setStartDate(yesterday);
+				previousDayCounters.add(dayCounter);
+			}
+			sqlCounter.addRequest("test 2", 20, 0, false, 1000);
+			collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+			for (final Counter previousDayCounter : previousDayCounters) {
+				final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+						previousDayCounter.getName());
+				assertNotSame("new day counter", previousDayCounter, dayCounter);
+			}
+			assertEquals("new day sql hits", 1,
+					collector.getRangeCounter(Period.JOUR.getRange(), sqlCounter.getName())
+							.getCounterRequestByName("test 2").getHits());
+
+			collector.stop();
+			// après l'arrêt du pool, la collecte est faite dans le thread courant
+			collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		} finally {
+			setProperty(Parameter.COLLECT_THREADS, null);
+		}
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testGetRangeCounterWithPeriodCounterCache() throws IOException {
+		setProperty(Parameter.PERIOD_COUNTERS_CACHE, "true");
+		try {
+			checkGetRangeCounterWithPeriodCounterCache();
+		} finally {
+			setProperty(Parameter.PERIOD_COUNTERS_CACHE, null);
+		}
+	}
+
+	private void checkGetRangeCounterWithPeriodCounterCache() throws IOException {
+		final Counter counter = createCounter();
+		final Collector collector = new Collector("test period counters cache",
+				Collections.singletonList(counter));
+		final File[] files = Parameters.getStorageDirectory(counter.getApplication()).listFiles();
+		if (files != null) {
+			// pas de fichiers de jours ou de mois d'une exécution précédente
+			for (final File file : files) {
+				if (file.getName().endsWith(".ser.gz") && !file.delete()) {
+					fail("delete");
+				}
+			}
+		}
+		// un jour précédent dans la semaine
+		final Calendar calendar = Calendar.getInstance();
+		calendar.add(Calendar.DAY_OF_YEAR, -1);
+		final Counter previousDayCounter = new PeriodCounterFactory(counter)
+				.createDayCounterAtDate(calendar.getTime());
+		previousDayCounter.addRequest("test 1", 10, 0, false, 1000);
+		previousDayCounter.addRequest("test 1", 10, 0, false, 1000);
+		previousDayCounter.writeToFile();
+
+		// première collecte pour initialiser, puis une requête dans le jour courant
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		counter.addRequest("test 1", 10, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		assertEquals("week hits", 3,
+				collector.getRangeCounter(Period.SEMAINE.getRange(), counter.getName())
+						.getCounterRequestByName("test 1").getHits());
+		assertEquals("year hits", 3,
+				collector.getRangeCounter(Period.ANNEE.getRange(), counter.getName())
+						.getCounterRequestByName("test 1").getHits());
+		final PeriodCounterCache cache = collector.getPeriodCounterCache();
+		assertEquals("misses", 2, cache.getMisses());
+		for (int i = 0; i < 3; i++) {
+			counter.addRequest("test 1", 10, 0, false, 1000);
+		}
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		// les jours précédents viennent du cache et le jour courant est ajouté,
+		// sans modifier le compteur en cache même en le demandant plusieurs fois
+		for (int i = 0; i < 2; i++) {
+			final Counter weekCounter = collector.getRangeCounter(Period.SEMAINE.getRange(),
+					counter.getName());
+			assertEquals("week hits", 6, weekCounter.getCounterRequestByName("test 1")
+					.getHits());
+			assertEquals("week durations", 60, weekCounter.getCounterRequestByName("test 1")
+					.getDurationsSum());
+		}
+		assertEquals("year hits", 6,
+				collector.getRangeCounter(Period.ANNEE.getRange(), counter.getName())
+						.getCounterRequestByName("test 1").getHits());
+		assertEquals("hits", 3, cache.getHits());
+		assertEquals("misses", 2, cache.getMisses());
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				counter.getName());
+		final Counter cachedCounter = cache.get(dayCounter, Period.SEMAINE);
+		assertEquals("cached hits", 2, cachedCounter.getCounterRequestByName("test 1")
+				.getHits());
+		assertEquals("size", 2, cache.getSize());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testCollectWithConsolidatedRequestGraphs() throws IOException {
+		setProperty(Parameter.CONSOLIDATED_REQUEST_GRAPHS, "true");
+		final Counter counter = createCounter();
+		final Collector collector = new Collector(TEST, Collections.singletonList(counter));
+		counter.addRequest("test 1", 0, 0, false, 1000);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		for (int i = 0; i < 5; i++) {
+			counter.addRequest("test 1", 10, 0, false, 1000);
+		}
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		final String requestId = counter.getCounterRequestByName("test 1").getId();
+		final JRobin requestJRobin = collector.getJRobin(requestId);
+		assertNotNull("request jrobin", requestJRobin);
+		assertFalse("no rrd file by request",
+				new File(Parameters.getStorageDirectory(TEST), requestId + ".rrd").exists());
+		requestJRobin.graph(Period.JOUR.getRange(), 80, 80);
+		collector.stop();
+		setProperty(Parameter.CONSOLIDATED_REQUEST_GRAPHS, null);
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws InterruptedException e */
+	@Test
+	public void testCollectErrorsOccurrences() throws IOException, InterruptedException {
+		final Counter errorCounter = new Counter(Counter.LOG_COUNTER_NAME, null);
+		final Collector collector = new Collector(TEST, Collections.singletonList(errorCounter));
+		for (int i = 0; i < 3; i++) {
+			errorCounter.addRequestForSystemError("storm", -1, -1, null);
+		}
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		final Counter dayCounter = collector.getRangeCounter(Period.JOUR.getRange(),
+				errorCounter.getName());
+		final long dayOccurrencesCount = getOccurrencesCount(dayCounter, "storm");
+		Thread.sleep(5);
+		errorCounter.addRequestForSystemError("storm", -1, -1, null);
+		errorCounter.addRequestForSystemError("storm", -1, -1, null);
+		collector.collectWithoutErrors(Collections.<JavaInformations> emptyList());
+		// seules les nouvelles occurrences de l'erreur sont ajoutées dans le jour
+		assertEquals("occurrences", dayOccurrencesCount + 2,
+				getOccurrencesCount(collector.getRangeCounter(Period.JOUR.getRange(),
+						errorCounter.getName()), "storm"));
+	}
+
+	private static long getOccurrencesCount(Counter counter, String message) {
+		for (final CounterError error : counter.getErrors()) {
+			if (message.equals(error.getMessage())) {
+				return error.getOccurrencesCount();
+			}
+		}
+		return 0;
+	}
+
 	/** Test. */
 	@Test
 	public void testGetCounterByName() {
@@ -337,6 +596,54 @@ public class TestCollector {
 						Range.createCustomRange(new Date(), new Date())).size());
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testGetCustomRangeCounter() throws IOException {
+		final Counter counter = createCounter();
+		final Collector collector = new Collector("test custom range",
+				Collections.singletonList(counter));
+		final File[] files = Parameters.getStorageDirectory(counter.getApplication()).listFiles();
+		if (files != null) {
+			// pas de fichiers de jours ou de mois d'une exécution précédente
+			for (final File file : files) {
+				if (file.getName().endsWith(".ser.gz") && !file.delete()) {
+					fail("delete");
+				}
+			}
+		}
+		final Calendar calendar = Calendar.getInstance();
+		final Date today = calendar.getTime();
+		final PeriodCounterFactory periodCounterFactory = new PeriodCounterFactory(counter);
+		// jours d'un mois entier dans la période et jour d'un mois incomplet
+		for (final int daysAgo : new int[] { 45, 50, 85 }) {
+			calendar.setTime(today);
+			calendar.add(Calendar.DAY_OF_YEAR, -daysAgo);
+			final Counter dayCounter = periodCounterFactory.createDayCounterAtDate(calendar
+					.getTime());
+			dayCounter.addRequest("test range", 100, 0, false, 1000);
+			dayCounter.writeToFile();
+		}
+		calendar.setTime(today);
+		calendar.add(Calendar.DAY_OF_YEAR, -80);
+		final Counter rangeCounter = collector.getRangeCounter(
+				Range.createCustomRange(calendar.getTime(), today), counter.getName());
+		assertEquals("hits", 2, rangeCounter.getCounterRequestByName("test range").getHits());
+		// le mois entier dans la période a été lu depuis un fichier de mois
+		calendar.setTime(today);
+		calendar.add(Calendar.DAY_OF_YEAR, -45);
+		final String monthStorageName = counter.getName() + '_'
+				+ new SimpleDateFormat("yyyyMM", Locale.getDefault()).format(calendar.getTime());
+		assertTrue("month file", new File(Parameters.getStorageDirectory(counter
+				.getApplication()), monthStorageName + ".ser.gz").exists());
+		calendar.setTime(today);
+		calendar.add(Calendar.DAY_OF_YEAR, -80);
+		calendar.add(Calendar.DAY_OF_YEAR, -10);
+		assertEquals("hits", 3,
+				collector.getRangeCounter(Range.createCustomRange(calendar.getTime(), today),
+						counter.getName()).getCounterRequestByName("test range").getHits());
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
@@ -366,6 +673,42 @@ public class TestCollector {
 		collector.deleteObsoleteFiles();
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testStorageMaintenance() throws IOException {
+		final String application = "test storage maintenance";
+		final File storageDir = Parameters.getStorageDirectory(application);
+		if (!storageDir.exists() && !storageDir.mkdirs()) {
+			fail("mkdirs");
+		}
+		final File obsoleteFile = new File(storageDir, "obsolete.ser.gz");
+		if (!obsoleteFile.exists() && !obsoleteFile.createNewFile()) {
+			fail("createNewFile");
+		}
+		final Calendar twoYearsAgo = Calendar.getInstance();
+		twoYearsAgo.add(Calendar.YEAR, -2);
+		if (!obsoleteFile.setLastModified(twoYearsAgo.getTimeInMillis())) {
+			fail("setLastModified");
+		}
+		final Counter counter = createCounter();
+		final Collector collector = new Collector(application, Collections.singletonList(counter));
+		final StorageMaintenance storageMaintenance = collector.getStorageMaintenance();
+		final long diskUsage = collector.getDiskUsage();
+		assertTrue("indexed", storageMaintenance.getIndexedFilesCount() > 0);
+
+		// l'index est mis à jour à l'écriture d'un fichier, sans parcourir le répertoire
+		counter.addRequest("test maintenance", 10, 0, false, 1000);
+		counter.writeToFile();
+		final File counterFile = new File(storageDir, counter.getStorageName() + ".ser.gz");
+		assertTrue("disk usage", collector.getDiskUsage() >= diskUsage + counterFile.length());
+
+		collector.deleteObsoleteFiles();
+		assertFalse("obsolete file deleted", obsoleteFile.exists());
+		assertTrue("counter file", counterFile.exists());
+		collector.stop();
+	}
+
 	/** Test. */
 	@Test
 	public void testStop() {
@@ -25,15 +25,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -102,6 +105,98 @@ public class TestCounter {
 		httpCounter.addRequest("http request", 10, 2, false, 100);
 	}
 
+	/** Test. */
+	@Test
+	public void testAddRequestForDetachedContext() {
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		httpCounter.bindContext("http request", "http request", null, -1);
+		final CounterRequestContext context = httpCounter.detachContext();
+		assertNotNull("context", context);
+		assertTrue("detached", context.isDetached());
+		assertNull("unbound", httpCounter.getCurrentContext());
+		assertTrue("not current", httpCounter.getOrderedRootCurrentContexts().isEmpty());
+
+		// requête sql exécutée par un autre thread terminant la requête
+		final CounterRequestContext previousContext = httpCounter.attachContext(context);
+		sqlCounter.bindContext("sql request", "sql request", null, -1);
+		sqlCounter.addRequest("sql request", 5, -1, false, -1);
+		httpCounter.restoreContext(previousContext);
+		assertNull("restored", httpCounter.getCurrentContext());
+
+		httpCounter.addRequestForDetachedContext(context, "http request", 10, 2, false, 100, 1);
+		assertNull("restored", httpCounter.getCurrentContext());
+		final CounterRequest request = httpCounter.getRequests().get(0);
+		assertEquals("hits", 1, request.getHits());
+		assertEquals("child hits", 1, request.getChildHitsMean());
+	}
+
+	/** Test. */
+	@Test
+	public void testCpuTimeAccounting() {
+		assertTrue("call cost", CpuTimeAccounting.measureCallCostNanos() >= 0);
+		assertEquals("measured call cost", CpuTimeAccounting.getMeasuredCallCostNanos(),
+				CpuTimeAccounting.getMeasuredCallCostNanos());
+		final Counter servicesCounter = new Counter("services", null);
+		assertNull("always", servicesCounter.getCpuTimeAccounting());
+		assertTrue("start cpu time", servicesCounter.getStartCpuTime() >= 0);
+
+		final CpuTimeAccounting sampled = new CpuTimeAccounting(CpuTimeAccounting.Mode.SAMPLED,
+				1000000, CpuTimeAccounting.DEFAULT_SLOW_MILLIS);
+		servicesCounter.setCpuTimeAccounting(sampled);
+		int unmeasured = 0;
+		for (int i = 0; i < 10; i++) {
+			final long startCpuTime = servicesCounter.getStartCpuTime();
+			if (startCpuTime < 0) {
+				unmeasured++;
+				assertEquals("unmeasured", 0, servicesCounter.getCpuTimeMillis(startCpuTime, 10));
+			}
+		}
+		assertTrue("sampled", unmeasured > 0);
+		servicesCounter.bindContextIncludingCpu("service");
+		servicesCounter.addRequestForCurrentContext(false);
+		assertTrue("cpu time sum", servicesCounter.getRequests().get(0).getCpuTimeMean() >= 0);
+
+		final CpuTimeAccounting slow = new CpuTimeAccounting(CpuTimeAccounting.Mode.SLOW, 1, 100);
+		servicesCounter.setCpuTimeAccounting(slow);
+		final long startCpuTime = servicesCounter.getStartCpuTime();
+		assertTrue("start cpu time", startCpuTime >= 0);
+		assertEquals("fast", 0, servicesCounter.getCpuTimeMillis(startCpuTime, 10));
+		assertTrue("slow", servicesCounter.getCpuTimeMillis(startCpuTime, 100) >= 0);
+		assertEquals("mode", CpuTimeAccounting.Mode.SLOW,
+				CpuTimeAccounting.Mode.valueOfIgnoreCase(" Slow"));
+		assertNotNull("toString", slow.toString());
+	}
+
+	/** Test. */
+	@Test
+	public void testHighResolutionDurations() {
+		final Counter sqlCounter = new Counter("sql", null);
+		sqlCounter.setHighResolutionDurations(true);
+		assertTrue("highResolutionDurations", sqlCounter.isHighResolutionDurations());
+		sqlCounter.addRequestMicros("fast sql", 200, -1, false, -1, 1);
+		sqlCounter.addRequestMicros("fast sql", 300, -1, false, -1, 1);
+		final CounterRequest request = sqlCounter.getRequests().get(0);
+		assertEquals("mean", 0, request.getMean());
+		assertEquals("meanMillis", 0.25, request.getMeanMillis(), 0.0001);
+		assertEquals("durationsMicrosSum", 500, request.getDurationsMicrosSum());
+
+		// requête sans durées en microsecondes, comme dans les fichiers d'anciennes versions
+		final CounterRequest oldRequest = new CounterRequest("fast sql", sqlCounter.getName());
+		oldRequest.addHit(2, -1, false, null, -1);
+		request.addHits(oldRequest);
+		assertEquals("durationsMicrosSum", 2500, request.getDurationsMicrosSum());
+		request.removeHits(oldRequest);
+		assertEquals("durationsMicrosSum", 500, request.getDurationsMicrosSum());
+		assertEquals("meanMillis", -1, new CounterRequest("empty", "sql").getMeanMillis(), 0);
+
+		final Counter servicesCounter = new Counter("services", null);
+		servicesCounter.setHighResolutionDurations(true);
+		servicesCounter.bindContextIncludingCpu("service");
+		servicesCounter.addRequestForCurrentContext(false);
+		assertTrue("meanMillis", servicesCounter.getRequests().get(0).getMeanMillis() >= 0);
+	}
+
 	/** Test. */
 	@Test
 	public void testAddRequestForSystemError() {
@@ -181,6 +276,433 @@ public class TestCounter {
 		counterRequest.removeHits(counterRequest2);
 	}
 
+	/** Test. */
+	@Test
+	public void testChildRequestsExecutions() {
+		final CounterRequest counterRequest = createCounterRequest();
+		counterRequest.addHit(10, 0, false, null, -1);
+		// assez de requêtes filles pour agrandir la map d'index plusieurs fois
+		final int nbChildRequests = 100;
+		for (int i = 0; i < nbChildRequests; i++) {
+			counterRequest.addChildRequests(Collections.singletonMap("child " + i, (long) i + 1));
+		}
+		counterRequest.addChildRequests(Collections.singletonMap("child 0", 1L));
+		final Map<String, Long> childRequests = counterRequest
+				.getChildRequestsExecutionsByRequestId();
+		assertEquals("childRequests", nbChildRequests, childRequests.size());
+		assertEquals("child 0", Long.valueOf(2), childRequests.get("child 0"));
+		assertEquals("child 99", Long.valueOf(100), childRequests.get("child 99"));
+		// l'ordre d'insertion est conservé comme avec une LinkedHashMap
+		assertEquals("first", "child 0", childRequests.keySet().iterator().next());
+		assertTrue("containsChildRequest", counterRequest.containsChildRequest("child 50"));
+		assertFalse("containsChildRequest", counterRequest.containsChildRequest("unknown"));
+
+		// le clone (sérialisé) a une map par id de requête, puis repasse aux index s'il reçoit des hits
+		final CounterRequest clone = counterRequest.clone();
+		assertEquals("clone", childRequests, clone.getChildRequestsExecutionsByRequestId());
+		clone.addHits(counterRequest);
+		assertEquals("child 99 x2", Long.valueOf(200), clone
+				.getChildRequestsExecutionsByRequestId().get("child 99"));
+		clone.removeHits(counterRequest);
+		assertEquals("removeHits", childRequests, clone.getChildRequestsExecutionsByRequestId());
+		final CounterRequest delta = counterRequest.clone();
+		delta.removeHits(counterRequest.clone());
+		assertTrue("removeHits all", delta.getChildRequestsExecutionsByRequestId().isEmpty());
+		assertFalse("containsChildRequest", delta.containsChildRequest("child 0"));
+	}
+
+	/** Test. */
+	@Test
+	public void testChildRequestsExecutionsWithFullDictionary() {
+		final int maxSize = RequestIdDictionary.getMaxSize();
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		final String indexedSqlRequest = "indexed sql request";
+		final String sqlRequestId = new CounterRequest(indexedSqlRequest, sqlCounter.getName())
+				.getId();
+		RequestIdDictionary.getIndex(sqlRequestId);
+		// le dictionnaire est plein : les nouveaux ids n'ont plus d'index
+		RequestIdDictionary.setMaxSize(RequestIdDictionary.getSize());
+		try {
+			final String sqlRequest = "sql request without index " + System.nanoTime();
+			assertEquals("full", -1, RequestIdDictionary.getIndex(sqlRequest));
+			httpCounter.bindContext("http request", "http request", null, -1);
+			for (final String request : Arrays.asList(sqlRequest, sqlRequest, indexedSqlRequest)) {
+				sqlCounter.bindContext(request, request, null, -1);
+				sqlCounter.addRequest(request, 5, -1, false, -1);
+			}
+			httpCounter.addRequest("http request", 10, 2, false, 100);
+			final CounterRequest request = httpCounter.getRequests().get(0);
+			final String childRequestId = new CounterRequest(sqlRequest, sqlCounter.getName())
+					.getId();
+			final Map<String, Long> childRequests = request.getChildRequestsExecutionsByRequestId();
+			assertEquals("childRequests", 2, childRequests.size());
+			assertEquals("without index", Long.valueOf(2), childRequests.get(childRequestId));
+			assertEquals("indexed", Long.valueOf(1), childRequests.get(sqlRequestId));
+			assertTrue("containsChildRequest", request.containsChildRequest(childRequestId));
+
+			// fusion et soustraction entre instance désérialisée et instance avec index
+			final CounterRequest clone = request.clone();
+			clone.addHits(request);
+			assertEquals("without index x2", Long.valueOf(4), clone
+					.getChildRequestsExecutionsByRequestId().get(childRequestId));
+			clone.removeHits(request);
+			assertEquals("removeHits", childRequests, clone.getChildRequestsExecutionsByRequestId());
+			clone.removeHits(request);
+			assertTrue("removeHits all", clone.getChildRequestsExecutionsByRequestId().isEmpty());
+		} finally {
+			RequestIdDictionary.setMaxSize(maxSize);
+		}
+	}
+
+	/** Test. */
+	@Test
+	public void testTopRequests() {
+		final Counter topCounter = new Counter("sql", null);
+		topCounter.setTopRequests(10, false);
+		assertNotNull("topRequests", topCounter.getTopRequests());
+		// requêtes fréquentes arrivées tôt
+		for (int i = 0; i < 500; i++) {
+			topCounter.addRequest("early 1", 10, 0, false, -1);
+			topCounter.addRequest("early 2", 10, 0, false, -1);
+		}
+		// beaucoup de requêtes différentes, puis une requête fréquente arrivée tard au milieu
+		for (int i = 0; i < 1000; i++) {
+			topCounter.addRequest("unbound " + i, 10, 0, false, -1);
+			topCounter.addRequest("late", 10, 0, false, -1);
+		}
+		// 10 requêtes conservées plus "autres requêtes", dont toutes celles ayant plus de hits
+		// que le total divisé par 10 (garantie de l'algorithme space-saving)
+		assertEquals("requestsCount", 11, topCounter.getRequestsCount());
+		assertEquals("early 1", 500, topCounter.getCounterRequestByName("early 1").getHits());
+		assertEquals("early 2", 500, topCounter.getCounterRequestByName("early 2").getHits());
+		assertTrue("late", topCounter.getCounterRequestByName("late").getHits() > 900);
+		long hits = 0;
+		for (final CounterRequest request : topCounter.getRequests()) {
+			hits += request.getHits();
+		}
+		// pas de hit perdu
+		assertEquals("hits", 3000, hits);
+		// une simple lecture ne remplace pas de requête
+		topCounter.getCounterRequestByName("unknown");
+		assertEquals("requestsCount", 11, topCounter.getRequestsCount());
+		assertFalse("evicted", topCounter.pollEvictedRequestIds().isEmpty());
+		assertTrue("evicted", topCounter.pollEvictedRequestIds().isEmpty());
+
+		// poids selon la durée cumulée
+		final Counter durationCounter = new Counter("sql", null);
+		durationCounter.setTopRequests(2, true);
+		durationCounter.addRequest("slow", 1000, 0, false, -1);
+		for (int i = 0; i < 10; i++) {
+			durationCounter.addRequest("fast " + i, 1, 0, false, -1);
+		}
+		assertEquals("slow", 1, durationCounter.getCounterRequestByName("slow").getHits());
+		durationCounter.clear();
+		assertEquals("clear", 0, durationCounter.getRequestsCount());
+		durationCounter.setTopRequests(0, false);
+		assertNull("topRequests", durationCounter.getTopRequests());
+	}
+
+	/** Test. */
+	@Test
+	public void testRequestsSampling() {
+		final Counter sampledCounter = new Counter("http", null);
+		// une requête échantillonnée sur 10 compte pour 10 hits
+		sampledCounter.addRequest("sampled", 100, 10, false, 1000, 10);
+		sampledCounter.addRequest("sampled", 200, 20, false, 1000, 1);
+		final CounterRequest request = sampledCounter.getCounterRequestByName("sampled");
+		assertEquals("hits", 11, request.getHits());
+		assertEquals("durationsSum", 1200, request.getDurationsSum());
+		assertEquals("cpuTimeMean", 10, request.getCpuTimeMean());
+		assertEquals("percentile", 100, request.getDurationPercentile(50), 10);
+		// requête non échantillonnée enregistrée car lente : temps cpu et taille inconnus (-1)
+		// qui ne changent pas les moyennes
+		sampledCounter.addRequest("sampled", 2000, -1, false, -1, 1);
+		final CounterRequest unsampledRequest = sampledCounter.getCounterRequestByName("sampled");
+		assertEquals("hits", 12, unsampledRequest.getHits());
+		assertEquals("cpuTimeMean", 10, unsampledRequest.getCpuTimeMean());
+		assertEquals("responseSizeMean", 1000, unsampledRequest.getResponseSizeMean());
+		// sans aucune valeur connue (requêtes sql), les moyennes restent -1
+		sampledCounter.addRequest("sql", 10, -1, false, -1);
+		sampledCounter.addRequest("sql", 10, -1, false, -1);
+		assertEquals("cpuTimeMean", -1, sampledCounter.getCounterRequestByName("sql")
+				.getCpuTimeMean());
+
+		final RequestSampling sampling = new RequestSampling(10, 1000);
+		sampledCounter.setSampling(sampling);
+		assertNotNull("sampling", sampledCounter.getSampling());
+		assertEquals("weight", 10, sampling.getHitsWeight(true, 10, false));
+		assertEquals("weight", 0, sampling.getHitsWeight(false, 10, false));
+		assertEquals("weight", 1, sampling.getHitsWeight(true, 2000, false));
+		assertEquals("weight", 1, sampling.getHitsWeight(false, 10, true));
+		assertEquals("forcedRequestsCount", 1, sampling.getForcedRequestsCount());
+		assertEquals("effective", 10d, sampling.getEffectiveSamplingPercentage(), 0.01);
+		for (int i = 0; i < 10000; i++) {
+			sampling.isSampled();
+		}
+		assertEquals("requestsCount", 10000, sampling.getRequestsCount());
+		assertEquals("effective", 10d, sampling.getEffectiveSamplingPercentage(), 2);
+		// les requêtes sql suivent l'échantillonnage de la requête http en cours
+		sampling.bindCurrentRequest(false);
+		try {
+			assertFalse("sql", sampling.isSampledInCurrentRequest());
+			sampling.bindCurrentRequest(true);
+			assertTrue("sql", sampling.isSampledInCurrentRequest());
+		} finally {
+			RequestSampling.unbindCurrentRequest();
+		}
+		assertNotNull("toString", sampling.toString());
+		sampledCounter.setSampling(null);
+		assertNull("sampling", sampledCounter.getSampling());
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testAsyncHits() throws InterruptedException {
+		counter.unbindContext();
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		final AsyncHitsRecorder recorder = new AsyncHitsRecorder();
+		sqlCounter.setAsyncHitsRecorder(recorder);
+		httpCounter.setAsyncHitsRecorder(recorder);
+		assertNotNull("asyncHitsRecorder", httpCounter.getAsyncHitsRecorder());
+		for (int i = 0; i < 3; i++) {
+			httpCounter.bindContext("http request", "http request", null, -1);
+			sqlCounter.bindContext("sql request", "sql request", null, -1);
+			sqlCounter.addRequest("sql request", 5, 0, false, -1);
+			httpCounter.addRequest("http request", 10, 2, false, 100);
+		}
+		// les hits ne sont reportés dans les counters qu'au moment de les lire
+		assertEquals("pendingHitsCount", 6, recorder.getPendingHitsCount());
+		final CounterRequest httpRequest = httpCounter.getCounterRequestByName("http request");
+		assertEquals("pendingHitsCount", 0, recorder.getPendingHitsCount());
+		assertEquals("drainedHitsCount", 6, recorder.getDrainedHitsCount());
+		assertEquals("hits", 3, httpRequest.getHits());
+		assertEquals("durationsSum", 30, httpRequest.getDurationsSum());
+		assertEquals("childHitsMean", 1, httpRequest.getChildHitsMean());
+		assertEquals("childRequests", 3, httpRequest.getChildRequestsExecutionsByRequestId()
+				.values().iterator().next().longValue());
+		assertEquals("sql hits", 3, sqlCounter.getRequests().get(0).getHits());
+
+		// buffer plein : les hits sont perdus et comptés, sans bloquer
+		for (int i = 0; i < AsyncHitsRecorder.BUFFER_SIZE + 10; i++) {
+			sqlCounter.addRequest("sql request", 5, 0, false, -1);
+		}
+		assertEquals("droppedHitsCount", 10, recorder.getDroppedHitsCount());
+		assertEquals("sql hits", 3 + AsyncHitsRecorder.BUFFER_SIZE, sqlCounter.getRequests()
+				.get(0).getHits());
+
+		// hits d'un autre thread, dont le buffer est supprimé une fois le thread terminé
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				sqlCounter.addRequest("sql request", 5, 0, false, -1);
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals("buffersCount", 2, recorder.getBuffersCount());
+		assertEquals("drain", 1, recorder.drain());
+		assertEquals("buffersCount", 1, recorder.getBuffersCount());
+		assertEquals("droppedHitsCount", 10, recorder.getDroppedHitsCount());
+
+		// un hit en erreur ne bloque pas le buffer
+		final Counter failingCounter = new Counter("sql", null) {
+			private static final long serialVersionUID = 1L;
+			private boolean failed;
+
+			@Override
+			boolean containsRequest(CounterRequest request) {
+				if (!failed) {
+					failed = true;
+					throw new IllegalStateException("test");
+				}
+				return super.containsRequest(request);
+			}
+		};
+		failingCounter.setAsyncHitsRecorder(recorder);
+		failingCounter.addRequest("sql request", 5, 0, false, -1);
+		sqlCounter.addRequest("sql request", 5, 0, false, -1);
+		assertEquals("drain", 2, recorder.drain());
+		assertEquals("pendingHitsCount", 0, recorder.getPendingHitsCount());
+		failingCounter.addRequest("sql request", 5, 0, false, -1);
+		assertEquals("drain", 1, recorder.drain());
+		assertEquals("failing hits", 1, failingCounter.getRequests().get(0).getHits());
+
+		// thread de report
+		recorder.start("test async hits");
+		assertTrue("started", recorder.isStarted());
+		sqlCounter.addRequest("sql request", 5, 0, false, -1);
+		recorder.stop();
+		assertFalse("started", recorder.isStarted());
+		assertEquals("pendingHitsCount", 0, recorder.getPendingHitsCount());
+		assertNotNull("toString", recorder.toString());
+		sqlCounter.clear();
+		assertEquals("clear", 0, sqlCounter.getRequestsCount());
+		httpCounter.setAsyncHitsRecorder(null);
+		assertNull("asyncHitsRecorder", httpCounter.getAsyncHitsRecorder());
+	}
+
+	/** Test. */
+	@Test
+	public void testRecycledContexts() {
+		counter.unbindContext();
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		sqlCounter.setContextsRecycled(true);
+		httpCounter.setContextsRecycled(true);
+		assertTrue("contextsRecycled", httpCounter.isContextsRecycled());
+		assertTrue("contextsRecycled clone", httpCounter.clone().isContextsRecycled());
+		CounterRequestContext firstContext = null;
+		for (int i = 0; i < 3; i++) {
+			httpCounter.bindContext("http request " + i, "http request " + i, null, -1);
+			sqlCounter.bindContext("sql request", "sql request", null, -1);
+			sqlCounter.addRequest("sql request", 5, 0, false, -1);
+			final List<CounterRequestContext> currentContexts = httpCounter
+					.getOrderedRootCurrentContexts();
+			assertEquals("currentContexts", 1, currentContexts.size());
+			final CounterRequestContext currentContext = currentContexts.get(0);
+			assertEquals("requestName", "http request " + i, currentContext.getRequestName());
+			// les requêtes filles de la requête précédente ne restent pas dans le contexte recyclé
+			assertEquals("childHits", 1, currentContext.getChildHits());
+			assertEquals("childRequests", 1, currentContext
+					.getChildRequestsExecutionsByRequestId().size());
+			httpCounter.addRequest("http request " + i, 10, 2, false, 100);
+			assertTrue("unbind", httpCounter.getOrderedRootCurrentContexts().isEmpty());
+			final CounterRequestContextPool pool = CounterRequestContextPool.getInstance();
+			assertEquals("pool", 2, pool.getSize());
+			final CounterRequestContext context = pool.acquire(httpCounter, null, "test", "test",
+					null, -1);
+			if (firstContext == null) {
+				firstContext = context;
+			} else {
+				assertSame("recycled", firstContext, context);
+			}
+			pool.release(context);
+			// un 2ème release est sans effet
+			pool.release(context);
+			assertEquals("pool", 2, pool.getSize());
+		}
+		final CounterRequest httpRequest = httpCounter.getCounterRequestByName("http request 2");
+		assertEquals("childHitsMean", 1, httpRequest.getChildHitsMean());
+		assertEquals("childRequests", 1, httpRequest.getChildRequestsExecutionsByRequestId()
+				.size());
+		httpCounter.unbindContext();
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testStripedHits() throws InterruptedException {
+		counter.unbindContext();
+		final Counter stripedCounter = new Counter("sql", null);
+		stripedCounter.setStriped(true);
+		assertTrue("striped", stripedCounter.isStriped());
+		assertTrue("striped clone", stripedCounter.clone().isStriped());
+		// sans contention, seule la stripe de base est utilisée
+		final CounterRequest uncontendedRequest = new CounterRequest("uncontended request",
+				stripedCounter.getName());
+		for (int i = 0; i < 10; i++) {
+			uncontendedRequest.getStripes().addHit(10000, 1, false, -1, 0, 0, 1);
+		}
+		assertEquals("no stripes without contention", 0, uncontendedRequest.getStripes()
+				.getCreatedStripesCount());
+		uncontendedRequest.drainStripes();
+		assertEquals("uncontended hits", 10, uncontendedRequest.getHits());
+		assertEquals("uncontended durationsSum", 100, uncontendedRequest.getDurationsSum());
+		final int nbThreads = 4;
+		final int nbHits = 1000;
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < nbThreads; i++) {
+			final Thread thread = new Thread(new Runnable() { // NOPMD
+						@Override
+						public void run() {
+							for (int j = 0; j < nbHits; j++) {
+								stripedCounter.addRequest("striped request", 10, 1, j % 10 == 0, -1);
+							}
+						}
+					});
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		final CounterRequest request = stripedCounter.getRequests().get(0);
+		assertEquals("hits", nbThreads * nbHits, request.getHits());
+		assertEquals("durationsSum", nbThreads * nbHits * 10, request.getDurationsSum());
+		assertEquals("maximum", 10, request.getMaximum());
+		assertEquals("systemErrorPercentage", 10f, request.getSystemErrorPercentage(), 0.01f);
+		// les hits ont été reportés, un nouveau clone donne le même résultat
+		assertEquals("request", request.toString(),
+				stripedCounter.getCounterRequestByName("striped request").toString());
+		stripedCounter.addRequest("striped request", 20, 1, false, -1);
+		assertEquals("hits", nbThreads * nbHits + 1, stripedCounter.clone().getRequests().get(0)
+				.getHits());
+
+		// requêtes filles avec un counter parent en mode striped
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter httpCounter = new Counter("http", null, sqlCounter);
+		httpCounter.setStriped(true);
+		httpCounter.bindContext("http request", "http request", null, -1);
+		sqlCounter.bindContext("sql request", "sql request", null, -1);
+		sqlCounter.addRequest("sql request", 5, 0, false, -1);
+		httpCounter.addRequest("http request", 10, 2, false, 100);
+		final CounterRequest httpRequest = httpCounter.getRequests().get(0);
+		assertEquals("childHitsMean", 1, httpRequest.getChildHitsMean());
+		assertEquals("childDurationsMean", 5, httpRequest.getChildDurationsMean());
+		assertEquals("childRequests", 1, httpRequest.getChildRequestsExecutionsByRequestId()
+				.size());
+	}
+
+	/** Test. */
+	@Test
+	public void testDurationPercentiles() {
+		final CounterRequest request = new CounterRequest("percentiles", counter.getName());
+		assertEquals("no percentile", -1, request.getDurationPercentile(50));
+		for (int i = 1; i <= 1000; i++) {
+			request.addHit(i, 0, false, null, -1);
+		}
+		// erreur relative d'au plus 12,5%
+		assertPercentile(request, 50, 500);
+		assertPercentile(request, 90, 900);
+		assertPercentile(request, 99, 990);
+		assertPercentile(request, 99.9, 999);
+		assertEquals("p100", 1023, request.getDurationPercentile(100));
+		assertEquals("displayed percentiles", CounterRequest.DISPLAYED_PERCENTILES.length,
+				request.getDisplayedDurationPercentiles().length);
+
+		// fusion des histogrammes dans addHits et removeHits
+		final CounterRequest slowRequests = new CounterRequest("percentiles", counter.getName());
+		for (int i = 0; i < 1000; i++) {
+			slowRequests.addHit(10000, 0, false, null, -1);
+		}
+		final CounterRequest merged = request.clone();
+		merged.addHits(slowRequests);
+		assertPercentile(merged, 99, 10000);
+		assertPercentile(merged, 25, 500);
+		merged.removeHits(slowRequests);
+		assertEquals("removeHits", request.getDurationPercentile(99),
+				merged.getDurationPercentile(99));
+		// le clone ne partage pas l'histogramme
+		assertEquals("clone", 1023, request.getDurationPercentile(100));
+
+		for (long value = 0; value < 1000000000000L; value = value * 3 + 1) {
+			final int index = CounterRequestHistogram.getBucketIndex(value);
+			assertTrue("bucket", value <= CounterRequestHistogram.getBucketHighestValue(index));
+			assertTrue("bucket", index == 0
+					|| value > CounterRequestHistogram.getBucketHighestValue(index - 1));
+		}
+		assertNotNull("toString", new CounterRequestHistogram().toString());
+	}
+
+	private static void assertPercentile(CounterRequest request, double percentile, long expected) {
+		final long value = request.getDurationPercentile(percentile);
+		assertTrue("p" + percentile + '=' + value, value >= expected
+				&& value <= expected * 1.125);
+	}
+
 	/** Test. */
 	@Test
 	public void testRemoveRequest() {
@@ -253,11 +775,63 @@ public class TestCounter {
 		errorCounter.addErrors(errors);
 		errors.add(0, beforeError);
 		errorCounter.addErrors(errors);
-		assertEquals("addErrors", errorsCount + 5, errorCounter.getErrorsCount());
+		// les erreurs identiques ne sont conservées qu'une fois avec leur nombre d'occurrences
+		assertEquals("addErrors", errorsCount + 3, errorCounter.getErrorsCount());
+		assertEquals("occurrencesCount", 2, errorCounter.getErrors().get(2).getOccurrencesCount());
+		int i = 0;
 		while (errorCounter.getErrorsCount() < Counter.MAX_ERRORS_COUNT) {
-			errorCounter.addErrors(errors);
+			errorCounter.addErrors(Collections.singletonList(new CounterError("erreur " + i,
+					null)));
+			i++;
 		}
 		errorCounter.addErrors(errors);
+		assertEquals("addErrors", Counter.MAX_ERRORS_COUNT, errorCounter.getErrorsCount());
+		errorCounter.addErrors(Collections.singletonList(new CounterError("erreur " + i, null)));
+		assertEquals("addErrors", Counter.MAX_ERRORS_COUNT, errorCounter.getErrorsCount());
+		// la première erreur distincte ajoutée a été remplacée
+		for (final CounterError error : errorCounter.getErrors()) {
+			assertFalse("addErrors",
+					"erreur".equals(error.getMessage()) && error.getStackTrace() == null);
+		}
+	}
+
+	/** Test.
+	 * @throws InterruptedException e */
+	@Test
+	public void testErrorRing() throws InterruptedException {
+		final Counter errorCounter = new Counter(Counter.LOG_COUNTER_NAME, null);
+		final int threadsCount = 4;
+		final int errorsCount = 1000;
+		final Thread[] threads = new Thread[threadsCount];
+		for (int i = 0; i < threadsCount; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < errorsCount; j++) {
+						errorCounter.addRequestForSystemError("storm", -1, -1, "stacktrace");
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("errorsCount", 1, errorCounter.getErrorsCount());
+		final CounterError error = errorCounter.getErrors().get(0);
+		assertEquals("occurrencesCount", threadsCount * errorsCount, error.getOccurrencesCount());
+		assertEquals("hits", threadsCount * errorsCount, errorCounter.getRequests().get(0)
+				.getHits());
+
+		// le nombre d'occurrences est conservé par clone (et donc en sérialisation)
+		final Counter clone = errorCounter.clone();
+		assertEquals("clone", threadsCount * errorsCount, clone.getErrors().get(0)
+				.getOccurrencesCount());
+		clone.addErrors(errorCounter.getErrors());
+		assertEquals("addErrors", 2 * threadsCount * errorsCount, clone.getErrors().get(0)
+				.getOccurrencesCount());
+		errorCounter.clear();
+		assertEquals("clear", 0, errorCounter.getErrorsCount());
 	}
 
 	/** Test. */
@@ -396,6 +970,34 @@ public class TestCounter {
 		assertSame("request transform pattern", value, counter.getRequestTransformPattern());
 	}
 
+	/** Test. */
+	@Test
+	public void testRequestTransformCache() {
+		assertNull("no cache", counter.getRequestTransformCache());
+		counter.setRequestTransformPattern(Pattern.compile("[0-9]+"));
+		final RequestTransformCache cache = counter.getRequestTransformCache();
+		assertNotNull("cache", cache);
+		counter.addRequest("select * from a where id = 1", 100, 50, false, -1);
+		counter.addRequest("select * from a where id = 1", 100, 50, false, -1);
+		counter.addRequest("select * from a where id = 2", 100, 50, false, -1);
+		assertEquals("requests count", 1, counter.getRequestsCount());
+		assertEquals("request name", "select * from a where id = $", counter.getRequests()
+				.get(0).getName());
+		assertEquals("hits", 1, cache.getHits());
+		assertEquals("misses", 2, cache.getMisses());
+		assertEquals("size", 2, cache.getSize());
+		assertEquals("hits percentage", 33, cache.getHitsPercentage());
+		assertNotNull("toString", cache.toString());
+		for (int i = 0; i < RequestTransformCache.MAX_SIZE; i++) {
+			counter.addRequest("select * from b where id = " + i, 100, 50, false, -1);
+		}
+		assertTrue("evictions", cache.getEvictions() > 0);
+		assertTrue("max size", cache.getSize() <= RequestTransformCache.MAX_SIZE);
+		assertEquals("requests count", 2, counter.getRequestsCount());
+		counter.setRequestTransformPattern(null);
+		assertNull("no cache", counter.getRequestTransformCache());
+	}
+
 	/** Test. */
 	@Test
 	public void testStartDate() {
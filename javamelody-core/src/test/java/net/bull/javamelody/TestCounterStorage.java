@@ -17,11 +17,21 @@
  */
 package net.bull.javamelody;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -65,6 +75,171 @@ public class TestCounterStorage {
 		}
 	}
 
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testJournal() throws IOException {
+		Utils.setProperty(Parameter.COUNTERS_JOURNAL, "true");
+		try {
+			checkJournal();
+			// enregistrements du journal au format binaire
+			Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, "true");
+			checkJournal();
+			checkJournalWithBothFormats();
+		} finally {
+			Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, null);
+			Utils.setProperty(Parameter.COUNTERS_JOURNAL, null);
+		}
+	}
+
+	private void checkJournalWithBothFormats() throws IOException {
+		final Counter counter = new Counter("sql", null);
+		counter.setApplication("test counter journal");
+		// fichier du counter plus gros que le journal pour ne pas le compacter
+		for (int i = 0; i < 20; i++) {
+			counter.addRequest("request " + i, 10, -1, false, -1);
+		}
+		counter.writeToFile();
+		// un enregistrement par sérialisation java, écrit avant l'activation du format binaire
+		Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, null);
+		counter.addRequest("request 1", 20, -1, false, -1);
+		counter.writeToFile();
+		Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, "true");
+		counter.addRequest("request 2", 30, -1, false, -1);
+		counter.writeToFile();
+		final File journalFile = new File(Parameters.getStorageDirectory(counter.getApplication()),
+				counter.getStorageName() + ".journal");
+		final List<Boolean> encodedRecords = getEncodedRecords(journalFile);
+		assertEquals("records", 2, encodedRecords.size());
+		assertFalse("serialized record", encodedRecords.get(0));
+		assertTrue("binary record", encodedRecords.get(1));
+
+		final Counter readCounter = new Counter("sql", null);
+		readCounter.setApplication(counter.getApplication());
+		readCounter.readFromFile();
+		assertEquals("requests", counter.getRequestsCount(), readCounter.getRequestsCount());
+		for (final CounterRequest request : counter.getRequests()) {
+			final CounterRequest readRequest = readCounter.getCounterRequestByName(request
+					.getName());
+			assertEquals("id", request.getId(), readRequest.getId());
+			assertEquals("hits", request.getHits(), readRequest.getHits());
+			assertEquals("durations", request.getDurationsSum(), readRequest.getDurationsSum());
+		}
+		counter.compactFile();
+	}
+
+	private static List<Boolean> getEncodedRecords(File journalFile) throws IOException {
+		final List<Boolean> result = new ArrayList<Boolean>();
+		final DataInputStream input = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile)));
+		try {
+			// taille et date du fichier du counter
+			input.readLong();
+			input.readLong();
+			while (input.available() > 0) {
+				final byte[] bytes = new byte[input.readInt()];
+				input.readFully(bytes);
+				result.add(CounterCodec.isEncoded(new BufferedInputStream(new GZIPInputStream(
+						new ByteArrayInputStream(bytes)))));
+			}
+		} finally {
+			input.close();
+		}
+		return result;
+	}
+
+	private void checkJournal() throws IOException {
+		final Counter counter = new Counter("http", null);
+		counter.setApplication("test counter journal");
+		final File journalFile = new File(Parameters.getStorageDirectory(counter.getApplication()),
+				counter.getStorageName() + ".journal");
+		counter.addRequest("request 1", 10, 0, false, 100);
+		counter.addRequest("request 2", 10, 0, false, 100);
+		// la première écriture est complète
+		counter.writeToFile();
+		assertFalse("no journal", journalFile.exists());
+		counter.addRequest("request 1", 20, 0, false, 100);
+		counter.addRequest("request 3", 20, 0, false, 100);
+		counter.writeToFile();
+		assertTrue("journal", journalFile.exists());
+		counter.removeRequest("request 2");
+		counter.writeToFile();
+
+		final Counter readCounter = new Counter("http", null);
+		readCounter.setApplication(counter.getApplication());
+		readCounter.readFromFile();
+		assertEquals("requests", 2, readCounter.getRequestsCount());
+		for (final CounterRequest request : readCounter.getRequests()) {
+			assertFalse("removed", "request 2".equals(request.getName()));
+		}
+		assertEquals("hits", 2, readCounter.getCounterRequestByName("request 1").getHits());
+		assertEquals("durations", 30, readCounter.getCounterRequestByName("request 1")
+				.getDurationsSum());
+
+		counter.compactFile();
+		assertFalse("compacted", journalFile.exists());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testBinaryFormat() throws IOException {
+		final Counter sqlCounter = new Counter("sql", null);
+		final Counter counter = new Counter("http", null, sqlCounter);
+		counter.setApplication("test counter binary format");
+		sqlCounter.setApplication(counter.getApplication());
+		counter.bindContext("request 1", "request 1", null, -1);
+		sqlCounter.bindContext("select 1", "select 1", null, -1);
+		sqlCounter.addRequest("select 1", 5, 0, false, -1);
+		counter.addRequest("request 1", 10, 0, false, 100);
+		counter.addRequest("request 2", 200, 0, true, 1000);
+		// fichier écrit auparavant au format de la sérialisation java
+		counter.writeToFile();
+		Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, "true");
+		try {
+			final Counter serializedCounter = new Counter("http", null);
+			serializedCounter.setApplication(counter.getApplication());
+			serializedCounter.readFromFile();
+			assertEquals("requests", 2, serializedCounter.getRequestsCount());
+
+			counter.writeToFile();
+			final Counter readCounter = new Counter("http", null);
+			readCounter.setApplication(counter.getApplication());
+			readCounter.readFromFile();
+			assertEquals("requests", 2, readCounter.getRequestsCount());
+			for (final CounterRequest request : counter.getRequests()) {
+				final CounterRequest readRequest = readCounter.getCounterRequestByName(request
+						.getName());
+				assertEquals("id", request.getId(), readRequest.getId());
+				assertEquals("hits", request.getHits(), readRequest.getHits());
+				assertEquals("durations", request.getDurationsSum(),
+						readRequest.getDurationsSum());
+				assertEquals("maximum", request.getMaximum(), readRequest.getMaximum());
+				assertEquals("system errors", request.getSystemErrorPercentage(),
+						readRequest.getSystemErrorPercentage(), 0.01);
+				assertEquals("response sizes", request.getResponseSizeMean(),
+						readRequest.getResponseSizeMean());
+				assertEquals("percentile", request.getDurationPercentile(99),
+						readRequest.getDurationPercentile(99));
+				assertEquals("child requests", request.getChildRequestsExecutionsByRequestId(),
+						readRequest.getChildRequestsExecutionsByRequestId());
+			}
+
+			final Counter errorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			errorCounter.setApplication(counter.getApplication());
+			errorCounter.addRequestForSystemError("error", -1, -1, "stack trace");
+			errorCounter.writeToFile();
+			final Counter readErrorCounter = new Counter(Counter.ERROR_COUNTER_NAME, null);
+			readErrorCounter.setApplication(counter.getApplication());
+			readErrorCounter.readFromFile();
+			assertEquals("errors", 1, readErrorCounter.getErrorsCount());
+			assertEquals("error", "stack trace", readErrorCounter.getErrors().get(0)
+					.getStackTrace());
+		} finally {
+			Utils.setProperty(Parameter.COUNTERS_BINARY_FORMAT, null);
+		}
+	}
+
 	private void checkSetup(final File storageDir, final File obsoleteFile,
 			final File notObsoleteFile) throws IOException {
 		if (!storageDir.exists() && !storageDir.mkdirs()) {
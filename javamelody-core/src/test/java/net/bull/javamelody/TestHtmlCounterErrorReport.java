@@ -59,8 +59,11 @@ public class TestHtmlCounterErrorReport {
 		assertNotEmptyAndClear(writer);
 
 		while (errorCounter.getErrorsCount() < Counter.MAX_ERRORS_COUNT) {
-			errorCounter.addErrors(Collections.singletonList(new CounterError("erreur", null)));
+			errorCounter.addErrors(Collections.singletonList(new CounterError("erreur "
+					+ errorCounter.getErrorsCount(), null)));
 		}
+		// une erreur répétée est affichée avec son nombre d'occurrences
+		errorCounter.addErrors(Collections.singletonList(new CounterError("erreur 0", null)));
 		report.toHtml();
 		assertNotEmptyAndClear(writer);
 
@@ -39,6 +39,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -132,6 +133,10 @@ public class TestHtmlReport {
 		setProperty(Parameter.WARNING_THRESHOLD_MILLIS, "500");
 		setProperty(Parameter.SEVERE_THRESHOLD_MILLIS, "1500");
 		setProperty(Parameter.ANALYTICS_ID, "123456789");
+		// avec un cache de transform-pattern affiché en bas de page
+		sqlCounter.setRequestTransformPattern(Pattern.compile("[0-9]+"));
+		sqlCounter.addRequest("select 1", 10, 0, false, -1);
+		sqlCounter.addRequest("select 1", 10, 0, false, -1);
 		counter.addRequest("test1", 0, 0, false, 1000);
 		counter.addRequest("test2", 1000, 500, false, 1000);
 		counter.addRequest("test3", 100000, 50000, true, 10000);
@@ -18,15 +18,23 @@
 package net.bull.javamelody;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 import java.util.Timer;
 
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDbPool;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Util;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -128,6 +136,164 @@ public class TestJRobin {
 		jrobin.addValue(1);
 	}
 
+	/** Test.
+	 * @throws IOException e
+	 * @throws RrdException e */
+	@Test
+	public void testSegments() throws IOException, RrdException {
+		final String requestId = new CounterRequest("segment request", "sql").getId();
+		final File rrdFile = new File(Parameters.getStorageDirectory(TEST_APPLICATION), requestId
+				+ ".rrd");
+		final JRobin requestJRobin = JRobin.createInstance(TEST_APPLICATION, requestId,
+				"segment request");
+		assertTrue("rrd file", rrdFile.exists());
+
+		final JRobinSegments segments = new JRobinSegments(TEST_APPLICATION);
+		final JRobin jrobin = segments.getJRobin(requestId, "segment request");
+		// le fichier rrd de la requête est migré dans un segment
+		assertFalse("migrated", rrdFile.exists());
+		assertEquals("name", requestJRobin.getName(), jrobin.getName());
+		assertEquals("label", requestJRobin.getLabel(), jrobin.getLabel());
+		jrobin.addValue(100);
+		segments.flush();
+		jrobin.graph(Period.JOUR.getRange(), 80, 80);
+		jrobin.getLastValue();
+
+		// l'index est relu par une nouvelle instance
+		final JRobinSegments segments2 = new JRobinSegments(TEST_APPLICATION);
+		assertEquals("series count", segments.getSeriesCount(), segments2.getSeriesCount());
+		assertTrue("delete", segments2.getJRobin(requestId, "segment request").deleteFile());
+		assertFalse("delete", segments2.removeSeries(requestId));
+		segments2.deleteObsoleteSeries();
+		segments2.flush();
+
+		// fichier rrd ouvert dans le pool par un autre thread pendant la migration
+		final String requestId2 = new CounterRequest("segment request 2", "sql").getId();
+		final File rrdFile2 = new File(Parameters.getStorageDirectory(TEST_APPLICATION),
+				requestId2 + ".rrd");
+		JRobin.createInstance(TEST_APPLICATION, requestId2, "segment request 2");
+		final RrdDbPool rrdPool = JRobin.getRrdDbPool();
+		final RrdDb rrdDb = rrdPool.requestRrdDb(rrdFile2.getPath());
+		final Thread releaseThread = new Thread(getClass().getSimpleName()) {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+					rrdPool.release(rrdDb);
+				} catch (final Exception e) { // NOPMD
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		releaseThread.start();
+		// le fichier est supprimé seulement après sa fermeture par le pool
+		segments2.getJRobin(requestId2, "segment request 2").deleteFile();
+		assertFalse("migrated", rrdFile2.exists());
+		assertFalse("closed", Arrays.asList(rrdPool.getOpenFiles()).contains(
+				Util.getCanonicalPath(rrdFile2.getPath())));
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testRrdNioSyncScheduler() throws IOException {
+		RrdNioSyncScheduler.syncAll();
+		final long syncAndSkippedCount = RrdNioSyncScheduler.getSyncCount()
+				+ RrdNioSyncScheduler.getSkippedCount();
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "sync", "sync request");
+		jrobin.addValue(1);
+		// les fichiers modifiés sont dans la file du planificateur, jusqu'à leur synchronisation
+		assertTrue("dirty", RrdNioSyncScheduler.getDirtyCount() > 0);
+		RrdNioSyncScheduler.syncAll();
+		assertEquals("dirty", 0, RrdNioSyncScheduler.getDirtyCount());
+		assertTrue("synced", RrdNioSyncScheduler.getSyncCount()
+				+ RrdNioSyncScheduler.getSkippedCount() > syncAndSkippedCount);
+		// rien à synchroniser pour les fichiers non modifiés
+		assertEquals("clean", 0, RrdNioSyncScheduler.syncDirtyBackends(1000000000L));
+		assertTrue("mean", RrdNioSyncScheduler.getMeanSyncMillis() >= 0);
+		assertTrue("max", RrdNioSyncScheduler.getMaxSyncMillis() >= 0);
+		jrobin.deleteFile();
+	}
+
+	/** Test.
+	 * @throws IOException e
+	 * @throws InterruptedException e */
+	@Test
+	public void testGraphCache() throws IOException, InterruptedException {
+		final Range range = Period.JOUR.getRange();
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "graphcache",
+				"graph cache request");
+		final GraphCache graphCache = JRobin.getGraphCache();
+		// sans le paramètre graphs-cache-size, le cache n'est pas utilisé
+		final long misses = graphCache.getMisses();
+		jrobin.graph(range, 80, 80);
+		assertEquals("misses", misses, graphCache.getMisses());
+		Utils.setProperty(Parameter.GRAPHS_CACHE_SIZE, "1");
+		try {
+			final long hits = graphCache.getHits();
+			final byte[] image = jrobin.graph(range, 80, 80);
+			assertSame("cached", image, jrobin.graph(range, 80, 80));
+			assertEquals("hits", hits + 1, graphCache.getHits());
+			assertTrue("memory", graphCache.getMemorySize() >= image.length);
+			// taille différente, image différente
+			assertFalse("size", image == jrobin.graph(range, 100, 80));
+			// la fin de la période avance sans mise à jour du fichier rrd
+			Utils.setProperty(Parameter.RESOLUTION_SECONDS, "1");
+			// loin du changement de seconde de Util.getTime() (arrondi à la demi-seconde)
+			while (System.currentTimeMillis() % 1000 >= 100) {
+				Thread.sleep(10);
+			}
+			final byte[] image2 = jrobin.graph(range, 80, 80);
+			assertSame("cached", image2, jrobin.graph(range, 80, 80));
+			Thread.sleep(1100);
+			assertFalse("end time", image2 == jrobin.graph(range, 80, 80));
+		} finally {
+			Utils.setProperty(Parameter.RESOLUTION_SECONDS, null);
+			Utils.setProperty(Parameter.GRAPHS_CACHE_SIZE, null);
+			jrobin.deleteFile();
+		}
+
+		final GraphCache cache = new GraphCache();
+		cache.put("a", 1, 60, new byte[600], 1000);
+		assertNull("updated", cache.get("a", 2, 60));
+		assertNull("end time", cache.get("a", 1, 120));
+		cache.put("b", 1, 60, new byte[600], 1000);
+		// l'image la moins récemment utilisée est évincée
+		assertNull("evicted", cache.get("a", 1, 60));
+		assertEquals("evictions", 1, cache.getEvictions());
+		assertEquals("memory size", 600, cache.getMemorySize());
+		cache.clear();
+		assertEquals("size", 0, cache.getSize());
+	}
+
+	/** Test.
+	 * @throws IOException e */
+	@Test
+	public void testGetGraphSeries() throws IOException {
+		final JRobin jrobin = JRobin.createInstance(TEST_APPLICATION, "graphseries",
+				"graph series request");
+		jrobin.addValue(100);
+		for (final Period period : Period.values()) {
+			final GraphSeries graphSeries = jrobin.getGraphSeries(period.getRange());
+			assertEquals("name", "graphseries", graphSeries.getName());
+			assertEquals("values", graphSeries.getAverages().length,
+					graphSeries.getMaxima().length);
+			assertTrue("step", graphSeries.getStep() >= Parameters.getResolutionSeconds());
+			final String json = graphSeries.toJson();
+			assertTrue("json", json.startsWith("{\"name\":\"graphseries\",\"label\":")
+					&& json.endsWith("]}"));
+		}
+		jrobin.deleteFile();
+
+		final GraphSeries graphSeries = new GraphSeries("a", "\"<b>\"", 0, 60, new double[] {
+				1, 2.5, Double.NaN }, new double[] { 2, 3.333, Double.NaN });
+		assertEquals("json", "{\"name\":\"a\",\"label\":\"\\\"\\u003cb\\u003e\\\"\",\"start\":0,"
+				+ "\"step\":60,\"average\":[1,2.5,null],\"max\":[2,3.33,null]}",
+				graphSeries.toJson());
+		assertEquals("maximum", 3.333, graphSeries.getMaximum(), 0.001);
+		assertTrue("toString", graphSeries.toString().contains("values=3"));
+	}
+
 	/** Test.
 	 * @throws IOException e */
 	@Test
@@ -17,12 +17,16 @@
  */
 package net.bull.javamelody;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.junit.Before;
@@ -151,6 +155,33 @@ public class TestLog {
 		}
 	}
 
+	/** Test. */
+	@Test
+	public void testStackTraceFingerprints() {
+		final List<String> stackTraces = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			// exceptions identiques car créées sur la même ligne
+			final Exception exception = new IllegalStateException("test",
+					new IllegalArgumentException("cause"));
+			stackTraces.add(StackTraceFingerprints.getStackTrace(exception));
+		}
+		final long hits = StackTraceFingerprints.getHits();
+		final String stackTrace = StackTraceFingerprints.getStackTrace(new IllegalStateException(
+				"other test"));
+		assertTrue("formatted", stackTrace.contains("other test"));
+		assertTrue("formatted", stackTraces.get(0).contains("Caused by"));
+		// formatée une seule fois : même instance de String
+		assertSame("fingerprint", stackTraces.get(0), stackTraces.get(1));
+		assertSame("fingerprint", stackTraces.get(0), stackTraces.get(2));
+		assertEquals("hits", hits, StackTraceFingerprints.getHits());
+		assertTrue("hitsPercentage", StackTraceFingerprints.getHitsPercentage() > 0);
+		for (int i = 0; i <= StackTraceFingerprints.MAX_SIZE; i++) {
+			StackTraceFingerprints.getStackTrace(new IllegalStateException(String.valueOf(i)));
+		}
+		assertTrue("size", StackTraceFingerprints.getSize() <= StackTraceFingerprints.MAX_SIZE);
+		assertTrue("evictions", StackTraceFingerprints.getEvictions() > 0);
+	}
+
 	/** Test. */
 	@Test
 	public void testDebugInfoAndWarn() {
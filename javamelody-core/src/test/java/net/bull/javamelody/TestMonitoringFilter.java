@@ -27,6 +27,7 @@ import static net.bull.javamelody.HttpParameters.DATABASE_PART;
 import static net.bull.javamelody.HttpParameters.DEFAULT_WITH_CURRENT_REQUESTS_PART;
 import static net.bull.javamelody.HttpParameters.EXPLAIN_PLAN_PART;
 import static net.bull.javamelody.HttpParameters.FORMAT_PARAMETER;
+import static net.bull.javamelody.HttpParameters.GRAPH_DATA_PART;
 import static net.bull.javamelody.HttpParameters.GRAPH_PARAMETER;
 import static net.bull.javamelody.HttpParameters.GRAPH_PART;
 import static net.bull.javamelody.HttpParameters.HEIGHT_PARAMETER;
@@ -55,6 +56,7 @@ import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -77,6 +79,10 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ReadListener;
@@ -92,6 +98,8 @@ import javax.servlet.http.HttpSession;
 
 import net.sf.ehcache.CacheManager;
 
+import org.easymock.Capture;
+import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -128,6 +136,10 @@ public class TestMonitoringFilter { // NOPMD
 	 */
 	@Before
 	public void setUp() throws ServletException {
+		setUp(2);
+	}
+
+	private void setUp(int servletMajorVersion) throws ServletException {
 		try {
 			final Field field = MonitoringFilter.class.getDeclaredField("instanceCreated");
 			field.setAccessible(true);
@@ -146,8 +158,8 @@ public class TestMonitoringFilter { // NOPMD
 				context.getInitParameter(Parameters.PARAMETER_SYSTEM_PREFIX
 						+ Parameter.DISABLED.getCode())).andReturn(null).anyTimes();
 		expect(config.getInitParameter(Parameter.DISABLED.getCode())).andReturn(null).anyTimes();
-		expect(context.getMajorVersion()).andReturn(2).anyTimes();
-		expect(context.getMinorVersion()).andReturn(5).anyTimes();
+		expect(context.getMajorVersion()).andReturn(servletMajorVersion).anyTimes();
+		expect(context.getMinorVersion()).andReturn(servletMajorVersion == 2 ? 5 : 0).anyTimes();
 		expect(context.getServletContextName()).andReturn("test webapp").anyTimes();
 		// mockJetty pour avoir un applicationServerIconName dans JavaInformations
 		expect(context.getServerInfo()).andReturn("mockJetty").anyTimes();
@@ -186,6 +198,150 @@ public class TestMonitoringFilter { // NOPMD
 		verify(request);
 	}
 
+	/** Test.
+	 * @throws ServletException e
+	 * @throws IOException e */
+	@Test
+	public void testDoFilterWithoutSampling() throws ServletException, IOException {
+		// aucune requête échantillonnée : seules les requêtes en erreur sont enregistrées
+		setProperty(Parameter.REQUESTS_SAMPLING_RATE, "1000000");
+		try {
+			setUp();
+			final HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+			expect(request.getRequestURI()).andReturn("/test/unknown").anyTimes();
+			expect(request.getContextPath()).andReturn(CONTEXT_PATH).anyTimes();
+			expect(request.getMethod()).andReturn("GET").anyTimes();
+			final HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+			final FilterChain chain = new FilterChain() {
+				@Override
+				public void doFilter(ServletRequest servletRequest,
+						ServletResponse servletResponse) throws IOException {
+					((HttpServletResponse) servletResponse)
+							.sendError(HttpServletResponse.SC_NOT_FOUND);
+				}
+			};
+			replay(request);
+			replay(response);
+			final Collector collector = monitoringFilter.getFilterContext().getCollector();
+			final Counter httpCounter = collector.getCounterByName(Counter.HTTP_COUNTER_NAME);
+			httpCounter.addRequest("Error404", 100, 10, false, 1000);
+			monitoringFilter.doFilter(request, response, chain);
+			verify(request);
+			verify(response);
+			// status 404 enregistré en erreur sous le nom Error404, comme une requête échantillonnée
+			final CounterRequest counterRequest = httpCounter.getCounterRequestByName("Error404");
+			assertEquals("hits", 2, counterRequest.getHits());
+			assertEquals("systemErrors", 50f, counterRequest.getSystemErrorPercentage(), 0.01);
+			// temps cpu et taille inconnus qui ne changent pas les moyennes
+			assertEquals("cpuTimeMean", 10, counterRequest.getCpuTimeMean());
+			assertEquals("responseSizeMean", 1000, counterRequest.getResponseSizeMean());
+			assertEquals("errors", 1, collector.getCounterByName(Counter.ERROR_COUNTER_NAME)
+					.getRequestsCount());
+		} finally {
+			setProperty(Parameter.REQUESTS_SAMPLING_RATE, null);
+		}
+	}
+
+	/** Test.
+	 * @throws ServletException e
+	 * @throws IOException e */
+	@Test
+	public void testDoFilterAsync() throws ServletException, IOException {
+		setUp(3);
+		final Collector collector = monitoringFilter.getFilterContext().getCollector();
+		final Counter httpCounter = collector.getCounterByName(Counter.HTTP_COUNTER_NAME);
+		final Counter sqlCounter = collector.getCounterByName("sql");
+		httpCounter.clear();
+
+		// requête asynchrone terminée par AsyncContext.start, puis par un dispatch asynchrone,
+		// avec une erreur signalée par onError
+		final AsyncRequestWrapper asyncRequest = doFilterAsync("/test/async", sqlCounter);
+		assertTrue("not yet recorded", httpCounter.getRequests().isEmpty());
+		final HttpServletRequest dispatchRequest = createNiceMock(HttpServletRequest.class);
+		expect(dispatchRequest.getDispatcherType()).andReturn(DispatcherType.ASYNC).anyTimes();
+		expect(dispatchRequest.getAttribute(AsyncRequestWrapper.REQUEST_KEY)).andReturn(
+				asyncRequest).anyTimes();
+		final FilterChain dispatchChain = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) {
+				addSqlRequest(sqlCounter);
+			}
+		};
+		replay(dispatchRequest);
+		monitoringFilter.doFilter(dispatchRequest, createNiceMock(HttpServletResponse.class),
+				dispatchChain);
+		verify(dispatchRequest);
+		assertTrue("not yet recorded", httpCounter.getRequests().isEmpty());
+		final AsyncContext asyncContext = createNiceMock(AsyncContext.class);
+		replay(asyncContext);
+		asyncRequest.onError(new AsyncEvent(asyncContext, new IllegalStateException("test")));
+		asyncRequest.onComplete(new AsyncEvent(asyncContext));
+		// un 2ème onComplete n'enregistre pas une 2ème fois la requête
+		asyncRequest.onComplete(new AsyncEvent(asyncContext));
+		final CounterRequest request = httpCounter.getCounterRequestByName("/async GET");
+		assertEquals("hits", 1, request.getHits());
+		assertEquals("systemErrors", 100f, request.getSystemErrorPercentage(), 0.01);
+		// requête sql de AsyncContext.start et requête sql du dispatch asynchrone
+		assertEquals("childHits", 2, request.getChildHitsMean());
+		assertEquals("childRequests", 1, request.getChildRequestsExecutionsByRequestId().size());
+
+		// requête asynchrone dont le délai est dépassé
+		final AsyncRequestWrapper timedOutRequest = doFilterAsync("/test/timeout", sqlCounter);
+		final AsyncContext timedOutContext = createNiceMock(AsyncContext.class);
+		expect(timedOutContext.getTimeout()).andReturn(30000L).anyTimes();
+		replay(timedOutContext);
+		timedOutRequest.onTimeout(new AsyncEvent(timedOutContext));
+		timedOutRequest.onComplete(new AsyncEvent(timedOutContext));
+		final CounterRequest timedOut = httpCounter.getCounterRequestByName("/timeout GET");
+		assertEquals("hits", 1, timedOut.getHits());
+		assertEquals("systemErrors", 100f, timedOut.getSystemErrorPercentage(), 0.01);
+		assertNotNull("timeout error", collector.getCounterByName(Counter.ERROR_COUNTER_NAME)
+				.getCounterRequestByName(
+						"java.util.concurrent.TimeoutException: Async request timed out after 30000 ms"));
+	}
+
+	private AsyncRequestWrapper doFilterAsync(String requestURI, final Counter sqlCounter)
+			throws IOException, ServletException {
+		final HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+		expect(request.getRequestURI()).andReturn(requestURI).anyTimes();
+		expect(request.getContextPath()).andReturn(CONTEXT_PATH).anyTimes();
+		expect(request.getMethod()).andReturn("GET").anyTimes();
+		expect(request.getDispatcherType()).andReturn(DispatcherType.REQUEST).anyTimes();
+		final AsyncContext asyncContext = createNiceMock(AsyncContext.class);
+		expect(
+				request.startAsync(EasyMock.anyObject(ServletRequest.class),
+						EasyMock.anyObject(ServletResponse.class))).andReturn(asyncContext);
+		final Capture<AsyncListener> listener = new Capture<AsyncListener>();
+		asyncContext.addListener(EasyMock.capture(listener));
+		final Capture<Runnable> runnable = new Capture<Runnable>();
+		asyncContext.start(EasyMock.capture(runnable));
+		final FilterChain chain = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse) {
+				// la requête sera terminée par un autre thread
+				servletRequest.startAsync().start(new Runnable() {
+					@Override
+					public void run() {
+						addSqlRequest(sqlCounter);
+					}
+				});
+			}
+		};
+		replay(request);
+		replay(asyncContext);
+		monitoringFilter.doFilter(request, createNiceMock(HttpServletResponse.class), chain);
+		verify(request);
+		verify(asyncContext);
+		// exécution de AsyncContext.start, en principe par un autre thread
+		runnable.getValue().run();
+		return (AsyncRequestWrapper) listener.getValue();
+	}
+
+	private static void addSqlRequest(Counter sqlCounter) {
+		sqlCounter.bindContext("select 1", "select 1", null, -1);
+		sqlCounter.addRequest("select 1", 1, -1, false, -1);
+	}
+
 	/** Test.
 	 * @throws ServletException e
 	 * @throws IOException e */
@@ -247,6 +403,32 @@ public class TestMonitoringFilter { // NOPMD
 			setProperty(Parameter.URL_EXCLUDE_PATTERN, "");
 		}
 
+		// échantillonnage des requêtes, avec requêtes non échantillonnées enregistrées car lentes
+		setProperty(Parameter.REQUESTS_SAMPLING_RATE, "1000000");
+		setProperty(Parameter.REQUESTS_SAMPLING_SLOW_MILLIS, "0");
+		try {
+			setUp();
+			doFilter(createNiceMock(HttpServletRequest.class));
+			setProperty(Parameter.REQUESTS_SAMPLING_SLOW_MILLIS, null);
+			setUp();
+			doFilter(createNiceMock(HttpServletRequest.class));
+		} finally {
+			setProperty(Parameter.REQUESTS_SAMPLING_RATE, null);
+			setProperty(Parameter.REQUESTS_SAMPLING_SLOW_MILLIS, null);
+		}
+
+		// enregistrement asynchrone des hits, reportés dans les counters au plus tard par destroy
+		setProperty(Parameter.ASYNC_HITS, TRUE);
+		try {
+			setUp();
+			doFilter(createNiceMock(HttpServletRequest.class));
+			assertNotNull("asyncHitsRecorder", monitoringFilter.getFilterContext()
+					.getAsyncHitsRecorder());
+			monitoringFilter.destroy();
+		} finally {
+			setProperty(Parameter.ASYNC_HITS, null);
+		}
+
 		// standard
 		setUp();
 		doFilter(createNiceMock(HttpServletRequest.class));
@@ -645,6 +827,13 @@ public class TestMonitoringFilter { // NOPMD
 		parameters.put(GRAPH, "usedMemory,cpu,unknown");
 		monitoring(parameters);
 
+		parameters.put(PART_PARAMETER, GRAPH_DATA_PART);
+		parameters.put(GRAPH, "usedMemory");
+		monitoring(parameters);
+		// courbe non trouvée : erreur 404 sans contenu
+		parameters.put(GRAPH, "unknown");
+		monitoring(parameters, false);
+
 		parameters.put(PART_PARAMETER, USAGES_PART);
 		parameters.put(GRAPH, "unknown");
 		monitoring(parameters);
@@ -779,6 +968,8 @@ public class TestMonitoringFilter { // NOPMD
 		monitoring(parameters);
 		parameters.put(PART_PARAMETER, GRAPH_PART);
 		monitoring(parameters);
+		parameters.put(PART_PARAMETER, GRAPH_DATA_PART);
+		monitoring(parameters);
 		parameters.remove(GRAPH_PARAMETER);
 		parameters.put(PART_PARAMETER, OTHER_JROBINS_PART);
 		monitoring(parameters);
@@ -54,8 +54,11 @@ public class TestPdfCounterErrorReport {
 		final PdfReport pdfReport = new PdfReport(collector, false,
 				Collections.singletonList(javaInformations), Period.TOUT, output);
 		while (errorCounter.getErrorsCount() < Counter.MAX_ERRORS_COUNT) {
-			errorCounter.addErrors(Collections.singletonList(new CounterError("erreur", null)));
+			errorCounter.addErrors(Collections.singletonList(new CounterError("erreur "
+					+ errorCounter.getErrorsCount(), null)));
 		}
+		// une erreur répétée est affichée avec son nombre d'occurrences
+		errorCounter.addErrors(Collections.singletonList(new CounterError("erreur 0", null)));
 		pdfReport.toPdf();
 		assertNotEmptyAndClear(output);
 
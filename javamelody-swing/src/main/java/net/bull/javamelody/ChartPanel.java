@@ -54,6 +54,8 @@ class ChartPanel extends MelodyPanel {
 	private final MButton refreshButton;
 	private ImageIcon imageIcon;
 	private MTransferableLabel imageLabel;
+	// valeurs de la courbe pour la dessiner localement, ou null si le serveur ne les fournit pas
+	private GraphSeries graphSeries;
 	private int zoomValue;
 
 	ChartPanel(RemoteCollector remoteCollector, String graphName, String graphLabel)
@@ -95,10 +97,18 @@ class ChartPanel extends MelodyPanel {
 		southPanel.setOpaque(false);
 
 		zoomValue = 0;
-		final byte[] imageData = getRemoteCollector().collectJRobin(graphName, CHART_WIDTH,
-				CHART_HEIGHT);
-		if (imageData != null) {
-			this.imageIcon = new ImageIcon(imageData);
+		// la courbe est dessinée localement, pour zoomer sans nouvel appel au serveur,
+		// sauf avec un serveur d'une version précédente qui fournit seulement des images
+		graphSeries = getRemoteCollector().collectGraphSeries(graphName);
+		if (graphSeries != null) {
+			this.imageIcon = new ImageIcon(GraphSeriesRenderer.render(graphSeries, CHART_WIDTH,
+					CHART_HEIGHT));
+		} else {
+			final byte[] imageData = getRemoteCollector().collectJRobin(graphName, CHART_WIDTH,
+					CHART_HEIGHT);
+			this.imageIcon = imageData != null ? new ImageIcon(imageData) : null;
+		}
+		if (imageIcon != null) {
 			this.imageLabel = new MTransferableLabel(imageIcon);
 			// ce name sera utilisé comme nom de fichier pour le drag and drop de l'image
 			this.imageLabel.setName(graphLabel);
@@ -111,7 +121,6 @@ class ChartPanel extends MelodyPanel {
 
 			southPanel.add(createSlider());
 		} else {
-			this.imageIcon = null;
 			this.imageLabel = null;
 		}
 		southPanel.add(createButtonsPanel());
@@ -177,6 +186,12 @@ class ChartPanel extends MelodyPanel {
 		this.zoomValue = value;
 		final int width = Math.max(1, imageIcon.getIconWidth() * value / 100);
 		final int height = Math.max(1, imageIcon.getIconHeight() * value / 100);
+		if (graphSeries != null) {
+			// courbe dessinée localement dans la bonne dimension, sans appel au serveur
+			getImageLabel().setIcon(
+					new ImageIcon(GraphSeriesRenderer.render(graphSeries, width, height)));
+			return;
+		}
 		final ImageIcon scaledImageIcon = MSwingUtilities.getScaledInstance(imageIcon, width,
 				height);
 		// setIcon appelle déjà revalidate() et repaint()
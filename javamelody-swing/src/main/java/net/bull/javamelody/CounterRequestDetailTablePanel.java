@@ -169,7 +169,8 @@ class CounterRequestDetailTablePanel extends CounterRequestAbstractPanel {
 
 			nbExecutionsColumn.setCellRenderer(new NbExecutionsTableCellRenderer());
 		}
-		table.addColumn("mean", getString("Temps_moyen"));
+		// moyenne avec ses décimales, sous la milliseconde avec le paramètre high-resolution-durations
+		table.addColumn("meanMillis", getString("Temps_moyen"));
 		table.addColumn("maximum", getString("Temps_max"));
 		table.addColumn("standardDeviation", getString("Ecart_type"));
 		table.addColumn("cpuTimeMean", getString("Temps_cpu_moyen"));
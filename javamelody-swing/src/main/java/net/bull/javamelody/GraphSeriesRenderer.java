@@ -0,0 +1,224 @@
+/*
+ * Copyright 2008-2014 by Emeric Vernat
+ *
+ *     This file is part of Java Melody.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bull.javamelody;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Dessin d'une courbe dans l'IHM Swing à partir de ses valeurs moyennes et maximales (GraphSeries),
+ * pour zoomer sans demander une nouvelle image au serveur.
+ * @author Emeric Vernat
+ */
+final class GraphSeriesRenderer {
+	private static final int LEFT = 70;
+	private static final int RIGHT = 20;
+	private static final int TOP = 30;
+	private static final int BOTTOM = 50;
+	private static final Color AVERAGE_COLOR = new Color(0, 192, 0);
+	private static final Color GRID_COLOR = new Color(208, 208, 208);
+	private static final Color BACKGROUND_COLOR = new Color(240, 240, 240);
+
+	private GraphSeriesRenderer() {
+		super();
+	}
+
+	static BufferedImage render(GraphSeries series, int width, int height) {
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = image.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					RenderingHints.VALUE_ANTIALIAS_ON);
+			graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+					RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			draw(graphics, series, width, height);
+		} finally {
+			graphics.dispose();
+		}
+		return image;
+	}
+
+	private static void draw(Graphics2D graphics, GraphSeries series, int width, int height) {
+		final int plotWidth = Math.max(width - LEFT - RIGHT, 10);
+		final int plotHeight = Math.max(height - TOP - BOTTOM, 10);
+		graphics.setColor(BACKGROUND_COLOR);
+		graphics.fillRect(0, 0, width, height);
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(LEFT, TOP, plotWidth, plotHeight);
+
+		final double[] averages = series.getAverages();
+		final double[] maxima = series.getMaxima();
+		final double scale = getScale(series.getMaximum());
+		final Axis axis = new Axis(averages.length, plotWidth, plotHeight, scale);
+
+		// grille et valeurs
+		graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+		final FontMetrics fontMetrics = graphics.getFontMetrics();
+		for (int tick = 0; tick <= 5; tick++) {
+			final double value = scale * tick / 5;
+			final int y = (int) axis.y(value);
+			graphics.setColor(GRID_COLOR);
+			graphics.drawLine(LEFT, y, LEFT + plotWidth, y);
+			graphics.setColor(Color.BLACK);
+			final String text = formatValue(value);
+			graphics.drawString(text, LEFT - 5 - fontMetrics.stringWidth(text),
+					y + fontMetrics.getAscent() / 2);
+		}
+		// dates
+		final long duration = series.getStep() * averages.length;
+		final DateFormat dateFormat = new SimpleDateFormat(duration <= 2 * 24 * 60 * 60 ? "HH:mm"
+				: "dd/MM", I18N.getCurrentLocale());
+		final int timeTicks = Math.max(plotWidth / 100, 1);
+		for (int timeTick = 0; timeTick <= timeTicks; timeTick++) {
+			final int index = Math.round((float) timeTick * (averages.length - 1) / timeTicks);
+			final int x = (int) axis.x(index);
+			graphics.setColor(GRID_COLOR);
+			graphics.drawLine(x, TOP, x, TOP + plotHeight);
+			graphics.setColor(Color.BLACK);
+			final String text = dateFormat.format(new Date(
+					(series.getStartTime() + index * series.getStep()) * 1000));
+			graphics.drawString(text, x - fontMetrics.stringWidth(text) / 2, TOP + plotHeight
+					+ 4 + fontMetrics.getAscent());
+		}
+
+		// moyenne en aire et maximum en ligne, les valeurs inconnues interrompant la courbe
+		graphics.setColor(AVERAGE_COLOR);
+		graphics.fill(createPath(averages, axis, true));
+		graphics.setColor(Color.BLUE);
+		graphics.setStroke(new BasicStroke(1f));
+		graphics.draw(createPath(maxima, axis, false));
+		graphics.setColor(Color.BLACK);
+		graphics.drawRect(LEFT, TOP, plotWidth, plotHeight);
+
+		// titre et légende
+		graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 12));
+		final FontMetrics titleMetrics = graphics.getFontMetrics();
+		graphics.drawString(series.getLabel(),
+				LEFT + (plotWidth - titleMetrics.stringWidth(series.getLabel())) / 2,
+				TOP / 2 + titleMetrics.getAscent() / 2);
+		graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11));
+		final int legendY = TOP + plotHeight + 35;
+		graphics.setColor(AVERAGE_COLOR);
+		graphics.fillRect(LEFT, legendY - 5, 10, 10);
+		graphics.setColor(Color.BLUE);
+		graphics.fillRect(LEFT + plotWidth / 2, legendY - 5, 10, 10);
+		graphics.setColor(Color.BLACK);
+		graphics.drawString(I18N.getString("Moyenne") + ": " + formatValue(getMean(averages)),
+				LEFT + 15, legendY + 5);
+		graphics.drawString(
+				I18N.getString("Maximum") + ": " + formatValue(series.getMaximum()), LEFT
+						+ plotWidth / 2 + 15, legendY + 5);
+	}
+
+	private static final class Axis {
+		private final int count;
+		private final int plotWidth;
+		private final int plotHeight;
+		private final double scale;
+
+		Axis(int count, int plotWidth, int plotHeight, double scale) {
+			super();
+			this.count = count;
+			this.plotWidth = plotWidth;
+			this.plotHeight = plotHeight;
+			this.scale = scale;
+		}
+
+		double x(int index) {
+			return LEFT + (count > 1 ? (double) index * plotWidth / (count - 1) : 0);
+		}
+
+		double y(double value) {
+			return TOP + plotHeight - value * plotHeight / scale;
+		}
+	}
+
+	private static GeneralPath createPath(double[] values, Axis axis, boolean area) {
+		final GeneralPath path = new GeneralPath();
+		int start = 0;
+		while (start < values.length) {
+			if (Double.isNaN(values[start])) {
+				start++;
+				continue;
+			}
+			int end = start;
+			if (area) {
+				path.moveTo((float) axis.x(start), (float) axis.y(0));
+				path.lineTo((float) axis.x(start), (float) axis.y(values[start]));
+			} else {
+				path.moveTo((float) axis.x(start), (float) axis.y(values[start]));
+			}
+			while (end < values.length && !Double.isNaN(values[end])) {
+				path.lineTo((float) axis.x(end), (float) axis.y(values[end]));
+				end++;
+			}
+			if (area) {
+				path.lineTo((float) axis.x(end - 1), (float) axis.y(0));
+				path.closePath();
+			}
+			start = end;
+		}
+		return path;
+	}
+
+	private static double getMean(double[] values) {
+		double sum = 0;
+		int count = 0;
+		for (final double value : values) {
+			if (!Double.isNaN(value)) {
+				sum += value;
+				count++;
+			}
+		}
+		return count > 0 ? sum / count : 0;
+	}
+
+	// maximum arrondi de l'axe vertical : 1, 2 ou 5 fois une puissance de 10
+	private static double getScale(double maxValue) {
+		if (maxValue <= 0) {
+			return 1;
+		}
+		final double power = Math.pow(10, Math.floor(Math.log10(maxValue)));
+		for (final int factor : new int[] { 1, 2, 5 }) {
+			if (factor * power >= maxValue) {
+				return factor * power;
+			}
+		}
+		return 10 * power;
+	}
+
+	private static String formatValue(double value) {
+		final DecimalFormat format = I18N.createPercentFormat();
+		if (value >= 1000000) {
+			return format.format(value / 1000000) + " M";
+		} else if (value >= 1000) {
+			return format.format(value / 1000) + " k";
+		}
+		return format.format(value);
+	}
+}
@@ -20,6 +20,7 @@ package net.bull.javamelody;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Font;
+import java.text.DecimalFormat;
 import java.util.List;
 
 import javax.swing.JComponent;
@@ -76,6 +77,30 @@ class StatisticsTablePanel extends MelodyPanel {
 		}
 	}
 
+	private class MeanMillisTableCellRenderer extends MIntegerTableCellRenderer {
+		private static final long serialVersionUID = 1L;
+
+		private final DecimalFormat decimalFormat = I18N.createPercentFormat();
+
+		MeanMillisTableCellRenderer() {
+			super();
+		}
+
+		@Override
+		public void setValue(Object value) {
+			final Double meanMillis = (Double) value;
+			final CounterRequestAggregation myCounterRequestAggregation = getCounterRequestAggregation();
+			setStyleBasedOnThresholds(this, meanMillis.intValue(), myCounterRequestAggregation);
+			if (meanMillis >= 0 && meanMillis < 10) {
+				// une moyenne de quelques millisecondes est affichée avec ses décimales
+				// (en dessous de la milliseconde avec le paramètre high-resolution-durations)
+				setText(decimalFormat.format(meanMillis));
+			} else {
+				super.setValue(meanMillis.intValue());
+			}
+		}
+	}
+
 	private class DurationPercentageTableCellRenderer extends MDefaultTableCellRenderer {
 		private static final long serialVersionUID = 1L;
 
@@ -152,11 +177,11 @@ class StatisticsTablePanel extends MelodyPanel {
 		if (counterRequestAggregation.isTimesDisplayed()) {
 			table.addColumn("durationsSum", getString("temps_cumule"));
 			table.addColumn("hits", getString("Hits"));
-			table.addColumn("mean", getString("Temps_moyen"));
+			table.addColumn("meanMillis", getString("Temps_moyen"));
 			table.addColumn("maximum", getString("Temps_max"));
 			table.addColumn("standardDeviation", getString("Ecart_type"));
 			table.setColumnCellRenderer("durationsSum", new DurationPercentageTableCellRenderer());
-			table.setColumnCellRenderer("mean", meanCellRenderer);
+			table.setColumnCellRenderer("meanMillis", new MeanMillisTableCellRenderer());
 		} else {
 			table.addColumn("hits", getString("Hits"));
 		}